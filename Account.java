@@ -1,25 +1,247 @@
+import java.math.BigDecimal;
+
 public class Account {
+    private String accountId;
+    private String ownerBankNumber;
     private String accountType;
-    private double balance;
+    private final String currency; // ISO code of the currency the balance is held in.
+    private BigDecimal balance;
+    private long heldCents; // Funds reserved by authorization holds, in cents.
+    private long pendingDebitCents; // Debits the command sequencer accepted that are not committed yet.
+    private long pendingCreditCents; // Credits the command sequencer accepted that are not committed yet.
+    private int pendingPostings; // Number of those postings; each advances the row version once committed.
+    private long version = -1; // Row version the balance and type were last read at, -1 if never read from the database.
+    private BankMetrics metrics; // Told about every change of balance or type once the bank has indexed the account, null before.
+
+    public Account(String accountId, String ownerBankNumber, String accountType, BigDecimal balance) {
+        this(accountId, ownerBankNumber, accountType, balance, CurrencyConverter.BASE_CURRENCY);
+    }
 
-    public Account(String accountType, double balance) {
+    public Account(String accountId, String ownerBankNumber, String accountType, BigDecimal balance, String currency) {
+        this.accountId = accountId;
+        this.ownerBankNumber = ownerBankNumber;
         this.accountType = accountType;
         this.balance = balance;
+        this.currency = currency;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public String getOwnerBankNumber() {
+        return ownerBankNumber;
+    }
+
+    public String getCurrency() {
+        return currency;
     }
 
-    public String getAccountType() {
+    public synchronized String getAccountType() {
         return accountType;
     }
 
-    public void setAccountType(String accountType) {
+    public synchronized void setAccountType(String accountType) {
+        String oldType = this.accountType;
         this.accountType = accountType;
+        changed(oldType, balance);
     }
 
-    public double getBalance() {
+    public synchronized BigDecimal getBalance() {
         return balance;
     }
 
-    public void setBalance(double balance) {
+    public synchronized void setBalance(BigDecimal balance) {
+        BigDecimal oldBalance = this.balance;
         this.balance = balance;
+        changed(accountType, oldBalance);
+    }
+
+    /**
+     * Gets the row version the cached balance and type were last read at. Postings committed by
+     * this process advance it with the version the ledger returned, see refresh and commitPending;
+     * changes made elsewhere reach it when the account is next reloaded.
+     * @return The version, or -1 if the account was never read from the database.
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Replaces the cached balance and type with values read from the database, unless they are
+     * older than what is cached already.
+     * @param balance The balance read.
+     * @param accountType The account type read.
+     * @param version The row version read.
+     * @return true if the read values differed from the cached ones.
+     */
+    public synchronized boolean refresh(BigDecimal balance, String accountType, long version) {
+        if (version <= this.version) {
+            return false; // A refresh that raced with a newer one.
+        }
+        boolean changed = balance.compareTo(this.balance) != 0 || !accountType.equals(this.accountType);
+        String oldType = this.accountType;
+        BigDecimal oldBalance = this.balance;
+        this.balance = balance;
+        this.accountType = accountType;
+        this.version = version;
+        if (changed) {
+            changed(oldType, oldBalance);
+        }
+        return changed;
+    }
+
+    /**
+     * Adds a signed amount to the balance.
+     * @param delta The change in balance.
+     */
+    public synchronized void adjustBalance(BigDecimal delta) {
+        BigDecimal oldBalance = balance;
+        this.balance = balance.add(delta);
+        changed(accountType, oldBalance);
+    }
+
+    /**
+     * Starts telling bank-wide metrics about changes to this account, counting it with its
+     * current balance.
+     * @param metrics The metrics.
+     */
+    public synchronized void setMetrics(BankMetrics metrics) {
+        this.metrics = metrics;
+        metrics.accountAdded(accountType, currency, JournalEntry.toCents(balance));
+    }
+
+    /**
+     * Passes a change of balance or type on to the metrics, if the account is counted.
+     * @param oldType The type before the change.
+     * @param oldBalance The balance before the change.
+     */
+    private void changed(String oldType, BigDecimal oldBalance) {
+        if (metrics != null) {
+            metrics.balanceChanged(oldType, JournalEntry.toCents(oldBalance), accountType, JournalEntry.toCents(balance), currency);
+        }
+    }
+
+    /**
+     * Gets the amount reserved by active holds.
+     * @return The held amount.
+     */
+    public synchronized BigDecimal getHeldAmount() {
+        return BigDecimal.valueOf(heldCents, 2);
+    }
+
+    /**
+     * Gets the balance that is free to spend: the balance minus active holds and pending debits.
+     * @return The available balance.
+     */
+    public synchronized BigDecimal getAvailableBalance() {
+        return balance.subtract(BigDecimal.valueOf(heldCents + pendingDebitCents, 2));
+    }
+
+    /**
+     * Accepts a posting ahead of its commit. A debit is accepted only if the available balance
+     * covers it once every pending posting is committed, and from then on nobody else can spend
+     * it; a pending credit only counts towards later pending debits.
+     * @param cents The signed amount, in cents.
+     * @return true if the posting was accepted.
+     */
+    public synchronized boolean addPending(long cents) {
+        if (cents < 0 && getProjectedAvailableCents() < -cents) {
+            return false; // Not enough available, even with the pending credits.
+        }
+        if (cents < 0) {
+            pendingDebitCents -= cents;
+        } else {
+            pendingCreditCents += cents;
+        }
+        pendingPostings++;
+        return true;
+    }
+
+    /**
+     * Takes a pending posting off again, for a posting that will not be committed.
+     * @param cents The signed amount given to addPending.
+     */
+    public synchronized void removePending(long cents) {
+        if (cents < 0) {
+            pendingDebitCents += cents;
+        } else {
+            pendingCreditCents -= cents;
+        }
+        pendingPostings--;
+    }
+
+    /**
+     * Replaces the cached state with the one the commit of a pending posting left behind, and
+     * takes the posting off the pending ones in the same step, so that it is never counted both
+     * in the balance and as pending.
+     * @param cents The signed amount given to addPending.
+     * @param balance The balance after the commit.
+     * @param accountType The account type after the commit.
+     * @param version The row version after the commit.
+     * @return true if the committed values differed from the cached ones.
+     */
+    public synchronized boolean commitPending(long cents, BigDecimal balance, String accountType, long version) {
+        removePending(cents);
+        return refresh(balance, accountType, version);
+    }
+
+    /**
+     * Gets the available balance once every pending posting is committed.
+     * @return The amount in cents.
+     */
+    public synchronized long getProjectedAvailableCents() {
+        return JournalEntry.toCents(balance) - heldCents - pendingDebitCents + pendingCreditCents;
+    }
+
+    /**
+     * Gets the balance once every pending posting is committed.
+     * @return The projected balance.
+     */
+    public synchronized BigDecimal getProjectedBalance() {
+        return balance.add(BigDecimal.valueOf(pendingCreditCents - pendingDebitCents, 2));
+    }
+
+    /**
+     * Gets the row version once every pending posting is committed, unless another writer
+     * gets in between.
+     * @return The projected version.
+     */
+    public synchronized long getProjectedVersion() {
+        return Math.max(version, 0) + pendingPostings;
+    }
+
+    /**
+     * Reserves funds if enough of the balance is available.
+     * @param cents The amount to reserve, in cents.
+     * @return true if the funds were reserved.
+     */
+    public synchronized boolean reserve(long cents) {
+        if (getAvailableBalance().compareTo(BigDecimal.valueOf(cents, 2)) < 0) {
+            return false; // Not enough available.
+        }
+        heldCents += cents;
+        return true;
+    }
+
+    /**
+     * Reserves funds without checking the balance, for holds restored at startup.
+     * @param cents The amount to reserve, in cents.
+     */
+    public synchronized void forceReserve(long cents) {
+        heldCents += cents;
+    }
+
+    /**
+     * Returns reserved funds to the available balance.
+     * @param cents The amount to release, in cents.
+     */
+    public synchronized void unreserve(long cents) {
+        heldCents -= cents;
+    }
+
+    @Override
+    public String toString() {
+        return accountId + " (" + accountType + ", " + currency + ")";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,284 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides whether a request may reach the bank before it costs any database work. A request must
+ * pass three limits, cheapest and most specific first:
+ * - a token bucket per key, such as a bank number, so one noisy caller cannot crowd out others;
+ * - a global token bucket, so many callers together cannot saturate the database;
+ * - a cap on operations in progress at once.
+ * A rejected request gets a hint of how long to wait before trying again.
+ *
+ * Each bucket is a single AtomicLong holding its theoretical arrival time (the generic cell rate
+ * algorithm): taking a token is one compare and swap, with no lock and no background refill. A
+ * bucket whose arrival time has passed is full and carries no information, so idle buckets are
+ * dropped whenever the key table reaches its limit. If it is still full after that, further keys
+ * are not tracked and only the global limits apply to them.
+ */
+public class AdmissionController {
+    /**
+     * The limit that rejected a request.
+     */
+    public enum Limit { KEY_RATE, GLOBAL_RATE, CONCURRENCY }
+
+    private static final long CONCURRENCY_RETRY_MILLIS = 100; // Hint when the cap on operations in progress is reached.
+    private static final long SWEEP_INTERVAL_NANOS = 1_000_000_000L; // Full key tables are swept at most this often.
+
+    private final long keyIntervalNanos; // Time for one token to come back, per key.
+    private final long keyToleranceNanos; // How far ahead of time a key may run, which is its burst.
+    private final long globalIntervalNanos;
+    private final long globalToleranceNanos;
+    private final int maxConcurrent;
+    private final int maxTrackedKeys;
+    private final long origin = System.nanoTime(); // Arrival times count from here, so they start at zero.
+
+    private final Map<String, AtomicLong> keyBuckets = new ConcurrentHashMap<>(); // Theoretical arrival time by key.
+    private final AtomicLong globalBucket = new AtomicLong();
+    private final AtomicInteger inProgress = new AtomicInteger();
+    private final AtomicLong lastSweep = new AtomicLong(Long.MIN_VALUE / 2);
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder[] rejected = new LongAdder[Limit.values().length];
+
+    /**
+     * Creates a controller.
+     * @param keyRatePerSecond Requests per second each key may make in the long run.
+     * @param keyBurst Requests a key may make at once after being idle.
+     * @param globalRatePerSecond Requests per second all keys together may make in the long run.
+     * @param globalBurst Requests all keys together may make at once.
+     * @param maxConcurrent Admitted requests that may be in progress at the same time.
+     * @param maxTrackedKeys Keys with their own bucket; beyond this, new keys share only the global limits.
+     */
+    public AdmissionController(double keyRatePerSecond, int keyBurst, double globalRatePerSecond, int globalBurst,
+                               int maxConcurrent, int maxTrackedKeys) {
+        if (keyRatePerSecond <= 0 || globalRatePerSecond <= 0 || keyBurst < 1 || globalBurst < 1 || maxConcurrent < 1) {
+            throw new IllegalArgumentException("Rates, bursts and the concurrency limit must be positive");
+        }
+        this.keyIntervalNanos = Math.max(1, (long) (1_000_000_000L / keyRatePerSecond));
+        this.keyToleranceNanos = keyIntervalNanos * (keyBurst - 1);
+        this.globalIntervalNanos = Math.max(1, (long) (1_000_000_000L / globalRatePerSecond));
+        this.globalToleranceNanos = globalIntervalNanos * (globalBurst - 1);
+        this.maxConcurrent = maxConcurrent;
+        this.maxTrackedKeys = maxTrackedKeys;
+        for (int i = 0; i < rejected.length; i++) {
+            rejected[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Asks to start a request. An admitted permit must be closed when the request finishes, so
+     * use it in a try-with-resources block; closing a rejected permit does nothing.
+     * @param key What the per-key limit counts against, such as a bank number.
+     * @return The permit, admitted or not.
+     */
+    public Permit tryAcquire(String key) {
+        long now = System.nanoTime() - origin;
+        AtomicLong bucket = bucketFor(key, now);
+        if (bucket != null) {
+            long wait = take(bucket, now, keyIntervalNanos, keyToleranceNanos);
+            if (wait > 0) {
+                return reject(Limit.KEY_RATE, wait / 1_000_000 + 1);
+            }
+        }
+        long wait = take(globalBucket, now, globalIntervalNanos, globalToleranceNanos);
+        if (wait > 0) {
+            refund(bucket, keyIntervalNanos); // The key did not get to use its token.
+            return reject(Limit.GLOBAL_RATE, wait / 1_000_000 + 1);
+        }
+        if (inProgress.incrementAndGet() > maxConcurrent) {
+            inProgress.decrementAndGet();
+            refund(bucket, keyIntervalNanos);
+            refund(globalBucket, globalIntervalNanos);
+            return reject(Limit.CONCURRENCY, CONCURRENCY_RETRY_MILLIS);
+        }
+        admitted.increment();
+        return new Permit(this, 0, null);
+    }
+
+    /**
+     * Finds or creates the bucket of a key.
+     * @param key The key.
+     * @param now The current time on the controller's clock.
+     * @return The bucket, or null if the key table is full of busy keys.
+     */
+    private AtomicLong bucketFor(String key, long now) {
+        AtomicLong bucket = keyBuckets.get(key);
+        if (bucket != null) {
+            return bucket;
+        }
+        if (keyBuckets.size() >= maxTrackedKeys) {
+            sweepIdleBuckets(now);
+            if (keyBuckets.size() >= maxTrackedKeys) {
+                return null; // Every tracked key is busy; only the global limits apply.
+            }
+        }
+        return keyBuckets.computeIfAbsent(key, k -> new AtomicLong());
+    }
+
+    /**
+     * Drops the buckets that have filled up again, which are the same as having no bucket.
+     * Only one thread sweeps at a time, and not more often than once a second.
+     * @param now The current time on the controller's clock.
+     */
+    private void sweepIdleBuckets(long now) {
+        long last = lastSweep.get();
+        if (now - last < SWEEP_INTERVAL_NANOS || !sweeping.compareAndSet(false, true)) {
+            return; // Swept recently or sweeping right now.
+        }
+        try {
+            lastSweep.set(now);
+            for (Map.Entry<String, AtomicLong> entry : keyBuckets.entrySet()) {
+                AtomicLong bucket = entry.getValue();
+                if (bucket.get() <= now) {
+                    keyBuckets.remove(entry.getKey(), bucket);
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Takes a token from a bucket if one is available.
+     * @param bucket The bucket's theoretical arrival time.
+     * @param now The current time on the controller's clock.
+     * @param interval The time for one token to come back.
+     * @param tolerance How far ahead of time the bucket may run.
+     * @return 0 if a token was taken, otherwise how long to wait for one, in nanoseconds.
+     */
+    private static long take(AtomicLong bucket, long now, long interval, long tolerance) {
+        while (true) {
+            long arrival = bucket.get();
+            long start = Math.max(arrival, now); // A bucket that fell behind the clock is full.
+            if (start - now > tolerance) {
+                return start - tolerance - now;
+            }
+            if (bucket.compareAndSet(arrival, start + interval)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * Gives back a token taken for a request that a later limit rejected.
+     * @param bucket The bucket, or null for an untracked key.
+     * @param interval The bucket's interval.
+     */
+    private static void refund(AtomicLong bucket, long interval) {
+        if (bucket != null) {
+            bucket.addAndGet(-interval);
+        }
+    }
+
+    private Permit reject(Limit limit, long retryAfterMillis) {
+        rejected[limit.ordinal()].increment();
+        return new Permit(null, retryAfterMillis, limit);
+    }
+
+    /**
+     * Marks an admitted request as finished.
+     */
+    private void release() {
+        inProgress.decrementAndGet();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.sum();
+    }
+
+    /**
+     * Gets the number of requests a limit has rejected.
+     * @param limit The limit.
+     * @return The count.
+     */
+    public long getRejectedCount(Limit limit) {
+        return rejected[limit.ordinal()].sum();
+    }
+
+    public int getInProgress() {
+        return inProgress.get();
+    }
+
+    public int getTrackedKeys() {
+        return keyBuckets.size();
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController{admitted=" + getAdmittedCount() +
+                ", rejectedKeyRate=" + getRejectedCount(Limit.KEY_RATE) +
+                ", rejectedGlobalRate=" + getRejectedCount(Limit.GLOBAL_RATE) +
+                ", rejectedConcurrency=" + getRejectedCount(Limit.CONCURRENCY) +
+                ", inProgress=" + getInProgress() +
+                ", trackedKeys=" + getTrackedKeys() + '}';
+    }
+
+    /**
+     * The answer to a request for admission. An admitted permit holds one of the places counted
+     * by the concurrency limit until it is closed.
+     */
+    public static class Permit implements AutoCloseable {
+        private AdmissionController owner; // Set while an admitted permit is open.
+        private final long retryAfterMillis;
+        private final Limit limit;
+
+        private Permit(AdmissionController owner, long retryAfterMillis, Limit limit) {
+            this.owner = owner;
+            this.retryAfterMillis = retryAfterMillis;
+            this.limit = limit;
+        }
+
+        public boolean isAdmitted() {
+            return limit == null;
+        }
+
+        /**
+         * Gets how long a rejected caller should wait before trying again.
+         * @return The wait in milliseconds, 0 if the request was admitted.
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        /**
+         * Gets the limit that rejected the request.
+         * @return The limit, or null if the request was admitted.
+         */
+        public Limit getLimit() {
+            return limit;
+        }
+
+        /**
+         * Finishes an admitted request. Closing a permit more than once has no further effect.
+         */
+        @Override
+        public void close() {
+            if (owner != null) {
+                owner.release();
+                owner = null;
+            }
+        }
+    }
+
+    /**
+     * Thrown by operations that turn away a request rather than perform it.
+     */
+    public static class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final long retryAfterMillis;
+
+        public RejectedException(String message, long retryAfterMillis) {
+            super(message);
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+    }
+}
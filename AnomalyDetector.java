@@ -0,0 +1,375 @@
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Watches committed transactions and failed logins as they happen and raises an alert when an
+ * account behaves unusually. Each account (or bank number, for logins) has a sliding window made of
+ * fixed time buckets held in primitive arrays. Recording an event advances the window and updates
+ * running totals in place, so the hot path allocates nothing once the account has been seen and
+ * costs well under a microsecond.
+ *
+ * Rules:
+ * - velocity: more money movements in the window than allowed;
+ * - debit volume: more withdrawn or transferred out in the window than allowed;
+ * - unusual amount: an amount far above the account's usual amounts, from a running mean and variance;
+ * - failed logins: a burst of failed logins for one bank number.
+ *
+ * Each rule alerts at most once per window for the same account.
+ *
+ * Once a window, windows with nothing left in them are swept: failed login windows are dropped,
+ * and transaction windows give up their buckets but keep the running mean and variance, which the
+ * unusual amount rule needs across quiet periods. Memory therefore follows the keys active within
+ * one window rather than every key ever seen.
+ */
+public class AnomalyDetector {
+    /**
+     * The rule an anomaly broke.
+     */
+    public enum Rule { VELOCITY, DEBIT_VOLUME, UNUSUAL_AMOUNT, FAILED_LOGINS }
+
+    /**
+     * Receives anomalies on the thread that recorded the event; must return quickly.
+     */
+    public interface Listener {
+        void onAnomaly(Anomaly anomaly);
+    }
+
+    private static final int BUCKETS = 60; // Buckets per window.
+    private static final int RECENT_ANOMALIES = 100; // Alerts kept for the admin view.
+
+    private final long bucketMillis;
+    private final int maxTransactionsPerWindow;
+    private final long maxDebitCentsPerWindow;
+    private final double unusualAmountDeviations;
+    private final long unusualAmountMinimumCents;
+    private final int maxFailedLoginsPerWindow;
+
+    private final Map<String, Window> transactionWindows = new ConcurrentHashMap<>(); // By account id.
+    private final Map<String, Window> loginWindows = new ConcurrentHashMap<>(); // By bank number.
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ArrayDeque<Anomaly> recentAnomalies = new ArrayDeque<>(RECENT_ANOMALIES);
+    private final AtomicLong lastSweepBucket = new AtomicLong();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+
+    /**
+     * Creates a detector with the default limits: a ten minute window, 30 movements,
+     * 10,000.00 debited, amounts four standard deviations above the mean (and at least 100.00),
+     * and 5 failed logins.
+     */
+    public AnomalyDetector() {
+        this(10 * 60 * 1000L, 30, 1_000_000L, 4.0, 10_000L, 5);
+    }
+
+    /**
+     * Creates a detector.
+     * @param windowMillis The length of the sliding window.
+     * @param maxTransactionsPerWindow The number of money movements per account allowed in a window.
+     * @param maxDebitCentsPerWindow The amount per account that may be debited in a window, in cents.
+     * @param unusualAmountDeviations How many standard deviations above the mean an amount is unusual.
+     * @param unusualAmountMinimumCents Amounts below this are never unusual, in cents.
+     * @param maxFailedLoginsPerWindow The number of failed logins per bank number allowed in a window.
+     */
+    public AnomalyDetector(long windowMillis, int maxTransactionsPerWindow, long maxDebitCentsPerWindow,
+                           double unusualAmountDeviations, long unusualAmountMinimumCents, int maxFailedLoginsPerWindow) {
+        this.bucketMillis = Math.max(1, windowMillis / BUCKETS);
+        this.maxTransactionsPerWindow = maxTransactionsPerWindow;
+        this.maxDebitCentsPerWindow = maxDebitCentsPerWindow;
+        this.unusualAmountDeviations = unusualAmountDeviations;
+        this.unusualAmountMinimumCents = unusualAmountMinimumCents;
+        this.maxFailedLoginsPerWindow = maxFailedLoginsPerWindow;
+    }
+
+    /**
+     * Adds a listener for anomalies.
+     * @param listener The listener.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Records a committed transaction.
+     * @param transaction The transaction.
+     */
+    public void onTransaction(Transaction transaction) {
+        int effect = transaction.getTransactionType().getBalanceEffect();
+        if (effect == 0) {
+            return; // Only money movements are watched here.
+        }
+        String key = transaction.getAccountId() != null ? transaction.getAccountId() : transaction.getBankNumber();
+        long cents = transaction.getAmountCents();
+        long bucket = System.currentTimeMillis() / bucketMillis;
+        sweepIdleWindows(bucket);
+        Window window = transactionWindows.computeIfAbsent(key, k -> new Window()); // Compacted, never removed.
+        Rule broken;
+        String detail;
+        synchronized (window) {
+            window.advance(bucket);
+            window.add(bucket, 1, effect < 0 ? cents : 0);
+            double deviation = window.deviation(); // Judged against the amounts seen before this one.
+            boolean unusual = window.samples >= 10 && cents >= unusualAmountMinimumCents
+                    && cents > window.mean + unusualAmountDeviations * deviation;
+            window.observe(cents);
+            if (window.count > maxTransactionsPerWindow && window.mayAlert(Rule.VELOCITY, bucket)) {
+                broken = Rule.VELOCITY;
+                detail = window.count + " transactions in the window";
+            } else if (window.sum > maxDebitCentsPerWindow && window.mayAlert(Rule.DEBIT_VOLUME, bucket)) {
+                broken = Rule.DEBIT_VOLUME;
+                detail = JournalEntry.fromCents(window.sum) + " debited in the window";
+            } else if (unusual && window.mayAlert(Rule.UNUSUAL_AMOUNT, bucket)) {
+                broken = Rule.UNUSUAL_AMOUNT;
+                detail = String.format(Locale.ROOT, "%s %s, usually %.2f", transaction.getType(), JournalEntry.fromCents(cents), window.mean / 100);
+            } else {
+                return; // The common case ends here without allocating.
+            }
+        }
+        raise(broken, key, detail);
+    }
+
+    /**
+     * Records a failed login attempt.
+     * @param bankNumber The bank number that was tried.
+     */
+    public void onFailedLogin(String bankNumber) {
+        if (bankNumber == null) {
+            return;
+        }
+        long bucket = System.currentTimeMillis() / bucketMillis;
+        sweepIdleWindows(bucket);
+        int failures;
+        while (true) {
+            Window window = loginWindows.computeIfAbsent(bankNumber, k -> new Window());
+            synchronized (window) {
+                if (window.dropped) {
+                    continue; // Dropped by a sweep in between; take the new one.
+                }
+                window.advance(bucket);
+                window.add(bucket, 1, 0);
+                if (window.count < maxFailedLoginsPerWindow || !window.mayAlert(Rule.FAILED_LOGINS, bucket)) {
+                    return;
+                }
+                failures = window.count;
+            }
+            break;
+        }
+        raise(Rule.FAILED_LOGINS, bankNumber, failures + " failed logins in the window");
+    }
+
+    /**
+     * Drops the failed login windows that have emptied and releases the buckets of the
+     * transaction windows that have. Only one thread sweeps at a time, once a window.
+     * @param bucket The current bucket.
+     */
+    private void sweepIdleWindows(long bucket) {
+        long last = lastSweepBucket.get();
+        if (bucket - last < BUCKETS || !sweeping.compareAndSet(false, true)) {
+            return; // Swept within the window or sweeping right now.
+        }
+        try {
+            lastSweepBucket.set(bucket);
+            for (Map.Entry<String, Window> entry : loginWindows.entrySet()) {
+                Window window = entry.getValue();
+                synchronized (window) {
+                    if (window.isIdle(bucket)) {
+                        window.dropped = true; // A thread holding it looks it up again.
+                        loginWindows.remove(entry.getKey(), window);
+                    }
+                }
+            }
+            for (Window window : transactionWindows.values()) {
+                synchronized (window) {
+                    if (window.isIdle(bucket)) {
+                        window.compact();
+                    }
+                }
+            }
+        } finally {
+            sweeping.set(false);
+        }
+    }
+
+    /**
+     * Gets the most recent anomalies.
+     * @return Up to RECENT_ANOMALIES anomalies, newest first.
+     */
+    public List<Anomaly> getRecentAnomalies() {
+        synchronized (recentAnomalies) {
+            return new ArrayList<>(recentAnomalies);
+        }
+    }
+
+    /**
+     * Records an anomaly and tells the listeners.
+     * @param rule The rule broken.
+     * @param key The account id or bank number.
+     * @param detail What was seen.
+     */
+    private void raise(Rule rule, String key, String detail) {
+        Anomaly anomaly = new Anomaly(rule, key, detail, LocalDateTime.now());
+        synchronized (recentAnomalies) {
+            if (recentAnomalies.size() == RECENT_ANOMALIES) {
+                recentAnomalies.removeLast();
+            }
+            recentAnomalies.addFirst(anomaly);
+        }
+        System.out.println("Anomaly: " + anomaly);
+        for (Listener listener : listeners) {
+            try {
+                listener.onAnomaly(anomaly);
+            } catch (RuntimeException e) {
+                System.err.println("Anomaly listener failed: " + e); // Never fail the transaction.
+            }
+        }
+    }
+
+    /**
+     * Sliding window counters of one key, in fixed time buckets.
+     */
+    private static class Window {
+        private int[] counts; // Null while compacted.
+        private long[] sums;
+        private long latestBucket;
+        private int count; // Events in the window.
+        private long sum; // Debited cents in the window.
+        private final long[] lastAlertBuckets = new long[Rule.values().length];
+        private long samples; // Amounts observed, for the running mean and variance.
+        private double mean;
+        private double squaredDeviations;
+        private boolean dropped; // Removed from its map by a sweep.
+
+        Window() {
+            Arrays.fill(lastAlertBuckets, Long.MIN_VALUE / 2); // No rule has alerted yet.
+        }
+
+        /**
+         * Drops the buckets that have left the window.
+         * @param bucket The current bucket.
+         */
+        void advance(long bucket) {
+            if (bucket <= latestBucket) {
+                return;
+            }
+            if (counts == null) {
+                latestBucket = bucket; // Compacted windows are empty.
+                return;
+            }
+            long steps = Math.min(bucket - latestBucket, BUCKETS);
+            for (long i = 1; i <= steps; i++) {
+                int slot = (int) ((latestBucket + i) % BUCKETS);
+                count -= counts[slot];
+                sum -= sums[slot];
+                counts[slot] = 0;
+                sums[slot] = 0;
+            }
+            latestBucket = bucket;
+        }
+
+        void add(long bucket, int events, long cents) {
+            if (counts == null) {
+                counts = new int[BUCKETS];
+                sums = new long[BUCKETS];
+            }
+            int slot = (int) (bucket % BUCKETS);
+            counts[slot] += events;
+            sums[slot] += cents;
+            count += events;
+            sum += cents;
+        }
+
+        /**
+         * Checks whether every bucket and every alert has left the window, so the window counts
+         * nothing a fresh one would not.
+         * @param bucket The current bucket.
+         * @return true if nothing was recorded within the window.
+         */
+        boolean isIdle(long bucket) {
+            return bucket - latestBucket >= BUCKETS;
+        }
+
+        /**
+         * Releases the buckets of an idle window, keeping the running mean and variance.
+         */
+        void compact() {
+            counts = null;
+            sums = null;
+            count = 0;
+            sum = 0;
+        }
+
+        /**
+         * Adds an amount to the running mean and variance (Welford's method).
+         * @param cents The amount.
+         */
+        void observe(long cents) {
+            samples++;
+            double delta = cents - mean;
+            mean += delta / samples;
+            squaredDeviations += delta * (cents - mean);
+        }
+
+        double deviation() {
+            return samples < 2 ? 0 : Math.sqrt(squaredDeviations / (samples - 1));
+        }
+
+        /**
+         * Checks and records that a rule may alert, at most once per window.
+         * @param rule The rule.
+         * @param bucket The current bucket.
+         * @return true if the rule has not alerted within the window.
+         */
+        boolean mayAlert(Rule rule, long bucket) {
+            if (bucket - lastAlertBuckets[rule.ordinal()] < BUCKETS) {
+                return false;
+            }
+            lastAlertBuckets[rule.ordinal()] = bucket;
+            return true;
+        }
+    }
+
+    /**
+     * One alert.
+     */
+    public static class Anomaly {
+        private final Rule rule;
+        private final String key;
+        private final String detail;
+        private final LocalDateTime time;
+
+        public Anomaly(Rule rule, String key, String detail, LocalDateTime time) {
+            this.rule = rule;
+            this.key = key;
+            this.detail = detail;
+            this.time = time;
+        }
+
+        public Rule getRule() {
+            return rule;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getDetail() {
+            return detail;
+        }
+
+        public LocalDateTime getTime() {
+            return time;
+        }
+
+        @Override
+        public String toString() {
+            return time.withNano(0) + " " + rule + " " + key + ": " + detail;
+        }
+    }
+}
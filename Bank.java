@@ -1,17 +1,85 @@
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.UUID;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+import java.util.function.Consumer;
+import java.io.File;
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.math.RoundingMode;
 import java.sql.*;
 
 public class Bank {
     private List<User> users;
-    private static String DB_FILE_PATH = "target/bank.db";
+    private final Map<String, User> usersByBankNumber = new ConcurrentHashMap<>(); // Index of users by bank number.
+    private final Map<String, Account> accountsById = new ConcurrentHashMap<>(); // Index of every customer account by account id.
+    private final UserIndex userIndex = new UserIndex(); // Sorted index for prefix search by name and bank number.
+    public static final String DEFAULT_DB_FILE_PATH = "target/bank.db"; // Used when no database location is given.
+    private final String dbFilePath; // The database file, or the name the shard files are derived from.
+    private final ShardRouter router; // Maps bank numbers to this bank's database files.
+    private final ExecutorService shardExecutor; // Runs fan-out work on all shards at once.
+    private final TransactionArchive[] archives; // Cold storage for old transactions, one per shard.
+    private static final long ARCHIVE_AGE_DAYS = Long.getLong("bank.archive.ageDays", 90); // Transactions older than this are archived.
+    private Timer interestTimer; // Applies interest daily.
+    private static final int RECENT_TRANSACTIONS_PER_CUSTOMER = 50; // Transactions kept in memory per customer.
+    private final RecentTransactionCache recentTransactions = new RecentTransactionCache(RECENT_TRANSACTIONS_PER_CUSTOMER, 500000); // Newest history of active customers.
+    private final Map<String, Hold> activeHolds = new ConcurrentHashMap<>(); // Authorization holds by hold id.
+    private final HierarchicalTimerWheel<Hold> holdExpiry; // Releases holds when they run out.
+    private static final long HOLD_EXPIRY_TICK_MILLIS = 10; // Resolution of hold expiry.
+    private final PaymentScheduler paymentScheduler; // Runs scheduled and recurring payments.
+    private static final String SCHEDULED_PAYMENT_COLUMNS = "SELECT scheduleId, type, accountId, targetAccountId, amountCents, runAt, " +
+            "intervalMillis, remainingRuns, attempts FROM scheduled_payments"; // Columns read into a ScheduledPayment.
+    private final IdempotencyCache idempotencyCache = new IdempotencyCache(100000, 24 * 60 * 60 * 1000L); // Recently used idempotency keys, kept for a day.
+    private final AnomalyDetector anomalyDetector = new AnomalyDetector(); // Flags unusual activity as it is committed.
+    private final long[] seenChangeSeq; // Per shard, the change sequence number the caches are refreshed up to.
+    private final Object refreshLock = new Object(); // One refresh at a time, so the sequence numbers only move forward.
+    private static final long REFRESH_MILLIS = Long.getLong("bank.refreshMillis", 1000); // How often changes made by other processes are picked up.
+    private static final int MAX_CONFLICT_RETRIES = 3; // Attempts of a compare and swap update before giving up.
+    private static final BigDecimal INTEREST_RATE = new BigDecimal("0.05"); // Interest paid on saving accounts per interest run.
+    private final CurrencyConverter currencyConverter = new CurrencyConverter(new File(System.getProperty("bank.fx.file", "fx-rates.properties"))); // Exchange rates for foreign currency accounts.
+    private static final long FX_RELOAD_MILLIS = Long.getLong("bank.fx.reloadMillis", 60 * 1000); // How often the rate file is checked for changes.
+    private final BankMetrics metrics = new BankMetrics(currencyConverter, this::findAccount); // Bank-wide figures for the admin dashboard.
+    private static final long METRICS_SAVE_MILLIS = Long.getLong("bank.metrics.saveMillis", 60 * 1000); // How often the dashboard's flows are saved.
+    private final LoginAuditor loginAuditor; // Writes the audit rows of logins in the background.
+    private final SessionManager sessions; // Token sessions for clients that log in once.
+    private static final long SESSION_IDLE_MILLIS = Long.getLong("bank.session.idleMillis", 15 * 60 * 1000); // Sessions unused this long expire.
+    private static final long SESSION_LIFETIME_MILLIS = Long.getLong("bank.session.lifetimeMillis", 12 * 60 * 60 * 1000); // Sessions expire this long after login.
+    private final AdmissionController loginAdmission = new AdmissionController( // Login attempts per bank number, strict to stop guessing.
+            Integer.getInteger("bank.login.perMinute", 6) / 60.0, Integer.getInteger("bank.login.burst", 5),
+            Integer.getInteger("bank.login.globalPerSecond", 200), 400, 32, 1_000_000);
+    private final AdmissionController operationAdmission = new AdmissionController( // Interactive operations per customer, see getAdmissionController.
+            Integer.getInteger("bank.ops.perSecond", 5), Integer.getInteger("bank.ops.burst", 20),
+            Integer.getInteger("bank.ops.globalPerSecond", 2000), 4000, Integer.getInteger("bank.ops.concurrency", 64), 1_000_000);
+    private volatile Replicator replicator; // Streams committed changes to a standby, null when none is attached.
+    private static final int EPOCH_TIMES_SCHEMA_VERSION = 1; // PRAGMA user_version from which transaction times are epoch milliseconds.
+    private static final String TRANSACTIONS_TABLE_SQL = "CREATE TABLE IF NOT EXISTS transactions (" + // Compact rows, see Transaction.
+            "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            "timeMillis INTEGER NOT NULL, " + // Epoch milliseconds, see Transaction.toMillis.
+            "typeCode INTEGER NOT NULL, " + // TransactionType code.
+            "amountCents INTEGER NOT NULL, " +
+            "bankNumber TEXT NOT NULL, " +
+            "description TEXT, " +
+            "idempotencyKey TEXT, " +
+            "accountId TEXT" +
+            ")";
 
     /**
      * Retrieves the list of users.
@@ -36,26 +104,128 @@ public class Bank {
 
     /**
      * Constructor for the Bank class. Initializes the user list, database, loads users,
-     * and sets up a timer to apply interest daily.
+     * and sets up a timer to apply interest daily, starting immediately. The number of database shards is read
+     * from the bank.shards system property and defaults to a single file.
      */
     public Bank() {
-        this.users = new ArrayList<>(); // Initialize the user list.
+        this(DEFAULT_DB_FILE_PATH, Integer.getInteger("bank.shards", 1));
+    }
+
+    /**
+     * Constructor for the Bank class using the given database location.
+     * @param dbFilePath The database file, or the name the shard files are derived from.
+     * @param shardCount The number of database files customers are partitioned across.
+     */
+    public Bank(String dbFilePath, int shardCount) {
+        this(dbFilePath, shardCount, true);
+    }
+
+    /**
+     * Constructor for the Bank class using the given database location, optionally without the
+     * daily interest run and the payment scheduler, for tools that only read or check the data.
+     * @param dbFilePath The database file, or the name the shard files are derived from.
+     * @param shardCount The number of database files customers are partitioned across.
+     * @param backgroundJobs Whether to start applying interest and running scheduled payments.
+     */
+    public Bank(String dbFilePath, int shardCount, boolean backgroundJobs) {
+        this.dbFilePath = dbFilePath; // Each bank keeps its own files, so a second bank never repoints the first.
+        this.router = new ShardRouter(dbFilePath, shardCount); // Route customers to their shard.
+        this.shardExecutor = Executors.newFixedThreadPool(shardCount, runnable -> {
+            Thread thread = new Thread(runnable, "bank-shard-worker");
+            thread.setDaemon(true); // Never keep the application alive.
+            return thread;
+        });
+        this.archives = new TransactionArchive[shardCount];
+        this.seenChangeSeq = new long[shardCount];
+        this.users = new CopyOnWriteArrayList<>(); // Initialize the user list.
         initializeDatabase(); // Initialize the database.
-        loadUsersFromDb(); // Load users from the database.
-        applyInterestToAllUsers(); // Apply interest to all users.
-        Timer timer = new Timer(); // Create a new Timer object.
-        long delay = 0; // Set the initial delay to 0.
+        loadUsersFromDb(); // Load users and their accounts from the database.
+        loadMetrics(); // Continue the flows counted before the restart.
+        this.holdExpiry = new HierarchicalTimerWheel<>(HOLD_EXPIRY_TICK_MILLIS, "hold-expiry", this::expireHolds); // One wheel for every hold.
+        loadHolds(); // Reserve the funds of holds that were active at shutdown.
+        this.paymentScheduler = new PaymentScheduler(this, Integer.getInteger("bank.scheduler.threads", 4), Long.getLong("bank.scheduler.pollMillis", 1000));
+        this.loginAuditor = new LoginAuditor(this, Integer.getInteger("bank.audit.queue", 10000), Integer.getInteger("bank.audit.batch", 512));
+        this.sessions = new SessionManager(this, SESSION_IDLE_MILLIS, SESSION_LIFETIME_MILLIS);
+        interestTimer = new Timer(true); // Create a new Timer object whose thread never keeps the application alive.
+        interestTimer.schedule(new TimerTask() { // Other processes may share the database, even with a read only tool.
+            @Override
+            public void run() {
+                refreshChanges(); // Pick up the rows they changed.
+            }
+        }, REFRESH_MILLIS, REFRESH_MILLIS);
+        interestTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                currencyConverter.reloadIfChanged(); // Swap in new rates when the file is updated.
+            }
+        }, FX_RELOAD_MILLIS, FX_RELOAD_MILLIS);
+        interestTimer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                saveMetrics(); // Keep the flows across restarts.
+            }
+        }, METRICS_SAVE_MILLIS, METRICS_SAVE_MILLIS);
+        if (!backgroundJobs) {
+            return; // Leave the data as it is.
+        }
+        paymentScheduler.start(); // Catch up on payments that fell due while the bank was down.
+        long delay = 0; // Run the first interest pass right away, in the background rather than during startup.
         long period = 24 * 60 * 60 * 1000; // Set the period to 24 hours in milliseconds.
-        timer.scheduleAtFixedRate(new TimerTask() { // Schedule a task to run at a fixed rate.
+        interestTimer.scheduleAtFixedRate(new TimerTask() { // Schedule a task to run at a fixed rate.
             @Override
             public void run() { // Override the run method of TimerTask.
-                applyInterestToAllUsers(); // Apply interest to all users.
+                applyInterestToAllUsers(); // Apply interest to all saving accounts.
+                archiveTransactions(Duration.ofDays(ARCHIVE_AGE_DAYS)); // Keep the hot transactions table small.
             }
         }, delay, period); // Schedule the task with the specified delay and period.
     }
 
     /**
-     * Initializes the database by creating the users and transactions tables if they don't exist.
+     * Stops the interest timer and the shard workers so the JVM can exit.
+     */
+    public void shutdown() {
+        interestTimer.cancel(); // Stop applying interest.
+        holdExpiry.stop(); // Stop expiring holds.
+        paymentScheduler.stop(); // Stop running scheduled payments.
+        sessions.stop(); // Stop expiring sessions.
+        loginAuditor.close(); // Write the login audit rows still queued.
+        saveMetrics(); // Keep the flows counted since the last save.
+        shardExecutor.shutdown(); // Let running shard work finish, accept no more.
+    }
+
+    /**
+     * Runs a task once per shard, in parallel, and collects the results in shard order.
+     * @param task The work to do for a shard index.
+     * @param <T> The result type.
+     * @return The results of the shards whose task completed.
+     */
+    private <T> List<T> runOnAllShards(IntFunction<T> task) {
+        List<T> results = new ArrayList<>();
+        if (router.getShardCount() == 1) {
+            results.add(task.apply(0)); // No point handing a single shard to another thread.
+            return results;
+        }
+        List<Future<T>> futures = new ArrayList<>();
+        for (int shard = 0; shard < router.getShardCount(); shard++) {
+            final int shardIndex = shard;
+            futures.add(shardExecutor.submit(() -> task.apply(shardIndex))); // Start every shard before waiting on any.
+        }
+        for (Future<T> future : futures) {
+            try {
+                results.add(future.get()); // Wait for the shard to finish.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Preserve the interrupt and stop waiting.
+                break;
+            } catch (ExecutionException e) {
+                System.err.println("Shard task failed: " + e.getCause()); // Print an error message if a shard fails.
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Initializes the database by creating the users and transactions tables if they don't exist,
+     * on every shard in parallel.
      */
     private void initializeDatabase() {
         System.out.println("Initializing database...");
@@ -65,74 +235,432 @@ public class Bank {
             System.err.println("SQLite JDBC driver not found: " + e.getMessage()); // Print an error message if the driver is not found.
             System.exit(1); // Exit the program.
         }
+        runOnAllShards(this::initializeShard); // Create the schema in every shard file.
+    }
 
+    /**
+     * Creates the schema in one shard file.
+     * @param shard The shard index.
+     * @return true once the schema exists.
+     */
+    private boolean initializeShard(int shard) {
         String usersTableSql = "CREATE TABLE IF NOT EXISTS users (" + // SQL for creating the users table.
                 "userName TEXT, " +
                 "bankNumber TEXT PRIMARY KEY, " +
                 "pinNumber TEXT, " +
                 "accountType TEXT, " +
                 "balance REAL DEFAULT 0.0, " +
-                "isAdmin INTEGER DEFAULT 0)";
+                "isAdmin INTEGER DEFAULT 0, " +
+                "changeSeq INTEGER NOT NULL DEFAULT 0)"; // Change sequence number of the last update, see createChangeTracking.
 
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
+        try (Connection connection = router.connect(shard); // Create a database connection.
              Statement statement = connection.createStatement()) { // Create a statement.
 
+            statement.execute("PRAGMA journal_mode=WAL"); // Let readers proceed while a writer holds the lock.
             statement.executeUpdate(usersTableSql); // Execute the SQL to create the users table.
             System.out.println("Users table created successfully.");
-            dropTransactionsTable(connection); // drop existing transaction table if exists
-            createTransactionsTable(connection, DB_FILE_PATH); // create new transaction table.
+            createAccountsTable(connection); // create the accounts table and move legacy balances into it.
+            createChangeTracking(connection); // number every change so other processes can pick up just those rows.
+            createTransactionsTable(connection, router.getPath(shard)); // create the transaction table, keeping existing history.
+            createLedger(connection); // create the ledger and back existing balances with postings.
+            createHoldsTable(connection); // create the authorization holds table.
+            createScheduledPaymentsTable(connection); // create the scheduled payments table.
+            if (shard == 0) {
+                BankMetrics.createTable(connection); // create the dashboard metrics table, kept in the first shard only.
+            }
+            archives[shard] = new TransactionArchive(new File(router.getPath(shard) + "-archive")); // Open the shard's archive.
+            archives[shard].recover(connection); // Finish any archival run that stopped half way.
 
         } catch (SQLException e) {
             System.err.println("Error initializing database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
             System.exit(1); // Exit the program.
         }
+        return true;
+    }
+
+    /**
+     * Applies interest to every saving account, with all shards working in parallel.
+     */
+    private void applyInterestToAllUsers() {
+        runOnAllShards(this::applyInterestInShard);
+    }
+
+    /**
+     * Applies interest to the saving accounts of one shard. The candidates are read through the
+     * account type index, so checking accounts are never visited.
+     * @param shard The shard index.
+     * @return The number of accounts credited.
+     */
+    private int applyInterestInShard(int shard) {
+        String sql = "SELECT accountId FROM accounts WHERE accountType = 'saving' AND balance > 0"; // SQL for selecting interest bearing accounts.
+        List<String> savingAccountIds = new ArrayList<>(); // Collect the ids first so no read is open while writing.
+        try (Connection connection = router.connect(shard); // Create a database connection.
+             Statement statement = connection.createStatement(); // Create a statement.
+             ResultSet resultSet = statement.executeQuery(sql)) { // Execute the SQL and get the result set.
+            while (resultSet.next()) { // Iterate through the result set.
+                savingAccountIds.add(resultSet.getString("accountId"));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error selecting saving accounts: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+        }
+        int credited = 0;
+        for (String accountId : savingAccountIds) { // Iterate through the saving accounts.
+            if (applyInterest(accountId)) { // Apply interest to each account.
+                credited++;
+            }
+        }
+        return credited;
+    }
+
+    /**
+     * Moves transactions older than the given age out of the hot table into each shard's archive.
+     * @param age The minimum age of archived transactions.
+     * @return The number of transactions archived across all shards.
+     */
+    public int archiveTransactions(Duration age) {
+        LocalDateTime cutoff = LocalDateTime.now().minus(age); // Everything before this moves to the archive.
+        int archived = 0;
+        for (int count : runOnAllShards(shard -> archiveShard(shard, cutoff))) {
+            archived += count;
+        }
+        if (archived > 0) {
+            System.out.println("Archived " + archived + " transactions older than " + cutoff + ".");
+        }
+        return archived;
+    }
+
+    /**
+     * Archives the old transactions of one shard.
+     * @param shard The shard index.
+     * @param cutoff Transactions with an earlier timestamp are archived.
+     * @return The number of transactions archived.
+     */
+    private int archiveShard(int shard, LocalDateTime cutoff) {
+        try (Connection connection = router.connect(shard)) { // Create a database connection.
+            return archives[shard].archiveOlderThan(connection, cutoff);
+        } catch (SQLException | IOException e) {
+            System.err.println("Error archiving transactions: " + e.getMessage()); // The rows stay in the hot table.
+            return 0;
+        }
+    }
+
+    /**
+     * Creates the accounts table and its indexes, and gives every user that predates it
+     * a primary account carrying the balance and type stored on the users table.
+     * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private void createAccountsTable(Connection connection) throws SQLException {
+        String accountsTableSql = "CREATE TABLE IF NOT EXISTS accounts (" + // SQL for creating the accounts table.
+                "accountId TEXT PRIMARY KEY, " +
+                "ownerBankNumber TEXT NOT NULL, " +
+                "accountType TEXT NOT NULL, " +
+                "balance REAL DEFAULT 0.0, " +
+                "currency TEXT NOT NULL DEFAULT '" + CurrencyConverter.BASE_CURRENCY + "', " + // ISO code of the balance's currency.
+                "version INTEGER NOT NULL DEFAULT 0, " + // Advanced by every change of balance or type.
+                "changeSeq INTEGER NOT NULL DEFAULT 0" + // Change sequence number of the last update, see createChangeTracking.
+                ")";
+        String migrateSql = "INSERT INTO accounts (accountId, ownerBankNumber, accountType, balance) " + // Primary accounts reuse the bank number as id.
+                "SELECT bankNumber, bankNumber, accountType, balance FROM users " +
+                "WHERE bankNumber NOT IN (SELECT accountId FROM accounts)";
+
+        try (Statement statement = connection.createStatement()) { // Create a statement.
+            statement.executeUpdate(accountsTableSql); // Execute the SQL to create the accounts table.
+            addColumnIfMissing(connection, "accounts", "currency", "TEXT NOT NULL DEFAULT '" + CurrencyConverter.BASE_CURRENCY + "'"); // Upgrade tables created before foreign currency accounts.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_accounts_owner ON accounts (ownerBankNumber)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_accounts_type ON accounts (accountType, accountId)");
+            int migrated = statement.executeUpdate(migrateSql); // Execute the SQL to migrate legacy balances.
+            if (migrated > 0) {
+                System.out.println("Created primary accounts for " + migrated + " existing users.");
+            }
+            System.out.println("Accounts table created successfully.");
+        }
     }
 
     /**
-     * Drops the transactions table if it exists.
+     * Numbers every change to the users and accounts tables, so that processes sharing the
+     * database can refresh their caches by reading only the rows changed since they last looked.
+     * A single counter per shard is advanced by triggers, which stamp the changed row with the
+     * new value. The same triggers advance accounts.version, used for compare and swap updates,
+     * for writers that leave it alone; the ledger advances it itself so that it can read the new
+     * version back. Being triggers, they cover every writer, including other processes.
      * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs.
      */
-    private void dropTransactionsTable(Connection connection) {
-        String sql = "DROP TABLE IF EXISTS transactions"; // SQL for dropping the transactions table.
+    private void createChangeTracking(Connection connection) throws SQLException {
+        addColumnIfMissing(connection, "users", "changeSeq", "INTEGER NOT NULL DEFAULT 0"); // Upgrade tables created before change tracking.
+        addColumnIfMissing(connection, "accounts", "version", "INTEGER NOT NULL DEFAULT 0");
+        addColumnIfMissing(connection, "accounts", "changeSeq", "INTEGER NOT NULL DEFAULT 0");
+        String nextSeq = "UPDATE change_sequence SET seq = seq + 1 WHERE id = 0; ";
+        String currentSeq = "(SELECT seq FROM change_sequence WHERE id = 0)";
         try (Statement statement = connection.createStatement()) { // Create a statement.
-            statement.executeUpdate(sql); // Execute the SQL to drop the transactions table.
-            System.out.println("Transactions table dropped successfully.");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS change_sequence (" +
+                    "id INTEGER PRIMARY KEY CHECK (id = 0), " +
+                    "seq INTEGER NOT NULL" +
+                    ")");
+            statement.executeUpdate("INSERT OR IGNORE INTO change_sequence (id, seq) VALUES (0, 0)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_users_change ON users (changeSeq)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_accounts_change ON accounts (changeSeq)");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS users_inserted AFTER INSERT ON users BEGIN " + nextSeq +
+                    "UPDATE users SET changeSeq = " + currentSeq + " WHERE bankNumber = NEW.bankNumber; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS users_updated AFTER UPDATE OF userName, pinNumber, isAdmin ON users BEGIN " + nextSeq +
+                    "UPDATE users SET changeSeq = " + currentSeq + " WHERE bankNumber = NEW.bankNumber; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS accounts_inserted AFTER INSERT ON accounts BEGIN " + nextSeq +
+                    "UPDATE accounts SET changeSeq = " + currentSeq + " WHERE accountId = NEW.accountId; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS accounts_updated AFTER UPDATE OF balance, accountType ON accounts BEGIN " + nextSeq +
+                    "UPDATE accounts SET version = CASE WHEN NEW.version = OLD.version THEN version + 1 ELSE version END, " + // The ledger advances it itself.
+                    "changeSeq = " + currentSeq + " WHERE accountId = NEW.accountId; END");
+        }
+    }
+
+    /**
+     * Creates the ledger tables and gives balances that predate the ledger an opening entry.
+     * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private void createLedger(Connection connection) throws SQLException {
+        Ledger.createTables(connection); // Execute the SQL to create the ledger tables.
+        connection.setAutoCommit(false); // Opening entries are written all at once.
+        try {
+            int opened = Ledger.openMissingBalances(connection);
+            connection.commit();
+            if (opened > 0) {
+                System.out.println("Opened ledger balances for " + opened + " existing accounts.");
+            }
         } catch (SQLException e) {
-            System.err.println("Error dropping transactions table: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
         }
+        System.out.println("Ledger tables created successfully.");
     }
 
     /**
-     * Applies interest to all users in the list.
+     * Creates the authorization holds table in the database if it doesn't exist.
+     * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs.
      */
-    private void applyInterestToAllUsers() {
-        for (User user : users) { // Iterate through the list of users.
-            applyInterest(user.getBankNumber()); // Apply interest to each user.
+    private void createHoldsTable(Connection connection) throws SQLException {
+        String holdsTableSql = "CREATE TABLE IF NOT EXISTS holds (" + // SQL for creating the holds table.
+                "holdId TEXT PRIMARY KEY, " +
+                "accountId TEXT NOT NULL, " +
+                "amountCents INTEGER NOT NULL, " +
+                "createdAt TEXT NOT NULL, " +
+                "expiresAt INTEGER NOT NULL, " + // Epoch milliseconds.
+                "status TEXT NOT NULL" + // active, captured, released or expired.
+                ")";
+        try (Statement statement = connection.createStatement()) { // Create a statement.
+            statement.executeUpdate(holdsTableSql); // Execute the SQL to create the holds table.
+            // Only active holds are read back at startup.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_holds_active ON holds (accountId) WHERE status = 'active'");
+            System.out.println("Holds table created successfully.");
         }
     }
 
     /**
-     * Creates the transactions table in the database if it doesn't exist.
+     * Creates the scheduled payments table in the database if it doesn't exist.
      * @param connection The database connection.
-     * @param dbFilePath The path to the database file.
      * @throws SQLException If an SQL exception occurs.
      */
-    private void createTransactionsTable(Connection connection, String dbFilePath) throws SQLException {
-        String transactionsTableSql = "CREATE TABLE IF NOT EXISTS transactions (" + // SQL for creating the transactions table.
-                "id INTEGER PRIMARY KEY AUTOINCREMENT, " +
-                "timestamp TEXT NOT NULL, " +
+    private void createScheduledPaymentsTable(Connection connection) throws SQLException {
+        String scheduledPaymentsTableSql = "CREATE TABLE IF NOT EXISTS scheduled_payments (" + // SQL for creating the scheduled payments table.
+                "scheduleId TEXT PRIMARY KEY, " +
                 "type TEXT NOT NULL, " +
-                "amount REAL NOT NULL, " +
-                "bankNumber TEXT NOT NULL, " +
-                "description TEXT" +
+                "accountId TEXT NOT NULL, " +
+                "targetAccountId TEXT, " +
+                "amountCents INTEGER NOT NULL, " +
+                "runAt INTEGER NOT NULL, " + // When the current occurrence was due, epoch milliseconds.
+                "nextRunAt INTEGER NOT NULL, " + // When it is next tried; later than runAt after a failure.
+                "intervalMillis INTEGER NOT NULL DEFAULT 0, " +
+                "remainingRuns INTEGER NOT NULL DEFAULT 0, " +
+                "attempts INTEGER NOT NULL DEFAULT 0, " +
+                "active INTEGER NOT NULL DEFAULT 1, " +
+                "lastStatus TEXT, " +
+                "createdAt TEXT NOT NULL, " +
+                "changeSeq INTEGER NOT NULL DEFAULT 0" + // Orders the images a standby receives, see ReplicationRecord.
                 ")";
+        try (Statement statement = connection.createStatement()) { // Create a statement.
+            statement.executeUpdate(scheduledPaymentsTableSql); // Execute the SQL to create the scheduled payments table.
+            addColumnIfMissing(connection, "scheduled_payments", "changeSeq", "INTEGER NOT NULL DEFAULT 0"); // Upgrade tables created before replication.
+            // The scheduler reads due payments in nextRunAt order straight from this index.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_scheduled_payments_due ON scheduled_payments (active, nextRunAt)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_scheduled_payments_account ON scheduled_payments (accountId)");
+            String nextSeq = "UPDATE change_sequence SET seq = seq + 1 WHERE id = 0; ";
+            String currentSeq = "(SELECT seq FROM change_sequence WHERE id = 0)";
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS scheduled_payments_inserted AFTER INSERT ON scheduled_payments BEGIN " + nextSeq +
+                    "UPDATE scheduled_payments SET changeSeq = " + currentSeq + " WHERE scheduleId = NEW.scheduleId; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS scheduled_payments_updated AFTER UPDATE OF runAt, nextRunAt, remainingRuns, attempts, active, lastStatus " +
+                    "ON scheduled_payments BEGIN " + nextSeq +
+                    "UPDATE scheduled_payments SET changeSeq = " + currentSeq + " WHERE scheduleId = NEW.scheduleId; END");
+            System.out.println("Scheduled payments table created successfully.");
+        }
+    }
 
+    /**
+     * Creates the transactions table in the database if it doesn't exist.
+     * @param connection The database connection.
+     * @param dbFilePath The path to the database file.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private void createTransactionsTable(Connection connection, String dbFilePath) throws SQLException {
         try (Statement statement = connection.createStatement()) { // Create a statement.
-            statement.executeUpdate(transactionsTableSql); // Execute the SQL to create the transactions table.
+            statement.executeUpdate(TRANSACTIONS_TABLE_SQL); // Execute the SQL to create the transactions table.
+            if (columnExists(connection, "transactions", "timestamp")) { // A table from before the compact row format.
+                addColumnIfMissing(connection, "transactions", "idempotencyKey", "TEXT"); // Upgrade tables created before idempotency keys.
+                if (addColumnIfMissing(connection, "transactions", "accountId", "TEXT")) { // Upgrade tables created before multiple accounts.
+                    statement.executeUpdate("UPDATE transactions SET accountId = bankNumber WHERE type IN ('Deposit', 'Withdraw', 'Interest')"); // Old money movements all hit the primary account.
+                }
+                removeDuplicateInterest(statement); // Interest used to be logged twice per application.
+                compactTransactionsTable(connection);
+            }
+            try (ResultSet resultSet = statement.executeQuery("PRAGMA user_version")) {
+                if (resultSet.getInt(1) < EPOCH_TIMES_SCHEMA_VERSION) {
+                    convertTransactionTimes(connection); // Tables written before times were epoch milliseconds.
+                }
+            }
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_transactions_account_time ON transactions (accountId, timeMillis)");
+            // Searches always narrow by account first, then by time or by type and time.
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_transactions_bank_time ON transactions (bankNumber, timeMillis)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_transactions_bank_type_time ON transactions (bankNumber, typeCode, timeMillis)");
+            // A key may be used by at most one committed operation; retries fail this constraint.
+            statement.executeUpdate("CREATE UNIQUE INDEX IF NOT EXISTS idx_transactions_idempotency ON transactions (idempotencyKey) WHERE idempotencyKey IS NOT NULL");
             System.out.println("Transactions table created successfully.");
         }
     }
 
+    /**
+     * Rewrites a transactions table from the old text format into the compact one: ISO timestamp
+     * text becomes timeMillis, the type label its TransactionType code and the REAL amount whole
+     * cents. Rows of an unknown type become Other, with the old label kept in the description.
+     * SQLite cannot change column types, so the rows are copied into a new table in one transaction.
+     * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs; the old table is then left untouched.
+     */
+    private void compactTransactionsTable(Connection connection) throws SQLException {
+        StringBuilder typeCode = new StringBuilder("(CASE type");
+        for (TransactionType type : TransactionType.values()) {
+            if (type != TransactionType.OTHER) {
+                typeCode.append(" WHEN '").append(type.getLabel()).append("' THEN ").append(type.getCode());
+            }
+        }
+        typeCode.append(" ELSE ").append(TransactionType.OTHER.getCode()).append(" END)");
+        String copySql = "INSERT INTO transactions (id, timeMillis, typeCode, amountCents, bankNumber, description, idempotencyKey, accountId) " +
+                "SELECT id, CAST(strftime('%s', timestamp) AS INTEGER) * 1000 + CAST(substr(strftime('%f', timestamp), 4) AS INTEGER), " + // Wall clock milliseconds, with no zone applied; convertTransactionTimes follows.
+                typeCode + ", CAST(round(amount * 100) AS INTEGER), bankNumber, " +
+                "CASE WHEN " + typeCode + " = " + TransactionType.OTHER.getCode() + " THEN type || ': ' || coalesce(description, '') ELSE description END, " +
+                "idempotencyKey, accountId FROM transactions_legacy";
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false); // Convert all rows or none.
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("ALTER TABLE transactions RENAME TO transactions_legacy");
+            statement.executeUpdate(TRANSACTIONS_TABLE_SQL);
+            int converted = statement.executeUpdate(copySql);
+            statement.executeUpdate("DROP TABLE transactions_legacy"); // Its indexes go with it.
+            connection.commit();
+            System.out.println("Converted " + converted + " transactions to the compact row format.");
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Converts the times of a transactions table from the wall clock milliseconds earlier
+     * versions stored to epoch milliseconds, see Transaction.toMillis, and records the new schema
+     * version in the same transaction, so the conversion runs exactly once.
+     * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs; the table is then left untouched.
+     */
+    private void convertTransactionTimes(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false); // Convert all rows or none.
+        int converted = 0;
+        try (Statement statement = connection.createStatement();
+             PreparedStatement update = connection.prepareStatement("UPDATE transactions SET timeMillis = ? WHERE id = ?")) {
+            try (ResultSet resultSet = statement.executeQuery("SELECT id, timeMillis FROM transactions")) {
+                while (resultSet.next()) {
+                    update.setLong(1, Transaction.fromWallClockMillis(resultSet.getLong("timeMillis"))); // The zone offset depends on the date.
+                    update.setLong(2, resultSet.getLong("id"));
+                    update.addBatch();
+                    converted++;
+                }
+            }
+            update.executeBatch();
+            statement.executeUpdate("PRAGMA user_version = " + EPOCH_TIMES_SCHEMA_VERSION);
+            connection.commit();
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        if (converted > 0) {
+            System.out.println("Converted the times of " + converted + " transactions to epoch milliseconds.");
+        }
+    }
+
+    /**
+     * Deletes the second row that interest payments used to write. Since accounts were introduced
+     * the copy has no account id; older copies are recognised as a second identical interest row
+     * of the same customer in the same second, which a daily interest run never produces.
+     * @param statement A statement on the shard's connection.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private void removeDuplicateInterest(Statement statement) throws SQLException {
+        int removed = statement.executeUpdate("DELETE FROM transactions WHERE type = 'Interest' AND accountId IS NULL");
+        removed += statement.executeUpdate("DELETE FROM transactions WHERE id IN (" +
+                "SELECT copy.id FROM transactions original JOIN transactions copy " +
+                "ON copy.bankNumber = original.bankNumber AND copy.type = 'Interest' AND original.type = 'Interest' " +
+                "AND copy.id > original.id AND copy.amount = original.amount AND copy.accountId = original.accountId " +
+                "AND substr(copy.timestamp, 1, 19) = substr(original.timestamp, 1, 19))");
+        if (removed > 0) {
+            System.out.println("Removed " + removed + " duplicate interest transactions.");
+        }
+    }
+
+    /**
+     * Checks whether a table has a column.
+     * @param connection The database connection.
+     * @param table The table name.
+     * @param column The column name.
+     * @return true if the column exists.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private boolean columnExists(Connection connection, String table, String column) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (resultSet.next()) {
+                if (column.equalsIgnoreCase(resultSet.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds a column to an existing table unless it is already present.
+     * @param connection The database connection.
+     * @param table The table name.
+     * @param column The column name.
+     * @param definition The column type and constraints.
+     * @return true if the column was added, false if it already existed.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private boolean addColumnIfMissing(Connection connection, String table, String column, String definition) throws SQLException {
+        if (columnExists(connection, table, column)) {
+            return false; // The column already exists.
+        }
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition);
+            System.out.println("Added column " + column + " to " + table + ".");
+        }
+        return true;
+    }
+
     /**
      * Registers a new user and inserts them into the database.
      * @param userName The user's name.
@@ -145,7 +673,7 @@ public class Bank {
         String bankNumber = generateBankNumber(); // Generate a bank number.
         User newUser = new User(userName, bankNumber, pinNumber, accountType, 0.0, isAdmin); // Create a new User object.
         if (insertUserIntoDb(newUser)) { // Insert the user into the database.
-            users.add(newUser); // Add the user to the list of users.
+            addUser(newUser); // Add the user and their primary account to the list and the indexes, unless a refresh already did.
             return bankNumber; // Return the bank number.
         } else {
             System.err.println("Failed to register user: " + userName); // Print an error message if registration fails.
@@ -154,21 +682,93 @@ public class Bank {
     }
 
     /**
-     * Logs in a user by verifying their bank number and PIN.
+     * Logs in a user by verifying their bank number and PIN. Attempts are rate limited per bank
+     * number and in total; an attempt over the limit is turned away before the PIN is checked or
+     * anything is written. The login's audit row is written in the background, see LoginAuditor;
+     * clients that call again and again should open a session instead, see getSessions.
      * @param bankNumber The user's bank number.
      * @param pinNumber The user's PIN.
      * @return The User object if login is successful, or null otherwise.
+     * @throws AdmissionController.RejectedException If there were too many attempts; it says when to try again.
      */
     public User login(String bankNumber, String pinNumber) {
-        for (User user : users) { // Iterate through the list of users.
-            if (user.getBankNumber().equals(bankNumber) && user.getPinNumber().equals(pinNumber)) { // Check if the bank number and PIN match.
-                user.setLoggedIn(true); // Set the user's loggedIn status to true.
-                Transaction transaction = new Transaction(LocalDateTime.now(), "Login", BigDecimal.ZERO, bankNumber, "User logged in"); // create login transaction
-                transaction.saveToDb(); // save the login transaction to db.
+        try (AdmissionController.Permit permit = loginAdmission.tryAcquire(bankNumber)) {
+            if (!permit.isAdmitted()) {
+                anomalyDetector.onFailedLogin(bankNumber); // Hammering counts as guessing.
+                throw new AdmissionController.RejectedException("Too many login attempts", permit.getRetryAfterMillis());
+            }
+            User user = findUserInList(bankNumber); // Find the user by bank number.
+            if (user != null && user.getPinNumber().equals(pinNumber)) { // Check if the PIN matches.
+                Transaction transaction = new Transaction(LocalDateTime.now(), TransactionType.LOGIN, BigDecimal.ZERO, bankNumber, "User logged in"); // create login transaction
+                loginAuditor.record(transaction); // save the login transaction to db in the next batch.
+                getRecentTransactions(bankNumber); // Warm the recent activity cache for the session.
                 return user; // Return the User object.
             }
+            anomalyDetector.onFailedLogin(bankNumber); // Watch for guessing.
+            return null; // Return null if login fails.
+        }
+    }
+
+    /**
+     * Opens an additional account for an existing user, in the base currency.
+     * @param bankNumber The owner's bank number.
+     * @param accountType The type of the new account.
+     * @return The new account id, or null if the account could not be opened.
+     */
+    public String openAccount(String bankNumber, String accountType) {
+        return openAccount(bankNumber, accountType, CurrencyConverter.BASE_CURRENCY);
+    }
+
+    /**
+     * Opens an additional account for an existing user.
+     * @param bankNumber The owner's bank number.
+     * @param accountType The type of the new account.
+     * @param currency The ISO code of the account's currency, which must have an exchange rate.
+     * @return The new account id, or null if the account could not be opened.
+     */
+    public String openAccount(String bankNumber, String accountType, String currency) {
+        User user = findUserInList(bankNumber); // Find the owner.
+        if (user == null || accountType == null || accountType.trim().isEmpty()) {
+            return null; // Unknown owner or missing account type.
+        }
+        if (!currencyConverter.getRates().contains(currency)) {
+            System.out.println("No exchange rate for currency " + currency + "."); // Money could never be moved in or out.
+            return null;
+        }
+        String accountId = bankNumber + "-" + (user.getAccounts().size() + 1); // Secondary accounts are numbered after the bank number.
+        while (accountsById.containsKey(accountId)) {
+            accountId = accountId + "0"; // Skip ids left behind by concurrent openings.
+        }
+        Account account = new Account(accountId, bankNumber, accountType, BigDecimal.ZERO, currency); // Create the new account.
+        if (insertAccountIntoDb(account)) { // Insert the account into the database.
+            if (accountsById.putIfAbsent(accountId, account) == null) { // A refresh may have picked the new row up already.
+                user.addAccount(account);
+                account.setMetrics(metrics);
+            }
+            logTransaction(bankNumber, TransactionType.OPEN_ACCOUNT, BigDecimal.ZERO, "Opened " + accountType + " " + currency + " account " + accountId); // log transaction
+            return accountId; // Return the account id.
         }
-        return null; // Return null if login fails.
+        System.err.println("Failed to open account for user: " + bankNumber); // Print an error message if the insert fails.
+        return null; // Return null if opening the account fails.
+    }
+
+    /**
+     * Finds an account by its id.
+     * @param accountId The account id.
+     * @return The Account object, or null if it does not exist.
+     */
+    public Account findAccount(String accountId) {
+        return accountId == null ? null : accountsById.get(accountId); // Look the account up in the index.
+    }
+
+    /**
+     * Retrieves every account owned by a user.
+     * @param bankNumber The owner's bank number.
+     * @return The user's accounts, primary account first, or an empty list if the user does not exist.
+     */
+    public List<Account> getAccounts(String bankNumber) {
+        User user = findUserInList(bankNumber); // Find the owner.
+        return user == null ? new ArrayList<Account>() : user.getAccounts(); // Return the owner's accounts.
     }
 
     /**
@@ -178,104 +778,1468 @@ public class Bank {
      * @param amount The transaction amount.
      * @param description The transaction description.
      */
-    public void logTransaction(String bankNumber, String type, BigDecimal amount, String description) {
-        Transaction transaction = new Transaction(LocalDateTime.now(), type, amount, bankNumber, description); // Create a new Transaction object.
-        saveTransaction(transaction); // Save the transaction.
+    public void logTransaction(String bankNumber, TransactionType type, BigDecimal amount, String description) {
+        Transaction transaction = new Transaction(LocalDateTime.now(), type, amount, bankNumber, description); // Create a new Transaction object.
+        saveTransaction(transaction); // Save the transaction.
+    }
+
+    /**
+     * Saves a transaction to the database.
+     * @param transaction The Transaction object to save.
+     */
+    private void saveTransaction(Transaction transaction) {
+        if (transaction.saveToDb(getDbFilePath(transaction.getBankNumber()))) { // Save the transaction to the customer's shard.
+            if (replicator != null) {
+                replicate(ReplicationRecord.transaction(router.shardFor(transaction.getBankNumber()), transaction));
+            }
+            transactionCommitted(transaction);
+        }
+    }
+
+    /**
+     * Saves transactions that change no balance, such as login audit rows, with one database
+     * transaction per shard.
+     * @param transactions The transactions.
+     * @return The transactions of the shards that could not be written, empty if all were saved.
+     */
+    List<Transaction> saveTransactions(List<Transaction> transactions) {
+        Map<Integer, List<Transaction>> byShard = new TreeMap<>();
+        for (Transaction transaction : transactions) {
+            byShard.computeIfAbsent(router.shardFor(transaction.getBankNumber()), shard -> new ArrayList<>()).add(transaction);
+        }
+        List<Transaction> failed = new ArrayList<>();
+        for (Map.Entry<Integer, List<Transaction>> entry : byShard.entrySet()) {
+            int shard = entry.getKey();
+            List<Transaction> shardTransactions = entry.getValue();
+            try (Connection connection = router.connect(shard)) { // Create a database connection.
+                connection.setAutoCommit(false); // The shard's rows are committed at once.
+                try {
+                    Transaction.saveAllToDb(connection, shardTransactions);
+                    connection.commit();
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                System.err.println("Error saving transactions: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+                failed.addAll(shardTransactions);
+                continue;
+            }
+            replicateCommit(shard, Collections.<JournalEntry>emptyList(), Collections.<Ledger.AccountState>emptyList(), shardTransactions);
+            for (Transaction transaction : shardTransactions) {
+                transactionCommitted(transaction);
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Called once a transaction row has been committed, to keep in-memory views current.
+     * @param transaction The committed transaction.
+     */
+    private void transactionCommitted(Transaction transaction) {
+        recentTransactions.append(transaction); // Keep the customer's recent activity current.
+        anomalyDetector.onTransaction(transaction); // Check the account's recent behaviour.
+        metrics.transactionCommitted(transaction); // Count it on the dashboard.
+    }
+
+    /**
+     * Retrieves a customer's most recent transactions, served from memory when the customer is cached
+     * and read through from the database otherwise.
+     * @param bankNumber The user's bank number.
+     * @return Up to RECENT_TRANSACTIONS_PER_CUSTOMER transactions, newest first.
+     */
+    public List<Transaction> getRecentTransactions(String bankNumber) {
+        List<Transaction> cached = recentTransactions.get(bankNumber);
+        if (cached != null) {
+            return cached; // Served from memory.
+        }
+        TransactionFilter filter = new TransactionFilter();
+        filter.setNewestFirst(true);
+        filter.setLimit(RECENT_TRANSACTIONS_PER_CUSTOMER);
+        long token = recentTransactions.beginLoad(bankNumber); // Before the read, so a commit during it is noticed.
+        List<Transaction> recent = searchTransactions(bankNumber, filter); // Read the newest rows through the index.
+        recentTransactions.load(bankNumber, token, recent); // Dropped if a commit overtook the read.
+        return recent;
+    }
+
+    /**
+     * Gets the recent transaction cache, for its size and hit-rate metrics.
+     * @return The cache.
+     */
+    public RecentTransactionCache getRecentTransactionCache() {
+        return recentTransactions;
+    }
+
+    /**
+     * Gets the admission controller for interactive operations. Front ends take a permit keyed by
+     * the customer's bank number before each deposit, withdrawal or transfer, so that a
+     * misbehaving terminal is turned away before it reaches the database. Batch tools and the
+     * payment scheduler call the bank directly and are not limited.
+     * @return The controller.
+     */
+    public AdmissionController getAdmissionController() {
+        return operationAdmission;
+    }
+
+    /**
+     * Gets the exchange rates used for foreign currency accounts.
+     * @return The converter.
+     */
+    public CurrencyConverter getCurrencyConverter() {
+        return currencyConverter;
+    }
+
+    /**
+     * Starts sending every change this bank commits to a replicator, which streams them to a
+     * standby. Changes committed before the call reach the standby through its snapshot.
+     * @param replicator The replicator, or null to stop.
+     */
+    public void setReplicator(Replicator replicator) {
+        this.replicator = replicator;
+    }
+
+    /**
+     * Gets the replicator changes are sent to.
+     * @return The replicator, or null if replication is off.
+     */
+    public Replicator getReplicator() {
+        return replicator;
+    }
+
+    /**
+     * Gets the anomaly detector, to listen for alerts or list recent ones.
+     * @return The detector.
+     */
+    public AnomalyDetector getAnomalyDetector() {
+        return anomalyDetector;
+    }
+
+    /**
+     * Gets the bank-wide figures shown on the admin dashboard.
+     * @return The metrics, kept current as the bank changes.
+     */
+    public BankMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the session manager, to log in once and authenticate later calls by token.
+     * @return The session manager.
+     */
+    public SessionManager getSessions() {
+        return sessions;
+    }
+
+    /**
+     * Reads the dashboard's saved flows from the first shard.
+     */
+    private void loadMetrics() {
+        try (Connection connection = router.connect(0)) { // Create a database connection.
+            metrics.load(connection);
+        } catch (SQLException e) {
+            System.err.println("Error loading metrics: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+        }
+    }
+
+    /**
+     * Saves the dashboard's flows to the first shard.
+     */
+    private void saveMetrics() {
+        try (Connection connection = router.connect(0)) { // Create a database connection.
+            metrics.save(connection);
+        } catch (SQLException e) {
+            System.err.println("Error saving metrics: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+        }
+    }
+
+    /**
+     * Deposits an amount into an account.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount to deposit.
+     * @return true if the deposit is successful, false otherwise.
+     */
+    public boolean deposit(String accountId, double amount) {
+        return deposit(accountId, amount, null); // Deposit without retry protection.
+    }
+
+    /**
+     * Deposits an amount into an account. Repeating the call with the same idempotency key
+     * returns the original result without depositing again.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount to deposit.
+     * @param idempotencyKey A client chosen key identifying this deposit, or null.
+     * @return true if the deposit is successful, false otherwise.
+     */
+    public boolean deposit(String accountId, double amount, String idempotencyKey) {
+        Account account = findAccount(accountId); // Find the account in the index.
+        if (account != null && amount > 0) { // Check if the account exists and the amount is valid.
+            BigDecimal depositAmount = new BigDecimal(String.valueOf(amount)).setScale(2, RoundingMode.HALF_UP); // The ledger counts whole cents.
+            if (depositAmount.signum() <= 0) {
+                System.out.println("Invalid amount for deposit."); // Less than a cent.
+                return false;
+            }
+            String fingerprint = operationFingerprint("Deposit", accountId, depositAmount);
+            Boolean previousResult = previousResult(idempotencyKey, fingerprint); // Check whether this is a retry.
+            if (previousResult != null) {
+                return previousResult; // Return the original result without touching the balance.
+            }
+            JournalEntry entry = JournalEntry.transfer("Deposit", "Deposit transaction", JournalEntry.CASH_ACCOUNT, accountId, depositAmount); // Cash comes in.
+            Transaction transaction = new Transaction(LocalDateTime.now(), TransactionType.DEPOSIT, depositAmount, account.getOwnerBankNumber(), "Deposit transaction"); // create transaction
+            transaction.setAccountId(accountId);
+            transaction.setIdempotencyKey(idempotencyKey);
+            if (commitBalanceChange(entry, Collections.singletonList(transaction), fingerprint)) { // Update the balance and save the transaction together.
+                return true; // Return true if the deposit is successful.
+            } else {
+                System.err.println("Failed to update balance in DB for deposit."); // Print an error message if the update fails.
+                return false; // Return false if the update fails.
+            }
+        } else {
+            System.out.println("Account not found or invalid amount for deposit."); // Print a message if the account is not found or the amount is invalid.
+        }
+        return false; // Return false if the deposit fails.
+    }
+
+    /**
+     * Deposits an amount paid in any currency with an exchange rate. The amount is converted into
+     * the account's currency at the current rate; the history row shows the converted amount,
+     * and its description what was paid in and the rate used.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount paid in, in the given currency.
+     * @param currency The ISO code of the currency paid in.
+     * @return true if the deposit is successful, false otherwise.
+     */
+    public boolean depositInCurrency(String accountId, double amount, String currency) {
+        Account account = findAccount(accountId); // Find the account in the index.
+        if (account == null || amount <= 0) {
+            System.out.println("Account not found or invalid amount for deposit."); // Print a message if the account is not found or the amount is invalid.
+            return false;
+        }
+        if (account.getCurrency().equals(currency)) {
+            return deposit(accountId, amount); // Nothing to convert.
+        }
+        CurrencyConverter.Rates rates = currencyConverter.getRates(); // One rate table for the whole deposit.
+        long paidCents = JournalEntry.toCents(new BigDecimal(String.valueOf(amount)));
+        long creditCents;
+        try {
+            if (!rates.isWholeUnits(paidCents, currency)) {
+                System.out.println("Invalid amount for a deposit in " + currency + "."); // Smaller than the currency's smallest unit.
+                return false;
+            }
+            creditCents = rates.convert(paidCents, currency, account.getCurrency());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Cannot convert deposit: " + e.getMessage()); // No rate for one of the currencies.
+            return false;
+        }
+        if (creditCents <= 0) {
+            System.out.println("Invalid amount for deposit."); // Less than a cent once converted.
+            return false;
+        }
+        String description = "Deposit of " + JournalEntry.fromCents(paidCents) + " " + currency + " at " + rates.getRate(currency, account.getCurrency()).toPlainString();
+        JournalEntry entry = JournalEntry.exchange("Deposit", description, JournalEntry.CASH_ACCOUNT, currency, paidCents,
+                accountId, account.getCurrency(), creditCents); // Cash comes in in the currency paid.
+        Transaction transaction = new Transaction(LocalDateTime.now(), TransactionType.DEPOSIT, JournalEntry.fromCents(creditCents), account.getOwnerBankNumber(), description); // create transaction
+        transaction.setAccountId(accountId);
+        if (commitBalanceChange(entry, Collections.singletonList(transaction), null)) { // Update the balance and save the transaction together.
+            return true;
+        }
+        System.err.println("Failed to update balance in DB for deposit."); // Print an error message if the update fails.
+        return false;
+    }
+
+    /**
+     * Withdraws an amount from an account.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount to withdraw.
+     * @return true if the withdrawal is successful, false otherwise.
+     */
+    public boolean withdraw(String accountId, double amount) {
+        return withdraw(accountId, amount, null); // Withdraw without retry protection.
+    }
+
+    /**
+     * Withdraws an amount from an account. Repeating the call with the same idempotency key
+     * returns the original result without withdrawing again. A refusal for lack of funds changes
+     * nothing and is not remembered, so a repeated call tries again.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount to withdraw.
+     * @param idempotencyKey A client chosen key identifying this withdrawal, or null.
+     * @return true if the withdrawal is successful, false otherwise.
+     */
+    public boolean withdraw(String accountId, double amount, String idempotencyKey) {
+        Account account = findAccount(accountId); // Find the account in the index.
+        if (account != null && amount > 0) { // Check if the account exists and the amount is valid.
+            BigDecimal withdrawAmount = new BigDecimal(String.valueOf(amount)).setScale(2, RoundingMode.HALF_UP); // The ledger counts whole cents.
+            if (withdrawAmount.signum() <= 0) {
+                System.out.println("Invalid amount for withdrawal."); // Less than a cent.
+                return false;
+            }
+            String fingerprint = operationFingerprint("Withdraw", accountId, withdrawAmount);
+            Boolean previousResult = previousResult(idempotencyKey, fingerprint); // Check whether this is a retry.
+            if (previousResult != null) {
+                return previousResult; // Return the original result without touching the balance.
+            }
+            long withdrawCents = JournalEntry.toCents(withdrawAmount);
+            if (reserveFunds(account, withdrawCents)) { // Check the available balance, and keep holds from taking it meanwhile.
+                try {
+                    JournalEntry entry = JournalEntry.transfer("Withdraw", "Withdrawal transaction", accountId, JournalEntry.CASH_ACCOUNT, withdrawAmount); // Cash goes out.
+                    Transaction transaction = new Transaction(LocalDateTime.now(), TransactionType.WITHDRAW, withdrawAmount, account.getOwnerBankNumber(), "Withdrawal transaction"); // create transaction.
+                    transaction.setAccountId(accountId);
+                    transaction.setIdempotencyKey(idempotencyKey);
+                    if (commitBalanceChange(entry, Collections.singletonList(transaction), fingerprint)) { // Update the balance and save the transaction together.
+                        return true; // Return true if the withdrawal is successful.
+                    } else {
+                        System.err.println("Failed to update balance in DB for withdrawal."); // Print an error message if the update fails.
+                        return false; // Return false if the update fails.
+                    }
+                } finally {
+                    account.unreserve(withdrawCents); // The balance itself has moved by now.
+                }
+            } else if (idempotencyKey != null && committedEarlier(account.getOwnerBankNumber(), idempotencyKey, fingerprint)) {
+                return true; // A retry of a withdrawal committed before the key left the cache; the money is already gone.
+            } else {
+                System.out.println("Insufficient available balance for withdrawal."); // Print a message if the user has insufficient balance.
+                return false; // Return false if the user has insufficient balance.
+            }
+        } else {
+            System.out.println("Account not found or invalid amount for withdrawal."); // Print a message if the account is not found or the amount is invalid.
+        }
+        return false; // Return false if the withdrawal fails.
+    }
+
+    /**
+     * Moves an amount from one account to another.
+     * @param fromAccountId The account to take the money from.
+     * @param toAccountId The account to pay the money into.
+     * @param amount The amount to transfer.
+     * @return true if the transfer is successful, false otherwise.
+     */
+    public boolean transfer(String fromAccountId, String toAccountId, double amount) {
+        return transfer(fromAccountId, toAccountId, amount, null); // Transfer without retry protection.
+    }
+
+    /**
+     * Moves an amount from one account to another. Accounts in the same shard are updated in one
+     * database transaction. Between shards the money is posted out of the source and into the
+     * target as two keyed commits; if the second fails, a call with an idempotency key is completed
+     * by retrying it, and a call without one is reversed. A refusal for lack of funds is not
+     * remembered under the key, so a repeated call tries again.
+     * @param fromAccountId The account to take the money from.
+     * @param toAccountId The account to pay the money into.
+     * @param amount The amount to transfer.
+     * @param idempotencyKey A client chosen key identifying this transfer, or null.
+     * @return true if the transfer is successful, false otherwise.
+     */
+    public boolean transfer(String fromAccountId, String toAccountId, double amount, String idempotencyKey) {
+        Account from = findAccount(fromAccountId); // Find the source account in the index.
+        Account to = findAccount(toAccountId); // Find the target account in the index.
+        if (from == null || to == null || from == to || amount <= 0) { // Check if the accounts exist and the amount is valid.
+            System.out.println("Account not found or invalid amount for transfer."); // Print a message if an account is not found or the amount is invalid.
+            return false;
+        }
+        BigDecimal transferAmount = new BigDecimal(String.valueOf(amount)).setScale(2, RoundingMode.HALF_UP); // The ledger counts whole cents.
+        if (transferAmount.signum() <= 0) {
+            System.out.println("Invalid amount for transfer."); // Less than a cent.
+            return false;
+        }
+        String fingerprint = operationFingerprint("Transfer Out", fromAccountId, transferAmount);
+        Boolean previousResult = previousResult(idempotencyKey, fingerprint); // Check whether this is a retry.
+        if (previousResult != null) {
+            return previousResult; // Return the original result without moving money again.
+        }
+        long transferCents = JournalEntry.toCents(transferAmount);
+        boolean exchanged = !from.getCurrency().equals(to.getCurrency());
+        CurrencyConverter.Rates rates = currencyConverter.getRates(); // One rate table for the whole transfer.
+        long creditCents = transferCents;
+        if (exchanged) {
+            try {
+                if (!rates.isWholeUnits(transferCents, from.getCurrency())) {
+                    System.out.println("Invalid amount for a transfer in " + from.getCurrency() + "."); // Smaller than the currency's smallest unit.
+                    return false;
+                }
+                creditCents = rates.convert(transferCents, from.getCurrency(), to.getCurrency());
+            } catch (IllegalArgumentException e) {
+                System.out.println("Cannot convert transfer: " + e.getMessage()); // No rate for one of the currencies.
+                return false;
+            }
+            if (creditCents <= 0) {
+                System.out.println("Invalid amount for transfer."); // Less than a cent once converted.
+                return false;
+            }
+        }
+        if (!reserveFunds(from, transferCents)) { // Check the available balance, and keep holds from taking it meanwhile.
+            System.out.println("Insufficient available balance for transfer.");
+            return false;
+        }
+        try {
+            BigDecimal creditAmount = JournalEntry.fromCents(creditCents);
+            String outDescription = "Transfer to " + toAccountId;
+            String inDescription = "Transfer from " + fromAccountId;
+            if (exchanged) { // Each side sees the other side's amount and the rate.
+                String rate = rates.getRate(from.getCurrency(), to.getCurrency()).toPlainString();
+                outDescription += " (" + creditAmount + " " + to.getCurrency() + " at " + rate + ")";
+                inDescription += " (" + transferAmount + " " + from.getCurrency() + " at " + rate + ")";
+            }
+            Transaction out = new Transaction(LocalDateTime.now(), TransactionType.TRANSFER_OUT, transferAmount, from.getOwnerBankNumber(), outDescription); // create transaction.
+            out.setAccountId(fromAccountId);
+            Transaction in = new Transaction(LocalDateTime.now(), TransactionType.TRANSFER_IN, creditAmount, to.getOwnerBankNumber(), inDescription); // create transaction.
+            in.setAccountId(toAccountId);
+            if (router.shardFor(from.getOwnerBankNumber()) == router.shardFor(to.getOwnerBankNumber())) {
+                out.setIdempotencyKey(idempotencyKey);
+                JournalEntry entry = JournalEntry.exchange("Transfer", "Transfer from " + fromAccountId + " to " + toAccountId,
+                        fromAccountId, from.getCurrency(), transferCents, toAccountId, to.getCurrency(), creditCents);
+                return commitBalanceChange(entry, Arrays.asList(out, in), fingerprint); // Both sides in one commit.
+            }
+            return transferAcrossShards(out, in, from.getCurrency(), to.getCurrency(), idempotencyKey, fingerprint);
+        } finally {
+            from.unreserve(transferCents); // The balance itself has moved by now.
+        }
+    }
+
+    /**
+     * Performs the two legs of a transfer between shards, each balanced within its own shard
+     * through the in-flight transfer account. A currency exchange happens in the debit leg, so
+     * the money is in flight in the target currency.
+     * @param out The transaction recording the debit, in the source currency.
+     * @param in The transaction recording the credit, in the target currency.
+     * @param fromCurrency The currency of the debited account.
+     * @param toCurrency The currency of the credited account.
+     * @param idempotencyKey The caller's key, or null.
+     * @param fingerprint The fingerprint of the transfer.
+     * @return true if both legs are committed.
+     */
+    private boolean transferAcrossShards(Transaction out, Transaction in, String fromCurrency, String toCurrency, String idempotencyKey, String fingerprint) {
+        String legKey = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString(); // Keys make each leg safe to repeat.
+        out.setIdempotencyKey(legKey + ":out");
+        in.setIdempotencyKey(legKey + ":in");
+        JournalEntry debit = JournalEntry.exchange("Transfer", out.getDescription(), out.getAccountId(), fromCurrency, out.getAmountCents(),
+                JournalEntry.TRANSFER_ACCOUNT, toCurrency, in.getAmountCents());
+        if (!commitBalanceChange(debit, Collections.singletonList(out), fingerprint)) {
+            return false; // Nothing has moved.
+        }
+        JournalEntry credit = JournalEntry.transfer("Transfer", in.getDescription(), JournalEntry.TRANSFER_ACCOUNT, in.getAccountId(), in.getAmount());
+        if (commitBalanceChange(credit, Collections.singletonList(in), operationFingerprint("Transfer In", in.getAccountId(), in.getAmount()))) {
+            rememberResult(idempotencyKey, fingerprint, true); // Remember the success for retries.
+            return true;
+        }
+        if (idempotencyKey != null) {
+            System.err.println("Transfer " + idempotencyKey + " is debited but not yet credited; retry it to complete."); // The debit leg is recorded under the key.
+            return false;
+        }
+        Transaction reversal = new Transaction(LocalDateTime.now(), TransactionType.TRANSFER_REVERSAL, out.getAmount(), out.getBankNumber(), "Reversed transfer to " + in.getAccountId()); // create transaction.
+        reversal.setAccountId(out.getAccountId());
+        reversal.setIdempotencyKey(legKey + ":reversal");
+        JournalEntry refund = JournalEntry.exchange("Transfer Reversal", reversal.getDescription(), JournalEntry.TRANSFER_ACCOUNT, toCurrency, in.getAmountCents(),
+                out.getAccountId(), fromCurrency, out.getAmountCents()); // Undo the exchange at the same amounts, whatever the rate is now.
+        if (!commitBalanceChange(refund, Collections.singletonList(reversal), operationFingerprint("Transfer Reversal", out.getAccountId(), out.getAmount()))) {
+            System.err.println("Failed to reverse transfer " + legKey + "; the amount is held in the transfer account."); // Print an error message if the reversal fails.
+        }
+        return false;
+    }
+
+    /**
+     * Builds the string identifying what an idempotency key was used for.
+     * @param type The transaction type.
+     * @param accountId The account id.
+     * @param amount The amount moved.
+     * @return The fingerprint.
+     */
+    private static String operationFingerprint(String type, String accountId, BigDecimal amount) {
+        return type + "|" + accountId + "|" + amount.stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Looks up the result of an earlier call made with the same idempotency key.
+     * Only the in-memory cache is consulted here; keys that have left the cache are
+     * caught by the unique index when the retried operation tries to commit.
+     * @param idempotencyKey The key, or null.
+     * @param fingerprint The fingerprint of the current call.
+     * @return The earlier result, false if the key was used for a different operation, or null if the key is new.
+     */
+    private Boolean previousResult(String idempotencyKey, String fingerprint) {
+        if (idempotencyKey == null) {
+            return null; // No key, no retry protection.
+        }
+        IdempotencyCache.Entry entry = idempotencyCache.get(idempotencyKey);
+        if (entry == null) {
+            return null; // Not seen recently.
+        }
+        if (!entry.getFingerprint().equals(fingerprint)) {
+            System.err.println("Idempotency key " + idempotencyKey + " was already used for a different operation."); // Reject reuse of a key.
+            return false;
+        }
+        return entry.getResult(); // Return the original outcome.
+    }
+
+    /**
+     * Records the result of a keyed operation for later retries.
+     * @param idempotencyKey The key, or null.
+     * @param fingerprint The fingerprint of the operation.
+     * @param result The result returned to the caller.
+     */
+    private void rememberResult(String idempotencyKey, String fingerprint, boolean result) {
+        if (idempotencyKey != null) {
+            idempotencyCache.put(idempotencyKey, fingerprint, result);
+        }
+    }
+
+    /**
+     * Posts a journal entry together with the transactions that describe it in a single database
+     * transaction, then updates the in-memory balances. If the first transaction carries an
+     * idempotency key that has already been committed, nothing is changed and the earlier success
+     * is reported.
+     * @param entry The balanced entry to post; its customer accounts must share a shard.
+     * @param transactions The transactions to record, the one carrying the idempotency key first.
+     * @param fingerprint The fingerprint of the operation.
+     * @return true if the change was applied now or by an earlier call with the same key, false otherwise.
+     */
+    private boolean commitBalanceChange(JournalEntry entry, List<Transaction> transactions, String fingerprint) {
+        Transaction first = transactions.get(0);
+        String idempotencyKey = first.getIdempotencyKey();
+        BankOperationEvent event = new BankOperationEvent(); // Timed only while a flight recording enables it.
+        event.start();
+        List<Ledger.AccountState> states;
+        try (Connection connection = router.connect(first.getAccountId())) { // Create a database connection.
+            event.connectTime = event.lap();
+            connection.setAutoCommit(false); // Postings, balances and transaction rows are committed together.
+            try {
+                states = Ledger.post(connection, entry); // Moves the balances, refusing to overdraw them.
+                event.ledgerTime = event.lap();
+                for (Transaction transaction : transactions) {
+                    transaction.saveToDb(connection); // Fails on the unique index if the key was already used.
+                }
+                event.insertTime = event.lap();
+                connection.commit();
+                event.commitTime = event.lap();
+            } catch (SQLException e) {
+                connection.rollback(); // Undo the postings and the balance update as well.
+                if (idempotencyKey != null && isUniqueConstraintViolation(e)) {
+                    boolean committedBefore = resolveDuplicateKey(connection, idempotencyKey, fingerprint); // A retry of a committed operation.
+                    event.finish(entry.getType(), first.getAccountId(), first.getAmount().doubleValue(), "duplicate");
+                    return committedBefore;
+                }
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error posting to the ledger: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            event.finish(entry.getType(), first.getAccountId(), first.getAmount().doubleValue(),
+                    e instanceof Ledger.InsufficientFundsException ? "insufficient funds" : e instanceof Ledger.VersionConflictException ? "conflict" : "failed");
+            return false; // Return false if the update fails.
+        }
+        replicateCommit(router.shardFor(first.getAccountId()), Collections.singletonList(entry), states, transactions);
+        applyCommittedStates(states); // Update the accounts' balances in memory.
+        for (Transaction transaction : transactions) {
+            transactionCommitted(transaction);
+        }
+        rememberResult(idempotencyKey, fingerprint, true); // Remember the success for retries.
+        event.memoryTime = event.lap();
+        event.finish(entry.getType(), first.getAccountId(), first.getAmount().doubleValue(), "committed");
+        return true;
+    }
+
+    /**
+     * Updates the cached accounts with the rows a commit left behind. Each state carries the row
+     * version it was written at, so a state older than what is cached, for example one that
+     * raced with a refresh or with a later commit, is ignored.
+     * @param states The account states returned by the ledger.
+     */
+    private void applyCommittedStates(List<Ledger.AccountState> states) {
+        for (Ledger.AccountState state : states) {
+            Account account = findAccount(state.getAccountId());
+            if (account != null) {
+                account.refresh(state.getBalance(), state.getAccountType(), state.getVersion());
+            }
+        }
+    }
+
+    /**
+     * Updates the cached accounts with the rows a batch of entries left behind, like
+     * applyCommittedStates, and moves the postings of pending entries from pending into the
+     * balance in the same step.
+     * @param entries The posted entries.
+     * @param states The account states returned by the ledger, one per customer posting in entry order.
+     */
+    private void applyCommittedStates(List<JournalEntry> entries, List<Ledger.AccountState> states) {
+        int next = 0;
+        for (JournalEntry entry : entries) {
+            for (JournalEntry.Posting posting : entry.getPostings()) {
+                if (JournalEntry.isSystemAccount(posting.getAccountId())) {
+                    continue; // No state for system accounts.
+                }
+                Ledger.AccountState state = states.get(next++);
+                Account account = findAccount(state.getAccountId());
+                if (account == null) {
+                    continue;
+                }
+                if (entry.isPending()) {
+                    account.commitPending(posting.getAmountCents(), state.getBalance(), state.getAccountType(), state.getVersion());
+                } else {
+                    account.refresh(state.getBalance(), state.getAccountType(), state.getVersion());
+                }
+            }
+            entry.setPending(false);
+        }
+    }
+
+    /**
+     * Hands committed changes to the replicator, if there is one.
+     * @param records The records; null entries, rows that could not be read, are skipped.
+     */
+    private void replicate(ReplicationRecord... records) {
+        Replicator current = replicator;
+        if (current != null) {
+            current.publish(Arrays.asList(records));
+        }
+    }
+
+    /**
+     * Hands a committed ledger change to the replicator, if there is one: the entries, the
+     * account rows they left behind and the history rows written with them.
+     * @param shard The shard the change was committed in.
+     * @param entries The posted entries.
+     * @param states The account states the ledger read back.
+     * @param transactions The history rows.
+     * @param rows Other rows changed in the same commit, may contain null.
+     */
+    private void replicateCommit(int shard, List<JournalEntry> entries, List<Ledger.AccountState> states, List<Transaction> transactions,
+                                 ReplicationRecord... rows) {
+        Replicator current = replicator;
+        if (current == null) {
+            return; // Nothing to build.
+        }
+        List<ReplicationRecord> records = new ArrayList<>(entries.size() + states.size() + transactions.size() + rows.length);
+        for (JournalEntry entry : entries) {
+            records.add(ReplicationRecord.ledgerEntry(shard, entry));
+        }
+        for (Ledger.AccountState state : states) {
+            Account account = findAccount(state.getAccountId());
+            if (account != null) {
+                records.add(ReplicationRecord.account(shard, account, state));
+            }
+        }
+        for (Transaction transaction : transactions) {
+            records.add(ReplicationRecord.transaction(shard, transaction));
+        }
+        records.addAll(Arrays.asList(rows));
+        current.publish(records);
+    }
+
+    /**
+     * Reads the image of a changed row for the replicator. A row that cannot be read is reported
+     * and left out; the standby picks it up with its next snapshot.
+     * @param connection The connection that changed the row.
+     * @param shard The shard index.
+     * @param table The table.
+     * @param keyColumn The primary key column.
+     * @param key The primary key.
+     * @param guard The condition under which the image replaces the standby's row.
+     * @return The record, or null if replication is off or the row could not be read.
+     */
+    private ReplicationRecord rowImage(Connection connection, int shard, String table, String keyColumn, String key, String guard) {
+        if (replicator == null) {
+            return null; // No one to send it to.
+        }
+        try {
+            return ReplicationRecord.readRow(connection, shard, table, keyColumn, key, guard);
+        } catch (SQLException e) {
+            System.err.println("Error reading " + table + " row for replication: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return null;
+        }
+    }
+
+    /**
+     * Checks whether an SQL exception was caused by a UNIQUE constraint.
+     * @param e The exception.
+     * @return true if a unique constraint failed.
+     */
+    private static boolean isUniqueConstraintViolation(SQLException e) {
+        return e.getMessage() != null && e.getMessage().contains("UNIQUE constraint failed");
+    }
+
+    /**
+     * Looks up a keyed operation that is no longer in the idempotency cache, for example after a restart.
+     * @param bankNumber The owner of the account the operation touched.
+     * @param idempotencyKey The key.
+     * @param fingerprint The fingerprint of the current call.
+     * @return true if the key was committed for the same operation, false otherwise.
+     */
+    private boolean committedEarlier(String bankNumber, String idempotencyKey, String fingerprint) {
+        try (Connection connection = router.connect(bankNumber)) { // Create a database connection.
+            return resolveDuplicateKey(connection, idempotencyKey, fingerprint);
+        } catch (SQLException e) {
+            System.err.println("Error looking up idempotency key: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return false;
+        }
+    }
+
+    /**
+     * Answers a retry whose key is no longer cached by reading back the committed transaction.
+     * @param connection The database connection.
+     * @param idempotencyKey The key.
+     * @param fingerprint The fingerprint of the current call.
+     * @return true if the key was committed for the same operation, false otherwise.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private boolean resolveDuplicateKey(Connection connection, String idempotencyKey, String fingerprint) throws SQLException {
+        String sql = "SELECT typeCode, amountCents, accountId FROM transactions WHERE idempotencyKey = ?";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setString(1, idempotencyKey);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return false; // The key was never committed.
+                }
+                String committed = operationFingerprint(TransactionType.fromCode(resultSet.getInt("typeCode")).getLabel(), resultSet.getString("accountId"),
+                        JournalEntry.fromCents(resultSet.getLong("amountCents")));
+                if (!committed.equals(fingerprint)) {
+                    System.err.println("Idempotency key " + idempotencyKey + " was already used for a different operation.");
+                    return false;
+                }
+            }
+        }
+        rememberResult(idempotencyKey, fingerprint, true); // Warm the cache for further retries.
+        return true;
+    }
+
+    /**
+     * Applies interest to a saving account. The interest is computed from the cached balance and
+     * posted only if the row is still at the version that balance was read at; if another writer
+     * got there first, the account is re-read and the interest computed again.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @return true if the interest is applied successfully, false otherwise.
+     */
+    public boolean applyInterest(String accountId) {
+        Account account = findAccount(accountId); // Find the account in the index.
+        if (account == null) {
+            return false;
+        }
+        for (int attempt = 0; attempt < MAX_CONFLICT_RETRIES; attempt++) {
+            BigDecimal balance;
+            long version;
+            synchronized (account) { // Read the balance and the version it belongs to together.
+                balance = account.getBalance();
+                version = account.getVersion();
+            }
+            if (!account.getAccountType().equalsIgnoreCase("saving") || balance.compareTo(BigDecimal.ZERO) <= 0) { // check account type and balance
+                return false;
+            }
+            BigDecimal interest = calculateInterest(balance); // Calculate the interest.
+            if (interest.signum() <= 0) {
+                return false; // Less than a cent of interest.
+            }
+            String bankNumber = account.getOwnerBankNumber(); // Transactions are listed under the owner.
+            long interestCents = JournalEntry.toCents(interest);
+            JournalEntry entry = new JournalEntry(LocalDateTime.now(), "Interest", "Interest applied"); // The bank pays the interest.
+            entry.addPosting(JournalEntry.INTEREST_ACCOUNT, -interestCents);
+            entry.addPosting(accountId, interestCents, Math.max(version, 0)); // Only on the balance the interest was computed from.
+            Transaction transaction = new Transaction(LocalDateTime.now(), TransactionType.INTEREST, interest, bankNumber, "Interest applied"); // create transaction.
+            transaction.setAccountId(accountId);
+
+            if (commitBalanceChange(entry, Collections.singletonList(transaction), null)) { // Post the interest and save the transaction together.
+                return true; // Return true if the interest is applied successfully.
+            }
+            if (!refreshAccount(account)) { // A conflict shows up as a newer version of the row.
+                break;
+            }
+        }
+        System.err.println("Failed to update balance in DB for interest application."); // Print an error message if the update fails.
+        return false; // Return false if the update fails.
+    }
+
+    /**
+     * Calculates the interest a saving account earns in one interest run.
+     * @param balance The balance of the account.
+     * @return The interest, rounded to cents.
+     */
+    public static BigDecimal calculateInterest(BigDecimal balance) {
+        return balance.multiply(INTEREST_RATE).setScale(2, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * Posts many journal entries at once, with one database transaction per shard. The customer
+     * accounts of an entry must all live in the same shard. Every customer posting is also
+     * recorded in the owner's transaction history with the entry's description, as a row of the
+     * entry's type if that type moves money the same way (Interest, for example), otherwise as a
+     * Deposit or a Withdraw row. An entry's idempotency key goes on its first history row, so a shard
+     * batch that repeats an already committed key is rejected as a whole.
+     * @param entries The balanced entries to post.
+     * @return true if every entry was posted, false if an entry was invalid or a shard rejected its batch.
+     */
+    public boolean postEntries(List<JournalEntry> entries) {
+        for (JournalEntry entry : entries) {
+            if (shardOfEntry(entry) == -1) {
+                return false; // Post nothing if any entry is invalid.
+            }
+        }
+        for (boolean posted : postEntriesEach(entries)) {
+            if (!posted) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Posts many journal entries at once like postEntries, but reports on each entry: an invalid
+     * entry is skipped without affecting the others, and a shard whose batch fails fails only
+     * its own entries. An entry reported as not posted was not posted at all, so it is safe to
+     * post again on its own.
+     * @param entries The balanced entries to post.
+     * @return Whether each entry was posted, by position.
+     */
+    public boolean[] postEntriesEach(List<JournalEntry> entries) {
+        boolean[] posted = new boolean[entries.size()];
+        Map<Integer, List<Integer>> positionsByShard = new HashMap<>(); // Each shard commits its own batch.
+        for (int i = 0; i < entries.size(); i++) {
+            int shard = shardOfEntry(entries.get(i));
+            if (shard != -1) {
+                positionsByShard.computeIfAbsent(shard, key -> new ArrayList<>()).add(i);
+            }
+        }
+        runOnAllShards(shard -> {
+            List<Integer> positions = positionsByShard.get(shard);
+            if (positions == null) {
+                return true; // Nothing to post here.
+            }
+            List<JournalEntry> shardEntries = new ArrayList<>(positions.size());
+            for (int position : positions) {
+                shardEntries.add(entries.get(position));
+            }
+            boolean shardPosted = postEntriesInShard(shard, shardEntries);
+            for (int position : positions) {
+                posted[position] = shardPosted;
+            }
+            return shardPosted;
+        });
+        return posted;
+    }
+
+    /**
+     * Finds the shard a journal entry must be posted in.
+     * @param entry The entry.
+     * @return The shard index, or -1 if the entry is unbalanced, names an unknown account, spans
+     *         several shards or touches no customer account.
+     */
+    private int shardOfEntry(JournalEntry entry) {
+        if (!entry.isBalanced()) {
+            System.err.println("Rejected unbalanced journal entry: " + entry.getType());
+            return -1;
+        }
+        int entryShard = -1;
+        for (JournalEntry.Posting posting : entry.getPostings()) {
+            if (JournalEntry.isSystemAccount(posting.getAccountId())) {
+                continue; // System accounts exist in every shard.
+            }
+            Account account = findAccount(posting.getAccountId());
+            if (account == null) {
+                System.err.println("Journal entry names unknown account: " + posting.getAccountId());
+                return -1;
+            }
+            int shard = router.shardFor(account.getOwnerBankNumber());
+            if (entryShard != -1 && entryShard != shard) {
+                System.err.println("Journal entry spans several shards: " + entry.getType());
+                return -1;
+            }
+            entryShard = shard;
+        }
+        if (entryShard == -1) {
+            System.err.println("Journal entry touches no customer account: " + entry.getType());
+        }
+        return entryShard;
+    }
+
+    /**
+     * Posts the entries of one shard in a single database transaction.
+     * @param shard The shard index.
+     * @param entries The entries, or null if the shard has none.
+     * @return true if the entries were committed.
+     */
+    private boolean postEntriesInShard(int shard, List<JournalEntry> entries) {
+        if (entries == null) {
+            return true; // Nothing to post here.
+        }
+        List<Transaction> transactions = new ArrayList<>(); // History rows, one per customer posting.
+        for (JournalEntry entry : entries) {
+            String idempotencyKey = entry.getIdempotencyKey(); // Only one row may carry the key.
+            for (JournalEntry.Posting posting : entry.getPostings()) {
+                if (!JournalEntry.isSystemAccount(posting.getAccountId())) {
+                    Account account = findAccount(posting.getAccountId());
+                    TransactionType type = TransactionType.fromLabel(entry.getType());
+                    if (type == null || type.getBalanceEffect() != Long.signum(posting.getAmountCents())) {
+                        type = posting.getAmountCents() < 0 ? TransactionType.WITHDRAW : TransactionType.DEPOSIT; // History rows carry the direction in the type.
+                    }
+                    Transaction transaction = new Transaction(Transaction.toMillis(entry.getDateTime()), type, Math.abs(posting.getAmountCents()),
+                            account.getOwnerBankNumber(), entry.getDescription());
+                    transaction.setAccountId(posting.getAccountId());
+                    transaction.setIdempotencyKey(idempotencyKey);
+                    idempotencyKey = null;
+                    transactions.add(transaction);
+                }
+            }
+        }
+        List<Ledger.AccountState> states;
+        try (Connection connection = router.connect(shard)) { // Create a database connection.
+            connection.setAutoCommit(false); // The whole batch is committed at once.
+            try {
+                states = Ledger.postBatch(connection, entries);
+                Transaction.saveAllToDb(connection, transactions);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback(); // Post none of the shard's entries.
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error posting journal entries: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return false;
+        }
+        replicateCommit(shard, entries, states, transactions);
+        applyCommittedStates(entries, states); // Update the accounts' balances in memory.
+        for (Transaction transaction : transactions) {
+            transactionCommitted(transaction);
+        }
+        return true;
+    }
+
+    /**
+     * Checks on every shard that total debits equal total credits, from the running totals.
+     * @return true if the books of every shard balance.
+     */
+    public boolean checkLedger() {
+        List<Boolean> results = runOnAllShards(shard -> {
+            try (Connection connection = router.connect(shard)) { // Create a database connection.
+                return Ledger.checkTotals(connection);
+            } catch (SQLException e) {
+                System.err.println("Error checking ledger totals: " + e.getMessage());
+                return false;
+            }
+        });
+        return results.size() == router.getShardCount() && !results.contains(false);
+    }
+
+    /**
+     * Checks every posting, entry and account balance on every shard.
+     * @return A description of each problem found, empty if the books are consistent.
+     */
+    public List<String> verifyLedger() {
+        List<String> problems = new ArrayList<>();
+        List<List<String>> results = runOnAllShards(shard -> {
+            List<String> shardProblems = new ArrayList<>();
+            try (Connection connection = router.connect(shard)) { // Create a database connection.
+                for (String problem : Ledger.verify(connection)) {
+                    shardProblems.add("Shard " + shard + ": " + problem);
+                }
+            } catch (SQLException e) {
+                shardProblems.add("Shard " + shard + ": " + e.getMessage());
+            }
+            return shardProblems;
+        });
+        for (List<String> shardProblems : results) {
+            problems.addAll(shardProblems);
+        }
+        return problems;
+    }
+
+    /**
+     * Places an authorization hold, reserving funds on an account until the hold is captured,
+     * released or expires.
+     * @param accountId The account id.
+     * @param amount The amount to reserve.
+     * @param validFor How long the hold lasts before it is released automatically.
+     * @return The hold id, or null if the account does not exist or has too little available.
+     */
+    public String placeHold(String accountId, double amount, Duration validFor) {
+        Account account = findAccount(accountId); // Find the account in the index.
+        long cents = amount > 0 ? JournalEntry.toCents(new BigDecimal(String.valueOf(amount))) : 0;
+        if (account == null || cents <= 0) {
+            System.out.println("Account not found or invalid amount for hold."); // Print a message if the account is not found or the amount is invalid.
+            return null;
+        }
+        if (!reserveFunds(account, cents)) { // Take the funds out of the available balance.
+            System.out.println("Insufficient available balance for hold.");
+            return null;
+        }
+        Hold hold = new Hold(UUID.randomUUID().toString(), accountId, cents, System.currentTimeMillis() + validFor.toMillis());
+        String sql = "INSERT INTO holds (holdId, accountId, amountCents, createdAt, expiresAt, status) VALUES (?, ?, ?, ?, ?, 'active')"; // SQL for inserting a hold.
+        try (Connection connection = router.connect(accountId); // Create a database connection.
+             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setString(1, hold.getHoldId()); // Set the hold id.
+            statement.setString(2, accountId); // Set the account id.
+            statement.setLong(3, cents); // Set the amount.
+            statement.setString(4, LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)); // Set the creation time.
+            statement.setLong(5, hold.getExpiresAtMillis()); // Set the expiry time.
+            statement.executeUpdate(); // Execute the SQL.
+            replicate(rowImage(connection, router.shardFor(accountId), "holds", "holdId", hold.getHoldId(), ReplicationRecord.ACTIVE_HOLD));
+        } catch (SQLException e) {
+            account.unreserve(cents); // Give the funds back.
+            System.err.println("Error inserting hold into database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return null;
+        }
+        trackHold(hold);
+        return hold.getHoldId();
+    }
+
+    /**
+     * Captures the full amount of a hold, withdrawing it from the account.
+     * @param holdId The hold id.
+     * @return true if the hold was captured, false if it is not active or the capture failed.
+     */
+    public boolean captureHold(String holdId) {
+        Hold hold = activeHolds.get(holdId);
+        return hold != null && captureHold(holdId, JournalEntry.fromCents(hold.getAmountCents()).doubleValue());
+    }
+
+    /**
+     * Captures part or all of a hold, withdrawing that amount and releasing the rest.
+     * @param holdId The hold id.
+     * @param amount The amount to withdraw, at most the held amount.
+     * @return true if the hold was captured, false if it is not active, the amount is invalid or the capture failed.
+     */
+    public boolean captureHold(String holdId, double amount) {
+        Hold hold = activeHolds.get(holdId);
+        long cents = amount > 0 ? JournalEntry.toCents(new BigDecimal(String.valueOf(amount))) : 0;
+        if (hold == null || cents <= 0 || cents > hold.getAmountCents()) {
+            System.out.println("Hold not active or invalid amount for capture.");
+            return false;
+        }
+        if (!activeHolds.remove(holdId, hold)) {
+            return false; // Released, expired or captured meanwhile.
+        }
+        Account account = findAccount(hold.getAccountId());
+        BigDecimal captured = JournalEntry.fromCents(cents);
+        JournalEntry entry = JournalEntry.transfer("Withdraw", "Captured hold " + holdId, hold.getAccountId(), JournalEntry.CASH_ACCOUNT, captured); // Cash goes out.
+        Transaction transaction = new Transaction(LocalDateTime.now(), TransactionType.WITHDRAW, captured, account.getOwnerBankNumber(), "Captured hold " + holdId); // create transaction.
+        transaction.setAccountId(hold.getAccountId());
+        int shard = router.shardFor(hold.getAccountId());
+        List<Ledger.AccountState> states;
+        ReplicationRecord holdRow;
+        try (Connection connection = router.connect(shard)) { // Create a database connection.
+            connection.setAutoCommit(false); // Hold status, postings and transaction row are committed together.
+            try {
+                if (!updateHoldStatus(connection, holdId, "captured")) {
+                    connection.rollback();
+                    return false; // The row was no longer active.
+                }
+                states = Ledger.post(connection, entry); // Moves the balance.
+                transaction.saveToDb(connection);
+                holdRow = rowImage(connection, shard, "holds", "holdId", holdId, ReplicationRecord.ACTIVE_HOLD);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback(); // Keep the hold active.
+                throw e;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error capturing hold: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            restoreHold(hold);
+            return false;
+        }
+        replicateCommit(shard, Collections.singletonList(entry), states, Collections.singletonList(transaction), holdRow);
+        cancelExpiry(hold);
+        applyCommittedStates(states); // Lower the balance before freeing the reservation, so available never overshoots.
+        account.unreserve(hold.getAmountCents());
+        transactionCommitted(transaction);
+        return true;
+    }
+
+    /**
+     * Releases a hold, returning its funds to the available balance.
+     * @param holdId The hold id.
+     * @return true if the hold was released, false if it is not active or the update failed.
+     */
+    public boolean releaseHold(String holdId) {
+        Hold hold = activeHolds.get(holdId);
+        if (hold == null || !activeHolds.remove(holdId, hold)) {
+            return false; // Not active.
+        }
+        try (Connection connection = router.connect(hold.getAccountId())) { // Create a database connection.
+            if (updateHoldStatus(connection, holdId, "released")) {
+                replicate(rowImage(connection, router.shardFor(hold.getAccountId()), "holds", "holdId", holdId, ReplicationRecord.ACTIVE_HOLD));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error releasing hold: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            restoreHold(hold);
+            return false;
+        }
+        cancelExpiry(hold);
+        findAccount(hold.getAccountId()).unreserve(hold.getAmountCents());
+        return true;
+    }
+
+    /**
+     * Gets an active hold.
+     * @param holdId The hold id.
+     * @return The hold, or null if it is not active.
+     */
+    public Hold getHold(String holdId) {
+        return holdId == null ? null : activeHolds.get(holdId);
+    }
+
+    /**
+     * Gets the number of active holds.
+     * @return The number of holds that are neither captured, released nor expired.
+     */
+    public int getActiveHoldCount() {
+        return activeHolds.size();
+    }
+
+    /**
+     * Releases holds that ran out, with one database transaction per shard. Called by the timer
+     * wheel with every hold that expired in a tick.
+     * @param expired The expired holds.
+     */
+    private void expireHolds(List<Hold> expired) {
+        Map<Integer, List<Hold>> holdsByShard = new HashMap<>();
+        for (Hold hold : expired) {
+            if (activeHolds.remove(hold.getHoldId(), hold)) { // Skip holds captured or released meanwhile.
+                holdsByShard.computeIfAbsent(router.shardFor(hold.getAccountId()), shard -> new ArrayList<>()).add(hold);
+            }
+        }
+        for (Map.Entry<Integer, List<Hold>> shardHolds : holdsByShard.entrySet()) {
+            try (Connection connection = router.connect(shardHolds.getKey())) { // Create a database connection.
+                connection.setAutoCommit(false); // Expire the whole tick at once.
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "UPDATE holds SET status = 'expired' WHERE holdId = ? AND status = 'active'")) {
+                    for (Hold hold : shardHolds.getValue()) {
+                        statement.setString(1, hold.getHoldId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    connection.commit();
+                    for (Hold hold : shardHolds.getValue()) {
+                        replicate(rowImage(connection, shardHolds.getKey(), "holds", "holdId", hold.getHoldId(), ReplicationRecord.ACTIVE_HOLD));
+                    }
+                } catch (SQLException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            } catch (SQLException e) {
+                // The rows stay active and expire again at the next startup.
+                System.err.println("Error expiring holds: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            }
+            for (Hold hold : shardHolds.getValue()) {
+                findAccount(hold.getAccountId()).unreserve(hold.getAmountCents()); // Expired funds are available again.
+            }
+        }
+    }
+
+    /**
+     * Changes the status of an active hold.
+     * @param connection The database connection.
+     * @param holdId The hold id.
+     * @param status The new status.
+     * @return true if an active hold was updated.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private boolean updateHoldStatus(Connection connection, String holdId, String status) throws SQLException {
+        String sql = "UPDATE holds SET status = ? WHERE holdId = ? AND status = 'active'"; // SQL for updating a hold's status.
+        try (PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setString(1, status); // Set the new status.
+            statement.setString(2, holdId); // Set the hold id.
+            return statement.executeUpdate() > 0; // Execute the SQL.
+        }
+    }
+
+    /**
+     * Registers an active hold and schedules its expiry.
+     * @param hold The hold.
+     */
+    private void trackHold(Hold hold) {
+        activeHolds.put(hold.getHoldId(), hold);
+        hold.setExpiry(holdExpiry.schedule(hold, hold.getExpiresAtMillis() - System.currentTimeMillis()));
+    }
+
+    /**
+     * Puts back a hold whose capture or release could not be written, with a fresh expiry in
+     * case the old one fired in the meantime.
+     * @param hold The hold.
+     */
+    private void restoreHold(Hold hold) {
+        cancelExpiry(hold);
+        trackHold(hold);
+    }
+
+    /**
+     * Cancels the pending expiry of a hold.
+     * @param hold The hold.
+     */
+    private void cancelExpiry(Hold hold) {
+        HierarchicalTimerWheel.Timeout<Hold> expiry = hold.getExpiry();
+        if (expiry != null) {
+            expiry.cancel(); // O(1), the wheel unlinks it from its slot.
+        }
+    }
+
+    /**
+     * Schedules a future or recurring payment.
+     * @param type "Deposit", "Withdraw" or "Transfer".
+     * @param accountId The account paid into (deposits) or out of (withdrawals and transfers).
+     * @param targetAccountId The account a transfer pays into, or null.
+     * @param amount The amount of each payment.
+     * @param firstRun When the first payment is due.
+     * @param interval The time between payments, or null for a single payment.
+     * @param runs The number of payments, or 0 to repeat until cancelled.
+     * @return The schedule id, or null if the payment could not be scheduled.
+     */
+    public String schedulePayment(String type, String accountId, String targetAccountId, double amount,
+                                  LocalDateTime firstRun, Duration interval, int runs) {
+        boolean validType = "Deposit".equals(type) || "Withdraw".equals(type) || "Transfer".equals(type);
+        long cents = amount > 0 ? JournalEntry.toCents(new BigDecimal(String.valueOf(amount))) : 0;
+        if (!validType || findAccount(accountId) == null || cents <= 0 || runs < 0 || firstRun == null
+                || ("Transfer".equals(type) && findAccount(targetAccountId) == null)) {
+            System.out.println("Invalid scheduled payment."); // Print a message if the payment is invalid.
+            return null;
+        }
+        String scheduleId = UUID.randomUUID().toString();
+        long runAt = firstRun.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        String sql = "INSERT INTO scheduled_payments (scheduleId, type, accountId, targetAccountId, amountCents, runAt, nextRunAt, " +
+                "intervalMillis, remainingRuns, createdAt) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)"; // SQL for inserting a scheduled payment.
+        try (Connection connection = router.connect(accountId); // Stored with the account the payment starts from.
+             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setString(1, scheduleId); // Set the schedule id.
+            statement.setString(2, type); // Set the payment type.
+            statement.setString(3, accountId); // Set the account id.
+            statement.setString(4, "Transfer".equals(type) ? targetAccountId : null); // Set the target account id.
+            statement.setLong(5, cents); // Set the amount.
+            statement.setLong(6, runAt); // Set the first occurrence.
+            statement.setLong(7, runAt); // Try it as soon as it is due.
+            statement.setLong(8, interval == null ? 0 : interval.toMillis()); // Set the interval.
+            statement.setInt(9, runs); // Set the number of runs.
+            statement.setString(10, LocalDateTime.now().format(DateTimeFormatter.ISO_LOCAL_DATE_TIME)); // Set the creation time.
+            statement.executeUpdate(); // Execute the SQL.
+            replicate(rowImage(connection, router.shardFor(accountId), "scheduled_payments", "scheduleId", scheduleId, ReplicationRecord.NEWER_SCHEDULED_PAYMENT));
+            return scheduleId;
+        } catch (SQLException e) {
+            System.err.println("Error inserting scheduled payment into database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return null;
+        }
+    }
+
+    /**
+     * Cancels a scheduled payment so that it never runs again.
+     * @param scheduleId The schedule id.
+     * @return true if an active schedule was cancelled.
+     */
+    public boolean cancelScheduledPayment(String scheduleId) {
+        String sql = "UPDATE scheduled_payments SET active = 0, lastStatus = 'cancelled' WHERE scheduleId = ? AND active = 1"; // SQL for cancelling a scheduled payment.
+        List<Boolean> results = runOnAllShards(shard -> { // The id alone does not say which shard holds it.
+            try (Connection connection = router.connect(shard); // Create a database connection.
+                 PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+                statement.setString(1, scheduleId); // Set the schedule id.
+                boolean cancelled = statement.executeUpdate() > 0; // Execute the SQL.
+                if (cancelled) {
+                    replicate(rowImage(connection, shard, "scheduled_payments", "scheduleId", scheduleId, ReplicationRecord.NEWER_SCHEDULED_PAYMENT));
+                }
+                return cancelled;
+            } catch (SQLException e) {
+                System.err.println("Error cancelling scheduled payment: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+                return false;
+            }
+        });
+        return results.contains(true);
+    }
+
+    /**
+     * Retrieves the active scheduled payments starting from an account.
+     * @param accountId The account id.
+     * @return The scheduled payments, next due first.
+     */
+    public List<ScheduledPayment> getScheduledPayments(String accountId) {
+        String sql = SCHEDULED_PAYMENT_COLUMNS + " WHERE accountId = ? AND active = 1 ORDER BY nextRunAt"; // SQL for selecting an account's scheduled payments.
+        List<ScheduledPayment> payments = new ArrayList<>();
+        try (Connection connection = router.connect(accountId); // Create a database connection.
+             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setString(1, accountId); // Set the account id.
+            readScheduledPayments(statement, payments);
+        } catch (SQLException e) {
+            System.err.println("Error reading scheduled payments: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+        }
+        return payments;
+    }
+
+    /**
+     * Reads the due payments of a shard, oldest first, through the (active, nextRunAt) index.
+     * @param shard The shard index.
+     * @param now The current time in epoch milliseconds.
+     * @param limit The maximum number of payments.
+     * @return The due payments.
+     */
+    List<ScheduledPayment> findDuePayments(int shard, long now, int limit) {
+        String sql = SCHEDULED_PAYMENT_COLUMNS + " WHERE active = 1 AND nextRunAt <= ? ORDER BY nextRunAt LIMIT ?"; // SQL for selecting due payments.
+        List<ScheduledPayment> payments = new ArrayList<>();
+        try (Connection connection = router.connect(shard); // Create a database connection.
+             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setLong(1, now); // Set the current time.
+            statement.setInt(2, limit); // Set the batch size.
+            readScheduledPayments(statement, payments);
+        } catch (SQLException e) {
+            System.err.println("Error reading due payments: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+        }
+        return payments;
     }
 
     /**
-     * Saves a transaction to the database.
-     * @param transaction The Transaction object to save.
+     * Runs the current occurrence of a scheduled payment under its occurrence key.
+     * @param payment The scheduled payment.
+     * @return true if the payment was made now or by an earlier run of the same occurrence.
      */
-    private void saveTransaction(Transaction transaction) {
-        transaction.saveToDb(); // Save the transaction to the database.
+    boolean runScheduledPayment(ScheduledPayment payment) {
+        double amount = JournalEntry.fromCents(payment.getAmountCents()).doubleValue();
+        String key = payment.getOccurrenceKey(); // Repeating an occurrence is a no-op.
+        switch (payment.getType()) {
+            case "Deposit":
+                return deposit(payment.getAccountId(), amount, key);
+            case "Withdraw":
+                return withdraw(payment.getAccountId(), amount, key);
+            case "Transfer":
+                return transfer(payment.getAccountId(), payment.getTargetAccountId(), amount, key);
+            default:
+                return false;
+        }
     }
 
     /**
-     * Deposits an amount into a user's account.
-     * @param bankNumber The user's bank number.
-     * @param amount The amount to deposit.
-     * @return true if the deposit is successful, false otherwise.
+     * Makes the deposits and withdrawals of a batch of due payments from one shard together, as
+     * one postEntriesEach commit, each entry under its occurrence key. A withdrawal the available
+     * balance cannot cover is left out before the commit. Transfers, which may cross shards or
+     * currencies and record a history row on each side, are left to runScheduledPayment, as is
+     * every entry of the batch if its commit fails; their keys make running them again safe.
+     * @param payments The due payments, all stored in one shard.
+     * @return Whether each payment was made, by position, or null where it is still to be run on its own.
      */
-    public boolean deposit(String bankNumber, double amount) {
-        User user = findUserInList(bankNumber); // Find the user in the list.
-        if (user != null && amount > 0) { // Check if the user exists and the amount is valid.
-            BigDecimal depositAmount = new BigDecimal(String.valueOf(amount)); // Convert the amount to a BigDecimal.
-            BigDecimal newBalance = user.getBalance().add(depositAmount); // Calculate the new balance.
-            if (updateUserBalanceInDb(bankNumber, newBalance)) { // Update the user's balance in the database.
-                user.setBalance(newBalance); // Update the user's balance in the list.
-                Transaction transaction = new Transaction(LocalDateTime.now(), "Deposit", depositAmount, bankNumber, "Deposit transaction"); // create transaction
-                saveTransaction(transaction); // save transaction
-                return true; // Return true if the deposit is successful.
-            } else {
-                System.err.println("Failed to update balance in DB for deposit."); // Print an error message if the update fails.
-                return false; // Return false if the update fails.
+    Boolean[] postScheduledPayments(List<ScheduledPayment> payments) {
+        Boolean[] results = new Boolean[payments.size()];
+        List<JournalEntry> entries = new ArrayList<>();
+        List<Integer> positions = new ArrayList<>(); // Position in the batch of each entry.
+        List<String> fingerprints = new ArrayList<>();
+        List<Account> reserved = new ArrayList<>(); // Withdrawals whose funds are held until the commit.
+        List<Long> reservedCents = new ArrayList<>();
+        try {
+            for (int i = 0; i < payments.size(); i++) {
+                ScheduledPayment payment = payments.get(i);
+                boolean deposit = "Deposit".equals(payment.getType());
+                Account account = findAccount(payment.getAccountId());
+                if ((!deposit && !"Withdraw".equals(payment.getType())) || account == null) {
+                    continue; // Run on its own.
+                }
+                BigDecimal amount = JournalEntry.fromCents(payment.getAmountCents());
+                String fingerprint = operationFingerprint(payment.getType(), payment.getAccountId(), amount);
+                Boolean previousResult = previousResult(payment.getOccurrenceKey(), fingerprint); // Made by an earlier run of the occurrence?
+                if (previousResult != null) {
+                    results[i] = previousResult;
+                    continue;
+                }
+                if (!deposit) {
+                    if (!reserveFunds(account, payment.getAmountCents())) {
+                        continue; // withdraw tells a shortfall from an occurrence committed before the key left the cache.
+                    }
+                    reserved.add(account);
+                    reservedCents.add(payment.getAmountCents());
+                }
+                JournalEntry entry = deposit
+                        ? JournalEntry.transfer("Deposit", "Deposit transaction", JournalEntry.CASH_ACCOUNT, payment.getAccountId(), amount)
+                        : JournalEntry.transfer("Withdraw", "Withdrawal transaction", payment.getAccountId(), JournalEntry.CASH_ACCOUNT, amount);
+                entry.setIdempotencyKey(payment.getOccurrenceKey());
+                entries.add(entry);
+                positions.add(i);
+                fingerprints.add(fingerprint);
+            }
+            if (entries.isEmpty()) {
+                return results;
+            }
+            boolean[] posted = postEntriesEach(entries); // One commit for the shard.
+            for (int j = 0; j < posted.length; j++) {
+                if (posted[j]) {
+                    results[positions.get(j)] = true;
+                    rememberResult(entries.get(j).getIdempotencyKey(), fingerprints.get(j), true); // Remember the success for retries.
+                }
+            }
+            return results;
+        } finally {
+            for (int j = 0; j < reserved.size(); j++) {
+                reserved.get(j).unreserve(reservedCents.get(j)); // The balance itself has moved by now, or not at all.
             }
-        } else {
-            System.out.println("User not found or invalid amount for deposit."); // Print a message if the user is not found or the amount is invalid.
         }
-        return false; // Return false if the deposit fails.
     }
 
     /**
-     * Withdraws an amount from a user's account.
-     * @param bankNumber The user's bank number.
-     * @param amount The amount to withdraw.
-     * @return true if the withdrawal is successful, false otherwise.
+     * Advances the schedules of a batch in one commit. Successful occurrences, and failed ones out
+     * of attempts, move on to the next occurrence or finish the schedule; other failures are tried
+     * again after a delay.
+     * @param shard The shard index.
+     * @param payments The payments that were run.
+     * @param results Whether each payment succeeded.
+     * @param now The time the batch was read, in epoch milliseconds.
      */
-    public boolean withdraw(String bankNumber, double amount) {
-        User user = findUserInList(bankNumber); // Find the user in the list.
-        if (user != null && amount > 0) { // Check if the user exists and the amount is valid.
-            BigDecimal withdrawAmount = new BigDecimal(String.valueOf(amount)); // Convert the amount to a BigDecimal.
-            if (user.getBalance().compareTo(withdrawAmount) >= 0) { // Check if the user has sufficient balance.
-                BigDecimal newBalance = user.getBalance().subtract(withdrawAmount); // Calculate the new balance.
-                if (updateUserBalanceInDb(bankNumber, newBalance)) { // Update the user's balance in the database.
-                    user.setBalance(newBalance); // Update the user's balance in the list.
-                    Transaction transaction = new Transaction(LocalDateTime.now(), "Withdraw", withdrawAmount, bankNumber, "Withdrawal transaction"); // create transaction.
-                    saveTransaction(transaction); // save transaction
-                    return true; // Return true if the withdrawal is successful.
-                } else {
-                    System.err.println("Failed to update balance in DB for withdrawal."); // Print an error message if the update fails.
-                    return false; // Return false if the update fails.
+    void completeScheduledRuns(int shard, List<ScheduledPayment> payments, boolean[] results, long now) {
+        String sql = "UPDATE scheduled_payments SET runAt = ?, nextRunAt = ?, remainingRuns = ?, attempts = ?, active = ?, lastStatus = ? " +
+                "WHERE scheduleId = ? AND runAt = ? AND attempts = ?"; // Only advance the occurrence that was run.
+        try (Connection connection = router.connect(shard)) { // Create a database connection.
+            connection.setAutoCommit(false); // The whole batch advances together.
+            try (PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+                for (int i = 0; i < payments.size(); i++) {
+                    ScheduledPayment payment = payments.get(i);
+                    boolean retry = !results[i] && payment.getAttempts() + 1 < PaymentScheduler.MAX_ATTEMPTS;
+                    if (retry) {
+                        statement.setLong(1, payment.getRunAt()); // Same occurrence, same key.
+                        statement.setLong(2, now + PaymentScheduler.RETRY_DELAY_MILLIS);
+                        statement.setInt(3, payment.getRemainingRuns());
+                        statement.setInt(4, payment.getAttempts() + 1);
+                        statement.setInt(5, 1);
+                        statement.setString(6, "retrying");
+                    } else {
+                        long nextRunAt = payment.hasNextRun() ? payment.getRunAt() + payment.getIntervalMillis() : payment.getRunAt();
+                        statement.setLong(1, nextRunAt);
+                        statement.setLong(2, nextRunAt);
+                        statement.setInt(3, payment.getRemainingRuns() == 0 ? 0 : payment.getRemainingRuns() - 1);
+                        statement.setInt(4, 0);
+                        statement.setInt(5, payment.hasNextRun() ? 1 : 0);
+                        statement.setString(6, results[i] ? "completed" : "skipped");
+                    }
+                    statement.setString(7, payment.getScheduleId());
+                    statement.setLong(8, payment.getRunAt());
+                    statement.setInt(9, payment.getAttempts());
+                    statement.addBatch();
                 }
-            } else {
-                System.out.println("Insufficient balance for withdrawal."); // Print a message if the user has insufficient balance.
-                return false; // Return false if the user has insufficient balance.
+                statement.executeBatch();
+                connection.commit();
+                for (ScheduledPayment payment : payments) {
+                    replicate(rowImage(connection, shard, "scheduled_payments", "scheduleId", payment.getScheduleId(), ReplicationRecord.NEWER_SCHEDULED_PAYMENT));
+                }
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
             }
-        } else {
-            System.out.println("User not found or invalid amount for withdrawal."); // Print a message if the user is not found or the amount is invalid.
+        } catch (SQLException e) {
+            // The payments run again next time and their keys make that a no-op.
+            System.err.println("Error advancing scheduled payments: " + e.getMessage()); // Print an error message if an SQL exception occurs.
         }
-        return false; // Return false if the withdrawal fails.
     }
 
     /**
-     * Applies interest to a user's account.
-     * @param bankNumber The user's bank number.
-     * @return true if the interest is applied successfully, false otherwise.
+     * Reads scheduled payments from a prepared query.
+     * @param statement The query, with its parameters bound.
+     * @param payments Receives the payments.
+     * @throws SQLException If an SQL exception occurs.
      */
-    public boolean applyInterest(String bankNumber) {
-        User user = findUserInList(bankNumber); // Find the user in the list.
-        if (user != null && user.getAccountType().equalsIgnoreCase("saving") && user.getBalance().compareTo(BigDecimal.ZERO) > 0) { // check account type and balance
-            BigDecimal interestRate = new BigDecimal("0.05"); // Set the interest rate.
-            BigDecimal interest = user.getBalance().multiply(interestRate).setScale(2, RoundingMode.HALF_UP); // Calculate the interest.
-            BigDecimal newBalance = user.getBalance().add(interest); // Calculate the new balance.
-
-            if (updateUserBalanceInDb(bankNumber, newBalance)) { // Update the user's balance in the database.
-                user.setBalance(newBalance); // Update the user's balance in the list.
-                Transaction transaction = new Transaction(LocalDateTime.now(), "Interest", interest, bankNumber, "Interest applied"); // create transaction.
-                saveTransaction(transaction); // save transaction.
-                logTransaction(bankNumber, "Interest", interest, "Interest applied"); // log transaction
-                return true; // Return true if the interest is applied successfully.
-            } else {
-                System.err.println("Failed to update balance in DB for interest application."); // Print an error message if the update fails.
-                return false; // Return false if the update fails.
+    private void readScheduledPayments(PreparedStatement statement, List<ScheduledPayment> payments) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) { // Execute the SQL and get the result set.
+            while (resultSet.next()) { // Iterate through the result set.
+                payments.add(new ScheduledPayment(resultSet.getString("scheduleId"), resultSet.getString("type"),
+                        resultSet.getString("accountId"), resultSet.getString("targetAccountId"), resultSet.getLong("amountCents"),
+                        resultSet.getLong("runAt"), resultSet.getLong("intervalMillis"), resultSet.getInt("remainingRuns"),
+                        resultSet.getInt("attempts")));
             }
         }
-        return false; // Return false if the interest application fails.
     }
 
     /**
-     * Changes a user's account type.
+     * Gets the scheduled payment engine, for its counters.
+     * @return The scheduler.
+     */
+    public PaymentScheduler getPaymentScheduler() {
+        return paymentScheduler;
+    }
+
+    /**
+     * Changes the type of a user's primary account.
      * @param bankNumber The user's bank number.
      * @param newAccountType The new account type.
      * @return true if the account type is changed successfully, false otherwise.
@@ -283,9 +2247,9 @@ public class Bank {
     public boolean changeAccountType(String bankNumber, String newAccountType) {
         User user = findUserInList(bankNumber); // Find the user in the list.
         if (user != null && newAccountType != null && !newAccountType.trim().isEmpty()) { // Check if the user exists and the new account type is valid.
-            if (updateUserAccountTypeInDb(bankNumber, newAccountType)) { // Update the user's account type in the database.
+            if (updateAccountTypeInDb(bankNumber, newAccountType)) { // Update the primary account's type in the database.
                 user.setAccountType(newAccountType); // Update the user's account type in the list.
-                logTransaction(bankNumber, "Change Account Type", BigDecimal.ZERO, "Account type changed to " + newAccountType); // log transaction
+                logTransaction(bankNumber, TransactionType.CHANGE_ACCOUNT_TYPE, BigDecimal.ZERO, "Account type changed to " + newAccountType); // log transaction
                 return true; // Return true if the account type is changed successfully.
             } else {
                 System.err.println("Failed to update account type in DB."); // Print an error message if the update fails.
@@ -305,7 +2269,7 @@ public class Bank {
         if (user != null) { // Check if the user exists.
             if (updateUserAdminStatusInDb(bankNumber, true)) { // Update the user's admin status in the database.
                 user.setAdmin(true); // Update the user's admin status in the list.
-                logTransaction(bankNumber, "Grant Admin", BigDecimal.ZERO, "Admin privileges granted"); // log transaction
+                logTransaction(bankNumber, TransactionType.GRANT_ADMIN, BigDecimal.ZERO, "Admin privileges granted"); // log transaction
                 return true; // Return true if admin privileges are granted successfully.
             } else {
                 System.err.println("Failed to update admin status in DB."); // Print an error message if the update fails.
@@ -325,7 +2289,7 @@ public class Bank {
         if (user != null) { // Check if the user exists.
             if (updateUserAdminStatusInDb(bankNumber, false)) { // Update the user's admin status in the database.
                 user.setAdmin(false); // Update the user's admin status in the list.
-                logTransaction(bankNumber, "Revoke Admin", BigDecimal.ZERO, "Admin privileges revoked"); // log transaction
+                logTransaction(bankNumber, TransactionType.REVOKE_ADMIN, BigDecimal.ZERO, "Admin privileges revoked"); // log transaction
                 return true; // Return true if admin privileges are revoked successfully.
             } else {
                 System.err.println("Failed to update admin status in DB."); // Print an error message if the update fails.
@@ -335,6 +2299,113 @@ public class Bank {
         return false; // Return false if revoking admin privileges fails.
     }
 
+    /**
+     * Applies many account type and admin changes at once, with one database transaction per shard.
+     * Each change is logged like the single-user methods, and changes to the same user are applied
+     * in list order.
+     * @param changes The changes.
+     * @return Whether each change was applied, by position; false for unknown users and for every
+     *         change of a shard whose batch failed.
+     */
+    public boolean[] applyUserChanges(List<UserChange> changes) {
+        boolean[] applied = new boolean[changes.size()];
+        Map<Integer, List<Integer>> positionsByShard = new HashMap<>(); // Each shard commits its own batch.
+        for (int i = 0; i < changes.size(); i++) {
+            UserChange change = changes.get(i);
+            if (findUserInList(change.getBankNumber()) == null) {
+                continue; // Unknown user, never applied.
+            }
+            if (change.accountType != null && change.accountType.trim().isEmpty()) {
+                continue; // Same rule as changeAccountType.
+            }
+            positionsByShard.computeIfAbsent(router.shardFor(change.getBankNumber()), shard -> new ArrayList<>()).add(i);
+        }
+        runOnAllShards(shard -> applyUserChangesInShard(shard, changes, positionsByShard.get(shard), applied));
+        return applied;
+    }
+
+    /**
+     * Applies the user changes of one shard in a single database transaction.
+     * @param shard The shard index.
+     * @param changes All changes.
+     * @param positions The positions of this shard's changes, or null if it has none.
+     * @param applied Receives whether each of this shard's changes was applied.
+     * @return true if the shard's changes were committed.
+     */
+    private boolean applyUserChangesInShard(int shard, List<UserChange> changes, List<Integer> positions, boolean[] applied) {
+        if (positions == null) {
+            return true; // Nothing to change here.
+        }
+        List<Transaction> transactions = new ArrayList<>(); // One history row per applied change.
+        try (Connection connection = router.connect(shard); // Create a database connection.
+             PreparedStatement typeStatement = connection.prepareStatement("UPDATE accounts SET accountType = ? WHERE accountId = ?");
+             PreparedStatement adminStatement = connection.prepareStatement("UPDATE users SET isAdmin = ? WHERE bankNumber = ?")) {
+            connection.setAutoCommit(false); // The whole batch is committed at once.
+            try {
+                for (int position : positions) {
+                    UserChange change = changes.get(position);
+                    String bankNumber = change.getBankNumber();
+                    if (change.accountType != null) {
+                        typeStatement.setString(1, change.accountType);
+                        typeStatement.setString(2, bankNumber); // The primary account id is the bank number.
+                        applied[position] = typeStatement.executeUpdate() > 0;
+                        transactions.add(new Transaction(LocalDateTime.now(), TransactionType.CHANGE_ACCOUNT_TYPE, BigDecimal.ZERO, bankNumber,
+                                "Account type changed to " + change.accountType));
+                    } else {
+                        adminStatement.setInt(1, change.admin ? 1 : 0);
+                        adminStatement.setString(2, bankNumber);
+                        applied[position] = adminStatement.executeUpdate() > 0;
+                        transactions.add(change.admin
+                                ? new Transaction(LocalDateTime.now(), TransactionType.GRANT_ADMIN, BigDecimal.ZERO, bankNumber, "Admin privileges granted")
+                                : new Transaction(LocalDateTime.now(), TransactionType.REVOKE_ADMIN, BigDecimal.ZERO, bankNumber, "Admin privileges revoked"));
+                    }
+                    if (!applied[position]) {
+                        transactions.remove(transactions.size() - 1); // Nothing changed, nothing to log.
+                    }
+                }
+                Transaction.saveAllToDb(connection, transactions);
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback(); // Apply none of the shard's changes.
+                throw e;
+            }
+            if (replicator != null) {
+                List<ReplicationRecord> rows = new ArrayList<>();
+                for (int position : positions) {
+                    UserChange change = changes.get(position);
+                    if (applied[position]) {
+                        rows.add(change.accountType != null
+                                ? rowImage(connection, shard, "accounts", "accountId", change.getBankNumber(), ReplicationRecord.NEWER_ACCOUNT)
+                                : rowImage(connection, shard, "users", "bankNumber", change.getBankNumber(), ReplicationRecord.NEWER_USER));
+                    }
+                }
+                replicateCommit(shard, Collections.<JournalEntry>emptyList(), Collections.<Ledger.AccountState>emptyList(), transactions,
+                        rows.toArray(new ReplicationRecord[0]));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error applying user changes: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            for (int position : positions) {
+                applied[position] = false;
+            }
+            return false;
+        }
+        for (int position : positions) {
+            UserChange change = changes.get(position);
+            if (applied[position]) {
+                User user = findUserInList(change.getBankNumber());
+                if (change.accountType != null) {
+                    user.setAccountType(change.accountType); // Update the user's account type in the list.
+                } else {
+                    user.setAdmin(change.admin); // Update the user's admin status in the list.
+                }
+            }
+        }
+        for (Transaction transaction : transactions) {
+            transactionCommitted(transaction);
+        }
+        return true;
+    }
+
     /**
      * Generates a random 6-digit bank number.
      * @return The generated bank number.
@@ -349,50 +2420,295 @@ public class Bank {
     }
 
     /**
-     * Loads users from the database into the list of users.
+     * Loads users from every shard in parallel into the list of users.
      */
     private void loadUsersFromDb() {
+        List<User> loadedUsers = new ArrayList<>(); // Create a new list to store loaded users.
+        for (List<User> shardUsers : runOnAllShards(this::loadUsersFromShard)) {
+            loadedUsers.addAll(shardUsers); // Merge the shards.
+        }
+        this.users = new CopyOnWriteArrayList<>(loadedUsers); // Set the list of users to the loaded users.
+    }
+
+    /**
+     * Loads the users of one shard, then attaches their accounts.
+     * @param shard The shard index.
+     * @return The users stored in the shard.
+     */
+    private List<User> loadUsersFromShard(int shard) {
         String sql = "SELECT userName, bankNumber, pinNumber, accountType, balance, isAdmin FROM users"; // SQL for selecting all users.
+        String accountsSql = "SELECT accountId, ownerBankNumber, accountType, balance, currency, version FROM accounts ORDER BY ownerBankNumber, rowid"; // SQL for selecting all accounts.
         List<User> loadedUsers = new ArrayList<>(); // Create a new list to store loaded users.
 
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
-             Statement statement = connection.createStatement(); // Create a statement.
-             ResultSet resultSet = statement.executeQuery(sql)) { // Execute the SQL and get the result set.
+        try (Connection connection = router.connect(shard); // Create a database connection.
+             Statement statement = connection.createStatement()) { // Create a statement.
+            seenChangeSeq[shard] = readChangeSeq(connection); // Rows changed while loading are refreshed again later.
 
-            while (resultSet.next()) { // Iterate through the result set.
-                String userName = resultSet.getString("userName"); // Get the user name.
-                String bankNumber = resultSet.getString("bankNumber"); // Get the bank number.
-                String pinNumber = resultSet.getString("pinNumber"); // Get the PIN.
-                String accountType = resultSet.getString("accountType"); // Get the account type.
-                double balance = resultSet.getDouble("balance"); // Get the balance.
-                boolean isAdmin = resultSet.getInt("isAdmin") == 1; // Get the admin status.
+            try (ResultSet resultSet = statement.executeQuery(sql)) { // Execute the SQL and get the result set.
+                while (resultSet.next()) { // Iterate through the result set.
+                    String userName = resultSet.getString("userName"); // Get the user name.
+                    String bankNumber = resultSet.getString("bankNumber"); // Get the bank number.
+                    String pinNumber = resultSet.getString("pinNumber"); // Get the PIN.
+                    String accountType = resultSet.getString("accountType"); // Get the account type.
+                    double balance = resultSet.getDouble("balance"); // Get the balance.
+                    boolean isAdmin = resultSet.getInt("isAdmin") == 1; // Get the admin status.
+
+                    User user = new User(userName, bankNumber, pinNumber, accountType, balance, isAdmin); // Create a new User object.
+                    loadedUsers.add(user); // Add the user to the list of loaded users.
+                    indexUser(user); // Index the user and the primary account built from the legacy columns.
+                }
+            }
 
-                User user = new User(userName, bankNumber, pinNumber, accountType, balance, isAdmin); // Create a new User object.
-                loadedUsers.add(user); // Add the user to the list of loaded users.
+            try (ResultSet resultSet = statement.executeQuery(accountsSql)) { // The accounts table is authoritative for balances.
+                while (resultSet.next()) { // Iterate through the result set.
+                    String accountId = resultSet.getString("accountId"); // Get the account id.
+                    String owner = resultSet.getString("ownerBankNumber"); // Get the owner's bank number.
+                    String accountType = resultSet.getString("accountType"); // Get the account type.
+                    BigDecimal balance = BigDecimal.valueOf(resultSet.getDouble("balance")); // Get the balance.
+                    User user = usersByBankNumber.get(owner);
+                    if (user == null) {
+                        continue; // Skip accounts whose owner no longer exists.
+                    }
+                    Account account = accountsById.get(accountId);
+                    if (account == null) {
+                        account = new Account(accountId, owner, accountType, balance, resultSet.getString("currency")); // Create a secondary account.
+                        user.addAccount(account);
+                        accountsById.put(accountId, account);
+                        account.setMetrics(metrics);
+                    }
+                    account.refresh(balance, accountType, resultSet.getLong("version")); // The primary account already exists, refresh it.
+                }
             }
         } catch (SQLException e) {
             System.err.println("Error loading users from database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
         }
-        this.users = loadedUsers; // Set the list of users to the loaded users.
+        return loadedUsers; // Return the shard's users.
+    }
+
+    /**
+     * Loads the active holds of every shard, reserving their funds and scheduling their expiry.
+     * Holds that ran out while the application was down expire on the first tick.
+     */
+    private void loadHolds() {
+        String sql = "SELECT holdId, accountId, amountCents, expiresAt FROM holds WHERE status = 'active'"; // SQL for selecting active holds.
+        List<List<Hold>> results = runOnAllShards(shard -> {
+            List<Hold> holds = new ArrayList<>();
+            try (Connection connection = router.connect(shard); // Create a database connection.
+                 Statement statement = connection.createStatement(); // Create a statement.
+                 ResultSet resultSet = statement.executeQuery(sql)) { // Execute the SQL and get the result set.
+                while (resultSet.next()) { // Iterate through the result set.
+                    holds.add(new Hold(resultSet.getString("holdId"), resultSet.getString("accountId"),
+                            resultSet.getLong("amountCents"), resultSet.getLong("expiresAt")));
+                }
+            } catch (SQLException e) {
+                System.err.println("Error loading holds from database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            }
+            return holds;
+        });
+        for (List<Hold> holds : results) {
+            for (Hold hold : holds) {
+                Account account = findAccount(hold.getAccountId());
+                if (account != null) {
+                    account.forceReserve(hold.getAmountCents()); // The hold was granted before the restart.
+                    trackHold(hold);
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds a new user to the list of users and the indexes, unless a user with the same bank
+     * number is already there.
+     * @param user The User object to add.
+     * @return true if the user was added.
+     */
+    private boolean addUser(User user) {
+        synchronized (usersByBankNumber) { // Registration and refresh may both find the same new user.
+            if (usersByBankNumber.containsKey(user.getBankNumber())) {
+                return false;
+            }
+            users.add(user); // Add the user to the list of users.
+            indexUser(user); // Add the user and their accounts to the in-memory indexes.
+            return true;
+        }
+    }
+
+    /**
+     * Reads a shard's change sequence number.
+     * @param connection The database connection.
+     * @return The number of the shard's latest change.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private static long readChangeSeq(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT seq FROM change_sequence WHERE id = 0")) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Brings the in-memory users and accounts up to date with changes committed by other
+     * processes sharing the database. Only rows changed since the previous refresh are read, and
+     * a shard that has not changed costs a single lookup of its change sequence number. Runs on
+     * a timer, see bank.refreshMillis, and can be called directly before reading balances that
+     * must be current.
+     * @return The number of cached accounts whose balance or type changed.
+     */
+    public int refreshChanges() {
+        synchronized (refreshLock) {
+            int changed = 0;
+            for (int count : runOnAllShards(this::refreshShard)) {
+                changed += count;
+            }
+            return changed;
+        }
+    }
+
+    /**
+     * Reads the users and accounts of one shard that changed since the last refresh.
+     * @param shard The shard index.
+     * @return The number of cached accounts whose balance or type changed.
+     */
+    private int refreshShard(int shard) {
+        String usersSql = "SELECT userName, bankNumber, pinNumber, accountType, isAdmin FROM users WHERE changeSeq > ?"; // SQL for selecting changed users.
+        String accountsSql = "SELECT accountId, ownerBankNumber, accountType, balance, currency, version FROM accounts WHERE changeSeq > ? ORDER BY changeSeq"; // SQL for selecting changed accounts.
+        int changed = 0;
+        try (Connection connection = router.connect(shard)) { // Create a database connection.
+            long seq = readChangeSeq(connection);
+            if (seq == seenChangeSeq[shard]) {
+                return 0; // Nothing changed since the last refresh.
+            }
+            try (PreparedStatement statement = connection.prepareStatement(usersSql)) {
+                statement.setLong(1, seenChangeSeq[shard]);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        String bankNumber = resultSet.getString("bankNumber");
+                        boolean isAdmin = resultSet.getInt("isAdmin") == 1;
+                        User user = usersByBankNumber.get(bankNumber);
+                        if (user != null) {
+                            user.setAdmin(isAdmin); // The only user column that changes after registration.
+                        } else {
+                            addUser(new User(resultSet.getString("userName"), bankNumber, resultSet.getString("pinNumber"),
+                                    resultSet.getString("accountType"), 0.0, isAdmin)); // Registered by another process; its balance follows below.
+                        }
+                    }
+                }
+            }
+            try (PreparedStatement statement = connection.prepareStatement(accountsSql)) {
+                statement.setLong(1, seenChangeSeq[shard]);
+                try (ResultSet resultSet = statement.executeQuery()) {
+                    while (resultSet.next()) {
+                        String accountId = resultSet.getString("accountId");
+                        String owner = resultSet.getString("ownerBankNumber");
+                        String accountType = resultSet.getString("accountType");
+                        BigDecimal balance = BigDecimal.valueOf(resultSet.getDouble("balance"));
+                        User user = usersByBankNumber.get(owner);
+                        if (user == null) {
+                            continue; // Skip accounts whose owner no longer exists.
+                        }
+                        Account account = accountsById.get(accountId);
+                        if (account == null) {
+                            Account opened = new Account(accountId, owner, accountType, balance, resultSet.getString("currency")); // Opened by another process.
+                            account = accountsById.putIfAbsent(accountId, opened);
+                            if (account == null) {
+                                user.addAccount(opened);
+                                opened.setMetrics(metrics);
+                                account = opened;
+                            }
+                        }
+                        if (account.refresh(balance, accountType, resultSet.getLong("version"))) {
+                            recentTransactions.invalidate(owner); // Another process wrote history the cache has not seen.
+                            changed++;
+                        }
+                    }
+                }
+            }
+            seenChangeSeq[shard] = seq;
+        } catch (SQLException e) {
+            System.err.println("Error refreshing changed rows: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+        }
+        return changed;
+    }
+
+    /**
+     * Re-reads one account from the database, for a cached balance that may be out of date.
+     * @param account The account.
+     * @return true if the database held a newer version of the row.
+     */
+    private boolean refreshAccount(Account account) {
+        String sql = "SELECT accountType, balance, version FROM accounts WHERE accountId = ?"; // SQL for selecting the account.
+        long cachedVersion = account.getVersion();
+        try (Connection connection = router.connect(account.getAccountId()); // Create a database connection.
+             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setString(1, account.getAccountId());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return false; // The row is gone.
+                }
+                long version = resultSet.getLong("version");
+                if (account.refresh(BigDecimal.valueOf(resultSet.getDouble("balance")), resultSet.getString("accountType"), version)) {
+                    recentTransactions.invalidate(account.getOwnerBankNumber()); // Another process wrote history the cache has not seen.
+                }
+                return version > cachedVersion;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error refreshing account: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return false;
+        }
+    }
+
+    /**
+     * Reserves funds on an account, re-reading its balance once if the cached one is too low,
+     * since another process may have paid money in.
+     * @param account The account.
+     * @param cents The amount to reserve, in cents.
+     * @return true if the funds were reserved.
+     */
+    private boolean reserveFunds(Account account, long cents) {
+        return account.reserve(cents) || (refreshAccount(account) && account.reserve(cents));
+    }
+
+    /**
+     * Adds a user and all of their accounts to the in-memory indexes.
+     * @param user The User object to index.
+     */
+    private void indexUser(User user) {
+        usersByBankNumber.put(user.getBankNumber(), user);
+        userIndex.add(user);
+        user.setMetrics(metrics);
+        for (Account account : user.getAccounts()) {
+            accountsById.put(account.getAccountId(), account);
+            account.setMetrics(metrics);
+        }
     }
 
     /**
-     * Inserts a new user into the database.
+     * Inserts a new user and their primary account into the database.
      * @param user The User object to insert.
      * @return true if the insertion is successful, false otherwise.
      */
     private boolean insertUserIntoDb(User user) {
         String sql = "INSERT INTO users (userName, bankNumber, pinNumber, accountType, balance, isAdmin) VALUES (?, ?, ?, ?, ?, ?)"; // SQL for inserting a user.
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
-             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
-            statement.setString(1, user.getUserName()); // Set the user name.
-            statement.setString(2, user.getBankNumber()); // Set the bank number.
-            statement.setString(3, user.getPinNumber()); // Set the PIN.
-            statement.setString(4, user.getAccountType()); // Set the account type.
-            statement.setDouble(5, user.getBalance().doubleValue()); // Set the balance.
-            statement.setInt(6, user.isAdmin() ? 1 : 0); // Set the admin status.
-            statement.executeUpdate(); // Execute the SQL.
-            return true; // Return true if the insertion is successful.
+        try (Connection connection = router.connect(user.getBankNumber())) { // Create a database connection.
+            connection.setAutoCommit(false); // The user and the primary account are created together.
+            try (PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+                statement.setString(1, user.getUserName()); // Set the user name.
+                statement.setString(2, user.getBankNumber()); // Set the bank number.
+                statement.setString(3, user.getPinNumber()); // Set the PIN.
+                statement.setString(4, user.getAccountType()); // Set the account type.
+                statement.setDouble(5, user.getBalance().doubleValue()); // Set the balance.
+                statement.setInt(6, user.isAdmin() ? 1 : 0); // Set the admin status.
+                statement.executeUpdate(); // Execute the SQL.
+                insertAccountIntoDb(connection, user.getPrimaryAccount()); // Insert the primary account.
+                connection.commit();
+                int shard = router.shardFor(user.getBankNumber());
+                replicate(rowImage(connection, shard, "users", "bankNumber", user.getBankNumber(), ReplicationRecord.NEWER_USER),
+                        rowImage(connection, shard, "accounts", "accountId", user.getPrimaryAccount().getAccountId(), ReplicationRecord.NEWER_ACCOUNT));
+                return true; // Return true if the insertion is successful.
+            } catch (SQLException e) {
+                connection.rollback(); // Leave neither row behind.
+                throw e;
+            }
         } catch (SQLException e) {
             System.err.println("Error inserting user into database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
             return false; // Return false if the insertion fails.
@@ -400,38 +2716,55 @@ public class Bank {
     }
 
     /**
-     * Updates a user's balance in the database.
-     * @param bankNumber The user's bank number.
-     * @param newBalance The new balance.
-     * @return true if the update is successful, false otherwise.
+     * Inserts a new account into the database.
+     * @param account The Account object to insert.
+     * @return true if the insertion is successful, false otherwise.
      */
-    private boolean updateUserBalanceInDb(String bankNumber, BigDecimal newBalance) {
-        String sql = "UPDATE users SET balance = ? WHERE bankNumber = ?"; // SQL for updating a user's balance.
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
-             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
-            statement.setDouble(1, newBalance.doubleValue()); // Set the new balance.
-            statement.setString(2, bankNumber); // Set the bank number.
-            int affectedRows = statement.executeUpdate(); // Execute the SQL.
-            return affectedRows > 0; // Return true if the update is successful.
+    private boolean insertAccountIntoDb(Account account) {
+        try (Connection connection = router.connect(account.getOwnerBankNumber())) { // Create a database connection.
+            insertAccountIntoDb(connection, account);
+            replicate(rowImage(connection, router.shardFor(account.getOwnerBankNumber()), "accounts", "accountId", account.getAccountId(), ReplicationRecord.NEWER_ACCOUNT));
+            return true; // Return true if the insertion is successful.
         } catch (SQLException e) {
-            System.err.println("Error updating user balance in database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
-            return false; // Return false if the update fails.
+            System.err.println("Error inserting account into database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            return false; // Return false if the insertion fails.
         }
     }
 
     /**
-     * Updates a user's account type in the database.
-     * @param bankNumber The user's bank number.
+     * Inserts a new account using the caller's connection.
+     * @param connection The database connection.
+     * @param account The Account object to insert.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private void insertAccountIntoDb(Connection connection, Account account) throws SQLException {
+        String sql = "INSERT INTO accounts (accountId, ownerBankNumber, accountType, balance, currency) VALUES (?, ?, ?, ?, ?)"; // SQL for inserting an account.
+        try (PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
+            statement.setString(1, account.getAccountId()); // Set the account id.
+            statement.setString(2, account.getOwnerBankNumber()); // Set the owner's bank number.
+            statement.setString(3, account.getAccountType()); // Set the account type.
+            statement.setDouble(4, account.getBalance().doubleValue()); // Set the balance.
+            statement.setString(5, account.getCurrency()); // Set the currency.
+            statement.executeUpdate(); // Execute the SQL.
+        }
+    }
+
+    /**
+     * Updates an account's type in the database.
+     * @param accountId The account id.
      * @param accountType The new account type.
      * @return true if the update is successful, false otherwise.
      */
-    private boolean updateUserAccountTypeInDb(String bankNumber, String accountType) {
-        String sql = "UPDATE users SET accountType = ? WHERE bankNumber = ?"; // SQL for updating a user's account type.
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
+    private boolean updateAccountTypeInDb(String accountId, String accountType) {
+        String sql = "UPDATE accounts SET accountType = ? WHERE accountId = ?"; // SQL for updating an account's type.
+        try (Connection connection = router.connect(accountId); // Create a database connection.
              PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
             statement.setString(1, accountType); // Set the new account type.
-            statement.setString(2, bankNumber); // Set the bank number.
+            statement.setString(2, accountId); // Set the account id.
             int affectedRows = statement.executeUpdate(); // Execute the SQL.
+            if (affectedRows > 0) {
+                replicate(rowImage(connection, router.shardFor(accountId), "accounts", "accountId", accountId, ReplicationRecord.NEWER_ACCOUNT));
+            }
             return affectedRows > 0; // Return true if the update is successful.
         } catch (SQLException e) {
             System.err.println("Error updating account type in database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
@@ -447,11 +2780,14 @@ public class Bank {
      */
     private boolean updateUserAdminStatusInDb(String bankNumber, boolean isAdmin) {
         String sql = "UPDATE users SET isAdmin = ? WHERE bankNumber = ?"; // SQL for updating a user's admin status.
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
+        try (Connection connection = router.connect(bankNumber); // Create a database connection.
              PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
             statement.setInt(1, isAdmin ? 1 : 0); // Set the new admin status.
             statement.setString(2, bankNumber); // Set the bank number.
             int affectedRows = statement.executeUpdate(); // Execute the SQL.
+            if (affectedRows > 0) {
+                replicate(rowImage(connection, router.shardFor(bankNumber), "users", "bankNumber", bankNumber, ReplicationRecord.NEWER_USER));
+            }
             return affectedRows > 0; // Return true if the update is successful.
         } catch (SQLException e) {
             System.err.println("Error updating admin status in database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
@@ -460,52 +2796,266 @@ public class Bank {
     }
 
     /**
-     * Finds a user in the list of users by their bank number.
+     * Finds users whose name or bank number starts with a prefix, through the sorted index.
+     * @param prefix The prefix; names match regardless of case. An empty prefix lists users by name.
+     * @param limit The maximum number of users returned.
+     * @return The matching users, name matches first.
+     */
+    public List<User> searchUsers(String prefix, int limit) {
+        return userIndex.search(prefix, limit);
+    }
+
+    /**
+     * Finds a user by their bank number.
      * @param bankNumber The user's bank number.
      * @return The User object if found, or null otherwise.
      */
     private User findUserInList(String bankNumber) {
-        for (User user : users) { // Iterate through the list of users.
-            if (user.getBankNumber().equals(bankNumber)) { // Check if the bank numbers match.
-                return user; // Return the User object if found.
-            }
-        }
-        return null; // Return null if the user is not found.
+        return bankNumber == null ? null : usersByBankNumber.get(bankNumber); // Look the user up in the index.
     }
 
     /**
-     * Retrieves the transaction history for a user.
+     * Retrieves the transaction history for a user, across all of their accounts.
      * @param bankNumber The user's bank number.
      * @return A list of Transaction objects.
      */
     public List<Transaction> getTransactionHistory(String bankNumber) {
-        List<Transaction> userTransactions = new ArrayList<>(); // Create a new list to store transactions.
-        String sql = "SELECT timestamp, type, amount, bankNumber, description FROM transactions WHERE bankNumber = ?"; // SQL for selecting transactions.
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + DB_FILE_PATH); // Create a database connection.
-             PreparedStatement statement = connection.prepareStatement(sql)) { // Create a prepared statement.
-            statement.setString(1, bankNumber); // Set the bank number.
-            ResultSet resultSet = statement.executeQuery(); // Execute the SQL and get the result set.
-            while (resultSet.next()) { // Iterate through the result set.
-                String timestamp = resultSet.getString("timestamp"); // Get the timestamp.
-                String type = resultSet.getString("type"); // Get the transaction type.
-                BigDecimal amount = BigDecimal.valueOf(resultSet.getDouble("amount")); // Get the amount.
-                String description = resultSet.getString("description"); // Get the description.
-                LocalDateTime ldt = LocalDateTime.parse(timestamp, DateTimeFormatter.ISO_LOCAL_DATE_TIME); // Parse the timestamp.
-                Transaction transaction = new Transaction(ldt, type, amount, bankNumber, description); // Create a new Transaction object.
-                transaction.timestamp = timestamp; // set timestamp.
-                userTransactions.add(transaction); // Add the transaction to the list.
+        return searchTransactions(bankNumber, new TransactionFilter()); // An empty filter matches the whole history.
+    }
+
+    /**
+     * Retrieves the transaction history of a single account.
+     * @param accountId The account id.
+     * @return A list of Transaction objects, empty if the account does not exist.
+     */
+    public List<Transaction> getAccountTransactionHistory(String accountId) {
+        Account account = findAccount(accountId); // Find the account in the index.
+        if (account == null) {
+            return new ArrayList<>(); // Unknown account, no history.
+        }
+        TransactionFilter filter = new TransactionFilter();
+        filter.setAccountId(accountId); // Only rows that moved this account's balance.
+        return searchTransactions(account.getOwnerBankNumber(), filter);
+    }
+
+    /**
+     * Searches a user's transactions, collecting the matches into a list.
+     * @param bankNumber The user's bank number.
+     * @param filter The search criteria.
+     * @return A list of matching Transaction objects.
+     */
+    public List<Transaction> searchTransactions(String bankNumber, TransactionFilter filter) {
+        List<Transaction> matches = new ArrayList<>(); // Create a new list to store transactions.
+        searchTransactions(bankNumber, filter, matches::add); // Stream the matches into the list.
+        return matches; // Return the list of transactions.
+    }
+
+    /**
+     * Searches a user's transactions, handing each match to the consumer as it is read
+     * so that large results never have to be held in memory at once.
+     * @param bankNumber The user's bank number.
+     * @param filter The search criteria.
+     * @param consumer Receives each matching transaction in order.
+     * @return The number of transactions passed to the consumer.
+     */
+    public int searchTransactions(String bankNumber, TransactionFilter filter, Consumer<Transaction> consumer) {
+        TransactionArchive archive = archives[router.shardFor(bankNumber)];
+        int limit = filter.getLimit();
+        int count = 0; // Number of transactions streamed so far.
+        archive.getLock().readLock().lock(); // Keep an archival run from moving rows mid-search.
+        try {
+            boolean searchArchive = archive.mayContain(bankNumber, filter); // Checked against the in-memory index only.
+            if (searchArchive && !filter.isNewestFirst()) { // Archived rows are older than every hot row.
+                count += archive.scan(bankNumber, filter, false, limit, consumer);
+            }
+            if (limit == 0 || count < limit) {
+                count += searchHotTransactions(bankNumber, filter, limit == 0 ? 0 : limit - count, consumer);
+            }
+            if (searchArchive && filter.isNewestFirst() && (limit == 0 || count < limit)) {
+                count += archive.scan(bankNumber, filter, true, limit == 0 ? 0 : limit - count, consumer);
+            }
+        } finally {
+            archive.getLock().readLock().unlock();
+        }
+        return count; // Return the number of matches.
+    }
+
+    /**
+     * Searches the hot transactions table.
+     * @param bankNumber The user's bank number.
+     * @param filter The search criteria.
+     * @param limit The maximum number of rows, 0 for no limit.
+     * @param consumer Receives each matching transaction in order.
+     * @return The number of transactions passed to the consumer.
+     */
+    private int searchHotTransactions(String bankNumber, TransactionFilter filter, int limit, Consumer<Transaction> consumer) {
+        StringBuilder sql = new StringBuilder("SELECT timeMillis, typeCode, amountCents, accountId, description FROM transactions WHERE bankNumber = ?");
+        List<Object> parameters = new ArrayList<>(); // Values bound to the placeholders, in order.
+        parameters.add(bankNumber);
+        if (filter.getAccountId() != null) {
+            sql.append(" AND accountId = ?");
+            parameters.add(filter.getAccountId());
+        }
+        if (filter.getFrom() != null) { // Times are stored as numbers, so ranges can use the index.
+            sql.append(" AND timeMillis >= ?");
+            parameters.add(Transaction.toMillis(filter.getFrom()));
+        }
+        if (filter.getTo() != null) {
+            sql.append(" AND timeMillis < ?");
+            parameters.add(Transaction.toMillis(filter.getTo()));
+        }
+        if (!filter.getTypes().isEmpty()) {
+            sql.append(" AND typeCode IN (");
+            boolean first = true;
+            for (String type : filter.getTypes()) {
+                TransactionType transactionType = TransactionType.fromLabel(type);
+                sql.append(first ? "?" : ", ?");
+                parameters.add(transactionType == null ? -1 : transactionType.getCode()); // An unknown type matches nothing.
+                first = false;
+            }
+            sql.append(")");
+        }
+        if (filter.getMinAmount() != null) {
+            sql.append(" AND amountCents >= ?");
+            parameters.add(filter.getMinAmount().movePointRight(2).setScale(0, RoundingMode.CEILING).longValue());
+        }
+        if (filter.getMaxAmount() != null) {
+            sql.append(" AND amountCents <= ?");
+            parameters.add(filter.getMaxAmount().movePointRight(2).setScale(0, RoundingMode.FLOOR).longValue());
+        }
+        if (filter.getDescriptionContains() != null && !filter.getDescriptionContains().isEmpty()) {
+            sql.append(" AND description LIKE ? ESCAPE '\\'");
+            parameters.add("%" + escapeLikePattern(filter.getDescriptionContains()) + "%");
+        }
+        sql.append(filter.isNewestFirst() ? " ORDER BY timeMillis DESC, id DESC" : " ORDER BY timeMillis, id");
+        if (limit > 0) {
+            sql.append(" LIMIT ?");
+            parameters.add(limit);
+        }
+
+        int count = 0; // Number of transactions streamed so far.
+        try (Connection connection = router.connect(bankNumber); // Create a database connection.
+             PreparedStatement statement = connection.prepareStatement(sql.toString())) { // Create a prepared statement.
+            for (int i = 0; i < parameters.size(); i++) {
+                statement.setObject(i + 1, parameters.get(i)); // Bind each filter value.
+            }
+            statement.setFetchSize(500); // Read the result in chunks rather than all at once.
+            try (ResultSet resultSet = statement.executeQuery()) { // Execute the SQL and get the result set.
+                while (resultSet.next()) { // Iterate through the result set.
+                    long timeMillis = resultSet.getLong(1); // Get the time.
+                    TransactionType type = TransactionType.fromCode(resultSet.getInt(2)); // Get the transaction type, a shared constant.
+                    long amountCents = resultSet.getLong(3); // Get the amount.
+                    String accountId = resultSet.getString(4); // Get the account id.
+                    String description = resultSet.getString(5); // Get the description.
+                    Transaction transaction = new Transaction(timeMillis, type, amountCents, bankNumber, description); // Reuse the bank number string for every row.
+                    transaction.setAccountId(bankNumber.equals(accountId) ? bankNumber : accountId); // Primary account rows share it too.
+                    consumer.accept(transaction); // Hand the row over.
+                    count++;
+                }
             }
         } catch (SQLException e) {
-            System.err.println("Error getting transaction history from database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
+            System.err.println("Error searching transactions in database: " + e.getMessage()); // Print an error message if an SQL exception occurs.
         }
-        return userTransactions; // Return the list of transactions.
+        return count; // Return the number of matches.
+    }
+
+    /**
+     * Escapes the LIKE wildcards in user supplied search text.
+     * @param text The raw search text.
+     * @return The text with %, _ and the escape character escaped.
+     */
+    private static String escapeLikePattern(String text) {
+        return text.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
     }
 
     /**
      * Gets the database file path.
      * @return The database file path.
      */
-    public static String getDbFilePath() {
-        return DB_FILE_PATH; // Return the database file path.
+    public String getDbFilePath() {
+        return dbFilePath; // Return the database file path.
+    }
+
+    /**
+     * Gets the database file holding a customer's data.
+     * @param bankNumber The user's bank number, or one of their account ids.
+     * @return The path of the shard file.
+     */
+    public String getDbFilePath(String bankNumber) {
+        return router.pathFor(bankNumber); // Route to the customer's shard.
+    }
+
+    /**
+     * Opens a connection to one shard, for jobs that work through every shard.
+     * @param shard The shard index.
+     * @return A new connection.
+     * @throws SQLException If the connection cannot be opened.
+     */
+    Connection connectToShard(int shard) throws SQLException {
+        return router.connect(shard);
+    }
+
+    /**
+     * Gets the transaction archive of one shard.
+     * @param shard The shard index.
+     * @return The archive.
+     */
+    TransactionArchive getArchive(int shard) {
+        return archives[shard];
+    }
+
+    /**
+     * Gets the number of database shards.
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return router.getShardCount();
+    }
+
+    /**
+     * A change to a user's primary account type or admin status, for applyUserChanges.
+     */
+    public static class UserChange {
+        private final String bankNumber;
+        private final String accountType; // The new account type, or null for an admin change.
+        private final boolean admin;
+
+        private UserChange(String bankNumber, String accountType, boolean admin) {
+            this.bankNumber = bankNumber;
+            this.accountType = accountType;
+            this.admin = admin;
+        }
+
+        /**
+         * Creates a change of the primary account's type.
+         * @param bankNumber The user's bank number.
+         * @param accountType The new account type.
+         * @return The change.
+         */
+        public static UserChange accountType(String bankNumber, String accountType) {
+            return new UserChange(bankNumber, accountType, false);
+        }
+
+        /**
+         * Creates a grant or revocation of admin privileges.
+         * @param bankNumber The user's bank number.
+         * @param isAdmin true to grant, false to revoke.
+         * @return The change.
+         */
+        public static UserChange admin(String bankNumber, boolean isAdmin) {
+            return new UserChange(bankNumber, null, isAdmin);
+        }
+
+        public String getBankNumber() {
+            return bankNumber;
+        }
+
+        public String getAccountType() {
+            return accountType;
+        }
+
+        public boolean isAdmin() {
+            return admin;
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,448 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Bank-wide figures for the admin dashboard, kept current as the bank changes so that reading
+ * them never scans a table. Every figure is a striped LongAdder, so the threads that update it
+ * do not contend, and reading one sums a handful of cells.
+ *
+ * Two kinds of figures are kept. Stocks, the number of users, admins and accounts and the
+ * balance held per account type and currency, are told about every change by the users and
+ * accounts themselves once the bank has indexed them, and are rebuilt from the loaded accounts
+ * at startup. Flows, the number and amount of committed transactions per type in total and per
+ * day, are counted as the bank commits them, in the base currency at the rate of the moment,
+ * and are saved to the metrics table of shard 0 from time to time. A save adds what this process
+ * counted since its last save and reads the totals back, so processes sharing the database add
+ * up rather than overwrite each other; flows saved by another process show up here after the
+ * next save. Flows are not replicated, so a promoted standby starts them from its last snapshot.
+ */
+public class BankMetrics {
+    public static final int DAYS_KEPT = 31; // Days of daily volume kept, today included.
+    private static final String TABLE_SQL = "CREATE TABLE IF NOT EXISTS metrics (" +
+            "name TEXT PRIMARY KEY, " +
+            "value INTEGER NOT NULL)"; // Flow totals by name, see counterName and dayName.
+
+    private final CurrencyConverter converter;
+    private final Function<String, Account> accounts; // Finds the account a transaction belongs to, for its currency.
+    private final LongAdder users = new LongAdder();
+    private final LongAdder admins = new LongAdder();
+    private final LongAdder accountCount = new LongAdder();
+    private final Map<String, Map<String, Balance>> balances = new ConcurrentHashMap<>(); // By account type, then currency.
+    private final Counter[] counts = new Counter[TransactionType.values().length]; // Committed transactions by type.
+    private final Counter[] amounts = new Counter[TransactionType.values().length]; // Their amounts in base currency cents.
+    private final Map<Long, Day> days = new ConcurrentHashMap<>(); // Daily volume by epoch day.
+    private final Object saveLock = new Object(); // One load or save at a time.
+
+    /**
+     * Creates empty metrics.
+     * @param converter Converts flows into the base currency.
+     * @param accounts Finds an account by its id.
+     */
+    public BankMetrics(CurrencyConverter converter, Function<String, Account> accounts) {
+        this.converter = converter;
+        this.accounts = accounts;
+        for (TransactionType type : TransactionType.values()) {
+            counts[type.ordinal()] = new Counter();
+            amounts[type.ordinal()] = new Counter();
+        }
+    }
+
+    /**
+     * Creates the metrics table if it does not exist.
+     * @param connection The connection to shard 0.
+     * @throws SQLException If the table cannot be created.
+     */
+    public static void createTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate(TABLE_SQL);
+        }
+    }
+
+    /**
+     * Counts a user the bank has indexed.
+     * @param admin Whether the user is an admin.
+     */
+    public void userAdded(boolean admin) {
+        users.increment();
+        if (admin) {
+            admins.increment();
+        }
+    }
+
+    /**
+     * Counts a grant or revocation of admin privileges.
+     * @param admin Whether the user is an admin now.
+     */
+    public void adminChanged(boolean admin) {
+        if (admin) {
+            admins.increment();
+        } else {
+            admins.decrement();
+        }
+    }
+
+    /**
+     * Counts an account the bank has indexed and its balance.
+     * @param accountType The account type.
+     * @param currency The account's currency.
+     * @param cents The balance in cents.
+     */
+    public void accountAdded(String accountType, String currency, long cents) {
+        accountCount.increment();
+        Balance balance = balance(accountType, currency);
+        balance.accounts.increment();
+        balance.cents.add(cents);
+    }
+
+    /**
+     * Moves an account's balance, and the account itself if its type changed, between the
+     * per type totals.
+     * @param oldType The type before the change.
+     * @param oldCents The balance before the change, in cents.
+     * @param newType The type after the change.
+     * @param newCents The balance after the change, in cents.
+     * @param currency The account's currency.
+     */
+    public void balanceChanged(String oldType, long oldCents, String newType, long newCents, String currency) {
+        if (oldType.equals(newType)) {
+            if (oldCents != newCents) {
+                balance(newType, currency).cents.add(newCents - oldCents);
+            }
+            return;
+        }
+        Balance from = balance(oldType, currency);
+        from.accounts.decrement();
+        from.cents.add(-oldCents);
+        Balance to = balance(newType, currency);
+        to.accounts.increment();
+        to.cents.add(newCents);
+    }
+
+    private Balance balance(String accountType, String currency) {
+        Map<String, Balance> byCurrency = balances.get(accountType);
+        if (byCurrency == null) {
+            byCurrency = balances.computeIfAbsent(accountType, key -> new ConcurrentHashMap<>());
+        }
+        Balance balance = byCurrency.get(currency);
+        return balance != null ? balance : byCurrency.computeIfAbsent(currency, key -> new Balance(accountType, currency));
+    }
+
+    /**
+     * Counts a committed transaction. Money moved counts towards the day's volume once per
+     * operation: the receiving side of a transfer and its reversal are not counted again.
+     * @param transaction The committed transaction.
+     */
+    public void transactionCommitted(Transaction transaction) {
+        TransactionType type = transaction.getTransactionType();
+        counts[type.ordinal()].local.increment();
+        long cents = transaction.getAmountCents();
+        if (cents == 0) {
+            return; // Logins and other changes that move no money.
+        }
+        String accountId = transaction.getAccountId() != null ? transaction.getAccountId() : transaction.getBankNumber();
+        Account account = accounts.apply(accountId);
+        if (account != null && !CurrencyConverter.BASE_CURRENCY.equals(account.getCurrency())) {
+            try {
+                cents = converter.convert(cents, account.getCurrency(), CurrencyConverter.BASE_CURRENCY);
+            } catch (IllegalArgumentException e) {
+                return; // The currency's rate was withdrawn; count the transaction without its amount.
+            }
+        }
+        amounts[type.ordinal()].local.add(cents);
+        if (type.getBalanceEffect() != 0 && type != TransactionType.TRANSFER_IN && type != TransactionType.TRANSFER_REVERSAL) {
+            Day day = day(LocalDate.now().toEpochDay());
+            day.count.local.increment();
+            day.cents.local.add(cents);
+        }
+    }
+
+    private Day day(long epochDay) {
+        Day day = days.get(epochDay);
+        return day != null ? day : days.computeIfAbsent(epochDay, Day::new);
+    }
+
+    public long getUserCount() {
+        return users.sum();
+    }
+
+    public long getAdminCount() {
+        return admins.sum();
+    }
+
+    public long getAccountCount() {
+        return accountCount.sum();
+    }
+
+    /**
+     * Gets the balance held per account type and currency.
+     * @return One line per account type and currency that ever held an account.
+     */
+    public List<Balance> getBalances() {
+        List<Balance> lines = new ArrayList<>();
+        for (Map<String, Balance> byCurrency : balances.values()) {
+            lines.addAll(byCurrency.values());
+        }
+        lines.sort((a, b) -> a.accountType.equals(b.accountType) ? a.currency.compareTo(b.currency) : a.accountType.compareTo(b.accountType));
+        return lines;
+    }
+
+    /**
+     * Gets the balance held in all accounts, in the base currency at the current rates.
+     * @return The total in cents; balances in currencies without a rate are left out.
+     */
+    public long getTotalBalanceCents() {
+        CurrencyConverter.Rates rates = converter.getRates(); // One rate table for the whole total.
+        long total = 0;
+        for (Balance balance : getBalances()) {
+            try {
+                total += rates.convert(balance.getCents(), balance.currency, CurrencyConverter.BASE_CURRENCY);
+            } catch (IllegalArgumentException e) {
+                // No rate for this currency any more.
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Gets the number of transactions of a type committed since the metrics were first saved.
+     * @param type The transaction type.
+     * @return The count.
+     */
+    public long getCount(TransactionType type) {
+        return counts[type.ordinal()].get();
+    }
+
+    /**
+     * Gets the amount moved by transactions of a type since the metrics were first saved.
+     * @param type The transaction type.
+     * @return The amount in base currency cents, converted at the rate of each transaction.
+     */
+    public long getAmountCents(TransactionType type) {
+        return amounts[type.ordinal()].get();
+    }
+
+    /**
+     * Gets the number of operations that moved money on a day.
+     * @param date The day, in the system time zone.
+     * @return The count, 0 for days not kept.
+     */
+    public long getDailyCount(LocalDate date) {
+        Day day = days.get(date.toEpochDay());
+        return day == null ? 0 : day.count.get();
+    }
+
+    /**
+     * Gets the amount of money moved on a day.
+     * @param date The day, in the system time zone.
+     * @return The amount in base currency cents, 0 for days not kept.
+     */
+    public long getDailyVolumeCents(LocalDate date) {
+        Day day = days.get(date.toEpochDay());
+        return day == null ? 0 : day.cents.get();
+    }
+
+    /**
+     * Reads the saved flows, which the counts of this process are added to.
+     * @param connection The connection to shard 0.
+     * @throws SQLException If the table cannot be read.
+     */
+    public void load(Connection connection) throws SQLException {
+        synchronized (saveLock) {
+            readStored(connection);
+        }
+    }
+
+    /**
+     * Adds what this process counted since its last save to the saved flows, in one
+     * transaction, drops days no longer kept and reads the totals back.
+     * @param connection The connection to shard 0.
+     * @throws SQLException If the flows cannot be saved; nothing is saved then and the counts are added next time.
+     */
+    public void save(Connection connection) throws SQLException {
+        synchronized (saveLock) {
+            long firstDay = LocalDate.now().toEpochDay() - DAYS_KEPT + 1;
+            days.keySet().removeIf(epochDay -> epochDay < firstDay);
+            List<String> names = new ArrayList<>();
+            List<Counter> counters = new ArrayList<>();
+            for (TransactionType type : TransactionType.values()) {
+                names.add(counterName("count", type));
+                counters.add(counts[type.ordinal()]);
+                names.add(counterName("amount", type));
+                counters.add(amounts[type.ordinal()]);
+            }
+            for (Day day : days.values()) {
+                names.add(dayName(day.epochDay, "count"));
+                counters.add(day.count);
+                names.add(dayName(day.epochDay, "amount"));
+                counters.add(day.cents);
+            }
+            long[] sums = new long[counters.size()];
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false); // All flows or none.
+            try (PreparedStatement upsert = connection.prepareStatement(
+                    "INSERT INTO metrics (name, value) VALUES (?, ?) ON CONFLICT (name) DO UPDATE SET value = value + excluded.value");
+                 PreparedStatement prune = connection.prepareStatement("DELETE FROM metrics WHERE name >= 'day.' AND name < ?")) {
+                for (int i = 0; i < counters.size(); i++) {
+                    Counter counter = counters.get(i);
+                    sums[i] = counter.local.sum();
+                    long delta = sums[i] - counter.base.flushed;
+                    if (delta != 0) {
+                        upsert.setString(1, names.get(i));
+                        upsert.setLong(2, delta);
+                        upsert.addBatch();
+                    }
+                }
+                upsert.executeBatch();
+                prune.setString(1, dayName(firstDay, ""));
+                prune.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            for (int i = 0; i < counters.size(); i++) {
+                Counter counter = counters.get(i);
+                counter.base = new Base(counter.base.stored + sums[i] - counter.base.flushed, sums[i]); // Saved now.
+            }
+            readStored(connection); // Pick up what other processes saved.
+        }
+    }
+
+    private void readStored(Connection connection) throws SQLException {
+        long firstDay = LocalDate.now().toEpochDay() - DAYS_KEPT + 1;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT name, value FROM metrics")) {
+            while (resultSet.next()) {
+                Counter counter = counterNamed(resultSet.getString("name"), firstDay);
+                if (counter != null) {
+                    counter.base = new Base(resultSet.getLong("value"), counter.base.flushed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the counter a row of the metrics table belongs to.
+     * @param name The row name.
+     * @param firstDay The oldest epoch day kept.
+     * @return The counter, or null for unknown names and days no longer kept.
+     */
+    private Counter counterNamed(String name, long firstDay) {
+        String[] parts = name.split("\\.");
+        if (parts.length != 3) {
+            return null;
+        }
+        if (parts[0].equals("day")) {
+            long epochDay;
+            try {
+                epochDay = LocalDate.parse(parts[1]).toEpochDay();
+            } catch (RuntimeException e) {
+                return null; // Not a date.
+            }
+            if (epochDay < firstDay) {
+                return null;
+            }
+            Day day = day(epochDay);
+            return parts[2].equals("count") ? day.count : parts[2].equals("amount") ? day.cents : null;
+        }
+        if (!parts[0].equals("flow")) {
+            return null;
+        }
+        for (TransactionType type : TransactionType.values()) {
+            if (type.name().equals(parts[2])) {
+                return parts[1].equals("count") ? counts[type.ordinal()] : parts[1].equals("amount") ? amounts[type.ordinal()] : null;
+            }
+        }
+        return null;
+    }
+
+    private static String counterName(String kind, TransactionType type) {
+        return "flow." + kind + "." + type.name();
+    }
+
+    private static String dayName(long epochDay, String kind) {
+        return "day." + LocalDate.ofEpochDay(epochDay) + "." + kind; // ISO dates sort by day.
+    }
+
+    /**
+     * The accounts of one type and currency and the balance they hold.
+     */
+    public static final class Balance {
+        private final String accountType;
+        private final String currency;
+        private final LongAdder accounts = new LongAdder();
+        private final LongAdder cents = new LongAdder();
+
+        private Balance(String accountType, String currency) {
+            this.accountType = accountType;
+            this.currency = currency;
+        }
+
+        public String getAccountType() {
+            return accountType;
+        }
+
+        public String getCurrency() {
+            return currency;
+        }
+
+        public long getAccountCount() {
+            return accounts.sum();
+        }
+
+        public long getCents() {
+            return cents.sum();
+        }
+    }
+
+    /**
+     * A flow counted by this process on top of the value saved in the table.
+     */
+    private static final class Counter {
+        final LongAdder local = new LongAdder(); // Counted by this process since it started.
+        volatile Base base = new Base(0, 0);
+
+        long get() {
+            Base current = base; // Read once, so stored and flushed belong together.
+            return current.stored + local.sum() - current.flushed;
+        }
+    }
+
+    /**
+     * The saved value of a counter and how much of its local count that value includes.
+     */
+    private static final class Base {
+        final long stored;
+        final long flushed;
+
+        Base(long stored, long flushed) {
+            this.stored = stored;
+            this.flushed = flushed;
+        }
+    }
+
+    /**
+     * The operations that moved money on one day.
+     */
+    private static final class Day {
+        final long epochDay;
+        final Counter count = new Counter();
+        final Counter cents = new Counter();
+
+        Day(long epochDay) {
+            this.epochDay = epochDay;
+        }
+    }
+}
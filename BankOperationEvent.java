@@ -0,0 +1,98 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for one balance change committed through the ledger, with the time spent
+ * in each database phase. Enable it with the bank.jfc settings; while no recording enables it,
+ * creating and timing the event is skipped.
+ */
+@Name("bank.Operation")
+@Label("Bank Operation")
+@Category("Bank")
+@Description("A deposit, withdrawal, transfer leg or interest payment committed through the ledger")
+@StackTrace(false)
+public class BankOperationEvent extends Event {
+    @Label("Operation")
+    String operation;
+
+    @Label("Account")
+    String accountId;
+
+    @Label("Amount")
+    double amount;
+
+    @Label("Outcome")
+    @Description("committed, duplicate, insufficient funds or failed")
+    String outcome;
+
+    @Label("Connect Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long connectTime;
+
+    @Label("Ledger Time")
+    @Description("Posting the journal entry and moving the balances")
+    @Timespan(Timespan.NANOSECONDS)
+    long ledgerTime;
+
+    @Label("Insert Time")
+    @Description("Inserting the transaction history rows")
+    @Timespan(Timespan.NANOSECONDS)
+    long insertTime;
+
+    @Label("Commit Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long commitTime;
+
+    @Label("Memory Time")
+    @Description("Updating balances, caches and the anomaly detector after the commit")
+    @Timespan(Timespan.NANOSECONDS)
+    long memoryTime;
+
+    transient long phaseStart; // Start of the current phase, 0 while the event is disabled.
+
+    /**
+     * Starts the event and its first phase. Reads the clock only if a recording enables the event.
+     */
+    void start() {
+        begin();
+        if (isEnabled()) {
+            phaseStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ends the current phase and starts the next.
+     * @return The length of the phase that ended, in nanoseconds, or 0 while the event is disabled.
+     */
+    long lap() {
+        if (phaseStart == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - phaseStart;
+        phaseStart = now;
+        return elapsed;
+    }
+
+    /**
+     * Commits the event if a recording wants it.
+     * @param operation The journal entry type.
+     * @param accountId The account of the first transaction row.
+     * @param amount The amount of the first transaction row.
+     * @param outcome How the operation ended.
+     */
+    void finish(String operation, String accountId, double amount, String outcome) {
+        if (shouldCommit()) {
+            this.operation = operation;
+            this.accountId = accountId;
+            this.amount = amount;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
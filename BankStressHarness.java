@@ -0,0 +1,457 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs many threads of random deposits, withdrawals, registrations, interest runs and account type
+ * changes against one Bank on a temporary database, and checks the results against a model.
+ *
+ * Each account's model keeps the net amount of completed operations and the amounts of operations
+ * still in flight. While the run is going, a sampler checks that every in-memory balance lies
+ * between the lowest and highest balance some ordering of those operations could produce, and
+ * that none is negative. At the end, with all threads stopped, it checks that:
+ * - every balance equals its deposits minus its withdrawals plus its interest rows;
+ * - the balances in memory and in the database agree, and so do the account types;
+ * - no balance is negative;
+ * - the ledger verifies and the reconciler finds no mismatch.
+ *
+ * Every operation is recorded with its start and end time. When a check fails, the history of the
+ * accounts involved is written to stress-history.txt, next to the database, for replay.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; BankStressHarness [seconds] [threads] [users] [seed]
+ * or: mvn -Pstress test -Dstress.duration=60
+ */
+public class BankStressHarness {
+    private static final int SHARDS = 2;
+    private static final long SAMPLE_MILLIS = 50; // Interval between intermediate checks.
+    private static final String[] ACCOUNT_TYPES = {"Saving", "Checking"};
+
+    private final Bank bank;
+    private final int threads;
+    private final long durationMillis;
+    private final long seed;
+    private final List<AccountModel> accounts = new CopyOnWriteArrayList<>(); // Grows as users register.
+    private final Map<String, AccountModel> accountsById = new ConcurrentHashMap<>();
+    private final List<List<Operation>> histories = new CopyOnWriteArrayList<>(); // One list per worker thread.
+    private final List<String> violations = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicBoolean running = new AtomicBoolean(true);
+    private final AtomicLong operations = new AtomicLong();
+    private final AtomicLong refusedWithdrawals = new AtomicLong(); // Refused although the model had the funds.
+    private final AtomicLong samples = new AtomicLong();
+
+    public BankStressHarness(Bank bank, int threads, long durationMillis, long seed) {
+        this.bank = bank;
+        this.threads = threads;
+        this.durationMillis = durationMillis;
+        this.seed = seed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long seconds = args.length > 0 ? Long.parseLong(args[0]) : Long.getLong("stress.duration", 30);
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("stress.threads", 8);
+        int users = args.length > 2 ? Integer.parseInt(args[2]) : Integer.getInteger("stress.users", 20);
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : Long.getLong("stress.seed", System.nanoTime());
+
+        Path directory = Files.createTempDirectory("bank-stress");
+        Bank bank = new Bank(directory.resolve("bank.db").toString(), SHARDS, false); // No timers competing with the workers.
+        BankStressHarness harness = new BankStressHarness(bank, threads, seconds * 1000, seed);
+        System.out.println("Stress run: " + seconds + " s, " + threads + " threads, " + users + " users, seed " + seed + ", database " + directory);
+        boolean passed = harness.run(users);
+        bank.shutdown();
+        if (passed) {
+            deleteRecursively(directory.toFile()); // Keep the database only when there is something to look at.
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Registers the starting users, runs the workers and the sampler, then checks the final state.
+     * @param users The number of users registered before the workers start.
+     * @return true if no check failed.
+     * @throws InterruptedException If interrupted while waiting for the workers.
+     */
+    public boolean run(int users) throws InterruptedException {
+        for (int i = 0; i < users; i++) {
+            register("user" + i, ACCOUNT_TYPES[i % ACCOUNT_TYPES.length]);
+        }
+        CountDownLatch finished = new CountDownLatch(threads);
+        for (int i = 0; i < threads; i++) {
+            List<Operation> history = new ArrayList<>();
+            histories.add(history);
+            Random random = new Random(seed + i);
+            Thread worker = new Thread(() -> {
+                try {
+                    work(random, history);
+                } catch (RuntimeException e) {
+                    violations.add("Worker failed: " + e);
+                    e.printStackTrace();
+                } finally {
+                    finished.countDown();
+                }
+            }, "stress-worker-" + i);
+            worker.start();
+        }
+        Thread sampler = new Thread(this::sample, "stress-sampler");
+        sampler.start();
+
+        long start = System.currentTimeMillis();
+        while (!finished.await(5, java.util.concurrent.TimeUnit.SECONDS)) {
+            System.out.println("  " + (System.currentTimeMillis() - start) / 1000 + " s: " + operations.get() + " operations, "
+                    + accounts.size() + " accounts, " + violations.size() + " violations");
+        }
+        running.set(false);
+        sampler.join();
+
+        checkFinalState();
+        long elapsed = System.currentTimeMillis() - start;
+        System.out.println(String.format("%d operations in %d ms (%.0f/s), %d samples, %d withdrawals refused with funds available",
+                operations.get(), elapsed, operations.get() * 1000.0 / Math.max(1, elapsed), samples.get(), refusedWithdrawals.get()));
+        if (violations.isEmpty()) {
+            System.out.println("PASSED");
+            return true;
+        }
+        System.out.println("FAILED with " + violations.size() + " violations:");
+        for (String violation : violations.subList(0, Math.min(50, violations.size()))) {
+            System.out.println("  " + violation);
+        }
+        writeHistory(new File(new File(bank.getDbFilePath()).getAbsoluteFile().getParentFile(), "stress-history.txt")); // Kept with the database.
+        return false;
+    }
+
+    /**
+     * Runs random operations until the duration is over.
+     * @param random This worker's random source.
+     * @param history This worker's operation history.
+     */
+    private void work(Random random, List<Operation> history) {
+        long end = System.currentTimeMillis() + durationMillis;
+        while (System.currentTimeMillis() < end) {
+            int choice = random.nextInt(100);
+            AccountModel account = accounts.get(random.nextInt(accounts.size()));
+            long cents = 1 + random.nextInt(50_000); // Up to 500.00.
+            Operation operation;
+            if (choice < 45) {
+                operation = new Operation("Deposit", account.accountId, cents);
+                account.pendingCredits.addAndGet(cents);
+                operation.succeeded = bank.deposit(account.accountId, cents / 100.0);
+                finish(account, operation, cents, account.pendingCredits);
+            } else if (choice < 90) {
+                long available = account.completedCents.get() - account.pendingDebits.get(); // Lowest balance the model allows.
+                operation = new Operation("Withdraw", account.accountId, cents);
+                account.pendingDebits.addAndGet(cents);
+                operation.succeeded = bank.withdraw(account.accountId, cents / 100.0);
+                finish(account, operation, -cents, account.pendingDebits);
+                if (!operation.succeeded && available >= cents) {
+                    refusedWithdrawals.incrementAndGet(); // Legal but refused; a lost update or a busy database.
+                }
+            } else if (choice < 93) {
+                operation = new Operation("Interest", account.accountId, 0);
+                account.interestRuns.incrementAndGet(); // The amount is unknown until it is in the log.
+                operation.succeeded = bank.applyInterest(account.accountId);
+                operation.end = System.nanoTime();
+            } else if (choice < 98) {
+                String type = ACCOUNT_TYPES[random.nextInt(ACCOUNT_TYPES.length)];
+                operation = new Operation("Change Account Type " + type, account.accountId, 0);
+                operation.succeeded = bank.changeAccountType(account.accountId, type);
+                operation.end = System.nanoTime();
+                if (operation.succeeded) {
+                    account.typeChanges.add(new TypeChange(type, operation.start, operation.end));
+                }
+            } else {
+                String type = ACCOUNT_TYPES[random.nextInt(ACCOUNT_TYPES.length)];
+                String bankNumber = register("stress" + random.nextInt(1_000_000), type);
+                operation = new Operation("Register", bankNumber, 0);
+                operation.succeeded = bankNumber != null;
+                operation.end = System.nanoTime();
+            }
+            history.add(operation);
+            operations.incrementAndGet();
+        }
+    }
+
+    /**
+     * Moves an operation's amount from in flight to completed. Completed is updated before
+     * pending, so a reader that reads pending first always sees the amount in one of them.
+     * @param account The account model.
+     * @param operation The operation.
+     * @param signedCents The change to the balance if it succeeded.
+     * @param pending The in-flight counter the amount was added to.
+     */
+    private void finish(AccountModel account, Operation operation, long signedCents, AtomicLong pending) {
+        operation.end = System.nanoTime();
+        if (operation.succeeded) {
+            account.completedCents.addAndGet(signedCents);
+        }
+        pending.addAndGet(-Math.abs(signedCents));
+    }
+
+    /**
+     * Registers a user and adds their primary account to the model.
+     * @param name The user name.
+     * @param type The account type.
+     * @return The bank number, or null if registration failed.
+     */
+    private String register(String name, String type) {
+        String bankNumber = bank.registerUser(name, "1234", type, false);
+        if (bankNumber != null) {
+            AccountModel account = new AccountModel(bankNumber, type);
+            if (accountsById.putIfAbsent(bankNumber, account) == null) {
+                accounts.add(account);
+            } else {
+                violations.add("Bank number " + bankNumber + " was issued twice");
+            }
+        }
+        return bankNumber;
+    }
+
+    /**
+     * Checks balances against the model's bounds until the run ends.
+     */
+    private void sample() {
+        while (running.get()) {
+            for (AccountModel model : accounts) {
+                Account account = bank.findAccount(model.accountId);
+                if (account == null) {
+                    violations.add("Account " + model.accountId + " registered but not found");
+                    continue;
+                }
+                long pendingDebits = model.pendingDebits.get(); // Pending before completed, see finish().
+                long pendingCredits = model.pendingCredits.get();
+                long completed = model.completedCents.get();
+                long interestRuns = model.interestRuns.get();
+                long balance = JournalEntry.toCents(account.getBalance());
+                long pendingDebitsAfter = model.pendingDebits.get();
+                long pendingCreditsAfter = model.pendingCredits.get();
+                long completedAfter = model.completedCents.get();
+
+                long lowest = Math.min(completed - pendingDebits, completedAfter - pendingDebitsAfter);
+                long highest = Math.max(completed + pendingCredits, completedAfter + pendingCreditsAfter);
+                if (balance < 0) {
+                    violations.add("Account " + model.accountId + " went negative: " + JournalEntry.fromCents(balance));
+                }
+                if (balance < lowest) {
+                    violations.add("Account " + model.accountId + " balance " + JournalEntry.fromCents(balance)
+                            + " is below anything its operations allow (" + JournalEntry.fromCents(lowest) + ")");
+                }
+                if (interestRuns == 0 && balance > highest) { // Interest adds an amount the model cannot know.
+                    violations.add("Account " + model.accountId + " balance " + JournalEntry.fromCents(balance)
+                            + " is above anything its operations allow (" + JournalEntry.fromCents(highest) + ")");
+                }
+            }
+            samples.incrementAndGet();
+            try {
+                Thread.sleep(SAMPLE_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Compares the model, memory and every shard once all workers have stopped.
+     */
+    private void checkFinalState() {
+        Map<String, Long> databaseBalances = new HashMap<>();
+        Map<String, String> databaseTypes = new HashMap<>();
+        Map<String, Long> interest = new HashMap<>();
+        for (int shard = 0; shard < bank.getShardCount(); shard++) {
+            try (Connection connection = bank.connectToShard(shard);
+                 Statement statement = connection.createStatement()) {
+                try (ResultSet resultSet = statement.executeQuery("SELECT accountId, accountType, balance FROM accounts")) {
+                    while (resultSet.next()) {
+                        databaseBalances.put(resultSet.getString("accountId"), Math.round(resultSet.getDouble("balance") * 100));
+                        databaseTypes.put(resultSet.getString("accountId"), resultSet.getString("accountType"));
+                    }
+                }
+                try (ResultSet resultSet = statement.executeQuery(
+                        "SELECT accountId, amountCents FROM transactions WHERE typeCode = " + TransactionType.INTEREST.getCode() + " AND accountId IS NOT NULL")) {
+                    while (resultSet.next()) {
+                        interest.merge(resultSet.getString("accountId"), resultSet.getLong("amountCents"), Long::sum);
+                    }
+                }
+            } catch (SQLException e) {
+                violations.add("Could not read shard " + shard + ": " + e.getMessage());
+                return;
+            }
+        }
+
+        long modelTotal = 0;
+        long memoryTotal = 0;
+        for (AccountModel model : accounts) {
+            Account account = bank.findAccount(model.accountId);
+            long memory = JournalEntry.toCents(account.getBalance());
+            long expected = model.completedCents.get() + interest.getOrDefault(model.accountId, 0L);
+            Long database = databaseBalances.get(model.accountId);
+            modelTotal += expected;
+            memoryTotal += memory;
+            if (memory != expected) {
+                violations.add("Account " + model.accountId + ": balance " + JournalEntry.fromCents(memory)
+                        + ", operations add up to " + JournalEntry.fromCents(expected));
+            }
+            if (database == null || database != memory) {
+                violations.add("Account " + model.accountId + ": database balance " + (database == null ? "missing" : JournalEntry.fromCents(database))
+                        + ", memory " + JournalEntry.fromCents(memory));
+            }
+            if (memory < 0) {
+                violations.add("Account " + model.accountId + " ended negative: " + JournalEntry.fromCents(memory));
+            }
+            String databaseType = databaseTypes.get(model.accountId);
+            Set<String> possibleTypes = model.possibleTypes();
+            if (!account.getAccountType().equals(databaseType) || !possibleTypes.contains(account.getAccountType())) {
+                violations.add("Account " + model.accountId + ": type " + account.getAccountType() + " in memory, " + databaseType
+                        + " in the database, " + possibleTypes + " possible");
+            }
+        }
+        if (modelTotal != memoryTotal) {
+            violations.add("Money not conserved: operations add up to " + JournalEntry.fromCents(modelTotal)
+                    + ", balances to " + JournalEntry.fromCents(memoryTotal));
+        }
+        for (String problem : bank.verifyLedger()) {
+            violations.add("Ledger: " + problem);
+        }
+        Reconciler.Report report = new Reconciler(bank, Runtime.getRuntime().availableProcessors()).reconcile();
+        System.out.println(report);
+        for (String mismatch : report.getMismatches()) {
+            violations.add("Reconciler: " + mismatch);
+        }
+        System.out.println("Total " + JournalEntry.fromCents(memoryTotal) + " across " + accounts.size() + " accounts");
+    }
+
+    /**
+     * Writes the operations of every account named in a violation, oldest first.
+     * @param file The output file.
+     */
+    private void writeHistory(File file) {
+        List<Operation> involved = new ArrayList<>();
+        for (List<Operation> history : histories) {
+            for (Operation operation : history) {
+                for (String violation : violations) {
+                    if (operation.accountId != null && violation.contains(operation.accountId)) {
+                        involved.add(operation);
+                        break;
+                    }
+                }
+            }
+        }
+        involved.sort((a, b) -> Long.compare(a.start, b.start));
+        try (PrintWriter writer = new PrintWriter(file, "UTF-8")) {
+            writer.println("# seed " + seed + ", " + threads + " threads; start and end in nanoseconds");
+            for (Operation operation : involved) {
+                writer.println(operation);
+            }
+            System.out.println("Wrote " + involved.size() + " operations to " + file.getAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Error writing history: " + e.getMessage());
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * What the model knows about one account.
+     */
+    private static class AccountModel {
+        private final String accountId;
+        private final AtomicLong completedCents = new AtomicLong(); // Net of completed deposits and withdrawals.
+        private final AtomicLong pendingCredits = new AtomicLong(); // Deposits in flight.
+        private final AtomicLong pendingDebits = new AtomicLong(); // Withdrawals in flight.
+        private final AtomicLong interestRuns = new AtomicLong();
+        private final String registeredType;
+        private final List<TypeChange> typeChanges = new CopyOnWriteArrayList<>(); // Successful type changes.
+
+        AccountModel(String accountId, String registeredType) {
+            this.accountId = accountId;
+            this.registeredType = registeredType;
+        }
+
+        /**
+         * Gets the types the account may end with: those of the changes that no other change
+         * started after, since concurrent changes may take effect in either order.
+         * @return The possible final types.
+         */
+        Set<String> possibleTypes() {
+            Set<String> types = new TreeSet<>();
+            for (TypeChange change : typeChanges) {
+                boolean superseded = false;
+                for (TypeChange other : typeChanges) {
+                    superseded |= other.start > change.end; // The other change began after this one had taken effect.
+                }
+                if (!superseded) {
+                    types.add(change.type);
+                }
+            }
+            if (types.isEmpty()) {
+                types.add(registeredType);
+            }
+            return types;
+        }
+    }
+
+    /**
+     * A completed account type change and the interval its call took.
+     */
+    private static class TypeChange {
+        private final String type;
+        private final long start;
+        private final long end;
+
+        TypeChange(String type, long start, long end) {
+            this.type = type;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * One call made by a worker, as recorded in the history.
+     */
+    private static class Operation {
+        private final String type;
+        private final String accountId;
+        private final long cents;
+        private final String worker = Thread.currentThread().getName();
+        private final long start = System.nanoTime();
+        private long end;
+        private boolean succeeded;
+
+        Operation(String type, String accountId, long cents) {
+            this.type = type;
+            this.accountId = accountId;
+            this.cents = cents;
+        }
+
+        @Override
+        public String toString() {
+            return start + " " + end + " " + worker + " " + type + " " + accountId + " "
+                    + JournalEntry.fromCents(cents) + (succeeded ? " ok" : " refused");
+        }
+    }
+}
@@ -0,0 +1,440 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Runs a file of bank commands without the GUI, for bulk work such as month-end corrections or
+ * mass account type changes. One command per line, fields separated by tabs (or by spaces when
+ * the line has no tab); blank lines and lines starting with # are skipped:
+ *
+ *   deposit           accountId amount
+ *   withdraw          accountId amount
+ *   changeAccountType bankNumber accountType
+ *   grantAdmin        bankNumber
+ *   revokeAdmin       bankNumber
+ *   register          userName pin accountType [admin]
+ *
+ * Deposits, withdrawals, account type and admin changes are collected into batches that are
+ * committed with one database transaction per shard; if a shard rejects its part, the batch's
+ * lines are replayed one by one so that every line gets its own result. Registrations run at once
+ * while the batch fills. Each line's result is written to the results file in file order as
+ * "line, status, detail", tab separated.
+ *
+ * After every batch the position in the command file is saved to a checkpoint file. Run again
+ * after a failure and processing resumes from the checkpoint. Deposits and withdrawals carry an
+ * idempotency key made of the run id and the line number, so lines that were committed after the
+ * last checkpoint are recognized instead of posted twice. Account type and admin changes can be
+ * repeated safely; a register is checkpointed on its own as soon as it returns.
+ *
+ * Usage: java -cp target/classes BatchProcessor commands.txt [results.txt] [batchSize] [dbFile] [shards]
+ */
+public class BatchProcessor {
+    private static final int DEFAULT_BATCH_SIZE = 5000;
+    private static final long PROGRESS_INTERVAL_NANOS = 5_000_000_000L;
+
+    private final Bank bank;
+    private final File commandFile;
+    private final File resultsFile;
+    private final File checkpointFile;
+    private final int batchSize;
+
+    private String runId; // Part of every idempotency key, kept across resumes.
+    private long lineNumber; // Last line read from the command file.
+    private long succeeded;
+    private long failed;
+    private Writer results;
+    private FileChannel resultsChannel; // Used to find the results length for the checkpoint.
+    private final List<PendingCommand> pending = new ArrayList<>(); // Commands waiting for the batch to be committed, in line order.
+    private final Set<String> pendingCredits = new HashSet<>(); // Accounts a pending deposit pays into.
+    private final SortedMap<Long, String> heldResults = new TreeMap<>(); // Results of lines after the first pending one, by line.
+    private long uncheckpointedLines; // Lines handled since the last checkpoint.
+
+    /**
+     * Creates a processor for one command file.
+     * @param bank The bank to run the commands against.
+     * @param commandFile The command file.
+     * @param resultsFile The file receiving one result line per command.
+     * @param batchSize The maximum number of commands committed together.
+     */
+    public BatchProcessor(Bank bank, File commandFile, File resultsFile, int batchSize) {
+        this.bank = bank;
+        this.commandFile = commandFile;
+        this.resultsFile = resultsFile;
+        this.checkpointFile = new File(commandFile.getPath() + ".checkpoint");
+        this.batchSize = batchSize;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchProcessor commands.txt [results.txt] [batchSize] [dbFile] [shards]");
+            System.exit(2);
+        }
+        File commandFile = new File(args[0]);
+        File resultsFile = new File(args.length > 1 ? args[1] : args[0] + ".results");
+        int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BATCH_SIZE;
+        String dbFile = args.length > 3 ? args[3] : Bank.DEFAULT_DB_FILE_PATH;
+        int shards = args.length > 4 ? Integer.parseInt(args[4]) : Integer.getInteger("bank.shards", 1);
+        Bank bank = new Bank(dbFile, shards, false); // No interest run or scheduled payments during the batch.
+        boolean complete;
+        try {
+            complete = new BatchProcessor(bank, commandFile, resultsFile, batchSize).run();
+        } finally {
+            bank.shutdown();
+        }
+        System.exit(complete ? 0 : 1);
+    }
+
+    /**
+     * Processes the command file from the checkpoint, or from the start if there is none.
+     * @return true if every command succeeded.
+     * @throws IOException If a file cannot be read or written; the checkpoint then still marks
+     *         the last batch that was fully handled.
+     */
+    public boolean run() throws IOException {
+        long skip = openResults();
+        long start = System.nanoTime();
+        long lastProgress = start;
+        try (InputStream in = Files.newInputStream(commandFile.toPath());
+             BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 16)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (lineNumber <= skip) {
+                    continue; // Handled before the checkpoint.
+                }
+                handle(line);
+                if (uncheckpointedLines >= batchSize) {
+                    checkpoint();
+                    if (System.nanoTime() - lastProgress >= PROGRESS_INTERVAL_NANOS) {
+                        lastProgress = System.nanoTime();
+                        printRate("Progress", start, skip);
+                    }
+                }
+            }
+            checkpoint();
+        } finally {
+            results.close();
+        }
+        printRate("Finished " + commandFile, start, skip);
+        return failed == 0;
+    }
+
+    /**
+     * Opens the results file, continuing an earlier run if a checkpoint exists.
+     * @return The number of command lines already handled.
+     * @throws IOException If the checkpoint or the results file cannot be read or written.
+     */
+    private long openResults() throws IOException {
+        long skip = 0;
+        long resultsLength = 0;
+        if (checkpointFile.exists()) {
+            Properties checkpoint = new Properties();
+            try (InputStream in = Files.newInputStream(checkpointFile.toPath())) {
+                checkpoint.load(in);
+            }
+            runId = checkpoint.getProperty("runId");
+            skip = Long.parseLong(checkpoint.getProperty("line"));
+            resultsLength = Long.parseLong(checkpoint.getProperty("resultsLength"));
+            succeeded = Long.parseLong(checkpoint.getProperty("succeeded"));
+            failed = Long.parseLong(checkpoint.getProperty("failed"));
+            System.out.println("Resuming run " + runId + " after line " + skip + " (delete " + checkpointFile + " to start over).");
+        } else {
+            runId = Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36);
+        }
+        FileOutputStream out = new FileOutputStream(resultsFile, resultsLength > 0);
+        resultsChannel = out.getChannel();
+        resultsChannel.truncate(resultsLength); // Drop results written after the checkpoint; those lines run again.
+        results = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 1 << 16);
+        if (skip == 0) {
+            writeCheckpoint(); // The run id must be saved before the first key is used.
+        }
+        return skip;
+    }
+
+    /**
+     * Parses and runs one command line, or queues it if it is a deposit or withdrawal.
+     * @param line The line.
+     * @throws IOException If a result cannot be written.
+     */
+    private void handle(String line) throws IOException {
+        uncheckpointedLines++;
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+            return;
+        }
+        String[] fields = trimmed.indexOf('\t') >= 0 ? trimmed.split("\t") : trimmed.split(" +");
+        String command = fields[0];
+        if ("deposit".equalsIgnoreCase(command) || "withdraw".equalsIgnoreCase(command)) {
+            queueMoneyCommand("deposit".equalsIgnoreCase(command), fields);
+            return;
+        }
+        if ("changeAccountType".equalsIgnoreCase(command) && fields.length == 3) {
+            queue(new PendingCommand(lineNumber, Bank.UserChange.accountType(fields[1], fields[2])));
+        } else if ("grantAdmin".equalsIgnoreCase(command) && fields.length == 2) {
+            queue(new PendingCommand(lineNumber, Bank.UserChange.admin(fields[1], true)));
+        } else if ("revokeAdmin".equalsIgnoreCase(command) && fields.length == 2) {
+            queue(new PendingCommand(lineNumber, Bank.UserChange.admin(fields[1], false)));
+        } else if ("register".equalsIgnoreCase(command) && (fields.length == 4 || fields.length == 5)) {
+            boolean isAdmin = fields.length == 5 && "admin".equalsIgnoreCase(fields[4]);
+            String bankNumber = bank.registerUser(fields[1], fields[2], fields[3], isAdmin);
+            result(lineNumber, bankNumber != null, bankNumber == null ? "" : bankNumber);
+            checkpoint(); // Registering is not idempotent, so never leave it behind the checkpoint.
+        } else {
+            result(lineNumber, false, "unrecognized command");
+        }
+    }
+
+    /**
+     * Validates a deposit or withdrawal and adds it to the pending batch. A withdrawal reserves its
+     * amount at once, so later withdrawals in the batch see the reduced available balance.
+     * @param isDeposit true for a deposit, false for a withdrawal.
+     * @param fields The command's fields.
+     * @throws IOException If a result cannot be written.
+     */
+    private void queueMoneyCommand(boolean isDeposit, String[] fields) throws IOException {
+        if (fields.length != 3) {
+            result(lineNumber, false, "expected account id and amount");
+            return;
+        }
+        BigDecimal amount;
+        try {
+            amount = new BigDecimal(fields[2]).setScale(2, RoundingMode.HALF_UP); // The ledger counts whole cents, like Bank.
+        } catch (NumberFormatException e) {
+            result(lineNumber, false, "invalid amount");
+            return;
+        }
+        String accountId = fields[1];
+        Account account = bank.findAccount(accountId);
+        if (account == null || amount.signum() <= 0) {
+            result(lineNumber, false, account == null ? "account not found" : "invalid amount");
+            return;
+        }
+        PendingCommand command = new PendingCommand(lineNumber, isDeposit, account, amount);
+        if (!isDeposit && !account.reserve(command.cents)) {
+            if (pendingCredits.contains(accountId)) {
+                postPending(); // An earlier deposit in the batch may cover it.
+            }
+            if (!account.reserve(command.cents)) {
+                // Either short of funds or already withdrawn by the run that left the checkpoint; the key tells which.
+                boolean committed = bank.withdraw(accountId, amount.doubleValue(), key(lineNumber));
+                result(lineNumber, committed, committed ? "" : "insufficient funds");
+                return;
+            }
+        }
+        command.reserved = !isDeposit;
+        if (isDeposit) {
+            pendingCredits.add(accountId);
+        }
+        queue(command);
+    }
+
+    /**
+     * Adds a command to the pending batch, committing the batch once it is full.
+     * @param command The command.
+     * @throws IOException If a result cannot be written.
+     */
+    private void queue(PendingCommand command) throws IOException {
+        pending.add(command);
+        if (pending.size() >= batchSize) {
+            postPending();
+        }
+    }
+
+    /**
+     * Commits the pending batch: the deposits and withdrawals through the ledger, the account type
+     * and admin changes through Bank.applyUserChanges. Lines of a rejected part are replayed on
+     * their own; deposits and withdrawals keep their idempotency keys, so lines that were
+     * committed are recognized and the others are posted or fail individually.
+     * @throws IOException If a result cannot be written.
+     */
+    private void postPending() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        List<PendingCommand> batch = new ArrayList<>(pending);
+        pending.clear(); // Results from here on are written directly.
+        pendingCredits.clear();
+        List<JournalEntry> entries = new ArrayList<>();
+        List<Bank.UserChange> changes = new ArrayList<>();
+        for (PendingCommand command : batch) {
+            if (command.change != null) {
+                changes.add(command.change);
+                continue;
+            }
+            JournalEntry entry = command.isDeposit
+                    ? JournalEntry.transfer("Deposit", "Deposit transaction", JournalEntry.CASH_ACCOUNT, command.account.getAccountId(), command.amount)
+                    : JournalEntry.transfer("Withdraw", "Withdrawal transaction", command.account.getAccountId(), JournalEntry.CASH_ACCOUNT, command.amount);
+            entry.setIdempotencyKey(key(command.line));
+            entries.add(entry);
+        }
+        boolean posted = entries.isEmpty() || bank.postEntries(entries);
+        boolean[] applied = changes.isEmpty() ? new boolean[0] : bank.applyUserChanges(changes);
+        for (PendingCommand command : batch) {
+            if (command.reserved) {
+                command.account.unreserve(command.cents); // Posted or not, the reservation has done its job.
+            }
+        }
+        int changeIndex = 0;
+        for (PendingCommand command : batch) {
+            writeHeldResults(command.line); // Other commands that came before this line.
+            if (command.change != null) {
+                result(command.line, applied[changeIndex++] || applyAlone(command.change), "");
+            } else if (posted) {
+                result(command.line, true, "");
+            } else if (command.isDeposit) {
+                result(command.line, bank.deposit(command.account.getAccountId(), command.amount.doubleValue(), key(command.line)), "");
+            } else {
+                result(command.line, bank.withdraw(command.account.getAccountId(), command.amount.doubleValue(), key(command.line)), "");
+            }
+        }
+        writeHeldResults(Long.MAX_VALUE);
+    }
+
+    /**
+     * Retries a user change that its batch did not apply, through the single-user methods.
+     * @param change The change.
+     * @return true if the change was applied.
+     */
+    private boolean applyAlone(Bank.UserChange change) {
+        String bankNumber = change.getBankNumber();
+        if (change.getAccountType() != null) {
+            return bank.changeAccountType(bankNumber, change.getAccountType());
+        }
+        return change.isAdmin() ? bank.grantAdmin(bankNumber) : bank.revokeAdmin(bankNumber);
+    }
+
+    /**
+     * Writes the held results of lines before a given line.
+     * @param beforeLine The first line not to write.
+     * @throws IOException If a result cannot be written.
+     */
+    private void writeHeldResults(long beforeLine) throws IOException {
+        SortedMap<Long, String> earlier = heldResults.headMap(beforeLine);
+        for (String text : earlier.values()) {
+            results.write(text);
+        }
+        earlier.clear();
+    }
+
+    private String key(long line) {
+        return "batch-" + runId + "-" + line;
+    }
+
+    /**
+     * Writes one line's result, or holds it while earlier lines are pending.
+     * @param line The command line number.
+     * @param success Whether the command succeeded.
+     * @param detail Extra information, such as a new bank number or the reason for a failure.
+     * @throws IOException If the result cannot be written.
+     */
+    private void result(long line, boolean success, String detail) throws IOException {
+        if (success) {
+            succeeded++;
+        } else {
+            failed++;
+        }
+        String text = line + "\t" + (success ? "OK" : "FAILED") + "\t" + detail + "\n";
+        if (pending.isEmpty()) {
+            results.write(text);
+        } else {
+            heldResults.put(line, text);
+        }
+    }
+
+    /**
+     * Posts anything pending, then records the position after the current line.
+     * @throws IOException If the results or the checkpoint cannot be written.
+     */
+    private void checkpoint() throws IOException {
+        postPending();
+        writeCheckpoint();
+        uncheckpointedLines = 0;
+    }
+
+    /**
+     * Saves the position and counters. The file is replaced atomically, so a crash leaves either
+     * the old checkpoint or the new one.
+     * @throws IOException If the checkpoint cannot be written.
+     */
+    private void writeCheckpoint() throws IOException {
+        results.flush();
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("runId", runId);
+        checkpoint.setProperty("line", Long.toString(lineNumber));
+        checkpoint.setProperty("resultsLength", Long.toString(resultsChannel.size()));
+        checkpoint.setProperty("succeeded", Long.toString(succeeded));
+        checkpoint.setProperty("failed", Long.toString(failed));
+        File temp = new File(checkpointFile.getPath() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            checkpoint.store(out, "BatchProcessor checkpoint for " + commandFile.getName());
+        }
+        Files.move(temp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Prints how many commands have been handled and how fast.
+     * @param label The line prefix.
+     * @param start The start time from System.nanoTime.
+     * @param skipped The lines skipped because an earlier run handled them.
+     */
+    private void printRate(String label, long start, long skipped) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long lines = lineNumber - skipped;
+        System.out.println(String.format(Locale.ROOT, "%s: line %d, %d lines in %.1f s (%.0f lines/s), %d succeeded, %d failed",
+                label, lineNumber, lines, seconds, lines / Math.max(seconds, 1e-9), succeeded, failed));
+    }
+
+    /**
+     * A command waiting in the pending batch: a deposit or withdrawal, or a user change.
+     */
+    private static class PendingCommand {
+        private final long line;
+        private final boolean isDeposit;
+        private final Account account; // Null for a user change.
+        private final BigDecimal amount;
+        private final long cents;
+        private final Bank.UserChange change; // Null for a deposit or withdrawal.
+        private boolean reserved; // Whether a withdrawal holds a reservation on the account.
+
+        PendingCommand(long line, boolean isDeposit, Account account, BigDecimal amount) {
+            this.line = line;
+            this.isDeposit = isDeposit;
+            this.account = account;
+            this.amount = amount;
+            this.cents = JournalEntry.toCents(amount);
+            this.change = null;
+        }
+
+        PendingCommand(long line, Bank.UserChange change) {
+            this.line = line;
+            this.isDeposit = false;
+            this.account = null;
+            this.amount = null;
+            this.cents = 0;
+            this.change = change;
+        }
+    }
+}
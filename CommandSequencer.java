@@ -0,0 +1,451 @@
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs deposits, withdrawals, interest, account type changes and admin grants as sequenced
+ * commands instead of on the caller's thread. Callers publish commands into a ring buffer of
+ * pre-allocated slots and get a future back. A single sequencer thread takes the commands in
+ * order and decides each one. A persistence thread follows behind and writes everything the
+ * sequencer accepted in batches, with one database transaction per shard per batch, then
+ * completes the futures. A slot is reused only once its command is persisted, so publishers
+ * wait when the buffer is full.
+ *
+ * Decisions are made against a projection of each account: its committed state, which holds,
+ * the payment scheduler and direct calls change as well, plus the postings the sequencer has
+ * accepted but the persistence thread has not committed yet. The pending postings are kept on
+ * the account, and a commit moves them into the balance in the same step, so the sequencer
+ * never waits for a write. A pending debit is taken out of the available balance at once, so
+ * neither holds nor other writers can spend it, and a withdrawal may spend neither held money
+ * nor more than the projection shows. Interest is computed from the projected balance and
+ * posted only at the row version the projection expects; if another writer got in between, the
+ * bank applies it to the new balance instead. A command the database refuses is taken off the
+ * projection again.
+ */
+public class CommandSequencer implements AutoCloseable {
+    private enum Kind { DEPOSIT, WITHDRAW, INTEREST, CHANGE_ACCOUNT_TYPE, GRANT_ADMIN }
+
+    private static final int SPIN_TRIES = 100; // Busy waits before yielding, then parking.
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = 50_000;
+
+    private final Bank bank;
+    private final Slot[] ring;
+    private final int mask;
+    private final int maxBatch;
+    private final AtomicLong claimed = new AtomicLong(); // Next sequence number to hand out, or -(end + 1) once closed.
+    private volatile long stopAt = -1; // Number of commands published before closing, -1 while open.
+    private volatile long sequenced; // Commands below this number have been decided by the sequencer.
+    private volatile long persisted; // Commands below this number are persisted and their slots free.
+    private volatile boolean sequencerDone;
+    private final Map<String, PendingType> pendingTypes = new HashMap<>(); // Account type changes not yet persisted, by bank number; sequencer thread only.
+    private final Thread sequencerThread;
+    private final Thread persisterThread;
+    private volatile long batches; // Written by the persistence thread only.
+
+    /**
+     * Creates a sequencer and starts its threads.
+     * @param bank The bank whose accounts the commands change.
+     * @param bufferSize The number of slots, rounded up to a power of two.
+     * @param maxBatch The most commands persisted in one batch.
+     */
+    public CommandSequencer(Bank bank, int bufferSize, int maxBatch) {
+        if (bufferSize < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException("Buffer size and batch size must be positive");
+        }
+        this.bank = bank;
+        int capacity = Integer.highestOneBit(bufferSize - 1) << 1;
+        this.ring = new Slot[Math.max(capacity, 1)];
+        for (int i = 0; i < ring.length; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = ring.length - 1;
+        this.maxBatch = maxBatch;
+        sequencerThread = new Thread(this::runSequencer, "command-sequencer");
+        persisterThread = new Thread(this::runPersister, "command-persister");
+        sequencerThread.setDaemon(true); // Like the bank's timers, never keeps the application alive.
+        persisterThread.setDaemon(true);
+        sequencerThread.start();
+        persisterThread.start();
+    }
+
+    /**
+     * Deposits an amount into an account.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount to deposit.
+     * @return A future completed with true once the deposit is persisted, or with false.
+     */
+    public CompletableFuture<Boolean> deposit(String accountId, double amount) {
+        return publishAmount(Kind.DEPOSIT, accountId, amount);
+    }
+
+    /**
+     * Withdraws an amount from an account, if its available balance covers it.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @param amount The amount to withdraw.
+     * @return A future completed with true once the withdrawal is persisted, or with false.
+     */
+    public CompletableFuture<Boolean> withdraw(String accountId, double amount) {
+        return publishAmount(Kind.WITHDRAW, accountId, amount);
+    }
+
+    /**
+     * Applies interest to a saving account, computed from its balance at this point in the
+     * sequence.
+     * @param accountId The account id; a user's primary account id is their bank number.
+     * @return A future completed with true once the interest is persisted, or with false.
+     */
+    public CompletableFuture<Boolean> applyInterest(String accountId) {
+        return publish(Kind.INTEREST, accountId, 0, null);
+    }
+
+    /**
+     * Changes the type of a user's primary account.
+     * @param bankNumber The user's bank number.
+     * @param newAccountType The new account type.
+     * @return A future completed with true once the change is persisted, or with false.
+     */
+    public CompletableFuture<Boolean> changeAccountType(String bankNumber, String newAccountType) {
+        if (newAccountType == null || newAccountType.trim().isEmpty()) {
+            return CompletableFuture.completedFuture(false); // Same rule as Bank.changeAccountType.
+        }
+        return publish(Kind.CHANGE_ACCOUNT_TYPE, bankNumber, 0, newAccountType);
+    }
+
+    /**
+     * Grants admin privileges to a user.
+     * @param bankNumber The user's bank number.
+     * @return A future completed with true once the change is persisted, or with false.
+     */
+    public CompletableFuture<Boolean> grantAdmin(String bankNumber) {
+        return publish(Kind.GRANT_ADMIN, bankNumber, 0, null);
+    }
+
+    private CompletableFuture<Boolean> publishAmount(Kind kind, String accountId, double amount) {
+        long cents = amount > 0 ? JournalEntry.toCents(new BigDecimal(String.valueOf(amount))) : 0; // The ledger counts whole cents.
+        if (cents <= 0) {
+            return CompletableFuture.completedFuture(false); // Invalid amount or less than a cent.
+        }
+        return publish(kind, accountId, cents, null);
+    }
+
+    /**
+     * Claims the next slot, fills it in and makes it visible to the sequencer.
+     * @throws IllegalStateException If the sequencer is closed.
+     */
+    private CompletableFuture<Boolean> publish(Kind kind, String key, long cents, String text) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence < 0) {
+                throw new IllegalStateException("Command sequencer is closed");
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+        int tries = 0;
+        while (sequence - persisted >= ring.length) {
+            tries = idle(tries); // The slot still holds a command that is not persisted yet.
+        }
+        Slot slot = ring[(int) sequence & mask];
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        slot.kind = kind;
+        slot.key = key;
+        slot.cents = cents;
+        slot.text = text;
+        slot.future = future;
+        slot.published = sequence; // Volatile write: the fields above are visible to the sequencer from here on.
+        return future;
+    }
+
+    /**
+     * Waits a little, busily at first and then more politely.
+     * @param tries How often the caller has waited so far.
+     * @return The new count.
+     */
+    private static int idle(int tries) {
+        if (tries >= YIELD_TRIES) {
+            LockSupport.parkNanos(PARK_NANOS);
+        } else if (tries >= SPIN_TRIES) {
+            Thread.yield();
+        }
+        return tries + 1;
+    }
+
+    private void runSequencer() {
+        long next = 0;
+        int tries = 0;
+        while (true) {
+            Slot slot = ring[(int) next & mask];
+            if (slot.published != next) {
+                if (next == stopAt) {
+                    break; // Everything published before closing is decided.
+                }
+                if (!pendingTypes.isEmpty()) {
+                    long done = persisted;
+                    pendingTypes.values().removeIf(pending -> pending.until <= done); // Persisted, so the account shows them.
+                }
+                tries = idle(tries);
+                continue;
+            }
+            tries = 0;
+            try {
+                decide(slot, next);
+            } catch (RuntimeException e) {
+                System.err.println("Command " + slot.kind + " " + slot.key + " could not be decided: " + e); // Refuse it rather than stop sequencing.
+                release(slot);
+                slot.entry = null;
+                slot.change = null;
+            }
+            sequenced = ++next;
+        }
+        sequencerDone = true;
+    }
+
+    /**
+     * Decides a command against the projection of its account and prepares its write.
+     * @param slot The command.
+     * @param sequence The command's sequence number.
+     */
+    private void decide(Slot slot, long sequence) {
+        slot.entry = null;
+        slot.change = null;
+        Account account = bank.findAccount(slot.key); // For admin grants, the user's primary account.
+        if (account == null) {
+            return; // Unknown account or user.
+        }
+        long cents = slot.cents;
+        switch (slot.kind) {
+            case DEPOSIT:
+                slot.entry = JournalEntry.transfer("Deposit", "Deposit transaction", JournalEntry.CASH_ACCOUNT, slot.key, JournalEntry.fromCents(cents)); // Cash comes in.
+                break;
+            case WITHDRAW:
+                cents = -cents;
+                if (!account.addPending(cents)) {
+                    return; // Insufficient available balance.
+                }
+                slot.entry = JournalEntry.transfer("Withdraw", "Withdrawal transaction", slot.key, JournalEntry.CASH_ACCOUNT, JournalEntry.fromCents(-cents)); // Cash goes out.
+                slot.entry.setPending(true);
+                slot.delta = cents;
+                return;
+            case INTEREST:
+                PendingType pendingType = pendingTypes.get(slot.key);
+                String accountType = pendingType != null && persisted < pendingType.until ? pendingType.type : account.getAccountType();
+                synchronized (account) { // Read the projected balance and the version it belongs to together.
+                    BigDecimal balance = account.getProjectedBalance();
+                    if (!"saving".equalsIgnoreCase(accountType) || balance.signum() <= 0) {
+                        return;
+                    }
+                    cents = JournalEntry.toCents(Bank.calculateInterest(balance));
+                    if (cents <= 0) {
+                        return; // Less than a cent of interest.
+                    }
+                    slot.entry = new JournalEntry(LocalDateTime.now(), "Interest", "Interest applied"); // The bank pays the interest.
+                    slot.entry.addPosting(JournalEntry.INTEREST_ACCOUNT, -cents);
+                    slot.entry.addPosting(slot.key, cents, account.getProjectedVersion()); // Only on the balance the interest was computed from.
+                }
+                break;
+            case CHANGE_ACCOUNT_TYPE:
+                slot.change = Bank.UserChange.accountType(slot.key, slot.text);
+                pendingTypes.put(slot.key, new PendingType(slot.text, sequence + 1));
+                return;
+            default:
+                slot.change = Bank.UserChange.admin(slot.key, true);
+                return;
+        }
+        account.addPending(cents); // A credit, always accepted.
+        slot.entry.setPending(true);
+        slot.delta = cents;
+    }
+
+    /**
+     * Takes a command's posting off its account's projection, unless it was committed.
+     * @param slot The command.
+     */
+    private void release(Slot slot) {
+        JournalEntry entry = slot.entry;
+        if (entry != null && entry.isPending()) {
+            entry.setPending(false);
+            Account account = bank.findAccount(slot.key);
+            if (account != null) {
+                account.removePending(slot.delta);
+            }
+        }
+    }
+
+    private void runPersister() {
+        long next = 0;
+        int tries = 0;
+        while (true) {
+            long end = sequenced;
+            if (end == next) {
+                if (sequencerDone && sequenced == next) {
+                    break; // The sequencer has stopped and everything it decided is written.
+                }
+                tries = idle(tries);
+                continue;
+            }
+            tries = 0;
+            end = Math.min(end, next + maxBatch);
+            try {
+                persist(next, end);
+            } catch (RuntimeException e) {
+                System.err.println("Command batch failed: " + e); // Fail its commands and carry on with the next batch.
+                abandon(next, end, e);
+            }
+            batches++;
+            persisted = end; // Frees the slots for publishers.
+            next = end;
+        }
+    }
+
+    /**
+     * Writes a batch of decided commands and completes their futures in sequence order.
+     * @param from The first sequence number of the batch.
+     * @param to One past the last sequence number of the batch.
+     */
+    private void persist(long from, long to) {
+        int size = (int) (to - from);
+        boolean[] results = new boolean[size];
+        List<JournalEntry> entries = new ArrayList<>();
+        List<Integer> entryPositions = new ArrayList<>();
+        List<Bank.UserChange> changes = new ArrayList<>();
+        List<Integer> changePositions = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            Slot slot = ring[(int) (from + i) & mask];
+            if (slot.entry != null) {
+                entries.add(slot.entry);
+                entryPositions.add(i);
+            } else if (slot.change != null) {
+                changes.add(slot.change);
+                changePositions.add(i);
+            }
+        }
+        if (!entries.isEmpty()) {
+            boolean[] posted = bank.postEntriesEach(entries); // One database transaction per shard.
+            for (int j = 0; j < posted.length; j++) {
+                int i = entryPositions.get(j);
+                Slot slot = ring[(int) (from + i) & mask];
+                if (!posted[j] && slot.kind != Kind.INTEREST) {
+                    posted[j] = bank.postEntriesEach(Collections.singletonList(slot.entry))[0]; // Only its shard's batch failed; try it alone.
+                }
+                if (!posted[j]) {
+                    release(slot); // The money did not move after all.
+                    if (slot.kind == Kind.INTEREST) {
+                        posted[j] = bank.applyInterest(slot.key); // Another writer got in between; compute it on the new balance.
+                    }
+                }
+                results[i] = posted[j];
+            }
+        }
+        if (!changes.isEmpty()) {
+            boolean[] applied = bank.applyUserChanges(changes); // One database transaction per shard.
+            for (int j = 0; j < applied.length; j++) {
+                results[changePositions.get(j)] = applied[j];
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            Slot slot = ring[(int) (from + i) & mask];
+            CompletableFuture<Boolean> future = slot.future;
+            slot.future = null; // Let the slot's objects be collected before it is reused.
+            slot.entry = null;
+            slot.change = null;
+            future.complete(results[i]);
+        }
+    }
+
+    /**
+     * Fails the commands of a batch that could not be persisted, taking their postings off the
+     * projection unless they were committed.
+     * @param from The first sequence number of the batch.
+     * @param to One past the last sequence number of the batch.
+     * @param cause Why the batch failed.
+     */
+    private void abandon(long from, long to, RuntimeException cause) {
+        for (long sequence = from; sequence < to; sequence++) {
+            Slot slot = ring[(int) sequence & mask];
+            release(slot);
+            CompletableFuture<Boolean> future = slot.future;
+            slot.future = null;
+            slot.entry = null;
+            slot.change = null;
+            if (future != null) {
+                future.completeExceptionally(cause); // Completed ones stay as they are.
+            }
+        }
+    }
+
+    /**
+     * Stops taking commands and waits until every command published so far is persisted.
+     */
+    @Override
+    public void close() {
+        long end;
+        do {
+            end = claimed.get();
+            if (end < 0) {
+                break; // Already closed.
+            }
+        } while (!claimed.compareAndSet(end, -end - 1));
+        if (end >= 0) {
+            stopAt = end;
+        }
+        try {
+            sequencerThread.join();
+            persisterThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // The threads finish on their own.
+        }
+    }
+
+    public long getPersistedCount() {
+        return persisted;
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    @Override
+    public String toString() {
+        long count = getPersistedCount();
+        long batchCount = getBatchCount();
+        return "CommandSequencer{persisted=" + count +
+                ", batches=" + batchCount +
+                ", averageBatch=" + (batchCount == 0 ? 0 : count / batchCount) + '}';
+    }
+
+    /**
+     * One pre-allocated place in the ring. The publisher fills in the command, the sequencer its
+     * decision, and the persistence thread clears it again.
+     */
+    private static final class Slot {
+        private volatile long published = -1; // Sequence number of the command in the slot.
+        private Kind kind;
+        private String key; // Account id, or bank number for user changes.
+        private long cents;
+        private String text;
+        private CompletableFuture<Boolean> future;
+        private long delta; // The posting to the command's account, while it is pending.
+        private JournalEntry entry; // What to post, for accepted money commands.
+        private Bank.UserChange change; // What to apply, for accepted user changes.
+    }
+
+    /**
+     * An account type change the persistence thread has not written yet.
+     */
+    private static final class PendingType {
+        private final String type;
+        private final long until; // One past the change's sequence number.
+
+        private PendingType(String type, long until) {
+            this.type = type;
+            this.until = until;
+        }
+    }
+}
@@ -0,0 +1,259 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Currency;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Converts amounts between currencies with a rate table read from a local file. The table in use
+ * is an immutable snapshot behind an AtomicReference: conversions read it without locking, and a
+ * reload builds a complete new snapshot before swapping it in, so no conversion ever sees half a
+ * table. Callers that convert more than once for one operation should take a snapshot with
+ * getRates and use it throughout.
+ *
+ * The file is a properties file with one line per currency, CODE=rate, where the rate is the
+ * value of one unit of the currency in the base currency, for example EUR=1.0853. The base
+ * currency is always present with rate 1.
+ *
+ * Rounding: amounts are cents in every currency, as in the ledger. A conversion multiplies by the
+ * exact cross rate and rounds once, half even, to the smallest unit of the target currency:
+ * cents, or whole units for currencies such as JPY that have no minor unit.
+ */
+public class CurrencyConverter {
+    public static final String BASE_CURRENCY = System.getProperty("bank.currency", "USD"); // Currency of primary accounts and of the rates.
+
+    private final File file;
+    private final AtomicReference<Rates> current = new AtomicReference<>();
+    private volatile long loadedModified; // Modification time of the file behind the current table.
+
+    /**
+     * Creates a converter and loads the rate table. A missing or unreadable file leaves only the
+     * base currency available.
+     * @param file The rate file.
+     */
+    public CurrencyConverter(File file) {
+        this.file = file;
+        current.set(new Rates(Collections.<String, BigDecimal>emptyMap()));
+        reloadIfChanged();
+    }
+
+    /**
+     * Gets the rate table in use.
+     * @return The current snapshot.
+     */
+    public Rates getRates() {
+        return current.get();
+    }
+
+    /**
+     * Converts an amount with the current rate table.
+     * @param cents The amount in cents of the source currency.
+     * @param from The source currency code.
+     * @param to The target currency code.
+     * @return The amount in cents of the target currency.
+     * @throws IllegalArgumentException If either currency has no rate.
+     */
+    public long convert(long cents, String from, String to) {
+        return current.get().convert(cents, from, to);
+    }
+
+    /**
+     * Reloads the rate table if the file changed since it was last read. A file that fails to
+     * load leaves the current table in place.
+     * @return true if a new table was swapped in.
+     */
+    public boolean reloadIfChanged() {
+        long modified = file.lastModified(); // 0 if the file does not exist.
+        if (modified == 0 || modified == loadedModified) {
+            return false;
+        }
+        try {
+            current.set(load(file));
+            loadedModified = modified;
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Error loading exchange rates from " + file + ": " + e.getMessage()); // Keep converting with the old table.
+            return false;
+        }
+    }
+
+    /**
+     * Reads a rate table.
+     * @param file The rate file.
+     * @return The table.
+     * @throws IOException If the file cannot be read.
+     * @throws IllegalArgumentException If a currency code or rate is invalid.
+     */
+    public static Rates load(File file) throws IOException {
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(file)) {
+            properties.load(in);
+        }
+        Map<String, BigDecimal> rates = new HashMap<>();
+        for (String code : properties.stringPropertyNames()) {
+            rates.put(code.trim().toUpperCase(), new BigDecimal(properties.getProperty(code).trim()));
+        }
+        return new Rates(rates);
+    }
+
+    /**
+     * An immutable rate table. Every cross rate is stored as a reduced fraction with the target
+     * currency's smallest unit folded in, so a conversion is a multiplication and one rounded
+     * division in long arithmetic; amounts too large for that fall back to BigDecimal and give
+     * the same result.
+     */
+    public static final class Rates {
+        private final Map<String, Integer> indexes = new HashMap<>(); // Position of each currency in the arrays.
+        private final String[] codes;
+        private final BigDecimal[] rates; // Value of one unit in the base currency.
+        private final long[] unitCents; // Cents per smallest unit: 1, or 100 for currencies without a minor unit.
+        private final long[][] numerators; // Cross rate from i to j in smallest units of j, 0 if it does not fit in a long.
+        private final long[][] denominators;
+        private final long[][] maxExactCents; // Largest amount the long arithmetic converts without overflow.
+
+        /**
+         * Builds a table.
+         * @param ratesByCode The value of one unit of each currency in the base currency.
+         * @throws IllegalArgumentException If a currency code is unknown or a rate is not positive.
+         */
+        public Rates(Map<String, BigDecimal> ratesByCode) {
+            Map<String, BigDecimal> all = new HashMap<>(ratesByCode);
+            BigDecimal base = all.get(BASE_CURRENCY);
+            if (base != null && base.compareTo(BigDecimal.ONE) != 0) {
+                throw new IllegalArgumentException("The base currency " + BASE_CURRENCY + " must have rate 1, not " + base);
+            }
+            all.put(BASE_CURRENCY, BigDecimal.ONE);
+            List<String> sorted = new ArrayList<>(all.keySet());
+            Collections.sort(sorted);
+            int n = sorted.size();
+            codes = sorted.toArray(new String[n]);
+            rates = new BigDecimal[n];
+            unitCents = new long[n];
+            for (int i = 0; i < n; i++) {
+                BigDecimal rate = all.get(codes[i]);
+                if (rate.signum() <= 0) {
+                    throw new IllegalArgumentException("Rate of " + codes[i] + " must be positive: " + rate);
+                }
+                int digits = Currency.getInstance(codes[i]).getDefaultFractionDigits(); // Rejects unknown codes.
+                indexes.put(codes[i], i);
+                rates[i] = rate.scale() < 0 ? rate.setScale(0) : rate; // Whole numbers such as 1E+2 get a scale of 0.
+                unitCents[i] = digits == 0 ? 100 : digits == 1 ? 10 : 1; // Cents are the finest unit the ledger keeps.
+            }
+            numerators = new long[n][n];
+            denominators = new long[n][n];
+            maxExactCents = new long[n][n];
+            for (int i = 0; i < n; i++) {
+                for (int j = 0; j < n; j++) {
+                    // cents(j) = cents(i) * rate(i) / rate(j), counted in smallest units of j.
+                    BigInteger numerator = rates[i].unscaledValue().multiply(BigInteger.TEN.pow(rates[j].scale()));
+                    BigInteger denominator = rates[j].unscaledValue().multiply(BigInteger.TEN.pow(rates[i].scale()))
+                            .multiply(BigInteger.valueOf(unitCents[j]));
+                    BigInteger gcd = numerator.gcd(denominator);
+                    numerator = numerator.divide(gcd);
+                    denominator = denominator.divide(gcd);
+                    if (numerator.bitLength() < 63 && denominator.bitLength() < 63) {
+                        numerators[i][j] = numerator.longValue();
+                        denominators[i][j] = denominator.longValue();
+                        maxExactCents[i][j] = Long.MAX_VALUE / numerators[i][j];
+                    }
+                }
+            }
+        }
+
+        /**
+         * Converts an amount.
+         * @param cents The amount in cents of the source currency.
+         * @param from The source currency code.
+         * @param to The target currency code.
+         * @return The amount in cents of the target currency, rounded half even to its smallest unit.
+         * @throws IllegalArgumentException If either currency has no rate.
+         */
+        public long convert(long cents, String from, String to) {
+            int i = indexOf(from);
+            int j = indexOf(to);
+            if (i == j) {
+                return cents;
+            }
+            long numerator = numerators[i][j];
+            if (numerator != 0 && Math.abs(cents) <= maxExactCents[i][j]) {
+                return divideHalfEven(cents * numerator, denominators[i][j]) * unitCents[j];
+            }
+            BigDecimal units = BigDecimal.valueOf(cents).multiply(rates[i])
+                    .divide(rates[j].multiply(BigDecimal.valueOf(unitCents[j])), 0, RoundingMode.HALF_EVEN);
+            return units.longValueExact() * unitCents[j];
+        }
+
+        /**
+         * Divides, rounding half even.
+         * @param dividend The dividend.
+         * @param divisor The divisor, positive.
+         * @return The rounded quotient.
+         */
+        private static long divideHalfEven(long dividend, long divisor) {
+            long quotient = dividend / divisor;
+            long remainder = Math.abs(dividend % divisor);
+            if (remainder == 0) {
+                return quotient;
+            }
+            int half = Long.compare(remainder, divisor - remainder); // Above, at or below one half.
+            if (half > 0 || (half == 0 && (quotient & 1) != 0)) {
+                quotient += dividend < 0 ? -1 : 1;
+            }
+            return quotient;
+        }
+
+        /**
+         * Gets the rate from one currency to another, for display.
+         * @param from The source currency code.
+         * @param to The target currency code.
+         * @return Units of the target currency per unit of the source, to 6 decimals.
+         * @throws IllegalArgumentException If either currency has no rate.
+         */
+        public BigDecimal getRate(String from, String to) {
+            return rates[indexOf(from)].divide(rates[indexOf(to)], 6, RoundingMode.HALF_EVEN).stripTrailingZeros();
+        }
+
+        /**
+         * Checks that an amount can be expressed in a currency, for example no cents in JPY.
+         * @param cents The amount in cents.
+         * @param currency The currency code.
+         * @return true if the amount is a whole number of the currency's smallest unit.
+         * @throws IllegalArgumentException If the currency has no rate.
+         */
+        public boolean isWholeUnits(long cents, String currency) {
+            return cents % unitCents[indexOf(currency)] == 0;
+        }
+
+        public boolean contains(String currency) {
+            return currency != null && indexes.containsKey(currency);
+        }
+
+        /**
+         * Lists the currencies with a rate.
+         * @return The currency codes, sorted.
+         */
+        public List<String> getCurrencies() {
+            List<String> list = new ArrayList<>();
+            Collections.addAll(list, codes);
+            return list;
+        }
+
+        private int indexOf(String currency) {
+            Integer index = currency == null ? null : indexes.get(currency);
+            if (index == null) {
+                throw new IllegalArgumentException("No exchange rate for currency " + currency);
+            }
+            return index;
+        }
+    }
+}
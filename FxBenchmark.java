@@ -0,0 +1,193 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Currency;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures currency conversion. The first part converts random amounts between every pair of
+ * currencies with the cached rate table, checks each result against plain BigDecimal arithmetic,
+ * and reports conversions per second while another thread keeps swapping in new tables. The
+ * second part runs transfers between accounts in different currencies against the same accounts
+ * in one currency, to show what the conversion costs on the transfer path, and reconciles the
+ * bank at the end.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; FxBenchmark [threads] [seconds] [shards]
+ */
+public class FxBenchmark {
+    private static final String[] CURRENCIES = {"EUR", "GBP", "JPY", "PHP", CurrencyConverter.BASE_CURRENCY};
+    private static final String[] RATES = {"1.0853", "1.2718", "0.006652", "0.01742"}; // Value in the base currency, in the order above.
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int customers = 128;
+
+        File directory = Files.createTempDirectory("bank-fx").toFile();
+        File ratesFile = new File(directory, "fx-rates.properties");
+        writeRates(ratesFile, RATES[0], RATES[1], RATES[2], RATES[3]);
+        System.setProperty("bank.fx.file", ratesFile.getPath());
+
+        CurrencyConverter converter = new CurrencyConverter(ratesFile);
+        long mismatches = checkAgainstBigDecimal(converter.getRates(), 1_000_000);
+        double conversions = runConversions(converter, ratesFile, threads, seconds);
+
+        List<String> results = new ArrayList<>();
+        results.add(String.format("conversions       threads=%-3d per second=%12.1f mismatches=%d", threads, conversions, mismatches));
+        results.add(String.format("same currency     threads=%-3d transfers/s=%11.1f", threads, runTransfers(directory, "same", shards, threads, seconds, customers, false)));
+        results.add(String.format("cross currency    threads=%-3d transfers/s=%11.1f", threads, runTransfers(directory, "cross", shards, threads, seconds, customers, true)));
+
+        System.out.println();
+        System.out.println("Currency conversion:");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private static void writeRates(File file, String eur, String gbp, String jpy, String php) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary.toPath(), StandardCharsets.UTF_8)) {
+            writer.write("EUR=" + eur + "\nGBP=" + gbp + "\nJPY=" + jpy + "\nPHP=" + php + "\n");
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Compares the cached conversions with the straightforward BigDecimal formula.
+     * @param rates The rate table.
+     * @param samples The number of random conversions to check.
+     * @return The number of results that differ.
+     */
+    private static long checkAgainstBigDecimal(CurrencyConverter.Rates rates, int samples) {
+        Random random = new Random(42);
+        long mismatches = 0;
+        for (int i = 0; i < samples; i++) {
+            String from = CURRENCIES[random.nextInt(CURRENCIES.length)];
+            String to = CURRENCIES[random.nextInt(CURRENCIES.length)];
+            long cents = i % 10 == 0 ? random.nextLong() / 1000 : random.nextInt(10_000_000); // Some amounts take the BigDecimal path.
+            if (!rates.isWholeUnits(cents, from)) {
+                cents -= cents % 100;
+            }
+            long expected = from.equals(to) ? cents : reference(cents, from, to);
+            if (rates.convert(cents, from, to) != expected) {
+                mismatches++;
+            }
+        }
+        return mismatches;
+    }
+
+    private static long reference(long cents, String from, String to) {
+        BigDecimal fromRate = baseRate(from);
+        BigDecimal toRate = baseRate(to);
+        int digits = Currency.getInstance(to).getDefaultFractionDigits();
+        BigDecimal target = BigDecimal.valueOf(cents).movePointLeft(2).multiply(fromRate)
+                .divide(toRate, Math.min(digits, 2), RoundingMode.HALF_EVEN);
+        return target.movePointRight(2).longValueExact();
+    }
+
+    private static BigDecimal baseRate(String currency) {
+        for (int i = 0; i < CURRENCIES.length - 1; i++) {
+            if (CURRENCIES[i].equals(currency)) {
+                return new BigDecimal(RATES[i]);
+            }
+        }
+        return BigDecimal.ONE;
+    }
+
+    private static double runConversions(CurrencyConverter converter, File ratesFile, int threads, int seconds) throws InterruptedException {
+        AtomicLong conversions = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        Thread updater = new Thread(() -> { // New tables arrive while the readers convert.
+            Random random = new Random();
+            while (System.nanoTime() < deadline) {
+                try {
+                    writeRates(ratesFile, "1.08" + random.nextInt(100), RATES[1], RATES[2], RATES[3]);
+                    ratesFile.setLastModified(System.currentTimeMillis() + random.nextInt(1000)); // Coarse clocks would hide the change.
+                    converter.reloadIfChanged();
+                    Thread.sleep(10);
+                } catch (IOException | InterruptedException e) {
+                    return;
+                }
+            }
+        }, "fx-updater");
+        updater.start();
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                long count = 0;
+                long sink = 0;
+                while (System.nanoTime() < deadline) {
+                    for (int i = 0; i < 1000; i++) {
+                        sink += converter.convert(random.nextInt(1_000_000) * 100L, CURRENCIES[i % CURRENCIES.length], CURRENCIES[(i / 5) % CURRENCIES.length]);
+                    }
+                    count += 1000;
+                }
+                conversions.addAndGet(count + (sink == 42 ? 1 : 0));
+                done.countDown();
+            }, "fx-reader-" + t).start();
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        updater.join();
+        return conversions.get() / elapsedSeconds;
+    }
+
+    private static double runTransfers(File parent, String name, int shards, int threads, int seconds, int customers, boolean crossCurrency)
+            throws IOException, InterruptedException {
+        File directory = new File(parent, name);
+        if (!directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        Bank bank = new Bank(new File(directory, "bank.db").getPath(), shards);
+        List<String> accountIds = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            String bankNumber = bank.registerUser("fx" + i, "0000", "checking", false);
+            if (bankNumber == null) {
+                continue;
+            }
+            String currency = crossCurrency ? CURRENCIES[i % CURRENCIES.length] : CurrencyConverter.BASE_CURRENCY;
+            String accountId = bank.openAccount(bankNumber, "saving", currency);
+            if (accountId != null && bank.depositInCurrency(accountId, 1_000_000, currency)) {
+                accountIds.add(accountId);
+            }
+        }
+
+        AtomicLong transfers = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                while (System.nanoTime() < deadline) {
+                    String from = accountIds.get(random.nextInt(accountIds.size()));
+                    String to = accountIds.get(random.nextInt(accountIds.size()));
+                    if (!from.equals(to) && bank.transfer(from, to, 1 + random.nextInt(100))) {
+                        transfers.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }, "fx-transfer-" + t).start();
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        Reconciler.Report report = new Reconciler(bank, shards).reconcile();
+        System.out.println(name + " currency: " + report);
+        bank.shutdown();
+        return transfers.get() / elapsedSeconds;
+    }
+}
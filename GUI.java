@@ -2,19 +2,45 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.awt.datatransfer.StringSelection;
 import java.awt.datatransfer.Clipboard;
 import java.awt.Toolkit;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import javax.swing.table.DefaultTableModel;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 
 public class GUI extends JFrame {
 
     private Bank bank; // Bank object to manage users and transactions
-    private User loggedInUser; // Currently logged-in user
+    private String sessionToken; // Session of the logged-in user, presented for every operation and closed at logout
     private JLabel userDetailsLabel; // Label to display user details
+    private JComboBox<Account> accountComboBox; // Account the main menu operations apply to
+    private JTextArea recentActivityTextArea; // Recent activity of the logged-in user
+    private static final int HISTORY_ROW_LIMIT = 1000; // Maximum rows shown in the history dialog
+    private static final int USER_ROW_LIMIT = 500; // Maximum users shown in the manage users table
+    private JPanel mainPanel; // Card panel holding every view
+    private CardLayout cardLayout;
+    private final Map<String, JPanel> builtPanels = new HashMap<>(); // Views built so far, by card name
 
     public GUI(Bank bank) {
-        this.bank = bank;
+        this(CompletableFuture.completedFuture(bank));
+    }
+
+    /**
+     * Builds the window while the bank is still starting up. Login and registration
+     * are enabled once the bank is ready; every other view is built the first time it is shown.
+     * @param bankReady Completes with the bank once its database is loaded.
+     */
+    public GUI(CompletableFuture<Bank> bankReady) {
         setTitle("Banking System");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setSize(400, 300);
@@ -25,30 +51,25 @@ public class GUI extends JFrame {
         userDetailsLabel.setHorizontalAlignment(SwingConstants.CENTER);
         add(userDetailsLabel, BorderLayout.NORTH);
 
-        JPanel mainPanel = new JPanel(new CardLayout()); // Panel to switch between different views
+        mainPanel = new JPanel(new CardLayout()); // Panel to switch between different views
         add(mainPanel, BorderLayout.CENTER);
 
-        CardLayout cardLayout = (CardLayout) mainPanel.getLayout();
+        cardLayout = (CardLayout) mainPanel.getLayout();
 
         JPanel loginPanel = createLoginForm(mainPanel, cardLayout); // Panel for user login
         mainPanel.add(loginPanel, "login");
 
-        JPanel registrationPanel = createUserRegistrationForm(mainPanel, cardLayout); // Panel for user registration
-        mainPanel.add(registrationPanel, "register");
-
-        JPanel mainMenuPanel = createMainMenu(mainPanel, cardLayout); // Panel for main user menu
-        System.out.println("Main menu panel created: " + (mainMenuPanel != null));
-        mainPanel.add(mainMenuPanel, "mainMenu");
-        System.out.println("Main menu panel added to mainPanel");
-
         JPanel initialPanel = new JPanel(); // Panel for initial login/register buttons
         JButton loginButton = new JButton("Login");
         loginButton.setPreferredSize(new Dimension(90, 25));
         JButton registerButton = new JButton("Register");
         registerButton.setPreferredSize(new Dimension(90, 25));
+        loginButton.setEnabled(false); // Enabled once the bank has loaded
+        registerButton.setEnabled(false);
         initialPanel.add(loginButton);
         initialPanel.add(registerButton);
         mainPanel.add(initialPanel, "initial");
+        userDetailsLabel.setText("Loading bank data...");
 
         loginButton.addActionListener(new ActionListener() {
             @Override
@@ -60,13 +81,58 @@ public class GUI extends JFrame {
         registerButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                cardLayout.show(mainPanel, "register"); // Switch to registration panel
+                showPanel("register"); // Switch to registration panel
             }
         });
 
         cardLayout.show(mainPanel, "initial"); // Show initial panel
 
         setVisible(true);
+        Main.markStartupPhase("window visible");
+
+        bankReady.whenComplete((readyBank, error) -> SwingUtilities.invokeLater(() -> {
+            if (error != null) {
+                userDetailsLabel.setText("Failed to load bank data");
+                JOptionPane.showMessageDialog(GUI.this, "Failed to load bank data: " + error.getMessage(), "Startup Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            bank = readyBank;
+            loginButton.setEnabled(true);
+            registerButton.setEnabled(true);
+            userDetailsLabel.setText("Not logged in");
+            Main.markStartupPhase("interactive");
+        }));
+    }
+
+    /**
+     * Shows a view, building it the first time it is needed.
+     * @param name The card name.
+     */
+    private void showPanel(String name) {
+        ensurePanel(name);
+        cardLayout.show(mainPanel, name);
+    }
+
+    private void ensurePanel(String name) {
+        if (builtPanels.containsKey(name)) {
+            return;
+        }
+        JPanel panel;
+        switch (name) {
+            case "register":
+                panel = createUserRegistrationForm(mainPanel, cardLayout); // Panel for user registration
+                break;
+            case "mainMenu":
+                panel = createMainMenu(mainPanel, cardLayout); // Panel for main user menu
+                break;
+            case "adminMenu":
+                panel = createAdminMenu(mainPanel, cardLayout); // Panel for admin menu
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown panel: " + name);
+        }
+        builtPanels.put(name, panel);
+        mainPanel.add(panel, name);
     }
 
     private JPanel createLoginForm(JPanel mainPanel, CardLayout cardLayout) {
@@ -119,16 +185,24 @@ public class GUI extends JFrame {
             public void actionPerformed(ActionEvent e) {
                 String bankNumber = bankNumberField.getText();
                 String pinNumber = new String(pinNumberField.getPassword());
-                loggedInUser = bank.login(bankNumber, pinNumber); // Attempt to log in
+                User user;
+                try {
+                    SessionManager.Session session = bank.getSessions().open(bankNumber, pinNumber); // Attempt to log in
+                    user = session == null ? null : session.getUser();
+                    sessionToken = session == null ? null : session.getToken();
+                } catch (AdmissionController.RejectedException ex) {
+                    showTryAgainLater(ex.getRetryAfterMillis()); // Too many attempts for this bank number
+                    return;
+                }
 
-                if (loggedInUser != null) {
+                if (user != null) {
+                    ensurePanel("mainMenu"); // The account selector lives on the main menu
+                    refreshAccountChoices(user); // Offer the user's accounts in the main menu
                     displayUserDetails(); // Display user details
-                    if (loggedInUser.isAdmin()) { // Check if user is admin
-                        JPanel adminMenuPanel = createAdminMenu(mainPanel, cardLayout);
-                        mainPanel.add(adminMenuPanel, "adminMenu");
-                        cardLayout.show(mainPanel, "adminMenu"); // Show admin menu
+                    if (user.isAdmin()) { // Check if user is admin
+                        showPanel("adminMenu"); // Show admin menu
                     } else {
-                        cardLayout.show(mainPanel, "mainMenu"); // Show main menu
+                        showPanel("mainMenu"); // Show main menu
                     }
                 } else {
                     JOptionPane.showMessageDialog(GUI.this, "Invalid credentials.");
@@ -240,45 +314,76 @@ public class GUI extends JFrame {
         withdrawButton.setPreferredSize(new Dimension(150, 25));
         JButton transactionHistoryButtonGUI = new JButton("Transaction History");
         transactionHistoryButtonGUI.setPreferredSize(new Dimension(150, 25));
+        JButton openAccountButton = new JButton("Open Account");
+        openAccountButton.setPreferredSize(new Dimension(150, 25));
         JButton logoutButton = new JButton("Logout");
         logoutButton.setPreferredSize(new Dimension(150, 25));
 
         buttonPanel.add(depositButton);
         buttonPanel.add(withdrawButton);
         buttonPanel.add(transactionHistoryButtonGUI);
+        buttonPanel.add(openAccountButton);
         buttonPanel.add(logoutButton);
 
-        JTextArea transactionHistoryTextArea = new JTextArea();
-        transactionHistoryTextArea.setEditable(false);
-        JScrollPane scrollPane = new JScrollPane(transactionHistoryTextArea);
+        JPanel accountPanel = new JPanel(); // Account selector above the buttons
+        accountComboBox = new JComboBox<>();
+        accountComboBox.setPreferredSize(new Dimension(200, 25));
+        accountPanel.add(new JLabel("Account:"));
+        accountPanel.add(accountComboBox);
+        accountComboBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                displayUserDetails(); // Show the balance of the newly selected account
+            }
+        });
 
-        transactionHistoryButtonGUI.addActionListener(new ActionListener() {
+        openAccountButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if (loggedInUser != null) {
-                    List<Transaction> transactionHistory = bank.getTransactionHistory(loggedInUser.getBankNumber());
-
-                    String[] columnNames = {"Timestamp", "Type", "Amount", "Description"};
-                    Object[][] data = new Object[transactionHistory.size()][4];
-                    for (int i = 0; i < transactionHistory.size(); i++) {
-                        Transaction transaction = transactionHistory.get(i);
-                        data[i][0] = transaction.getTimestamp();
-                        data[i][1] = transaction.getType();
-                        data[i][2] = transaction.getAmount();
-                        data[i][3] = transaction.getDescription();
+                String[] accountTypes = {"saving", "checking"};
+                String accountType = (String) JOptionPane.showInputDialog(GUI.this, "Select the type of the new account:", "Open Account",
+                        JOptionPane.QUESTION_MESSAGE, null, accountTypes, accountTypes[0]);
+                if (accountType != null) {
+                    String[] currencies = bank.getCurrencyConverter().getRates().getCurrencies().toArray(new String[0]);
+                    String currency = (String) JOptionPane.showInputDialog(GUI.this, "Select the currency of the new account:", "Open Account",
+                            JOptionPane.QUESTION_MESSAGE, null, currencies, CurrencyConverter.BASE_CURRENCY);
+                    if (currency == null) {
+                        return; // Cancelled.
+                    }
+                    User user = sessionUser();
+                    if (user == null) {
+                        return;
+                    }
+                    String accountId = bank.openAccount(user.getBankNumber(), accountType, currency);
+                    if (accountId != null) {
+                        refreshAccountChoices(user);
+                        accountComboBox.setSelectedItem(bank.findAccount(accountId));
+                        JOptionPane.showMessageDialog(GUI.this, "Account " + accountId + " opened.");
+                    } else {
+                        JOptionPane.showMessageDialog(GUI.this, "Failed to open account.", "Error", JOptionPane.ERROR_MESSAGE);
                     }
+                }
+            }
+        });
 
-                    JTable transactionTable = new JTable(data, columnNames);
-                    JScrollPane scrollPane = new JScrollPane(transactionTable);
+        recentActivityTextArea = new JTextArea();
+        recentActivityTextArea.setEditable(false);
+        JScrollPane scrollPane = new JScrollPane(recentActivityTextArea);
 
-                    JOptionPane.showMessageDialog(GUI.this, scrollPane, "Transaction History", JOptionPane.PLAIN_MESSAGE);
-                } else {
-                    JOptionPane.showMessageDialog(GUI.this, "Please log in to view transaction history.", "Authentication Required", JOptionPane.WARNING_MESSAGE);
+        transactionHistoryButtonGUI.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                User user = sessionUser();
+                if (user != null) {
+                    showTransactionHistoryDialog(user.getBankNumber(), "Transaction History");
                 }
             }
         });
 
-        mainMenuPanel.add(buttonPanel, BorderLayout.NORTH);
+        JPanel northPanel = new JPanel(new BorderLayout());
+        northPanel.add(accountPanel, BorderLayout.NORTH);
+        northPanel.add(buttonPanel, BorderLayout.CENTER);
+        mainMenuPanel.add(northPanel, BorderLayout.NORTH);
         mainMenuPanel.add(scrollPane, BorderLayout.CENTER);
 
         depositButton.addActionListener(new ActionListener() {
@@ -292,7 +397,17 @@ public class GUI extends JFrame {
                             JOptionPane.showMessageDialog(GUI.this, "Deposit amount must be positive.", "Invalid Amount", JOptionPane.WARNING_MESSAGE);
                             return;
                         }
-                        boolean success = bank.deposit(loggedInUser.getBankNumber(), amount);
+                        User user = sessionUser(); // The session may have expired while the dialog was open
+                        if (user == null) {
+                            return;
+                        }
+                        boolean success;
+                        try (AdmissionController.Permit permit = admit(user)) { // Turn away a terminal that sends too much
+                            if (!permit.isAdmitted()) {
+                                return;
+                            }
+                            success = bank.deposit(selectedAccountId(user), amount);
+                        }
                         if (success) {
                             displayUserDetails();
                             JOptionPane.showMessageDialog(GUI.this, "Deposit successful.");
@@ -317,7 +432,17 @@ public class GUI extends JFrame {
                             JOptionPane.showMessageDialog(GUI.this, "Withdrawal amount must be positive.", "Invalid Amount", JOptionPane.WARNING_MESSAGE);
                             return;
                         }
-                        boolean success = bank.withdraw(loggedInUser.getBankNumber(), amount);
+                        User user = sessionUser(); // The session may have expired while the dialog was open
+                        if (user == null) {
+                            return;
+                        }
+                        boolean success;
+                        try (AdmissionController.Permit permit = admit(user)) { // Turn away a terminal that sends too much
+                            if (!permit.isAdmitted()) {
+                                return;
+                            }
+                            success = bank.withdraw(selectedAccountId(user), amount);
+                        }
                         if (success) {
                             displayUserDetails();
                             JOptionPane.showMessageDialog(GUI.this, "Withdrawal successful.");
@@ -334,7 +459,8 @@ public class GUI extends JFrame {
         logoutButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                loggedInUser = null;
+                bank.getSessions().close(sessionToken);
+                sessionToken = null;
                 userDetailsLabel.setText("Not logged in");
                 cardLayout.show(mainPanel, "initial"); // Go back to initial panel
             }
@@ -351,14 +477,25 @@ public class GUI extends JFrame {
         withdrawButton.setPreferredSize(new Dimension(150, 25));
         JButton manageUsersButton = new JButton("Manage Users");
         manageUsersButton.setPreferredSize(new Dimension(150, 25));
+        JButton alertsButton = new JButton("Alerts (" + bank.getAnomalyDetector().getRecentAnomalies().size() + ")");
+        alertsButton.setPreferredSize(new Dimension(150, 25));
+        JButton dashboardButton = new JButton("Dashboard");
+        dashboardButton.setPreferredSize(new Dimension(150, 25));
         JButton logoutButton = new JButton("Logout");
         logoutButton.setPreferredSize(new Dimension(150, 25));
 
         adminMenuPanel.add(depositButton);
         adminMenuPanel.add(withdrawButton);
         adminMenuPanel.add(manageUsersButton);
+        adminMenuPanel.add(alertsButton);
+        adminMenuPanel.add(dashboardButton);
         adminMenuPanel.add(logoutButton);
 
+        bank.getAnomalyDetector().addListener(anomaly -> SwingUtilities.invokeLater(() -> {
+            alertsButton.setText("Alerts (" + bank.getAnomalyDetector().getRecentAnomalies().size() + ")");
+            alertsButton.setForeground(Color.RED); // Unread alerts
+        })); // Called on the committing thread, so only hand over to the event thread
+
         depositButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -370,7 +507,17 @@ public class GUI extends JFrame {
                             JOptionPane.showMessageDialog(GUI.this, "Deposit amount must be positive.", "Invalid Amount", JOptionPane.WARNING_MESSAGE);
                             return;
                         }
-                        boolean success = bank.deposit(loggedInUser.getBankNumber(), amount);
+                        User user = sessionUser(); // The session may have expired while the dialog was open
+                        if (user == null) {
+                            return;
+                        }
+                        boolean success;
+                        try (AdmissionController.Permit permit = admit(user)) { // Turn away a terminal that sends too much
+                            if (!permit.isAdmitted()) {
+                                return;
+                            }
+                            success = bank.deposit(user.getBankNumber(), amount);
+                        }
                         if (success) {
                             displayUserDetails();
                             JOptionPane.showMessageDialog(GUI.this, "Deposit successful.");
@@ -395,7 +542,17 @@ public class GUI extends JFrame {
                             JOptionPane.showMessageDialog(GUI.this, "Withdrawal amount must be positive.", "Invalid Amount", JOptionPane.WARNING_MESSAGE);
                             return;
                         }
-                        boolean success = bank.withdraw(loggedInUser.getBankNumber(), amount);
+                        User user = sessionUser(); // The session may have expired while the dialog was open
+                        if (user == null) {
+                            return;
+                        }
+                        boolean success;
+                        try (AdmissionController.Permit permit = admit(user)) { // Turn away a terminal that sends too much
+                            if (!permit.isAdmitted()) {
+                                return;
+                            }
+                            success = bank.withdraw(user.getBankNumber(), amount);
+                        }
                         if (success) {
                             displayUserDetails();
                             JOptionPane.showMessageDialog(GUI.this, "Withdrawal successful.");
@@ -412,16 +569,48 @@ public class GUI extends JFrame {
         manageUsersButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                JPanel previousPanel = builtPanels.remove("manageUsers");
+                if (previousPanel != null) {
+                    mainPanel.remove(previousPanel); // The user table is a snapshot, rebuild it each time
+                }
                 JPanel manageUsersPanel = createManageUsersPanel(mainPanel, cardLayout);
+                builtPanels.put("manageUsers", manageUsersPanel);
                 mainPanel.add(manageUsersPanel, "manageUsers");
                 cardLayout.show(mainPanel, "manageUsers"); // Switch to manage users panel
             }
         });
 
+        alertsButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                alertsButton.setForeground(Color.BLACK); // Alerts have been seen
+                List<AnomalyDetector.Anomaly> anomalies = bank.getAnomalyDetector().getRecentAnomalies();
+                if (anomalies.isEmpty()) {
+                    JOptionPane.showMessageDialog(GUI.this, "No unusual activity detected.", "Alerts", JOptionPane.INFORMATION_MESSAGE);
+                    return;
+                }
+                StringBuilder text = new StringBuilder();
+                for (AnomalyDetector.Anomaly anomaly : anomalies) {
+                    text.append(anomaly).append("\n"); // Newest first
+                }
+                JTextArea alertsTextArea = new JTextArea(text.toString(), 15, 60);
+                alertsTextArea.setEditable(false);
+                JOptionPane.showMessageDialog(GUI.this, new JScrollPane(alertsTextArea), "Alerts", JOptionPane.WARNING_MESSAGE);
+            }
+        });
+
+        dashboardButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                showDashboard();
+            }
+        });
+
         logoutButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                loggedInUser = null;
+                bank.getSessions().close(sessionToken);
+                sessionToken = null;
                 userDetailsLabel.setText("Not logged in");
                 cardLayout.show(mainPanel, "initial"); // Go back to initial panel
             }
@@ -430,26 +619,101 @@ public class GUI extends JFrame {
         return adminMenuPanel;
     }
 
+    /**
+     * Opens a window with the bank-wide figures, refreshed every second while it is open.
+     * The figures are kept current by the bank, so a refresh reads no table.
+     */
+    private void showDashboard() {
+        JTextArea dashboardTextArea = new JTextArea(22, 52);
+        dashboardTextArea.setEditable(false);
+        dashboardTextArea.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        JDialog dialog = new JDialog(this, "Dashboard", false); // Leave the admin menu usable
+        dialog.add(new JScrollPane(dashboardTextArea));
+        dialog.pack();
+        dialog.setLocationRelativeTo(this);
+        Timer refreshTimer = new Timer(1000, e -> dashboardTextArea.setText(describeMetrics(bank.getMetrics())));
+        refreshTimer.setInitialDelay(0);
+        dialog.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+        dialog.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                refreshTimer.stop(); // Stop refreshing a closed window
+            }
+        });
+        refreshTimer.start();
+        dialog.setVisible(true);
+    }
+
+    private static String describeMetrics(BankMetrics metrics) {
+        String base = CurrencyConverter.BASE_CURRENCY;
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Users: %d   Admins: %d   Accounts: %d%n", metrics.getUserCount(), metrics.getAdminCount(), metrics.getAccountCount()));
+        text.append(String.format("Total held: %s %s%n%n", BigDecimal.valueOf(metrics.getTotalBalanceCents(), 2), base));
+        text.append(String.format("%-14s %-8s %8s %18s%n", "Account type", "Currency", "Accounts", "Balance"));
+        for (BankMetrics.Balance balance : metrics.getBalances()) {
+            text.append(String.format("%-14s %-8s %8d %18s%n", balance.getAccountType(), balance.getCurrency(), balance.getAccountCount(),
+                    BigDecimal.valueOf(balance.getCents(), 2)));
+        }
+        text.append(String.format("%n%-20s %10s %18s%n", "Flow", "Count", "Amount (" + base + ")"));
+        for (TransactionType type : TransactionType.values()) {
+            if (type != TransactionType.OTHER) {
+                text.append(String.format("%-20s %10d %18s%n", type.getLabel(), metrics.getCount(type), BigDecimal.valueOf(metrics.getAmountCents(type), 2)));
+            }
+        }
+        text.append(String.format("%n%-12s %10s %18s%n", "Day", "Operations", "Volume (" + base + ")"));
+        LocalDate today = LocalDate.now();
+        for (int i = 0; i < 7; i++) {
+            LocalDate day = today.minusDays(i);
+            text.append(String.format("%-12s %10d %18s%n", day, metrics.getDailyCount(day), BigDecimal.valueOf(metrics.getDailyVolumeCents(day), 2)));
+        }
+        return text.toString();
+    }
+
     private JPanel createManageUsersPanel(JPanel mainPanel, CardLayout cardLayout) {
         JPanel manageUsersPanel = new JPanel(new BorderLayout());
 
         String[] columnNames = {"User Name", "Bank Number", "Account Type", "Is Admin"};
-        List<User> userList = bank.getUsers();
-        Object[][] data = new Object[userList.size()][4];
-        for (int i = 0; i < userList.size(); i++) {
-            User user = userList.get(i);
-            data[i][0] = user.getUserName();
-            data[i][1] = user.getBankNumber();
-            data[i][2] = user.getAccountType();
-            data[i][3] = user.isAdmin();
-        }
-
-        JTable usersTable = new JTable(data, columnNames) {
+        DefaultTableModel usersTableModel = new DefaultTableModel(columnNames, 0);
+        JTable usersTable = new JTable(usersTableModel) {
             @Override
             public boolean isCellEditable(int row, int column) {
                 return false; // Make the table non-editable
             }
         };
+        JTextField searchField = new JTextField(20);
+        JLabel matchesLabel = new JLabel();
+        Runnable filterUsers = () -> {
+            List<User> matches = bank.searchUsers(searchField.getText(), USER_ROW_LIMIT); // Prefix search through the sorted index
+            usersTableModel.setRowCount(0);
+            for (User user : matches) {
+                usersTableModel.addRow(new Object[]{user.getUserName(), user.getBankNumber(), user.getAccountType(), user.isAdmin()});
+            }
+            matchesLabel.setText(matches.size() < USER_ROW_LIMIT ? matches.size() + " users" : "First " + USER_ROW_LIMIT + " users, type to narrow");
+        };
+        searchField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                filterUsers.run(); // Filter as the admin types
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                filterUsers.run();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+                filterUsers.run();
+            }
+        });
+        filterUsers.run();
+
+        JPanel searchPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        searchPanel.add(new JLabel("Search name or bank number:"));
+        searchPanel.add(searchField);
+        searchPanel.add(matchesLabel);
+        manageUsersPanel.add(searchPanel, BorderLayout.NORTH);
+
         JScrollPane scrollPane = new JScrollPane(usersTable);
         manageUsersPanel.add(scrollPane, BorderLayout.CENTER);
 
@@ -458,10 +722,13 @@ public class GUI extends JFrame {
         changeAccountTypeButton.setPreferredSize(new Dimension(150, 25));
         JButton grantAdminButton = new JButton("Grant Admin");
         grantAdminButton.setPreferredSize(new Dimension(150, 25));
+        JButton viewHistoryButton = new JButton("View History");
+        viewHistoryButton.setPreferredSize(new Dimension(150, 25));
         JButton backButton = new JButton("Back");
         backButton.setPreferredSize(new Dimension(150, 25));
         buttonPanel.add(changeAccountTypeButton);
         buttonPanel.add(grantAdminButton);
+        buttonPanel.add(viewHistoryButton);
         buttonPanel.add(backButton);
         manageUsersPanel.add(buttonPanel, BorderLayout.SOUTH);
 
@@ -495,6 +762,9 @@ public class GUI extends JFrame {
                         }
 
                         if (newAccountType != null) {
+                            if (sessionUser() == null) {
+                                return; // Expired while the dialog was open
+                            }
                             boolean success = bank.changeAccountType(bankNumber, newAccountType);
                             if (success) {
                                 JOptionPane.showMessageDialog(GUI.this, "Account type changed successfully for " + currentUserName + ".");
@@ -533,6 +803,9 @@ public class GUI extends JFrame {
                             JOptionPane.YES_NO_OPTION);
 
                     if (confirm == JOptionPane.YES_OPTION) {
+                        if (sessionUser() == null) {
+                            return; // Expired while the dialog was open
+                        }
                         boolean success = bank.grantAdmin(bankNumber);
                         if (success) {
                             JOptionPane.showMessageDialog(GUI.this, "Admin privilege granted successfully to " + currentUserName + ".");
@@ -547,6 +820,20 @@ public class GUI extends JFrame {
             }
         });
 
+        viewHistoryButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                int selectedRow = usersTable.getSelectedRow();
+                if (selectedRow != -1) {
+                    String bankNumber = (String) usersTable.getValueAt(selectedRow, 1);
+                    String currentUserName = (String) usersTable.getValueAt(selectedRow, 0);
+                    showTransactionHistoryDialog(bankNumber, "Transaction History - " + currentUserName);
+                } else {
+                    JOptionPane.showMessageDialog(GUI.this, "Please select a user from the table.", "Selection Required", JOptionPane.WARNING_MESSAGE);
+                }
+            }
+        });
+
         backButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
@@ -557,12 +844,166 @@ public class GUI extends JFrame {
         return manageUsersPanel;
     }
 
+    private void showTransactionHistoryDialog(String bankNumber, String title) {
+        JPanel historyPanel = new JPanel(new BorderLayout(5, 5));
+
+        JPanel filterPanel = new JPanel(new GridLayout(2, 8, 5, 5)); // Filter bar above the table
+        JComboBox<Object> accountFilterComboBox = new JComboBox<>();
+        accountFilterComboBox.addItem("All");
+        for (Account account : bank.getAccounts(bankNumber)) {
+            accountFilterComboBox.addItem(account);
+        }
+        JTextField fromField = new JTextField(); // yyyy-MM-dd, inclusive
+        JTextField toField = new JTextField(); // yyyy-MM-dd, inclusive
+        String[] types = {"All", "Deposit", "Withdraw", "Interest", "Transfer Out", "Transfer In", "Login", "Open Account", "Change Account Type", "Grant Admin", "Revoke Admin"};
+        JComboBox<String> typeComboBox = new JComboBox<>(types);
+        JTextField minAmountField = new JTextField();
+        JTextField maxAmountField = new JTextField();
+        JTextField descriptionField = new JTextField();
+        JButton searchButton = new JButton("Search");
+        filterPanel.add(new JLabel("Account"));
+        filterPanel.add(new JLabel("From (yyyy-MM-dd)"));
+        filterPanel.add(new JLabel("To (yyyy-MM-dd)"));
+        filterPanel.add(new JLabel("Type"));
+        filterPanel.add(new JLabel("Min Amount"));
+        filterPanel.add(new JLabel("Max Amount"));
+        filterPanel.add(new JLabel("Description"));
+        filterPanel.add(new JLabel(""));
+        filterPanel.add(accountFilterComboBox);
+        filterPanel.add(fromField);
+        filterPanel.add(toField);
+        filterPanel.add(typeComboBox);
+        filterPanel.add(minAmountField);
+        filterPanel.add(maxAmountField);
+        filterPanel.add(descriptionField);
+        filterPanel.add(searchButton);
+        historyPanel.add(filterPanel, BorderLayout.NORTH);
+
+        String[] columnNames = {"Timestamp", "Type", "Amount", "Description"};
+        DefaultTableModel tableModel = new DefaultTableModel(columnNames, 0) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false; // Make the table non-editable
+            }
+        };
+        JTable transactionTable = new JTable(tableModel);
+        JScrollPane scrollPane = new JScrollPane(transactionTable);
+        scrollPane.setPreferredSize(new Dimension(900, 300));
+        historyPanel.add(scrollPane, BorderLayout.CENTER);
+
+        JLabel statusLabel = new JLabel(" ");
+        historyPanel.add(statusLabel, BorderLayout.SOUTH);
+
+        ActionListener searchAction = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                TransactionFilter filter = new TransactionFilter();
+                try {
+                    if (!fromField.getText().trim().isEmpty()) {
+                        filter.setFrom(LocalDate.parse(fromField.getText().trim()).atStartOfDay());
+                    }
+                    if (!toField.getText().trim().isEmpty()) {
+                        filter.setTo(LocalDate.parse(toField.getText().trim()).plusDays(1).atStartOfDay()); // Include the whole end day
+                    }
+                    if (!minAmountField.getText().trim().isEmpty()) {
+                        filter.setMinAmount(new BigDecimal(minAmountField.getText().trim()));
+                    }
+                    if (!maxAmountField.getText().trim().isEmpty()) {
+                        filter.setMaxAmount(new BigDecimal(maxAmountField.getText().trim()));
+                    }
+                } catch (DateTimeParseException | NumberFormatException ex) {
+                    JOptionPane.showMessageDialog(GUI.this, "Invalid filter value: " + ex.getMessage(), "Input Error", JOptionPane.ERROR_MESSAGE);
+                    return;
+                }
+                Object account = accountFilterComboBox.getSelectedItem();
+                if (account instanceof Account) {
+                    filter.setAccountId(((Account) account).getAccountId());
+                }
+                String type = (String) typeComboBox.getSelectedItem();
+                if (!"All".equals(type)) {
+                    filter.addType(type);
+                }
+                filter.setDescriptionContains(descriptionField.getText().trim());
+                filter.setNewestFirst(true);
+                filter.setLimit(HISTORY_ROW_LIMIT);
+
+                tableModel.setRowCount(0);
+                int count = bank.searchTransactions(bankNumber, filter, transaction -> tableModel.addRow(new Object[]{
+                        transaction.getTimestamp(), transaction.getType(), transaction.getAmount(), transaction.getDescription()}));
+                statusLabel.setText(count >= HISTORY_ROW_LIMIT
+                        ? "Showing the newest " + count + " matches. Narrow the filter to see older ones."
+                        : count + " matching transactions.");
+            }
+        };
+        searchButton.addActionListener(searchAction);
+        searchAction.actionPerformed(null); // Show the newest transactions before any filter is entered
+
+        JOptionPane.showMessageDialog(GUI.this, historyPanel, title, JOptionPane.PLAIN_MESSAGE);
+    }
+
+    /**
+     * Finds the user of the current session, which also keeps the session from going idle. If
+     * the session has expired, says so and goes back to the start to log in again.
+     * @return The user, or null if nobody is logged in.
+     */
+    private User sessionUser() {
+        User user = bank.getSessions().authenticate(sessionToken); // One lookup, no PIN check
+        if (user == null && sessionToken != null) {
+            sessionToken = null;
+            userDetailsLabel.setText("Not logged in");
+            cardLayout.show(mainPanel, "initial");
+            JOptionPane.showMessageDialog(GUI.this, "Your session has expired. Please log in again.", "Session Expired", JOptionPane.WARNING_MESSAGE);
+        }
+        return user;
+    }
+
+    private void refreshAccountChoices(User user) {
+        accountComboBox.removeAllItems();
+        for (Account account : bank.getAccounts(user.getBankNumber())) {
+            accountComboBox.addItem(account);
+        }
+    }
+
+    private AdmissionController.Permit admit(User user) {
+        AdmissionController.Permit permit = bank.getAdmissionController().tryAcquire(user.getBankNumber());
+        if (!permit.isAdmitted()) {
+            showTryAgainLater(permit.getRetryAfterMillis());
+        }
+        return permit;
+    }
+
+    private void showTryAgainLater(long retryAfterMillis) {
+        long seconds = Math.max(1, (retryAfterMillis + 999) / 1000); // Round up to whole seconds
+        JOptionPane.showMessageDialog(GUI.this, "Too many requests. Please try again in " + seconds + " seconds.", "Busy", JOptionPane.WARNING_MESSAGE);
+    }
+
+    private String selectedAccountId(User user) {
+        Account account = (Account) accountComboBox.getSelectedItem();
+        return account != null ? account.getAccountId() : user.getBankNumber(); // Fall back to the primary account
+    }
+
+    private void refreshRecentActivity(User user) {
+        StringBuilder text = new StringBuilder("Recent activity:\n");
+        for (Transaction transaction : bank.getRecentTransactions(user.getBankNumber())) { // Served from the in-memory cache
+            text.append(transaction.getTimestamp()).append("  ")
+                    .append(transaction.getType()).append("  ")
+                    .append(transaction.getAmount()).append("  ")
+                    .append(transaction.getDescription()).append('\n');
+        }
+        recentActivityTextArea.setText(text.toString());
+        recentActivityTextArea.setCaretPosition(0); // Scroll back to the newest entry
+    }
+
     private void displayUserDetails() {
-        if (loggedInUser != null) {
-            String details = "User: " + loggedInUser.getUserName() +
-                    ", Balance: " + loggedInUser.getBalance() +
-                    ", Account Type: " + loggedInUser.getAccountType();
+        User user = sessionUser();
+        if (user != null) {
+            Account account = bank.findAccount(selectedAccountId(user));
+            String details = "User: " + user.getUserName() +
+                    ", Balance: " + account.getBalance() + " " + account.getCurrency() +
+                    ", Available: " + account.getAvailableBalance() + // Balance minus authorization holds
+                    ", Account Type: " + account.getAccountType();
             userDetailsLabel.setText(details);
+            refreshRecentActivity(user);
         } else {
             userDetailsLabel.setText("Not logged in");
         }
@@ -0,0 +1,253 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Runs expiry callbacks for a large number of deadlines using a hierarchy of timing wheels.
+ * Level 0 has one slot per tick; each higher level has slots that are WHEEL_SIZE times wider.
+ * A timeout sits in the level whose range covers its remaining time and moves down a level
+ * each time the wheel below it completes a turn. Each slot is a doubly linked list, so
+ * scheduling and cancelling are O(1) however many timeouts are outstanding.
+ *
+ * A single daemon thread advances the wheel once per tick and hands every timeout that
+ * expired in that tick to the handler as one list.
+ *
+ * @param <T> The payload carried by each timeout.
+ */
+public class HierarchicalTimerWheel<T> {
+    private static final int WHEEL_BITS = 8;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS; // Slots per level.
+    private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+    private static final int LEVELS = 4; // Covers 2^32 ticks, more than a year at 10ms per tick.
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final Slot<T>[][] wheels;
+    private final Consumer<List<T>> expiryHandler;
+    private final Thread driver;
+    private long currentTick; // The next tick to be processed; all earlier ticks are done.
+    private int size; // Timeouts currently scheduled.
+    private volatile boolean running = true;
+
+    /**
+     * Creates a wheel and starts its driver thread.
+     * @param tickMillis The resolution of the wheel in milliseconds.
+     * @param threadName The name of the driver thread.
+     * @param expiryHandler Receives the payloads that expired in a tick; called on the driver thread.
+     */
+    public HierarchicalTimerWheel(long tickMillis, String threadName, Consumer<List<T>> expiryHandler) {
+        this.tickNanos = tickMillis * 1_000_000L;
+        this.startNanos = System.nanoTime();
+        this.expiryHandler = expiryHandler;
+        this.wheels = newWheels();
+        this.driver = new Thread(this::drive, threadName);
+        this.driver.setDaemon(true); // Never keep the application alive.
+        this.driver.start();
+    }
+
+    /**
+     * Creates the empty slots of every level.
+     * @param <T> The payload type.
+     * @return The slots, indexed by level and slot.
+     */
+    private static <T> Slot<T>[][] newWheels() {
+        @SuppressWarnings("unchecked") // Generic arrays cannot be created directly; every element is a Slot<T>.
+        Slot<T>[][] wheels = (Slot<T>[][]) new Slot<?>[LEVELS][WHEEL_SIZE];
+        for (int level = 0; level < LEVELS; level++) {
+            for (int slot = 0; slot < WHEEL_SIZE; slot++) {
+                wheels[level][slot] = new Slot<>();
+            }
+        }
+        return wheels;
+    }
+
+    /**
+     * Schedules a payload to expire after a delay.
+     * @param payload The payload handed to the expiry handler.
+     * @param delayMillis The delay in milliseconds; zero or less expires on the next tick.
+     * @return A handle that can cancel the timeout.
+     */
+    public Timeout<T> schedule(T payload, long delayMillis) {
+        long elapsedNanos = System.nanoTime() - startNanos + Math.max(0, delayMillis) * 1_000_000L;
+        long deadline = (elapsedNanos + tickNanos - 1) / tickNanos; // Round up so a timeout never fires early.
+        Timeout<T> timeout = new Timeout<>(this, payload, deadline);
+        synchronized (this) {
+            place(timeout);
+            size++;
+        }
+        return timeout;
+    }
+
+    /**
+     * Gets the number of scheduled timeouts.
+     * @return The number of timeouts that have neither expired nor been cancelled.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Stops the driver thread. Outstanding timeouts never fire.
+     */
+    public void stop() {
+        running = false;
+        driver.interrupt();
+    }
+
+    /**
+     * Puts a timeout into the slot that covers its deadline, relative to the current tick.
+     * @param timeout The timeout.
+     */
+    private void place(Timeout<T> timeout) {
+        long deadline = Math.max(timeout.deadline, currentTick); // Overdue timeouts expire on the next tick.
+        long remaining = deadline - currentTick;
+        int level = 0;
+        while (level < LEVELS - 1 && remaining >= 1L << (WHEEL_BITS * (level + 1))) {
+            level++;
+        }
+        // A timeout beyond the top level's range comes round again and is placed anew.
+        int slot = (int) ((deadline >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+        wheels[level][slot].add(timeout);
+    }
+
+    /**
+     * Processes every tick up to the current time.
+     */
+    private void drive() {
+        while (running) {
+            long nowTick = (System.nanoTime() - startNanos) / tickNanos;
+            List<T> expired = new ArrayList<>();
+            synchronized (this) {
+                while (currentTick <= nowTick) {
+                    processTick(expired);
+                }
+            }
+            if (!expired.isEmpty()) {
+                try {
+                    expiryHandler.accept(expired); // Outside the lock, so the handler may schedule again.
+                } catch (RuntimeException e) {
+                    System.err.println("Timer wheel handler failed: " + e); // Keep the wheel turning.
+                }
+            }
+            try {
+                Thread.sleep(tickNanos / 1_000_000L, (int) (tickNanos % 1_000_000L));
+            } catch (InterruptedException e) {
+                return; // Stopped.
+            }
+        }
+    }
+
+    /**
+     * Moves timeouts down from the higher levels whose slot starts at this tick, then
+     * expires level 0's slot for this tick.
+     * @param expired Collects the expired payloads.
+     */
+    private void processTick(List<T> expired) {
+        for (int level = LEVELS - 1; level > 0; level--) {
+            long span = 1L << (WHEEL_BITS * level);
+            if ((currentTick & (span - 1)) == 0) { // The wheel below has just completed a turn.
+                int slot = (int) ((currentTick >>> (WHEEL_BITS * level)) & WHEEL_MASK);
+                Timeout<T> timeout = wheels[level][slot].detachAll();
+                while (timeout != null) {
+                    Timeout<T> next = timeout.next;
+                    timeout.next = null;
+                    place(timeout);
+                    timeout = next;
+                }
+            }
+        }
+        Timeout<T> timeout = wheels[0][(int) (currentTick & WHEEL_MASK)].detachAll();
+        while (timeout != null) {
+            Timeout<T> next = timeout.next;
+            timeout.next = null;
+            expired.add(timeout.payload);
+            size--;
+            timeout = next;
+        }
+        currentTick++;
+    }
+
+    /**
+     * A scheduled payload; also the node of its slot's linked list.
+     * @param <T> The payload type.
+     */
+    public static class Timeout<T> {
+        private final HierarchicalTimerWheel<T> wheel;
+        private final T payload;
+        private final long deadline; // In ticks since the wheel started.
+        private Slot<T> slot; // Null once expired or cancelled.
+        private Timeout<T> previous;
+        private Timeout<T> next;
+
+        Timeout(HierarchicalTimerWheel<T> wheel, T payload, long deadline) {
+            this.wheel = wheel;
+            this.payload = payload;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancels the timeout so it never fires.
+         * @return true if it was cancelled, false if it had already expired or been cancelled.
+         */
+        public boolean cancel() {
+            synchronized (wheel) {
+                if (slot == null) {
+                    return false;
+                }
+                slot.remove(this);
+                wheel.size--;
+                return true;
+            }
+        }
+
+        public T getPayload() {
+            return payload;
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts sharing a slot.
+     * @param <T> The payload type.
+     */
+    private static class Slot<T> {
+        private Timeout<T> head;
+
+        void add(Timeout<T> timeout) {
+            timeout.slot = this;
+            timeout.previous = null;
+            timeout.next = head;
+            if (head != null) {
+                head.previous = timeout;
+            }
+            head = timeout;
+        }
+
+        void remove(Timeout<T> timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            } else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.slot = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+
+        /**
+         * Empties the slot.
+         * @return The first timeout of the detached list, linked through next.
+         */
+        Timeout<T> detachAll() {
+            Timeout<T> first = head;
+            head = null;
+            for (Timeout<T> timeout = first; timeout != null; timeout = timeout.next) {
+                timeout.slot = null; // Cancelling a detached timeout is a no-op.
+                timeout.previous = null;
+            }
+            return first;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/**
+ * An authorization hold: funds reserved on an account until they are captured, released,
+ * or the hold expires.
+ */
+public class Hold {
+    private final String holdId;
+    private final String accountId;
+    private final long amountCents;
+    private final long expiresAtMillis; // Epoch milliseconds.
+    private HierarchicalTimerWheel.Timeout<Hold> expiry; // Releases the hold when it runs out.
+
+    public Hold(String holdId, String accountId, long amountCents, long expiresAtMillis) {
+        this.holdId = holdId;
+        this.accountId = accountId;
+        this.amountCents = amountCents;
+        this.expiresAtMillis = expiresAtMillis;
+    }
+
+    public String getHoldId() {
+        return holdId;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    public long getExpiresAtMillis() {
+        return expiresAtMillis;
+    }
+
+    public synchronized HierarchicalTimerWheel.Timeout<Hold> getExpiry() {
+        return expiry;
+    }
+
+    public synchronized void setExpiry(HierarchicalTimerWheel.Timeout<Hold> expiry) {
+        this.expiry = expiry;
+    }
+
+    @Override
+    public String toString() {
+        return "Hold{" +
+                "holdId='" + holdId + '\'' +
+                ", accountId='" + accountId + '\'' +
+                ", amount=" + JournalEntry.fromCents(amountCents) +
+                ", expiresAt=" + expiresAtMillis +
+                '}';
+    }
+}
@@ -0,0 +1,104 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the outcome of recently seen idempotency keys so that retried requests
+ * can be answered without touching the database. The cache is split into independently
+ * locked segments, each holding a bounded number of entries that expire after a fixed age.
+ */
+public class IdempotencyCache {
+    private static final int SEGMENT_COUNT = 16; // Must be a power of two.
+
+    private final Segment[] segments = new Segment[SEGMENT_COUNT];
+    private final long expiryMillis;
+
+    /**
+     * Creates a cache.
+     * @param maxEntries The maximum number of keys remembered across all segments.
+     * @param expiryMillis How long a key is remembered, in milliseconds.
+     */
+    public IdempotencyCache(int maxEntries, long expiryMillis) {
+        this.expiryMillis = expiryMillis;
+        int perSegment = Math.max(1, maxEntries / SEGMENT_COUNT);
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+    }
+
+    /**
+     * Looks up the recorded outcome for a key.
+     * @param key The idempotency key.
+     * @return The entry, or null if the key is unknown or has expired.
+     */
+    public Entry get(String key) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            Entry entry = segment.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                segment.remove(key); // Expired entries are dropped lazily on lookup.
+                return null;
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Records the outcome of an operation under its key.
+     * @param key The idempotency key.
+     * @param fingerprint Identifies the operation the key was first used for.
+     * @param result The outcome returned to the caller.
+     */
+    public void put(String key, String fingerprint, boolean result) {
+        Segment segment = segmentFor(key);
+        synchronized (segment) {
+            segment.put(key, new Entry(fingerprint, result, System.currentTimeMillis() + expiryMillis));
+        }
+    }
+
+    private Segment segmentFor(String key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16); // Spread the high bits so similar keys land in different segments.
+        return segments[hash & (SEGMENT_COUNT - 1)];
+    }
+
+    /**
+     * The remembered outcome of one idempotency key.
+     */
+    public static class Entry {
+        private final String fingerprint;
+        private final boolean result;
+        private final long expiresAt;
+
+        Entry(String fingerprint, boolean result, long expiresAt) {
+            this.fingerprint = fingerprint;
+            this.result = result;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getFingerprint() {
+            return fingerprint;
+        }
+
+        public boolean getResult() {
+            return result;
+        }
+    }
+
+    /**
+     * An insertion ordered map that drops its oldest entry once it is full.
+     */
+    private static class Segment extends LinkedHashMap<String, IdempotencyCache.Entry> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        Segment(int capacity) {
+            super(16, 0.75f, false);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IdempotencyCache.Entry> eldest) {
+            return size() > capacity || eldest.getValue().expiresAt < System.currentTimeMillis();
+        }
+    }
+}
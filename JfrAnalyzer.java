@@ -0,0 +1,118 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes the bank events of a flight recording made with bank.jfc. For every operation and
+ * outcome it prints the count and, for the total time and each phase, the mean, median, 99th
+ * percentile and maximum in milliseconds, so the phase where a latency spike went is visible at once.
+ *
+ * Usage: java -cp target/classes JfrAnalyzer recording.jfr
+ */
+public class JfrAnalyzer {
+    private static final String[] OPERATION_PHASES = {"connectTime", "ledgerTime", "insertTime", "commitTime", "memoryTime"};
+    private static final String[] SAVE_PHASES = {"connectTime", "insertTime", "logTime"};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: JfrAnalyzer recording.jfr");
+            System.exit(2);
+        }
+        Map<String, Group> groups = new TreeMap<>(); // By event, operation and outcome.
+        long events = 0;
+        Path recording = Paths.get(args[0]);
+        try (RecordingFile file = new RecordingFile(recording)) {
+            while (file.hasMoreEvents()) {
+                RecordedEvent event = file.readEvent();
+                String name = event.getEventType().getName();
+                if ("bank.Operation".equals(name)) {
+                    group(groups, "Operation " + event.getString("operation") + " (" + event.getString("outcome") + ")", OPERATION_PHASES).add(event);
+                } else if ("bank.TransactionSave".equals(name)) {
+                    group(groups, "Save " + event.getString("type") + " (" + event.getString("outcome") + ")", SAVE_PHASES).add(event);
+                } else {
+                    continue;
+                }
+                events++;
+            }
+        }
+        System.out.println(events + " bank events in " + recording);
+        for (Map.Entry<String, Group> entry : groups.entrySet()) {
+            System.out.println();
+            System.out.println(entry.getKey() + ": " + entry.getValue().count + " events");
+            System.out.println(String.format("  %-12s %10s %10s %10s %10s %7s", "phase", "mean ms", "p50 ms", "p99 ms", "max ms", "share"));
+            entry.getValue().print();
+        }
+    }
+
+    private static Group group(Map<String, Group> groups, String key, String[] phases) {
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(phases);
+            groups.put(key, group);
+        }
+        return group;
+    }
+
+    /**
+     * The durations of one kind of event: the total, then one column per phase.
+     */
+    private static class Group {
+        private final String[] phases;
+        private final List<long[]> columns = new ArrayList<>();
+        private int count;
+
+        Group(String[] phases) {
+            this.phases = phases;
+            for (int i = 0; i <= phases.length; i++) {
+                columns.add(new long[64]);
+            }
+        }
+
+        void add(RecordedEvent event) {
+            if (count == columns.get(0).length) {
+                for (int i = 0; i < columns.size(); i++) {
+                    columns.set(i, Arrays.copyOf(columns.get(i), count * 2));
+                }
+            }
+            columns.get(0)[count] = event.getDuration().toNanos();
+            for (int i = 0; i < phases.length; i++) {
+                Duration phase = event.getDuration(phases[i]);
+                columns.get(i + 1)[count] = phase == null ? 0 : phase.toNanos();
+            }
+            count++;
+        }
+
+        void print() {
+            long total = sum(columns.get(0));
+            for (int i = 0; i < columns.size(); i++) {
+                long[] values = Arrays.copyOf(columns.get(i), count);
+                Arrays.sort(values);
+                long sum = sum(values);
+                System.out.println(String.format("  %-12s %10.3f %10.3f %10.3f %10.3f %6.1f%%",
+                        i == 0 ? "total" : phases[i - 1].replace("Time", ""),
+                        millis(sum / (double) count), millis(values[count / 2]), millis(values[Math.min(count - 1, (int) (count * 0.99))]),
+                        millis(values[count - 1]), total == 0 ? 0 : 100.0 * sum / total));
+            }
+        }
+
+        private long sum(long[] values) {
+            long sum = 0;
+            for (int i = 0; i < count; i++) {
+                sum += values[i];
+            }
+            return sum;
+        }
+
+        private static double millis(double nanos) {
+            return nanos / 1_000_000.0;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One balanced operation for the ledger: a set of postings whose amounts sum to zero.
+ * Amounts are in cents. A positive posting increases an account's balance (a credit to the
+ * customer), a negative one decreases it (a debit). Accounts whose id starts with '@' are the
+ * bank's own system accounts, such as cash received or interest paid; they have no row in the
+ * accounts table.
+ */
+public class JournalEntry {
+    public static final String CASH_ACCOUNT = "@cash"; // Money entering or leaving the bank.
+    public static final String INTEREST_ACCOUNT = "@interest"; // Interest paid out to customers.
+    public static final String TRANSFER_ACCOUNT = "@transfer"; // Money in flight between shards.
+    public static final String OPENING_BALANCE_ACCOUNT = "@opening"; // Balances that existed before the ledger.
+    private static final String EXCHANGE_ACCOUNT_PREFIX = "@fx-"; // Followed by a currency code, see exchange.
+
+    private final LocalDateTime timestamp;
+    private final String type;
+    private final String description;
+    private final List<Posting> postings = new ArrayList<>();
+    private String idempotencyKey; // Client supplied key, recorded on the first customer posting's history row; may be null.
+    private long entryId = -1; // Id the ledger gave the entry when it was posted, -1 before.
+    private volatile boolean pending; // Counted in its customer account's pending postings until committed or given up.
+
+    public JournalEntry(LocalDateTime timestamp, String type, String description) {
+        this.timestamp = timestamp;
+        this.type = type;
+        this.description = description;
+    }
+
+    /**
+     * Creates the common two-legged entry moving money from one account to another.
+     * @param type The entry type, e.g. "Deposit".
+     * @param description The entry description.
+     * @param fromAccountId The account that is debited.
+     * @param toAccountId The account that is credited.
+     * @param amount The amount moved.
+     * @return The entry.
+     */
+    public static JournalEntry transfer(String type, String description, String fromAccountId, String toAccountId, BigDecimal amount) {
+        long cents = toCents(amount);
+        JournalEntry entry = new JournalEntry(LocalDateTime.now(), type, description);
+        entry.addPosting(fromAccountId, -cents);
+        entry.addPosting(toAccountId, cents);
+        return entry;
+    }
+
+    /**
+     * Creates an entry moving money between accounts held in different currencies. The source
+     * amount goes into the exchange account of its currency and the converted amount comes out
+     * of the exchange account of the target currency, so the postings of each currency sum to
+     * zero on their own and the exchange accounts show the bank's position in each currency.
+     * @param type The entry type, e.g. "Transfer".
+     * @param description The entry description.
+     * @param fromAccountId The account that is debited.
+     * @param fromCurrency The currency of the debited account.
+     * @param fromCents The amount debited, in cents of fromCurrency.
+     * @param toAccountId The account that is credited.
+     * @param toCurrency The currency of the credited account.
+     * @param toCents The amount credited, in cents of toCurrency.
+     * @return The entry; a plain two-legged one if both currencies are the same.
+     */
+    public static JournalEntry exchange(String type, String description, String fromAccountId, String fromCurrency, long fromCents,
+                                        String toAccountId, String toCurrency, long toCents) {
+        JournalEntry entry = new JournalEntry(LocalDateTime.now(), type, description);
+        entry.addPosting(fromAccountId, -fromCents);
+        if (!fromCurrency.equals(toCurrency)) {
+            entry.addPosting(exchangeAccount(fromCurrency), fromCents);
+            entry.addPosting(exchangeAccount(toCurrency), -toCents);
+        }
+        entry.addPosting(toAccountId, toCents);
+        return entry;
+    }
+
+    /**
+     * Gets the system account that clears exchanges in a currency.
+     * @param currency The currency code.
+     * @return The account id.
+     */
+    public static String exchangeAccount(String currency) {
+        return EXCHANGE_ACCOUNT_PREFIX + currency;
+    }
+
+    /**
+     * Adds a posting.
+     * @param accountId The account.
+     * @param amountCents The signed amount in cents.
+     */
+    public void addPosting(String accountId, long amountCents) {
+        postings.add(new Posting(accountId, amountCents));
+    }
+
+    /**
+     * Adds a posting that only applies if the account row is still at the given version, for
+     * amounts computed from a balance read earlier.
+     * @param accountId The account.
+     * @param amountCents The signed amount in cents.
+     * @param expectedVersion The row version the amount was computed at.
+     */
+    public void addPosting(String accountId, long amountCents, long expectedVersion) {
+        postings.add(new Posting(accountId, amountCents, expectedVersion));
+    }
+
+    /**
+     * Checks that the entry has postings and that they sum to zero.
+     * @return true if the entry can be posted.
+     */
+    public boolean isBalanced() {
+        long sum = 0;
+        for (Posting posting : postings) {
+            sum += posting.getAmountCents();
+        }
+        return !postings.isEmpty() && sum == 0;
+    }
+
+    /**
+     * Returns the total change this entry makes to one account.
+     * @param accountId The account.
+     * @return The signed amount in cents.
+     */
+    public long netChange(String accountId) {
+        long sum = 0;
+        for (Posting posting : postings) {
+            if (posting.getAccountId().equals(accountId)) {
+                sum += posting.getAmountCents();
+            }
+        }
+        return sum;
+    }
+
+    public String getTimestamp() {
+        return timestamp.format(DateTimeFormatter.ISO_LOCAL_DATE_TIME);
+    }
+
+    public LocalDateTime getDateTime() {
+        return timestamp;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+
+    public List<Posting> getPostings() {
+        return postings;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public long getEntryId() {
+        return entryId;
+    }
+
+    public void setEntryId(long entryId) {
+        this.entryId = entryId;
+    }
+
+    public boolean isPending() {
+        return pending;
+    }
+
+    public void setPending(boolean pending) {
+        this.pending = pending;
+    }
+
+    /**
+     * Converts an amount to whole cents, rounding half up.
+     * @param amount The amount.
+     * @return The amount in cents.
+     */
+    public static long toCents(BigDecimal amount) {
+        return amount.setScale(2, RoundingMode.HALF_UP).movePointRight(2).longValueExact();
+    }
+
+    /**
+     * Converts cents back to an amount with two decimals.
+     * @param cents The amount in cents.
+     * @return The amount.
+     */
+    public static BigDecimal fromCents(long cents) {
+        return BigDecimal.valueOf(cents, 2);
+    }
+
+    /**
+     * Checks whether an account id names one of the bank's system accounts.
+     * @param accountId The account id.
+     * @return true for system accounts.
+     */
+    public static boolean isSystemAccount(String accountId) {
+        return accountId.startsWith("@");
+    }
+
+    /**
+     * One leg of a journal entry.
+     */
+    public static class Posting {
+        private final String accountId;
+        private final long amountCents;
+        private final long expectedVersion; // Row version the posting requires, -1 for any.
+
+        public Posting(String accountId, long amountCents) {
+            this(accountId, amountCents, -1);
+        }
+
+        public Posting(String accountId, long amountCents, long expectedVersion) {
+            this.accountId = accountId;
+            this.amountCents = amountCents;
+            this.expectedVersion = expectedVersion;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public long getAmountCents() {
+            return amountCents;
+        }
+
+        public long getExpectedVersion() {
+            return expectedVersion;
+        }
+    }
+}
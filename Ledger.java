@@ -0,0 +1,403 @@
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Double-entry bookkeeping for one shard. Every change of money is a journal entry whose
+ * postings sum to zero, and accounts.balance is a projection of the postings, updated in the
+ * same database transaction. Running totals are kept in a single row so that the books can be
+ * checked without reading every posting. Triggers maintain them from the rows actually stored:
+ * debits and credits from every posting inserted, the net posted to customer accounts from
+ * those postings, and the sum of the customer balances from every change to accounts.balance.
+ * Postings that do not balance, or a balance changed without a posting, make them disagree.
+ *
+ * The methods never commit; callers open the transaction so that a journal entry can be
+ * written together with the rows that describe it, such as the customer's transaction history.
+ */
+public class Ledger {
+    private static final String RETURNING_STATE = " RETURNING balance, accountType, version"; // Balance updates read back the row they changed.
+
+    /**
+     * Thrown when a posting would take a customer account below zero.
+     */
+    public static class InsufficientFundsException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        public InsufficientFundsException(String accountId) {
+            super("Account missing or insufficient funds: " + accountId);
+        }
+    }
+
+    /**
+     * Thrown when a posting required a row version that another writer has already moved past.
+     */
+    public static class VersionConflictException extends SQLException {
+        private static final long serialVersionUID = 1L;
+
+        public VersionConflictException(String accountId, long expectedVersion) {
+            super("Account changed concurrently: " + accountId + " is no longer at version " + expectedVersion);
+        }
+    }
+
+    /**
+     * A customer account as a posting left it, read back from the updated row so that callers
+     * can update their caches with the exact balance and version instead of applying the delta.
+     */
+    public static class AccountState {
+        private final String accountId;
+        private final BigDecimal balance;
+        private final String accountType;
+        private final long version;
+
+        public AccountState(String accountId, BigDecimal balance, String accountType, long version) {
+            this.accountId = accountId;
+            this.balance = balance;
+            this.accountType = accountType;
+            this.version = version;
+        }
+
+        public String getAccountId() {
+            return accountId;
+        }
+
+        public BigDecimal getBalance() {
+            return balance;
+        }
+
+        public String getAccountType() {
+            return accountType;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Creates the ledger tables if they don't exist.
+     * @param connection The database connection.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public static void createTables(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) { // Create a statement.
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS ledger_entries (" +
+                    "entryId INTEGER PRIMARY KEY, " +
+                    "timestamp TEXT NOT NULL, " +
+                    "type TEXT NOT NULL, " +
+                    "description TEXT" +
+                    ")");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS postings (" +
+                    "entryId INTEGER NOT NULL, " +
+                    "accountId TEXT NOT NULL, " +
+                    "amountCents INTEGER NOT NULL" + // Positive credits the account, negative debits it.
+                    ")");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_postings_account ON postings (accountId, entryId)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS idx_postings_entry ON postings (entryId)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS ledger_totals (" +
+                    "id INTEGER PRIMARY KEY CHECK (id = 0), " +
+                    "debitCents INTEGER NOT NULL, " +
+                    "creditCents INTEGER NOT NULL, " +
+                    "postedCents INTEGER NOT NULL DEFAULT 0, " + // Net of the postings to customer accounts.
+                    "balanceCents INTEGER NOT NULL DEFAULT 0, " + // Sum of accounts.balance.
+                    "entryCount INTEGER NOT NULL DEFAULT 0" +
+                    ")");
+            statement.executeUpdate("INSERT OR IGNORE INTO ledger_totals (id, debitCents, creditCents) VALUES (0, 0, 0)");
+            if (!hasColumn(connection, "ledger_totals", "postedCents")) { // Totals from before the triggers.
+                statement.executeUpdate("ALTER TABLE ledger_totals ADD COLUMN postedCents INTEGER NOT NULL DEFAULT 0");
+                statement.executeUpdate("ALTER TABLE ledger_totals ADD COLUMN balanceCents INTEGER NOT NULL DEFAULT 0");
+                statement.executeUpdate("ALTER TABLE ledger_totals ADD COLUMN entryCount INTEGER NOT NULL DEFAULT 0");
+                statement.executeUpdate("UPDATE ledger_totals SET " +
+                        "debitCents = (SELECT COALESCE(SUM(CASE WHEN amountCents < 0 THEN -amountCents ELSE 0 END), 0) FROM postings), " +
+                        "creditCents = (SELECT COALESCE(SUM(CASE WHEN amountCents > 0 THEN amountCents ELSE 0 END), 0) FROM postings), " +
+                        "postedCents = (SELECT COALESCE(SUM(amountCents), 0) FROM postings WHERE substr(accountId, 1, 1) <> '@'), " +
+                        "balanceCents = (SELECT COALESCE(SUM(CAST(ROUND(balance * 100) AS INTEGER)), 0) FROM accounts), " +
+                        "entryCount = (SELECT COUNT(*) FROM ledger_entries) WHERE id = 0");
+            }
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS postings_totals AFTER INSERT ON postings BEGIN " +
+                    "UPDATE ledger_totals SET " +
+                    "debitCents = debitCents + (CASE WHEN NEW.amountCents < 0 THEN -NEW.amountCents ELSE 0 END), " +
+                    "creditCents = creditCents + (CASE WHEN NEW.amountCents > 0 THEN NEW.amountCents ELSE 0 END), " +
+                    "postedCents = postedCents + (CASE WHEN substr(NEW.accountId, 1, 1) = '@' THEN 0 ELSE NEW.amountCents END) " +
+                    "WHERE id = 0; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS accounts_balance_inserted AFTER INSERT ON accounts BEGIN " +
+                    "UPDATE ledger_totals SET balanceCents = balanceCents + CAST(ROUND(NEW.balance * 100) AS INTEGER) WHERE id = 0; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS accounts_balance_updated AFTER UPDATE OF balance ON accounts BEGIN " +
+                    "UPDATE ledger_totals SET balanceCents = balanceCents + CAST(ROUND(NEW.balance * 100) AS INTEGER) " +
+                    "- CAST(ROUND(OLD.balance * 100) AS INTEGER) WHERE id = 0; END");
+            statement.executeUpdate("CREATE TRIGGER IF NOT EXISTS accounts_balance_deleted AFTER DELETE ON accounts BEGIN " +
+                    "UPDATE ledger_totals SET balanceCents = balanceCents - CAST(ROUND(OLD.balance * 100) AS INTEGER) WHERE id = 0; END");
+        }
+    }
+
+    private static boolean hasColumn(Connection connection, String table, String column) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (resultSet.next()) {
+                if (column.equalsIgnoreCase(resultSet.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives every account that has a balance but no postings an opening entry, so that balances
+     * written before the ledger existed are backed by postings. The balances themselves are
+     * left unchanged.
+     * @param connection The database connection, with auto-commit off.
+     * @return The number of accounts opened.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public static int openMissingBalances(Connection connection) throws SQLException {
+        String sql = "SELECT accountId, balance FROM accounts a WHERE balance <> 0 " +
+                "AND NOT EXISTS (SELECT 1 FROM postings p WHERE p.accountId = a.accountId)";
+        List<JournalEntry> entries = new ArrayList<>();
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery(sql)) {
+            while (resultSet.next()) {
+                long cents = Math.round(resultSet.getDouble("balance") * 100); // Balances are stored with two decimals.
+                JournalEntry entry = new JournalEntry(LocalDateTime.now(), "Opening Balance", "Balance carried over into the ledger");
+                entry.addPosting(JournalEntry.OPENING_BALANCE_ACCOUNT, -cents);
+                entry.addPosting(resultSet.getString("accountId"), cents);
+                entries.add(entry);
+            }
+        }
+        if (!entries.isEmpty()) {
+            write(connection, entries, false); // The balance column already holds these amounts.
+        }
+        return entries.size();
+    }
+
+    /**
+     * Posts a single entry and updates the balances of the customer accounts it touches.
+     * @param connection The database connection, with auto-commit off.
+     * @param entry The entry to post.
+     * @return The state of each customer account after its posting, in posting order.
+     * @throws SQLException If an SQL exception occurs, InsufficientFundsException or VersionConflictException.
+     */
+    public static List<AccountState> post(Connection connection, JournalEntry entry) throws SQLException {
+        return write(connection, Collections.singletonList(entry), true);
+    }
+
+    /**
+     * Posts many entries using batched statements. Either all of them are written or, once the
+     * caller rolls back, none are.
+     * @param connection The database connection, with auto-commit off.
+     * @param entries The entries to post, in order.
+     * @return The state of each customer account after each of its postings, in posting order.
+     * @throws SQLException If an SQL exception occurs, InsufficientFundsException or VersionConflictException.
+     */
+    public static List<AccountState> postBatch(Connection connection, List<JournalEntry> entries) throws SQLException {
+        return write(connection, entries, true);
+    }
+
+    /**
+     * Writes the entries and their postings, and optionally the balance projection.
+     * @param connection The database connection, with auto-commit off.
+     * @param entries The entries to post, in order.
+     * @param updateBalances Whether the customer balances change with the postings.
+     * @return The state of each customer account after each of its postings, empty if balances are not updated.
+     * @throws SQLException If an SQL exception occurs, InsufficientFundsException or VersionConflictException.
+     */
+    private static List<AccountState> write(Connection connection, List<JournalEntry> entries, boolean updateBalances) throws SQLException {
+        for (JournalEntry entry : entries) { // Reject the whole batch before writing anything.
+            if (!entry.isBalanced()) {
+                throw new IllegalArgumentException("Unbalanced journal entry: " + entry.getType());
+            }
+        }
+
+        // Counting the entries first takes the write lock, so the entry ids read next stay ours.
+        try (PreparedStatement statement = connection.prepareStatement(
+                "UPDATE ledger_totals SET entryCount = entryCount + ? WHERE id = 0")) {
+            statement.setLong(1, entries.size());
+            statement.executeUpdate();
+        }
+        long nextEntryId;
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(entryId), 0) FROM ledger_entries")) {
+            nextEntryId = resultSet.getLong(1) + 1;
+        }
+
+        List<AccountState> states = new ArrayList<>();
+        try (PreparedStatement entryStatement = connection.prepareStatement(
+                "INSERT INTO ledger_entries (entryId, timestamp, type, description) VALUES (?, ?, ?, ?)");
+             PreparedStatement postingStatement = connection.prepareStatement(
+                     "INSERT INTO postings (entryId, accountId, amountCents) VALUES (?, ?, ?)");
+             PreparedStatement creditStatement = connection.prepareStatement(
+                     "UPDATE accounts SET balance = ROUND(balance + ?, 2), version = version + 1 WHERE accountId = ?" + RETURNING_STATE);
+             PreparedStatement debitStatement = connection.prepareStatement( // A debit may not overdraw the account.
+                     "UPDATE accounts SET balance = ROUND(balance + ?, 2), version = version + 1 WHERE accountId = ? AND ROUND(balance + ?, 2) >= 0" + RETURNING_STATE);
+             PreparedStatement versionedStatement = connection.prepareStatement( // Compare and swap on the row version.
+                     "UPDATE accounts SET balance = ROUND(balance + ?, 2), version = version + 1 WHERE accountId = ? AND ROUND(balance + ?, 2) >= 0 AND version = ?" + RETURNING_STATE)) {
+            for (JournalEntry entry : entries) {
+                long entryId = nextEntryId++;
+                entry.setEntryId(entryId);
+                entryStatement.setLong(1, entryId);
+                entryStatement.setString(2, entry.getTimestamp());
+                entryStatement.setString(3, entry.getType());
+                entryStatement.setString(4, entry.getDescription());
+                entryStatement.addBatch();
+                for (JournalEntry.Posting posting : entry.getPostings()) {
+                    postingStatement.setLong(1, entryId);
+                    postingStatement.setString(2, posting.getAccountId());
+                    postingStatement.setLong(3, posting.getAmountCents());
+                    postingStatement.addBatch();
+                    if (updateBalances && !JournalEntry.isSystemAccount(posting.getAccountId())) {
+                        if (posting.getExpectedVersion() >= 0) {
+                            states.add(updateVersionedBalance(connection, posting, versionedStatement));
+                        } else {
+                            states.add(updateBalance(posting, posting.getAmountCents() < 0 ? debitStatement : creditStatement));
+                        }
+                    }
+                }
+            }
+            entryStatement.executeBatch();
+            postingStatement.executeBatch();
+        }
+        return states;
+    }
+
+    /**
+     * Applies one posting to the balance projection. Run immediately rather than batched so
+     * that an overdraft is reported against the posting that caused it.
+     * @param posting The posting.
+     * @param statement The credit or debit statement.
+     * @return The state of the account after the posting.
+     * @throws SQLException If an SQL exception occurs, or InsufficientFundsException.
+     */
+    private static AccountState updateBalance(JournalEntry.Posting posting, PreparedStatement statement) throws SQLException {
+        double amount = posting.getAmountCents() / 100.0;
+        statement.setDouble(1, amount);
+        statement.setString(2, posting.getAccountId());
+        if (posting.getAmountCents() < 0) {
+            statement.setDouble(3, amount);
+        }
+        AccountState state = readState(posting, statement);
+        if (state == null) {
+            throw new InsufficientFundsException(posting.getAccountId());
+        }
+        return state;
+    }
+
+    /**
+     * Runs a balance update and reads back the row it changed.
+     * @param posting The posting being applied.
+     * @param statement The update statement, with its parameters set.
+     * @return The state of the account, or null if no row was updated.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private static AccountState readState(JournalEntry.Posting posting, PreparedStatement statement) throws SQLException {
+        try (ResultSet resultSet = statement.executeQuery()) {
+            if (!resultSet.next()) {
+                return null;
+            }
+            return new AccountState(posting.getAccountId(), BigDecimal.valueOf(resultSet.getDouble("balance")),
+                    resultSet.getString("accountType"), resultSet.getLong("version"));
+        }
+    }
+
+    /**
+     * Applies a posting that requires the account row to still be at the version the caller read.
+     * @param connection The database connection.
+     * @param posting The posting, with an expected version.
+     * @param statement The versioned update statement.
+     * @return The state of the account after the posting.
+     * @throws SQLException If an SQL exception occurs, VersionConflictException or InsufficientFundsException.
+     */
+    private static AccountState updateVersionedBalance(Connection connection, JournalEntry.Posting posting, PreparedStatement statement) throws SQLException {
+        double amount = posting.getAmountCents() / 100.0;
+        statement.setDouble(1, amount);
+        statement.setString(2, posting.getAccountId());
+        statement.setDouble(3, amount);
+        statement.setLong(4, posting.getExpectedVersion());
+        AccountState state = readState(posting, statement);
+        if (state != null) {
+            return state;
+        }
+        try (PreparedStatement versionStatement = connection.prepareStatement("SELECT version FROM accounts WHERE accountId = ?")) {
+            versionStatement.setString(1, posting.getAccountId());
+            try (ResultSet resultSet = versionStatement.executeQuery()) {
+                if (resultSet.next() && resultSet.getLong(1) != posting.getExpectedVersion()) {
+                    throw new VersionConflictException(posting.getAccountId(), posting.getExpectedVersion());
+                }
+            }
+        }
+        throw new InsufficientFundsException(posting.getAccountId()); // Still at the version, so the guard refused it.
+    }
+
+    /**
+     * Checks the books using the running totals only: total debits equal total credits, and the
+     * customer balances add up to what was posted to them. verify finds out where they differ.
+     * @param connection The database connection.
+     * @return true if the books balance.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public static boolean checkTotals(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT debitCents, creditCents, postedCents, balanceCents FROM ledger_totals WHERE id = 0")) {
+            return resultSet.next() && resultSet.getLong("debitCents") == resultSet.getLong("creditCents")
+                    && resultSet.getLong("postedCents") == resultSet.getLong("balanceCents");
+        }
+    }
+
+    /**
+     * Checks the books in full: the postings sum to zero, agree with the running totals, and
+     * every customer balance equals the sum of its postings and is counted in the running total.
+     * @param connection The database connection.
+     * @return A description of each problem found, empty if the books are consistent.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public static List<String> verify(Connection connection) throws SQLException {
+        List<String> problems = new ArrayList<>();
+        try (Statement statement = connection.createStatement()) {
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT COALESCE(SUM(CASE WHEN amountCents < 0 THEN -amountCents ELSE 0 END), 0) AS debits, " +
+                    "COALESCE(SUM(CASE WHEN amountCents > 0 THEN amountCents ELSE 0 END), 0) AS credits, " +
+                    "COALESCE(SUM(CASE WHEN substr(accountId, 1, 1) <> '@' THEN amountCents ELSE 0 END), 0) AS posted, " +
+                    "(SELECT debitCents FROM ledger_totals WHERE id = 0) AS totalDebits, " +
+                    "(SELECT creditCents FROM ledger_totals WHERE id = 0) AS totalCredits, " +
+                    "(SELECT postedCents FROM ledger_totals WHERE id = 0) AS totalPosted FROM postings")) {
+                long debits = resultSet.getLong("debits");
+                long credits = resultSet.getLong("credits");
+                if (debits != credits) {
+                    problems.add("Postings do not balance: debits " + debits + ", credits " + credits + " cents");
+                }
+                if (debits != resultSet.getLong("totalDebits") || credits != resultSet.getLong("totalCredits")
+                        || resultSet.getLong("posted") != resultSet.getLong("totalPosted")) {
+                    problems.add("Running totals differ from the postings");
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT entryId, SUM(amountCents) AS net FROM postings GROUP BY entryId HAVING net <> 0")) {
+                while (resultSet.next()) {
+                    problems.add("Entry " + resultSet.getLong("entryId") + " is off by " + resultSet.getLong("net") + " cents");
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT a.accountId, ROUND(a.balance * 100) AS balanceCents, COALESCE(SUM(p.amountCents), 0) AS postedCents " +
+                    "FROM accounts a LEFT JOIN postings p ON p.accountId = a.accountId " +
+                    "GROUP BY a.accountId HAVING balanceCents <> postedCents")) {
+                while (resultSet.next()) {
+                    problems.add("Account " + resultSet.getString("accountId") + " shows " + resultSet.getLong("balanceCents")
+                            + " cents but its postings sum to " + resultSet.getLong("postedCents"));
+                }
+            }
+            try (ResultSet resultSet = statement.executeQuery(
+                    "SELECT COALESCE(SUM(CAST(ROUND(balance * 100) AS INTEGER)), 0) AS balances, " +
+                    "(SELECT balanceCents FROM ledger_totals WHERE id = 0) AS totalBalances FROM accounts")) {
+                if (resultSet.getLong("balances") != resultSet.getLong("totalBalances")) {
+                    problems.add("Running balance total differs from the accounts");
+                }
+            }
+        }
+        return problems;
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Writes the audit rows of logins in the background, so a login returns without waiting for the
+ * database. Rows are queued and a writer thread saves whatever has queued up since its last
+ * write as one batch, with one database transaction per shard; while a batch is being written
+ * the next one forms, so the batches grow with the login rate. A batch a shard refuses is
+ * retried a few times before it is reported and dropped. When the queue is full, or the auditor
+ * is closed, a row is written on the caller's thread instead, so rows are slowed down rather
+ * than lost.
+ */
+public class LoginAuditor implements AutoCloseable {
+    private static final int MAX_ATTEMPTS = 3; // Writes of a batch before it is dropped.
+    private static final long RETRY_DELAY_MILLIS = 200; // Wait before the first retry, doubled for the next.
+
+    private final Bank bank;
+    private final BlockingQueue<Transaction> queue;
+    private final int maxBatch;
+    private final Thread writer;
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final ReadWriteLock closing = new ReentrantReadWriteLock(); // Callers queue under the read lock, close flips the flag under the write lock.
+    private volatile boolean closed;
+
+    /**
+     * Creates an auditor and starts its writer thread.
+     * @param bank The bank whose database the rows are written to.
+     * @param capacity The most rows queued before callers write their own.
+     * @param maxBatch The most rows written in one batch.
+     */
+    public LoginAuditor(Bank bank, int capacity, int maxBatch) {
+        if (capacity < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException("Capacity and batch size must be positive");
+        }
+        this.bank = bank;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.maxBatch = maxBatch;
+        this.writer = new Thread(this::run, "login-auditor");
+        this.writer.setDaemon(true); // Never keeps the application alive; close writes what is left.
+        this.writer.start();
+    }
+
+    /**
+     * Queues an audit row for writing.
+     * @param transaction The row; it records no balance change.
+     */
+    public void record(Transaction transaction) {
+        boolean queued;
+        closing.readLock().lock(); // Close cannot come between the check and the offer.
+        try {
+            queued = !closed && queue.offer(transaction);
+        } finally {
+            closing.readLock().unlock();
+        }
+        if (!queued) {
+            write(Collections.singletonList(transaction)); // The writer is gone or behind; write it here rather than lose it.
+        }
+    }
+
+    private void run() {
+        List<Transaction> batch = new ArrayList<>(maxBatch);
+        while (!closed) {
+            try {
+                Transaction first = queue.poll(100, TimeUnit.MILLISECONDS); // Wake up now and then to see the flag.
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, maxBatch - 1); // Everything that queued up meanwhile.
+                write(batch);
+                batch.clear();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes a batch, retrying the shards that failed.
+     * @param batch The rows.
+     */
+    private void write(List<Transaction> batch) {
+        List<Transaction> pending = batch;
+        long delay = RETRY_DELAY_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            List<Transaction> failed = bank.saveTransactions(pending);
+            written.addAndGet(pending.size() - failed.size());
+            if (failed.isEmpty()) {
+                batches.incrementAndGet();
+                return;
+            }
+            if (attempt == MAX_ATTEMPTS) {
+                System.err.println("Dropped " + failed.size() + " login audit rows after " + MAX_ATTEMPTS + " attempts."); // Print an error message if the database keeps refusing them.
+                return;
+            }
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Try once more without waiting.
+            }
+            delay *= 2;
+            pending = failed;
+        }
+    }
+
+    /**
+     * Gets the number of rows waiting to be written.
+     * @return The queue length.
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * Gets the number of rows written so far.
+     * @return The count.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Gets the number of batches written so far.
+     * @return The count.
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Stops the writer and writes the rows still queued. Rows recorded from then on are written
+     * by their callers.
+     */
+    @Override
+    public void close() {
+        closing.writeLock().lock(); // Waits for callers between their check and their offer.
+        try {
+            closed = true;
+        } finally {
+            closing.writeLock().unlock();
+        }
+        try {
+            writer.join(5000); // Let a batch in progress finish.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<Transaction> rest = new ArrayList<>();
+        queue.drainTo(rest);
+        if (!rest.isEmpty()) {
+            write(rest);
+        }
+    }
+}
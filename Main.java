@@ -1,8 +1,54 @@
 import javax.swing.SwingUtilities;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CompletableFuture;
 
 public class Main {
+    private static final long jvmStartMillis = ManagementFactory.getRuntimeMXBean().getStartTime();
+
     public static void main(String[] args) {
-        Bank bank = new Bank();
-        SwingUtilities.invokeLater(() -> new GUI(bank));
+        markStartupPhase("main entered");
+        // Load the database in the background while the window is being built.
+        CompletableFuture<Bank> bankReady = CompletableFuture.supplyAsync(() -> {
+            Bank bank = new Bank();
+            startReplication(bank);
+            markStartupPhase("bank ready");
+            return bank;
+        });
+        SwingUtilities.invokeLater(() -> new GUI(bankReady));
+    }
+
+    /**
+     * Streams the bank's changes to standbys when the bank.replication.port property is set.
+     * A standby is started with "java Standby <database file> <shards> <port>".
+     * @param bank The bank.
+     */
+    private static void startReplication(Bank bank) {
+        Integer port = Integer.getInteger("bank.replication.port");
+        if (port == null) {
+            return; // Replication is off.
+        }
+        Replicator replicator = new Replicator(bank, Integer.getInteger("bank.replication.backlog", 1 << 20));
+        bank.setReplicator(replicator); // Changes from now on reach the standby; earlier ones come with its snapshot.
+        try {
+            replicator.listen(port);
+        } catch (IOException e) {
+            bank.setReplicator(null);
+            System.err.println("Could not start replication on port " + port + ": " + e.getMessage()); // Run without a standby.
+        }
+    }
+
+    /**
+     * Prints how long after JVM start a startup phase was reached. When the
+     * bank.startup.exitWhenInteractive property is set, the application exits once it
+     * becomes interactive, which is how the AppCDS training run in the appcds profile ends.
+     * @param phase The name of the phase.
+     */
+    static void markStartupPhase(String phase) {
+        long elapsed = System.currentTimeMillis() - jvmStartMillis;
+        System.out.println("Startup: " + phase + " after " + elapsed + " ms");
+        if ("interactive".equals(phase) && Boolean.getBoolean("bank.startup.exitWhenInteractive")) {
+            System.exit(0);
+        }
     }
 }
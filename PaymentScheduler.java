@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs scheduled payments when they fall due. A poller reads due payments from each shard in
+ * batches through the (active, nextRunAt) index. The deposits and withdrawals of a batch are
+ * posted together in one commit; transfers, and anything that commit could not post, run on a
+ * fixed pool of workers. Then every schedule of the batch is advanced in one commit.
+ *
+ * Each occurrence runs under the idempotency key "sched:id:runAt". If the application stops
+ * between a payment and the advance of its schedule, the payment is run again on restart, and
+ * the key turns that second run into a no-op. A refusal for lack of funds is not remembered
+ * under the key, so a failed occurrence really is tried again. Occurrences missed while the
+ * application was down are caught up one by one, oldest first.
+ */
+public class PaymentScheduler {
+    static final int BATCH_SIZE = 500; // Due payments read and advanced per commit.
+    static final int MAX_ATTEMPTS = 3; // Tries per occurrence before it is skipped.
+    static final long RETRY_DELAY_MILLIS = 60 * 1000L; // Wait before trying a failed occurrence again.
+
+    private final Bank bank;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService poller;
+    private final long pollMillis;
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * Creates a scheduler; it does nothing until started.
+     * @param bank The bank whose scheduled payments are run.
+     * @param parallelism The number of payments run at the same time.
+     * @param pollMillis How often due payments are looked for.
+     */
+    public PaymentScheduler(Bank bank, int parallelism, long pollMillis) {
+        this.bank = bank;
+        this.pollMillis = pollMillis;
+        this.workers = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "payment-worker");
+            thread.setDaemon(true); // Never keep the application alive.
+            return thread;
+        });
+        this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-scheduler");
+            thread.setDaemon(true); // Never keep the application alive.
+            return thread;
+        });
+    }
+
+    /**
+     * Starts polling, beginning with a catch-up pass right away.
+     */
+    public void start() {
+        poller.scheduleWithFixedDelay(() -> {
+            try {
+                runDuePayments();
+            } catch (RuntimeException e) {
+                System.err.println("Scheduled payment pass failed: " + e); // Try again on the next poll.
+            }
+        }, 0, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops polling and lets running payments finish.
+     */
+    public void stop() {
+        poller.shutdown();
+        workers.shutdown();
+    }
+
+    /**
+     * Runs every payment that is due now, shard by shard and batch by batch.
+     * @return The number of payments that ran successfully.
+     */
+    public int runDuePayments() {
+        long now = System.currentTimeMillis();
+        int succeeded = 0;
+        for (int shard = 0; shard < bank.getShardCount(); shard++) {
+            while (true) {
+                List<ScheduledPayment> due = bank.findDuePayments(shard, now, BATCH_SIZE);
+                if (due.isEmpty()) {
+                    break;
+                }
+                boolean[] results = runBatch(due);
+                bank.completeScheduledRuns(shard, due, results, now); // Advance the whole batch in one commit.
+                for (boolean result : results) {
+                    if (result) {
+                        succeeded++;
+                    }
+                }
+                if (due.size() < BATCH_SIZE) {
+                    break; // Anything still due is a later occurrence, run on the next poll.
+                }
+            }
+        }
+        return succeeded;
+    }
+
+    /**
+     * Runs a batch, posting what it can in one commit and the rest on the worker pool, and waits
+     * for all of it.
+     * @param due The payments to run, all from one shard.
+     * @return Whether each payment succeeded, in batch order.
+     */
+    private boolean[] runBatch(List<ScheduledPayment> due) {
+        Boolean[] posted = bank.postScheduledPayments(due);
+        List<Future<Boolean>> futures = new ArrayList<>(due.size());
+        for (int i = 0; i < due.size(); i++) {
+            ScheduledPayment payment = due.get(i);
+            futures.add(posted[i] != null ? null : workers.submit(() -> bank.runScheduledPayment(payment))); // Null where the batch decided it.
+        }
+        boolean[] results = new boolean[due.size()];
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                results[i] = futures.get(i) == null ? posted[i] : futures.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt(); // Leave the rest for the next pass.
+                break;
+            } catch (ExecutionException e) {
+                System.err.println("Scheduled payment failed: " + e.getCause()); // Counted as a failed attempt.
+            }
+            if (results[i]) {
+                executed.increment();
+            } else {
+                failed.increment();
+            }
+        }
+        return results;
+    }
+
+    public long getExecuted() {
+        return executed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "PaymentScheduler{executed=" + getExecuted() + ", failed=" + getFailed() + "}";
+    }
+}
@@ -0,0 +1,204 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the most recent transactions of each customer in a fixed-size ring buffer so that
+ * "recent activity" views can be answered without reading the database. Customers are added
+ * when their history is first read (on login or on a miss) and are kept current by every
+ * committed write. When the total number of cached transactions exceeds the cap, the least
+ * recently used customers are dropped.
+ *
+ * A history read from the database is installed only if nothing was committed for the customer
+ * while it was being read; otherwise it may miss that commit, so it is discarded and the next
+ * miss reads again.
+ */
+public class RecentTransactionCache {
+    private final int capacityPerCustomer;
+    private final long maxTotalEntries;
+    private final LinkedHashMap<String, Ring> rings = new LinkedHashMap<>(16, 0.75f, true); // Access ordered for LRU eviction.
+    private long totalEntries; // Transactions held across all rings.
+    private final Map<String, Long> loads = new HashMap<>(); // Token of the read in progress per customer, removed by a commit.
+    private long lastToken;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Creates a cache.
+     * @param capacityPerCustomer How many recent transactions are kept per customer.
+     * @param maxTotalEntries The cap on transactions held across all customers.
+     */
+    public RecentTransactionCache(int capacityPerCustomer, long maxTotalEntries) {
+        this.capacityPerCustomer = capacityPerCustomer;
+        this.maxTotalEntries = maxTotalEntries;
+    }
+
+    /**
+     * Returns the cached recent transactions of a customer.
+     * @param bankNumber The customer's bank number.
+     * @return The transactions, newest first, or null if the customer is not cached.
+     */
+    public synchronized List<Transaction> get(String bankNumber) {
+        Ring ring = rings.get(bankNumber);
+        if (ring == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return ring.newestFirst();
+    }
+
+    /**
+     * Notes that a customer's history is about to be read from the database, before the read.
+     * @param bankNumber The customer's bank number.
+     * @return The token to pass to load.
+     */
+    public synchronized long beginLoad(String bankNumber) {
+        long token = ++lastToken;
+        loads.put(bankNumber, token); // A later read of the same customer takes over.
+        return token;
+    }
+
+    /**
+     * Fills the ring of a customer with history read from the database, unless a commit for the
+     * customer or another read overtook this one since beginLoad.
+     * @param bankNumber The customer's bank number.
+     * @param token The token beginLoad returned.
+     * @param newestFirst The customer's most recent transactions, newest first.
+     * @return true if the history was installed.
+     */
+    public synchronized boolean load(String bankNumber, long token, List<Transaction> newestFirst) {
+        Long current = loads.get(bankNumber);
+        if (current == null || current != token) {
+            return false; // Overtaken; the history may be missing a commit.
+        }
+        loads.remove(bankNumber);
+        Ring ring = new Ring(capacityPerCustomer);
+        for (int i = Math.min(newestFirst.size(), capacityPerCustomer) - 1; i >= 0; i--) {
+            ring.add(newestFirst.get(i)); // Add oldest first so the newest ends up at the head.
+        }
+        Ring previous = rings.put(bankNumber, ring);
+        if (previous != null) {
+            totalEntries -= previous.size;
+        }
+        totalEntries += ring.size;
+        evictIfNeeded();
+        return true;
+    }
+
+    /**
+     * Records a newly committed transaction. Customers that are not cached are ignored;
+     * their history is read on the next miss.
+     * @param transaction The committed transaction.
+     */
+    public synchronized void append(Transaction transaction) {
+        loads.remove(transaction.getBankNumber()); // A read in progress may have missed it.
+        Ring ring = rings.get(transaction.getBankNumber());
+        if (ring == null) {
+            return;
+        }
+        if (ring.add(transaction)) {
+            totalEntries++; // The ring grew rather than overwriting its oldest slot.
+            evictIfNeeded();
+        }
+    }
+
+    /**
+     * Drops a customer from the cache.
+     * @param bankNumber The customer's bank number.
+     */
+    public synchronized void invalidate(String bankNumber) {
+        loads.remove(bankNumber);
+        Ring ring = rings.remove(bankNumber);
+        if (ring != null) {
+            totalEntries -= ring.size;
+        }
+    }
+
+    private void evictIfNeeded() {
+        Iterator<Map.Entry<String, Ring>> iterator = rings.entrySet().iterator();
+        while (totalEntries > maxTotalEntries && iterator.hasNext()) {
+            Map.Entry<String, Ring> eldest = iterator.next(); // Least recently used first.
+            totalEntries -= eldest.getValue().size;
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public synchronized long getTotalEntries() {
+        return totalEntries;
+    }
+
+    public synchronized int getCachedCustomers() {
+        return rings.size();
+    }
+
+    /**
+     * Returns the share of lookups answered from memory.
+     * @return The hit rate between 0 and 1, or 0 before the first lookup.
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0.0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("RecentTransactionCache{customers=%d, entries=%d, hits=%d, misses=%d, hitRate=%.1f%%, evictions=%d}",
+                getCachedCustomers(), getTotalEntries(), getHits(), getMisses(), getHitRate() * 100, getEvictions());
+    }
+
+    /**
+     * A fixed-size circular buffer; once full, each new transaction overwrites the oldest.
+     */
+    private static class Ring {
+        private final Transaction[] slots;
+        private int head; // Index the next transaction is written to.
+        private int size;
+
+        Ring(int capacity) {
+            this.slots = new Transaction[capacity];
+        }
+
+        /**
+         * Adds a transaction as the newest entry.
+         * @return true if the ring grew, false if the oldest entry was overwritten.
+         */
+        boolean add(Transaction transaction) {
+            slots[head] = transaction;
+            head = (head + 1) % slots.length;
+            if (size < slots.length) {
+                size++;
+                return true;
+            }
+            return false;
+        }
+
+        List<Transaction> newestFirst() {
+            List<Transaction> result = new ArrayList<>(size);
+            for (int i = 1; i <= size; i++) {
+                result.add(slots[(head - i + slots.length) % slots.length]);
+            }
+            return result;
+        }
+    }
+}
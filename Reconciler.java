@@ -0,0 +1,269 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Checks every account balance against the transaction log. For each account the balance
+ * changes recorded in the log, hot table and archive, are added up and compared with
+ * accounts.balance.
+ *
+ * The bank number space of each shard is split recursively on a fork/join pool. A leaf covers
+ * a range of bank numbers. It reads the range's accounts and their transactions in account id
+ * order, under one read snapshot, and adds the amounts into a long array of cents parallel to
+ * the sorted account ids. Memory therefore depends on the size of a leaf, not of the database.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; Reconciler [dbFile] [shards] [parallelism]
+ */
+public class Reconciler {
+    private static final int BANK_NUMBER_SPACE = 1_000_000; // Bank numbers are six digits.
+    private static final int LEAF_WIDTH = 1000; // Bank numbers per leaf task.
+    private static final int MAX_REPORTED_MISMATCHES = 1000; // Mismatches listed in full; the rest are only counted.
+
+    private final Bank bank;
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates a reconciler.
+     * @param bank The bank to check.
+     * @param parallelism The number of ranges checked at the same time.
+     */
+    public Reconciler(Bank bank, int parallelism) {
+        this.bank = bank;
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public static void main(String[] args) {
+        String dbFile = args.length > 0 ? args[0] : Bank.DEFAULT_DB_FILE_PATH;
+        int shards = args.length > 1 ? Integer.parseInt(args[1]) : Integer.getInteger("bank.shards", 1);
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+        Bank bank = new Bank(dbFile, shards, false); // No interest run or scheduled payments while checking.
+        Report report = new Reconciler(bank, parallelism).reconcile();
+        System.out.println(report);
+        for (String mismatch : report.getMismatches()) {
+            System.out.println(mismatch);
+        }
+        bank.shutdown();
+        System.exit(report.getMismatchCount() == 0 ? 0 : 1);
+    }
+
+    /**
+     * Reconciles every shard.
+     * @return The combined report.
+     */
+    public Report reconcile() {
+        long start = System.nanoTime();
+        List<ForkJoinTask<Report>> shardTasks = new ArrayList<>();
+        for (int shard = 0; shard < bank.getShardCount(); shard++) {
+            shardTasks.add(pool.submit(new RangeTask(shard, 0, BANK_NUMBER_SPACE))); // All shards at once.
+        }
+        Report report = new Report();
+        for (ForkJoinTask<Report> task : shardTasks) {
+            report.merge(task.join());
+        }
+        report.elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        return report;
+    }
+
+    /**
+     * Splits a range of bank numbers until it is small enough to check directly.
+     */
+    private class RangeTask extends RecursiveTask<Report> {
+        private static final long serialVersionUID = 1L;
+        private final int shard;
+        private final int from; // Inclusive.
+        private final int to; // Exclusive.
+
+        RangeTask(int shard, int from, int to) {
+            this.shard = shard;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Report compute() {
+            if (to - from <= LEAF_WIDTH) {
+                return reconcileRange(shard, from, to);
+            }
+            int middle = (from + to) >>> 1;
+            RangeTask left = new RangeTask(shard, from, middle);
+            left.fork();
+            Report report = new RangeTask(shard, middle, to).compute();
+            report.merge(left.join());
+            return report;
+        }
+    }
+
+    /**
+     * Checks the accounts whose ids start with a bank number in the range. Secondary account ids
+     * ("123456-2") sort between their owner's bank number and the next one, so they fall into
+     * the same range as the owner.
+     * @param shard The shard index.
+     * @param from The first bank number, inclusive.
+     * @param to The last bank number, exclusive.
+     * @return The report for the range.
+     */
+    private Report reconcileRange(int shard, int from, int to) {
+        Report report = new Report();
+        String fromKey = String.format("%06d", from);
+        String toKey = to >= BANK_NUMBER_SPACE ? null : String.format("%06d", to); // The last range is open ended.
+        String range = toKey == null ? "accountId >= ?" : "accountId >= ? AND accountId < ?";
+        TransactionArchive archive = bank.getArchive(shard);
+        archive.getLock().readLock().lock(); // Keep archival from moving rows between the two reads.
+        try (Connection connection = bank.connectToShard(shard)) { // Create a database connection.
+            connection.setAutoCommit(false); // Both queries read the same snapshot.
+            try {
+                List<String> ids = new ArrayList<>();
+                long[] balances = new long[64];
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT accountId, balance FROM accounts WHERE " + range + " ORDER BY accountId")) {
+                    bindRange(statement, fromKey, toKey);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        while (resultSet.next()) {
+                            if (ids.size() == balances.length) {
+                                balances = Arrays.copyOf(balances, balances.length * 2);
+                            }
+                            balances[ids.size()] = Math.round(resultSet.getDouble("balance") * 100);
+                            ids.add(resultSet.getString("accountId"));
+                        }
+                    }
+                }
+                String[] accountIds = ids.toArray(new String[0]);
+                long[] expected = new long[accountIds.length]; // Cents implied by the log, by account position.
+
+                try (PreparedStatement statement = connection.prepareStatement(
+                        "SELECT accountId, typeCode, amountCents FROM transactions WHERE " + range + " ORDER BY accountId")) {
+                    bindRange(statement, fromKey, toKey);
+                    statement.setFetchSize(1000);
+                    try (ResultSet resultSet = statement.executeQuery()) {
+                        int position = 0; // Rows arrive in account order, so the position only moves forward.
+                        while (resultSet.next()) {
+                            String accountId = resultSet.getString("accountId");
+                            while (position < accountIds.length && accountIds[position].compareTo(accountId) < 0) {
+                                position++;
+                            }
+                            report.rows++;
+                            if (position == accountIds.length || !accountIds[position].equals(accountId)) {
+                                report.orphanRows++; // History of an account that no longer exists.
+                                continue;
+                            }
+                            expected[position] += TransactionType.fromCode(resultSet.getInt("typeCode")).getBalanceEffect() * resultSet.getLong("amountCents");
+                        }
+                    }
+                }
+
+                TransactionFilter everything = new TransactionFilter();
+                String previousOwner = null;
+                for (String accountId : accountIds) {
+                    String owner = ShardRouter.routingKey(accountId);
+                    if (owner.equals(previousOwner) || !archive.mayContain(owner, everything)) {
+                        continue; // Owner already scanned, or nothing archived.
+                    }
+                    previousOwner = owner;
+                    archive.scan(owner, everything, false, 0, transaction -> {
+                        report.archivedRows++;
+                        int position = transaction.getAccountId() == null ? -1 : Arrays.binarySearch(accountIds, transaction.getAccountId());
+                        if (position >= 0) {
+                            expected[position] += transaction.getTransactionType().getBalanceEffect() * transaction.getAmountCents();
+                        } else if (transaction.getTransactionType().getBalanceEffect() != 0) {
+                            report.orphanRows++;
+                        }
+                    });
+                }
+
+                for (int i = 0; i < accountIds.length; i++) {
+                    report.accounts++;
+                    if (expected[i] != balances[i]) {
+                        report.addMismatch("Account " + accountIds[i] + ": balance " + JournalEntry.fromCents(balances[i])
+                                + ", transactions add up to " + JournalEntry.fromCents(expected[i]));
+                    }
+                }
+            } finally {
+                connection.rollback(); // End the read snapshot.
+            }
+        } catch (SQLException e) {
+            report.errors++;
+            System.err.println("Error reconciling shard " + shard + " range " + fromKey + ": " + e.getMessage());
+        } finally {
+            archive.getLock().readLock().unlock();
+        }
+        return report;
+    }
+
+    /**
+     * Binds the bounds of an account id range.
+     * @param statement The statement.
+     * @param fromKey The lower bound, inclusive.
+     * @param toKey The upper bound, exclusive, or null.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private static void bindRange(PreparedStatement statement, String fromKey, String toKey) throws SQLException {
+        statement.setString(1, fromKey);
+        if (toKey != null) {
+            statement.setString(2, toKey);
+        }
+    }
+
+    /**
+     * The outcome of a reconciliation run, or of one part of it.
+     */
+    public static class Report {
+        private long accounts;
+        private long rows;
+        private long archivedRows;
+        private long orphanRows;
+        private long mismatchCount;
+        private long errors;
+        private long elapsedMillis;
+        private final List<String> mismatches = new ArrayList<>();
+
+        private void addMismatch(String mismatch) {
+            mismatchCount++;
+            if (mismatches.size() < MAX_REPORTED_MISMATCHES) {
+                mismatches.add(mismatch);
+            }
+        }
+
+        private void merge(Report other) {
+            accounts += other.accounts;
+            rows += other.rows;
+            archivedRows += other.archivedRows;
+            orphanRows += other.orphanRows;
+            errors += other.errors;
+            mismatchCount += other.mismatchCount;
+            for (String mismatch : other.mismatches) {
+                if (mismatches.size() < MAX_REPORTED_MISMATCHES) {
+                    mismatches.add(mismatch);
+                }
+            }
+        }
+
+        public long getAccounts() {
+            return accounts;
+        }
+
+        public long getMismatchCount() {
+            return mismatchCount;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public List<String> getMismatches() {
+            return mismatches;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Reconciled %d accounts against %d transactions (%d archived) in %d ms: %d mismatches, %d orphan rows, %d errors",
+                    accounts, rows + archivedRows, archivedRows, elapsedMillis, mismatchCount, orphanRows, errors);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures what replication costs the primary and checks that a promoted standby carries on
+ * with the same books. Both runs use a fresh bank with the same customers and the same mix of
+ * deposits, withdrawals, transfers and holds for a fixed time; the second run streams every
+ * change to a standby in this process, attached after the customers were registered so that
+ * it starts from a snapshot. The standby's lag is sampled during the run. Afterwards the
+ * primary is shut down, the standby is promoted, and its balances, active holds, ledger and
+ * reconciliation are compared with the primary's. The standby's files go to the directory given,
+ * ideally on another disk as in production; by default they share the primary's.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; ReplicationBenchmark [threads] [seconds] [shards] [standby directory]
+ */
+public class ReplicationBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        File standbyDirectory = args.length > 3 ? new File(args[3]) : null;
+        int customers = 256;
+
+        List<String> results = new ArrayList<>();
+        results.add(run("primary only", shards, threads, seconds, customers, null, false));
+        results.add(run("with standby", shards, threads, seconds, customers, standbyDirectory, true));
+
+        System.out.println();
+        System.out.println("Operation throughput with and without a standby:");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private static String run(String mode, int shards, int threads, int seconds, int customers, File standbyDirectory, boolean replicate)
+            throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("bank-replication").toFile();
+        Bank bank = new Bank(new File(directory, "bank.db").getPath(), shards, false);
+        List<String> accountIds = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            String bankNumber = bank.registerUser("replica" + i, "0000", i % 2 == 0 ? "saving" : "checking", false);
+            if (bankNumber != null && bank.deposit(bankNumber, 1000)) {
+                accountIds.add(bankNumber);
+            }
+        }
+
+        Replicator replicator = null;
+        Standby standby = null;
+        if (replicate) {
+            replicator = new Replicator(bank, 1 << 20);
+            bank.setReplicator(replicator);
+            File standbyFiles = standbyDirectory != null ? Files.createTempDirectory(standbyDirectory.toPath(), "standby").toFile() : directory;
+            standby = new Standby(new File(standbyFiles, "standby.db").getPath(), shards);
+            replicator.attach(standby);
+        }
+
+        AtomicLong operations = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                while (System.nanoTime() < deadline) {
+                    String accountId = accountIds.get(random.nextInt(accountIds.size()));
+                    int choice = random.nextInt(100);
+                    double amount = 1 + random.nextInt(50);
+                    if (choice < 45) {
+                        bank.deposit(accountId, amount);
+                    } else if (choice < 75) {
+                        bank.withdraw(accountId, amount);
+                    } else if (choice < 95) {
+                        bank.transfer(accountId, accountIds.get(random.nextInt(accountIds.size())), amount);
+                    } else {
+                        String holdId = bank.placeHold(accountId, amount, Duration.ofHours(1));
+                        if (holdId != null && random.nextBoolean()) {
+                            bank.captureHold(holdId);
+                        }
+                    }
+                    operations.incrementAndGet();
+                }
+                done.countDown();
+            }, "bench-" + t).start();
+        }
+        long maxLagRecords = 0;
+        long maxLagMillis = 0;
+        while (!done.await(50, TimeUnit.MILLISECONDS)) {
+            if (standby != null) {
+                maxLagRecords = Math.max(maxLagRecords, standby.getLagRecords());
+                maxLagMillis = Math.max(maxLagMillis, standby.getLagMillis());
+            }
+        }
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        boolean ledgerBalanced = bank.checkLedger();
+        Reconciler.Report report = new Reconciler(bank, shards).reconcile();
+        String line = String.format("%-13s threads=%-3d operations/s=%10.1f ledger=%s mismatches=%d", mode, threads,
+                operations.get() / elapsedSeconds, ledgerBalanced ? "balanced" : "UNBALANCED", report.getMismatchCount());
+        if (!replicate) {
+            bank.shutdown();
+            return line;
+        }
+
+        long catchUpStart = System.nanoTime();
+        boolean caughtUp = standby.awaitPosition(replicator.getPosition(), 30_000);
+        double catchUpMillis = (System.nanoTime() - catchUpStart) / 1e6;
+        Map<String, BigDecimal> balances = new HashMap<>();
+        for (Account account : allAccounts(bank)) {
+            balances.put(account.getAccountId(), account.getBalance());
+        }
+        int activeHolds = bank.getActiveHoldCount();
+        String batches = "batches=" + standby.getBatchCount();
+        bank.setReplicator(null);
+        bank.shutdown(); // The primary is gone.
+        replicator.close();
+
+        long promoteStart = System.nanoTime();
+        Bank promoted = standby.promote(false); // An interest run at startup would change the balances compared.
+        double promoteMillis = (System.nanoTime() - promoteStart) / 1e6;
+        int differences = 0;
+        for (Account account : allAccounts(promoted)) {
+            BigDecimal expected = balances.remove(account.getAccountId());
+            if (expected == null || expected.compareTo(account.getBalance()) != 0) {
+                differences++;
+            }
+        }
+        differences += balances.size(); // Accounts the standby never received.
+        boolean promotedBalanced = promoted.checkLedger();
+        Reconciler.Report promotedReport = new Reconciler(promoted, shards).reconcile();
+        line += String.format("%n              standby: caught up=%s in %.1f ms, max lag %d records / %d ms, %s%n" +
+                        "              promoted in %.1f ms: balance differences=%d active holds=%d/%d ledger=%s mismatches=%d",
+                caughtUp, catchUpMillis, maxLagRecords, maxLagMillis, batches, promoteMillis, differences,
+                promoted.getActiveHoldCount(), activeHolds, promotedBalanced ? "balanced" : "UNBALANCED", promotedReport.getMismatchCount());
+        promoted.shutdown();
+        return line;
+    }
+
+    private static List<Account> allAccounts(Bank bank) {
+        List<Account> accounts = new ArrayList<>();
+        for (User user : bank.getUsers()) {
+            accounts.addAll(user.getAccounts());
+        }
+        return accounts;
+    }
+}
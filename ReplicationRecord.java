@@ -0,0 +1,330 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * One committed change as it is sent to a standby: a row image of one table, or a ledger entry
+ * with its postings. Records are applied so that applying one twice, or an older image after a
+ * newer one, leaves the newer state in place:
+ * - history rows and ledger entries are inserted under the id the primary gave them, and
+ *   ignored if that id exists;
+ * - mutable rows carry what the primary already uses to order changes, the account version or
+ *   the change sequence number, and only a newer image replaces a row;
+ * - holds only ever leave the active status, so only an active hold is replaced.
+ * That lets the primary publish after committing, without holding any lock, and lets a standby
+ * replay records it already has in a snapshot.
+ */
+public class ReplicationRecord {
+    private static final byte ROW = 1;
+    private static final byte LEDGER_ENTRY = 2;
+    private static final byte TYPE_NULL = 0; // Value tags on the wire.
+    private static final byte TYPE_LONG = 1;
+    private static final byte TYPE_DOUBLE = 2;
+    private static final byte TYPE_TEXT = 3;
+
+    static final String NEWER_USER = "excluded.changeSeq > users.changeSeq";
+    static final String NEWER_ACCOUNT = "excluded.version > accounts.version";
+    static final String ACTIVE_HOLD = "holds.status = 'active'";
+    static final String NEWER_SCHEDULED_PAYMENT = "excluded.changeSeq > scheduled_payments.changeSeq";
+    private static final Set<String> TABLES = new HashSet<>(Arrays.asList( // What a stream may change; the SQL is built from its names.
+            "users", "accounts", "transactions", "ledger_entries", "holds", "scheduled_payments"));
+    private static final Set<String> GUARDS = new HashSet<>(Arrays.asList(NEWER_USER, NEWER_ACCOUNT, ACTIVE_HOLD, NEWER_SCHEDULED_PAYMENT));
+
+    private final byte kind;
+    private final int shard;
+    private final long commitMillis; // When the primary committed the change, for lag.
+    private final String table;
+    private final String guard; // Condition for replacing an existing row, null to keep it.
+    private final String[] columns; // The first column is the primary key.
+    private final Object[] values;
+    private final String[] postingAccounts; // Ledger entries only.
+    private final long[] postingCents;
+
+    private ReplicationRecord(byte kind, int shard, long commitMillis, String table, String guard, String[] columns, Object[] values,
+                              String[] postingAccounts, long[] postingCents) {
+        this.kind = kind;
+        this.shard = shard;
+        this.commitMillis = commitMillis;
+        this.table = table;
+        this.guard = guard;
+        this.columns = columns;
+        this.values = values;
+        this.postingAccounts = postingAccounts;
+        this.postingCents = postingCents;
+    }
+
+    /**
+     * Creates a row image.
+     * @param shard The shard the row lives in.
+     * @param table The table.
+     * @param guard The condition under which the image replaces an existing row, or null to never replace it.
+     * @param columns The column names, primary key first.
+     * @param values The values, Long, Double, String or null.
+     * @return The record.
+     */
+    public static ReplicationRecord row(int shard, String table, String guard, String[] columns, Object[] values) {
+        return new ReplicationRecord(ROW, shard, System.currentTimeMillis(), table, guard, columns, values, null, null);
+    }
+
+    /**
+     * Reads the current image of a row, from inside the transaction that changed it or right
+     * after it committed.
+     * @param connection The connection that made the change.
+     * @param shard The shard the row lives in.
+     * @param table The table.
+     * @param keyColumn The primary key column.
+     * @param key The primary key.
+     * @param guard The condition under which the image replaces an existing row.
+     * @return The record, or null if the row does not exist.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public static ReplicationRecord readRow(Connection connection, int shard, String table, String keyColumn, Object key, String guard)
+            throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT * FROM " + table + " WHERE " + keyColumn + " = ?")) {
+            statement.setObject(1, key);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                if (!resultSet.next()) {
+                    return null;
+                }
+                ResultSetMetaData metaData = resultSet.getMetaData();
+                int count = metaData.getColumnCount();
+                String[] columns = new String[count];
+                Object[] values = new Object[count];
+                columns[0] = keyColumn;
+                values[0] = key;
+                for (int i = 1, column = 1; column <= count; column++) {
+                    String name = metaData.getColumnName(column);
+                    if (!name.equals(keyColumn)) {
+                        columns[i] = name;
+                        values[i++] = normalize(resultSet.getObject(column));
+                    }
+                }
+                return row(shard, table, guard, columns, values);
+            }
+        }
+    }
+
+    /**
+     * Creates the image of a history row.
+     * @param shard The shard the row lives in.
+     * @param transaction The saved transaction.
+     * @return The record.
+     */
+    public static ReplicationRecord transaction(int shard, Transaction transaction) {
+        return row(shard, "transactions", null,
+                new String[] {"id", "timeMillis", "typeCode", "amountCents", "bankNumber", "description", "idempotencyKey", "accountId"},
+                new Object[] {transaction.getId(), transaction.getTimeMillis(), (long) transaction.getTransactionType().getCode(),
+                        transaction.getAmountCents(), transaction.getBankNumber(), transaction.getDescription(),
+                        transaction.getIdempotencyKey(), transaction.getAccountId()});
+    }
+
+    /**
+     * Creates the image of an account after a ledger posting.
+     * @param shard The shard the account lives in.
+     * @param account The account, for the columns that never change.
+     * @param state The state the ledger read back.
+     * @return The record.
+     */
+    public static ReplicationRecord account(int shard, Account account, Ledger.AccountState state) {
+        return row(shard, "accounts", NEWER_ACCOUNT,
+                new String[] {"accountId", "ownerBankNumber", "accountType", "balance", "currency", "version"},
+                new Object[] {account.getAccountId(), account.getOwnerBankNumber(), state.getAccountType(),
+                        state.getBalance().doubleValue(), account.getCurrency(), state.getVersion()});
+    }
+
+    /**
+     * Creates the record of a posted ledger entry.
+     * @param shard The shard the entry was posted in.
+     * @param entry The entry, with the id the ledger gave it.
+     * @return The record.
+     */
+    public static ReplicationRecord ledgerEntry(int shard, JournalEntry entry) {
+        String[] accounts = new String[entry.getPostings().size()];
+        long[] cents = new long[accounts.length];
+        for (int i = 0; i < accounts.length; i++) {
+            accounts[i] = entry.getPostings().get(i).getAccountId();
+            cents[i] = entry.getPostings().get(i).getAmountCents();
+        }
+        return new ReplicationRecord(LEDGER_ENTRY, shard, System.currentTimeMillis(), "ledger_entries", null,
+                new String[] {"entryId", "timestamp", "type", "description"},
+                new Object[] {entry.getEntryId(), entry.getTimestamp(), entry.getType(), entry.getDescription()}, accounts, cents);
+    }
+
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        return value;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public long getCommitMillis() {
+        return commitMillis;
+    }
+
+    /**
+     * Applies the change to a standby database.
+     * @param connection The standby shard, inside a transaction.
+     * @param statements Prepared statements by SQL text, reused across records of a batch.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public void apply(Connection connection, Map<String, PreparedStatement> statements) throws SQLException {
+        PreparedStatement statement = prepare(connection, statements, upsertSql());
+        for (int i = 0; i < values.length; i++) {
+            statement.setObject(i + 1, values[i]);
+        }
+        if (statement.executeUpdate() == 0 || kind != LEDGER_ENTRY) {
+            return; // A row image, or an entry the standby already has.
+        }
+        PreparedStatement posting = prepare(connection, statements, "INSERT INTO postings (entryId, accountId, amountCents) VALUES (?, ?, ?)");
+        for (int i = 0; i < postingAccounts.length; i++) {
+            posting.setObject(1, values[0]);
+            posting.setString(2, postingAccounts[i]);
+            posting.setLong(3, postingCents[i]);
+            posting.executeUpdate(); // The ledger's triggers add it to the running totals.
+        }
+        PreparedStatement totals = prepare(connection, statements, "UPDATE ledger_totals SET entryCount = entryCount + 1 WHERE id = 0");
+        totals.executeUpdate();
+    }
+
+    private static PreparedStatement prepare(Connection connection, Map<String, PreparedStatement> statements, String sql) throws SQLException {
+        PreparedStatement statement = statements.get(sql);
+        if (statement == null) {
+            statement = connection.prepareStatement(sql);
+            statements.put(sql, statement);
+        }
+        return statement;
+    }
+
+    private String upsertSql() {
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table).append(" (");
+        StringBuilder placeholders = new StringBuilder();
+        StringBuilder updates = new StringBuilder();
+        for (int i = 0; i < columns.length; i++) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+            placeholders.append(i == 0 ? "?" : ", ?");
+            if (i > 0) {
+                updates.append(i == 1 ? "" : ", ").append(columns[i]).append(" = excluded.").append(columns[i]);
+            }
+        }
+        sql.append(") VALUES (").append(placeholders).append(")");
+        if (guard == null || columns.length == 1) {
+            return sql.append(" ON CONFLICT DO NOTHING").toString(); // Any unique index, for example the idempotency key, means it is there.
+        }
+        return sql.append(" ON CONFLICT (").append(columns[0]).append(") DO UPDATE SET ").append(updates).append(" WHERE ").append(guard).toString();
+    }
+
+    /**
+     * Writes the record to a replication stream.
+     * @param out The stream.
+     * @throws IOException If writing fails.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeByte(kind);
+        out.writeInt(shard);
+        out.writeLong(commitMillis);
+        out.writeUTF(table);
+        out.writeBoolean(guard != null);
+        if (guard != null) {
+            out.writeUTF(guard);
+        }
+        out.writeShort(columns.length);
+        for (int i = 0; i < columns.length; i++) {
+            out.writeUTF(columns[i]);
+            Object value = values[i];
+            if (value == null) {
+                out.writeByte(TYPE_NULL);
+            } else if (value instanceof Long) {
+                out.writeByte(TYPE_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Double) {
+                out.writeByte(TYPE_DOUBLE);
+                out.writeDouble((Double) value);
+            } else {
+                out.writeByte(TYPE_TEXT);
+                writeText(out, value.toString());
+            }
+        }
+        if (kind == LEDGER_ENTRY) {
+            out.writeShort(postingAccounts.length);
+            for (int i = 0; i < postingAccounts.length; i++) {
+                out.writeUTF(postingAccounts[i]);
+                out.writeLong(postingCents[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads a record written by writeTo.
+     * @param in The stream.
+     * @return The record.
+     * @throws IOException If reading fails or the stream is malformed.
+     */
+    public static ReplicationRecord readFrom(DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        if (kind != ROW && kind != LEDGER_ENTRY) {
+            throw new IOException("Unknown replication record kind " + kind);
+        }
+        int shard = in.readInt();
+        long commitMillis = in.readLong();
+        String table = in.readUTF();
+        String guard = in.readBoolean() ? in.readUTF() : null;
+        if (!TABLES.contains(table) || (guard != null && !GUARDS.contains(guard))) {
+            throw new IOException("Unexpected table or condition in replication record: " + table);
+        }
+        int count = in.readShort();
+        String[] columns = new String[count];
+        Object[] values = new Object[count];
+        for (int i = 0; i < count; i++) {
+            columns[i] = in.readUTF();
+            if (!columns[i].matches("[A-Za-z_]+")) {
+                throw new IOException("Invalid column name in replication record: " + columns[i]);
+            }
+            byte type = in.readByte();
+            values[i] = type == TYPE_NULL ? null : type == TYPE_LONG ? (Object) in.readLong() : type == TYPE_DOUBLE ? (Object) in.readDouble() : readText(in);
+        }
+        String[] postingAccounts = null;
+        long[] postingCents = null;
+        if (kind == LEDGER_ENTRY) {
+            int postings = in.readShort();
+            postingAccounts = new String[postings];
+            postingCents = new long[postings];
+            for (int i = 0; i < postings; i++) {
+                postingAccounts[i] = in.readUTF();
+                postingCents[i] = in.readLong();
+            }
+        }
+        return new ReplicationRecord(kind, shard, commitMillis, table, guard, columns, values, postingAccounts, postingCents);
+    }
+
+    /**
+     * Writes text of any length; writeUTF is limited to 64 KB.
+     */
+    private static void writeText(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readText(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
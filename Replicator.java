@@ -0,0 +1,281 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Streams the changes a bank commits to standby databases. The bank hands every committed
+ * change to publish, which only appends it to an in-memory backlog, so writers never wait for a
+ * standby. A session thread per standby reads from the backlog and sends frames of records over
+ * a local socket; when nothing changes for a second it sends an empty frame, so the standby can
+ * tell a quiet primary from a dead one.
+ *
+ * Positions count the records published since the replicator started, and are tagged with an
+ * epoch that changes on every start. A standby that connects with another epoch, or with a
+ * position the backlog no longer holds, first receives a snapshot: a consistent copy of every
+ * shard made with VACUUM INTO, and the shard's archive segments, followed by the records
+ * published since. Records already in the snapshot are replayed harmlessly, see ReplicationRecord.
+ *
+ * Not replicated: transactions deleted from the hot table when they are archived (a standby
+ * gets the segments with its next snapshot), and changes made by other processes sharing the
+ * database files.
+ */
+public class Replicator implements AutoCloseable {
+    static final int HEARTBEAT_MILLIS = 1000; // An empty frame is sent after this long without changes.
+    private static final int MAX_FRAME_RECORDS = 4096;
+
+    private final Bank bank;
+    private final String epoch = UUID.randomUUID().toString(); // Positions only mean something within one run.
+    private final ReplicationRecord[] backlog; // Record p is kept at p % length until it is overwritten.
+    private long position; // Records published so far; guarded by this.
+    private volatile boolean closed;
+    private ServerSocket serverSocket;
+    private final List<Socket> sessions = new CopyOnWriteArrayList<>(); // Connected standbys, closed with the replicator.
+
+    /**
+     * Creates a replicator. Pass it to Bank.setReplicator, then let standbys connect with
+     * listen or attach.
+     * @param bank The primary bank, for snapshots.
+     * @param backlogSize The number of records kept for standbys that fall behind or reconnect.
+     */
+    public Replicator(Bank bank, int backlogSize) {
+        if (backlogSize < 1) {
+            throw new IllegalArgumentException("Backlog size must be positive: " + backlogSize);
+        }
+        this.bank = bank;
+        this.backlog = new ReplicationRecord[backlogSize];
+    }
+
+    /**
+     * Appends committed changes to the backlog and wakes the sessions.
+     * @param records The records, in commit order; null entries are skipped.
+     */
+    public synchronized void publish(List<ReplicationRecord> records) {
+        for (ReplicationRecord record : records) {
+            if (record != null) {
+                backlog[(int) (position++ % backlog.length)] = record;
+            }
+        }
+        notifyAll();
+    }
+
+    /**
+     * Gets the number of records published so far.
+     * @return The position a fully caught up standby has.
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * Copies records from the backlog, waiting for one if there are none yet.
+     * @param from The position of the first record wanted.
+     * @param buffer Receives the records.
+     * @param waitMillis How long to wait for a record.
+     * @return The number of records copied, 0 if none arrived in time, or -1 if the backlog no longer holds the position.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    synchronized int read(long from, ReplicationRecord[] buffer, long waitMillis) throws InterruptedException {
+        if (from == position && !closed) {
+            wait(waitMillis);
+        }
+        if (from > position || position - from > backlog.length) {
+            return -1;
+        }
+        int count = (int) Math.min(buffer.length, position - from);
+        for (int i = 0; i < count; i++) {
+            buffer[i] = backlog[(int) ((from + i) % backlog.length)];
+        }
+        return count;
+    }
+
+    /**
+     * Accepts standbys on a local port, each served by its own thread.
+     * @param port The port, or 0 for any free port.
+     * @throws IOException If the port cannot be opened.
+     */
+    public synchronized void listen(int port) throws IOException {
+        if (serverSocket != null) {
+            throw new IllegalStateException("Already listening on port " + serverSocket.getLocalPort());
+        }
+        ServerSocket listener = new ServerSocket(port, 50, InetAddress.getLoopbackAddress()); // Standbys run on this machine.
+        serverSocket = listener;
+        Thread acceptor = new Thread(() -> {
+            while (!closed) {
+                try {
+                    Socket socket = listener.accept();
+                    Thread session = new Thread(() -> serve(socket), "replication-session-" + socket.getPort());
+                    session.setDaemon(true);
+                    session.start();
+                } catch (IOException e) {
+                    if (!closed) {
+                        System.err.println("Error accepting standby: " + e.getMessage()); // Print an error message if accepting fails.
+                    }
+                }
+            }
+        }, "replication-listener");
+        acceptor.setDaemon(true); // Never keeps the application alive.
+        acceptor.start();
+        System.out.println("Replication listening on port " + listener.getLocalPort() + ".");
+    }
+
+    /**
+     * Gets the port standbys connect to.
+     * @return The port, or -1 if not listening.
+     */
+    public synchronized int getPort() {
+        return serverSocket == null ? -1 : serverSocket.getLocalPort();
+    }
+
+    /**
+     * Starts a standby in this process, connected over the loopback interface. Opens a port if
+     * the replicator is not listening yet.
+     * @param standby The standby.
+     * @throws IOException If no port can be opened.
+     */
+    public void attach(Standby standby) throws IOException {
+        synchronized (this) {
+            if (serverSocket == null) {
+                listen(0);
+            }
+        }
+        standby.connect(InetAddress.getLoopbackAddress().getHostAddress(), getPort());
+    }
+
+    /**
+     * Serves one standby: the handshake, a snapshot if it needs one, then frames until either
+     * side goes away.
+     * @param socket The standby's connection.
+     */
+    private void serve(Socket socket) {
+        sessions.add(socket);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16))) {
+            socket.setTcpNoDelay(true);
+            String standbyEpoch = in.readUTF();
+            long from = in.readLong();
+            boolean snapshot;
+            synchronized (this) {
+                snapshot = !epoch.equals(standbyEpoch) || from > position || position - from > backlog.length;
+                if (snapshot) {
+                    from = position; // Everything before this is committed, so the copies made next contain it.
+                }
+            }
+            out.writeUTF(epoch);
+            out.writeBoolean(snapshot);
+            if (snapshot) {
+                out.writeLong(from);
+                sendSnapshot(out);
+            }
+            out.flush();
+            ReplicationRecord[] buffer = new ReplicationRecord[MAX_FRAME_RECORDS];
+            while (!closed) {
+                int count = read(from, buffer, HEARTBEAT_MILLIS);
+                if (count < 0) {
+                    System.err.println("Standby fell out of the replication backlog at " + from + "; it will take a new snapshot.");
+                    return; // It reconnects and is sent a snapshot.
+                }
+                out.writeLong(from);
+                out.writeLong(getPosition());
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    buffer[i].writeTo(out);
+                    buffer[i] = null;
+                }
+                out.flush();
+                from += count;
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                System.err.println("Replication session ended: " + e.getMessage()); // The standby reconnects.
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            sessions.remove(socket);
+            try {
+                socket.close(); // Also when the streams could not be opened.
+            } catch (IOException e) {
+                System.err.println("Error closing replication session: " + e.getMessage()); // Print an error message if closing fails.
+            }
+        }
+    }
+
+    /**
+     * Sends a copy of every shard and its archive segments. The archive's read lock keeps
+     * archival from moving rows while a shard is copied.
+     * @param out The stream to the standby.
+     * @throws IOException If a copy cannot be made or sent.
+     */
+    private void sendSnapshot(DataOutputStream out) throws IOException {
+        int shards = bank.getShardCount();
+        out.writeInt(shards);
+        for (int shard = 0; shard < shards; shard++) {
+            TransactionArchive archive = bank.getArchive(shard);
+            File copy = File.createTempFile("bank-snapshot-" + shard + "-", ".db");
+            Files.delete(copy.toPath()); // VACUUM INTO only writes a new file.
+            archive.getLock().readLock().lock();
+            try {
+                try (Connection connection = bank.connectToShard(shard);
+                     PreparedStatement statement = connection.prepareStatement("VACUUM INTO ?")) {
+                    statement.setString(1, copy.getPath());
+                    statement.execute(); // A consistent copy, taken without blocking writers.
+                } catch (SQLException e) {
+                    throw new IOException("Could not copy shard " + shard + ": " + e.getMessage(), e);
+                }
+                sendFile(out, copy);
+                File[] segments = archive.getDirectory().listFiles((dir, name) -> name.endsWith(".seg"));
+                out.writeInt(segments == null ? 0 : segments.length);
+                for (int i = 0; segments != null && i < segments.length; i++) {
+                    out.writeUTF(segments[i].getName());
+                    sendFile(out, segments[i]);
+                }
+            } finally {
+                archive.getLock().readLock().unlock();
+                Files.deleteIfExists(copy.toPath());
+            }
+        }
+        System.out.println("Sent a snapshot of " + shards + " shards to a standby.");
+    }
+
+    private static void sendFile(DataOutputStream out, File file) throws IOException {
+        out.writeLong(file.length());
+        Files.copy(file.toPath(), out);
+    }
+
+    /**
+     * Stops accepting standbys and ends every session. The bank should be given a null
+     * replicator first.
+     */
+    @Override
+    public void close() {
+        ServerSocket listener;
+        synchronized (this) {
+            closed = true;
+            notifyAll(); // Wake the sessions so they see the flag.
+            listener = serverSocket;
+        }
+        try {
+            if (listener != null) {
+                listener.close();
+            }
+            for (Socket socket : sessions) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing replication sockets: " + e.getMessage()); // Print an error message if closing fails.
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/**
+ * A future or recurring deposit, withdrawal or transfer. Each occurrence is identified by the
+ * time it was due, so running it twice is caught by its idempotency key.
+ */
+public class ScheduledPayment {
+    private final String scheduleId;
+    private final String type; // Deposit, Withdraw or Transfer.
+    private final String accountId;
+    private final String targetAccountId; // Only used by transfers.
+    private final long amountCents;
+    private final long runAt; // Epoch milliseconds the current occurrence was due.
+    private final long intervalMillis; // 0 for a one-off payment.
+    private final int remainingRuns; // 0 for no limit.
+    private final int attempts; // Failed attempts at the current occurrence.
+
+    public ScheduledPayment(String scheduleId, String type, String accountId, String targetAccountId, long amountCents,
+                            long runAt, long intervalMillis, int remainingRuns, int attempts) {
+        this.scheduleId = scheduleId;
+        this.type = type;
+        this.accountId = accountId;
+        this.targetAccountId = targetAccountId;
+        this.amountCents = amountCents;
+        this.runAt = runAt;
+        this.intervalMillis = intervalMillis;
+        this.remainingRuns = remainingRuns;
+        this.attempts = attempts;
+    }
+
+    public String getScheduleId() {
+        return scheduleId;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public String getTargetAccountId() {
+        return targetAccountId;
+    }
+
+    public long getAmountCents() {
+        return amountCents;
+    }
+
+    public long getRunAt() {
+        return runAt;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public int getRemainingRuns() {
+        return remainingRuns;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    /**
+     * Gets the idempotency key of the current occurrence.
+     * @return The key.
+     */
+    public String getOccurrenceKey() {
+        return "sched:" + scheduleId + ":" + runAt;
+    }
+
+    /**
+     * Checks whether another occurrence follows the current one.
+     * @return true for recurring payments with runs left.
+     */
+    public boolean hasNextRun() {
+        return intervalMillis > 0 && remainingRuns != 1;
+    }
+
+    @Override
+    public String toString() {
+        return "ScheduledPayment{" +
+                "scheduleId='" + scheduleId + '\'' +
+                ", type='" + type + '\'' +
+                ", accountId='" + accountId + '\'' +
+                ", targetAccountId='" + targetAccountId + '\'' +
+                ", amount=" + JournalEntry.fromCents(amountCents) +
+                ", runAt=" + runAt +
+                ", intervalMillis=" + intervalMillis +
+                ", remainingRuns=" + remainingRuns +
+                '}';
+    }
+}
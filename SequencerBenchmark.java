@@ -0,0 +1,109 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the direct-call mode with the sequenced command engine. Both runs use a fresh bank
+ * with the same customers and the same mix of deposits, withdrawals and interest payments, for
+ * a fixed time. In direct mode every thread calls the bank and waits; in sequenced mode every
+ * thread keeps a window of commands in flight and waits only when the window is full. Each run
+ * ends with a ledger check and a reconciliation.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; SequencerBenchmark [threads] [seconds] [shards] [window]
+ */
+public class SequencerBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int shards = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int window = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        int customers = 256;
+
+        List<String> results = new ArrayList<>();
+        results.add(run("direct", shards, threads, seconds, customers, 0));
+        results.add(run("sequenced", shards, threads, seconds, customers, window));
+
+        System.out.println();
+        System.out.println("Command throughput by execution mode:");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private static String run(String mode, int shards, int threads, int seconds, int customers, int window)
+            throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("bank-" + mode).toFile();
+        Bank bank = new Bank(new File(directory, "bank.db").getPath(), shards, false);
+        List<String> bankNumbers = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            String bankNumber = bank.registerUser("bench" + i, "0000", i % 2 == 0 ? "saving" : "checking", false);
+            if (bankNumber != null && bank.deposit(bankNumber, 1000)) {
+                bankNumbers.add(bankNumber);
+            }
+        }
+
+        CommandSequencer sequencer = window > 0 ? new CommandSequencer(bank, 1 << 14, 4096) : null;
+        AtomicLong commands = new AtomicLong();
+        AtomicLong succeeded = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                ArrayDeque<CompletableFuture<Boolean>> inFlight = new ArrayDeque<>();
+                while (System.nanoTime() < deadline) {
+                    String bankNumber = bankNumbers.get(random.nextInt(bankNumbers.size()));
+                    int choice = random.nextInt(100);
+                    double amount = 1 + random.nextInt(50);
+                    if (sequencer == null) {
+                        boolean success = choice < 60 ? bank.deposit(bankNumber, amount)
+                                : choice < 99 ? bank.withdraw(bankNumber, amount) : bank.applyInterest(bankNumber);
+                        commands.incrementAndGet();
+                        if (success) {
+                            succeeded.incrementAndGet();
+                        }
+                        continue;
+                    }
+                    inFlight.add(choice < 60 ? sequencer.deposit(bankNumber, amount)
+                            : choice < 99 ? sequencer.withdraw(bankNumber, amount) : sequencer.applyInterest(bankNumber));
+                    if (inFlight.size() >= window) {
+                        complete(inFlight.poll(), commands, succeeded);
+                    }
+                }
+                while (!inFlight.isEmpty()) {
+                    complete(inFlight.poll(), commands, succeeded);
+                }
+                done.countDown();
+            }, "bench-" + mode + "-" + t).start();
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        String batches = "";
+        if (sequencer != null) {
+            sequencer.close();
+            batches = " " + sequencer;
+        }
+        boolean ledgerBalanced = bank.checkLedger();
+        Reconciler.Report report = new Reconciler(bank, shards).reconcile();
+        bank.shutdown();
+        return String.format("%-10s threads=%-3d commands/s=%10.1f succeeded=%d ledger=%s mismatches=%d%s", mode, threads,
+                commands.get() / elapsedSeconds, succeeded.get(), ledgerBalanced ? "balanced" : "UNBALANCED", report.getMismatchCount(), batches);
+    }
+
+    private static void complete(CompletableFuture<Boolean> future, AtomicLong commands, AtomicLong succeeded) {
+        commands.incrementAndGet();
+        if (future.join()) {
+            succeeded.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sessions for clients that log in once and then call the bank many times. Opening a session
+ * checks the PIN through Bank.login, with its rate limits and audit row, and hands out an opaque
+ * token: 32 random bytes that encode nothing about the user. Later calls present the token, and
+ * authenticate finds the session with one lookup in a concurrent map, without checking the PIN
+ * or touching the database again.
+ *
+ * A session ends when it is closed, when it has not been used for the idle timeout, or when it
+ * reaches its lifetime, whichever comes first. Expired sessions are refused as soon as they
+ * expire and removed by a timer wheel, which looks at each session once per idle timeout rather
+ * than scanning them all.
+ */
+public class SessionManager {
+    private static final int TOKEN_BYTES = 32;
+    private static final long EXPIRY_TICK_MILLIS = 1000; // Resolution of session removal.
+
+    private final Bank bank;
+    private final long idleMillis;
+    private final long lifetimeMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>(); // Open sessions by token.
+    private final HierarchicalTimerWheel<Session> expiry;
+
+    /**
+     * Creates a session manager and starts its expiry timer.
+     * @param bank The bank that checks the PINs.
+     * @param idleMillis How long a session may go unused.
+     * @param lifetimeMillis How long a session lasts however much it is used.
+     */
+    public SessionManager(Bank bank, long idleMillis, long lifetimeMillis) {
+        if (idleMillis <= 0 || lifetimeMillis <= 0) {
+            throw new IllegalArgumentException("Session timeouts must be positive");
+        }
+        this.bank = bank;
+        this.idleMillis = idleMillis;
+        this.lifetimeMillis = lifetimeMillis;
+        this.expiry = new HierarchicalTimerWheel<>(EXPIRY_TICK_MILLIS, "session-expiry", this::expire);
+    }
+
+    /**
+     * Logs a user in and opens a session.
+     * @param bankNumber The user's bank number.
+     * @param pinNumber The user's PIN.
+     * @return The session, or null if the bank number or PIN is wrong.
+     * @throws AdmissionController.RejectedException If there were too many login attempts.
+     */
+    public Session open(String bankNumber, String pinNumber) {
+        User user = bank.login(bankNumber, pinNumber); // Checks the PIN and audits the login.
+        if (user == null) {
+            return null;
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        long now = System.currentTimeMillis();
+        Session session = new Session(Base64.getUrlEncoder().withoutPadding().encodeToString(bytes), user, now, now + lifetimeMillis);
+        sessions.put(session.token, session);
+        session.timeout = expiry.schedule(session, Math.min(idleMillis, lifetimeMillis));
+        return session;
+    }
+
+    /**
+     * Finds the user of an open session and marks the session as used.
+     * @param token The session token.
+     * @return The user, or null if the token is unknown or its session has expired.
+     */
+    public User authenticate(String token) {
+        Session session = token == null ? null : sessions.get(token);
+        if (session == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (!session.isLive(now, idleMillis)) {
+            sessions.remove(token, session); // Refuse it now; the timer would only get to it later.
+            return null;
+        }
+        session.lastUsedMillis = now;
+        return session.user;
+    }
+
+    /**
+     * Ends a session, for a logout.
+     * @param token The session token.
+     * @return true if the session was open.
+     */
+    public boolean close(String token) {
+        Session session = token == null ? null : sessions.remove(token);
+        if (session == null) {
+            return false;
+        }
+        session.timeout.cancel();
+        return true;
+    }
+
+    /**
+     * Gets the number of sessions not yet closed or removed. Sessions that expired within the
+     * last tick may still be counted.
+     * @return The count.
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Stops the expiry timer. Open sessions stay usable until they expire.
+     */
+    public void stop() {
+        expiry.stop();
+    }
+
+    /**
+     * Removes the sessions that expired and schedules the others for their new deadline.
+     * Called by the timer wheel's thread.
+     * @param due The sessions whose deadline passed.
+     */
+    private void expire(List<Session> due) {
+        long now = System.currentTimeMillis();
+        for (Session session : due) {
+            if (sessions.get(session.token) != session) {
+                continue; // Closed already.
+            }
+            if (session.isLive(now, idleMillis)) {
+                long deadline = Math.min(session.lastUsedMillis + idleMillis, session.expiresMillis);
+                session.timeout = expiry.schedule(session, deadline - now); // Used since it was scheduled.
+            } else {
+                sessions.remove(session.token, session);
+            }
+        }
+    }
+
+    /**
+     * An open session.
+     */
+    public static final class Session {
+        private final String token;
+        private final User user;
+        private final long createdMillis;
+        private final long expiresMillis;
+        private volatile long lastUsedMillis;
+        private volatile HierarchicalTimerWheel.Timeout<Session> timeout; // The next check of this session.
+
+        private Session(String token, User user, long createdMillis, long expiresMillis) {
+            this.token = token;
+            this.user = user;
+            this.createdMillis = createdMillis;
+            this.expiresMillis = expiresMillis;
+            this.lastUsedMillis = createdMillis;
+        }
+
+        private boolean isLive(long now, long idleMillis) {
+            return now < expiresMillis && now - lastUsedMillis < idleMillis;
+        }
+
+        public String getToken() {
+            return token;
+        }
+
+        public User getUser() {
+            return user;
+        }
+
+        public long getCreatedMillis() {
+            return createdMillis;
+        }
+
+        public long getExpiresMillis() {
+            return expiresMillis;
+        }
+
+        public long getLastUsedMillis() {
+            return lastUsedMillis;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures deposit throughput for an increasing number of database shards. Every run uses a
+ * fresh temporary directory, registers a set of customers and then lets several threads deposit
+ * into random accounts for a fixed time.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; ShardBenchmark [threads] [seconds] [maxShards]
+ */
+public class ShardBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int maxShards = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        int customers = 256;
+
+        List<String> results = new ArrayList<>();
+        for (int shards = 1; shards <= maxShards; shards *= 2) {
+            double throughput = run(shards, threads, seconds, customers);
+            results.add(String.format("shards=%-3d threads=%-3d deposits/s=%10.1f", shards, threads, throughput));
+        }
+
+        System.out.println();
+        System.out.println("Deposit throughput by shard count:");
+        for (String line : results) {
+            System.out.println(line);
+        }
+    }
+
+    private static double run(int shards, int threads, int seconds, int customers) throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("bank-shards-" + shards).toFile();
+        Bank bank = new Bank(new File(directory, "bank.db").getPath(), shards);
+        List<String> bankNumbers = new ArrayList<>();
+        for (int i = 0; i < customers; i++) {
+            String bankNumber = bank.registerUser("bench" + i, "0000", "checking", false);
+            if (bankNumber != null) {
+                bankNumbers.add(bankNumber);
+            }
+        }
+
+        AtomicLong deposits = new AtomicLong();
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        CountDownLatch done = new CountDownLatch(threads);
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            new Thread(() -> {
+                Random random = new Random(seed);
+                while (System.nanoTime() < deadline) {
+                    String bankNumber = bankNumbers.get(random.nextInt(bankNumbers.size()));
+                    if (bank.deposit(bankNumber, 1.0)) {
+                        deposits.incrementAndGet();
+                    }
+                }
+                done.countDown();
+            }, "bench-writer-" + t).start();
+        }
+        done.await();
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        bank.shutdown();
+        return deposits.get() / elapsedSeconds;
+    }
+}
@@ -0,0 +1,110 @@
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * Maps bank numbers to the SQLite file that stores them. A customer's user row, accounts and
+ * transactions all live in the same shard, chosen by hashing the bank number, so every
+ * single-customer operation touches exactly one file and writers on different shards never
+ * wait for each other's write lock.
+ */
+public class ShardRouter {
+    private final String[] shardPaths;
+
+    /**
+     * Creates a router.
+     * @param dbFilePath The database file used when there is a single shard; with more shards
+     *                   its name is suffixed with the shard number, e.g. bank-shard-0.db.
+     * @param shardCount The number of shards, at least 1.
+     */
+    public ShardRouter(String dbFilePath, int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+        }
+        this.shardPaths = new String[shardCount];
+        if (shardCount == 1) {
+            shardPaths[0] = dbFilePath; // A single shard keeps the original file name.
+            return;
+        }
+        int dot = dbFilePath.lastIndexOf('.');
+        int slash = Math.max(dbFilePath.lastIndexOf('/'), dbFilePath.lastIndexOf('\\'));
+        String base = dot > slash ? dbFilePath.substring(0, dot) : dbFilePath; // Insert the suffix before the extension.
+        String extension = dot > slash ? dbFilePath.substring(dot) : "";
+        for (int i = 0; i < shardCount; i++) {
+            shardPaths[i] = base + "-shard-" + i + extension;
+        }
+    }
+
+    /**
+     * Returns the number of shards.
+     * @return The shard count.
+     */
+    public int getShardCount() {
+        return shardPaths.length;
+    }
+
+    /**
+     * Returns the shard holding a customer's data.
+     * @param key A bank number, or an account id derived from one.
+     * @return The shard index.
+     */
+    public int shardFor(String key) {
+        if (shardPaths.length == 1) {
+            return 0; // Nothing to route.
+        }
+        int hash = routingKey(key).hashCode();
+        hash ^= (hash >>> 16); // Mix the high bits in so sequential bank numbers spread evenly.
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return Math.floorMod(hash, shardPaths.length);
+    }
+
+    /**
+     * Returns the database file of a shard.
+     * @param shard The shard index.
+     * @return The file path.
+     */
+    public String getPath(int shard) {
+        return shardPaths[shard];
+    }
+
+    /**
+     * Returns the database file holding a customer's data.
+     * @param key A bank number, or an account id derived from one.
+     * @return The file path.
+     */
+    public String pathFor(String key) {
+        return shardPaths[shardFor(key)];
+    }
+
+    /**
+     * Opens a connection to a shard.
+     * @param shard The shard index.
+     * @return A new connection.
+     * @throws SQLException If the connection cannot be opened.
+     */
+    public Connection connect(int shard) throws SQLException {
+        return DriverManager.getConnection("jdbc:sqlite:" + shardPaths[shard]);
+    }
+
+    /**
+     * Opens a connection to the shard holding a customer's data.
+     * @param key A bank number, or an account id derived from one.
+     * @return A new connection.
+     * @throws SQLException If the connection cannot be opened.
+     */
+    public Connection connect(String key) throws SQLException {
+        return connect(shardFor(key));
+    }
+
+    /**
+     * Reduces an account id to the owner's bank number. Secondary accounts are named
+     * bankNumber-n, so they land in the same shard as their owner.
+     * @param key A bank number or account id.
+     * @return The bank number part.
+     */
+    static String routingKey(String key) {
+        int dash = key.indexOf('-');
+        return dash < 0 ? key : key.substring(0, dash);
+    }
+}
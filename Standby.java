@@ -0,0 +1,538 @@
+import javax.swing.SwingUtilities;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A hot standby copy of the bank's database files, kept current from a primary's Replicator.
+ * The standby first installs a snapshot of every shard, then applies the records the primary
+ * streams in batches: whatever arrived while the previous batch was being written is applied
+ * together, with one database transaction per shard. Each transaction also stores the stream
+ * position, so after a restart the standby resumes where it stopped, or takes a new snapshot if
+ * the primary has restarted or no longer holds that position.
+ *
+ * The change tracking triggers are dropped in the standby files, so applied rows keep the
+ * versions and change sequence numbers the primary gave them. Promoting the standby stops
+ * following and opens the files as a Bank, which creates the triggers again.
+ *
+ * Nothing fences the old primary; promote only once it is known to be down.
+ */
+public class Standby implements AutoCloseable {
+    private static final String[] TRACKING_TRIGGERS = {"users_inserted", "users_updated", "accounts_inserted", "accounts_updated",
+            "scheduled_payments_inserted", "scheduled_payments_updated"};
+    private static final int MAX_BATCH_RECORDS = 16384;
+    private static final long BATCH_LINGER_MILLIS = 20; // How long a batch waits for more records, fewer commits for a little lag.
+    private static final long MIN_BACKOFF_MILLIS = 100; // Reconnect delays double up to the maximum.
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    private static final long POSITION_SAVE_MILLIS = 1000; // How often shards without changes record the position.
+    private static final int READ_TIMEOUT_MILLIS = 5 * Replicator.HEARTBEAT_MILLIS; // Silence for this long means the primary is gone.
+
+    private final String dbFilePath;
+    private final ShardRouter router;
+    private final Connection[] connections; // Open while following; follower thread only.
+    private final List<Map<String, PreparedStatement>> statements = new ArrayList<>(); // Per shard, reused across batches.
+    private String epoch = ""; // The primary run the files follow, empty before the first snapshot.
+    private volatile long position = -1; // Records applied.
+    private volatile long primaryPosition = -1; // Records the primary had published at the last frame.
+    private volatile long lagMillis; // From the primary's commit of the newest applied record to its apply.
+    private volatile long lastContactMillis;
+    private volatile long batches;
+    private long positionSavedMillis; // When every shard last recorded the position; follower thread only.
+    private volatile boolean stopped;
+    private volatile Socket socket;
+    private Thread follower;
+
+    /**
+     * Opens a standby on the given files, reading where it stopped last time.
+     * @param dbFilePath The database file, or the name the shard files are derived from, as for Bank.
+     * @param shardCount The number of shards, the same as the primary's.
+     */
+    public Standby(String dbFilePath, int shardCount) {
+        this.dbFilePath = dbFilePath;
+        this.router = new ShardRouter(dbFilePath, shardCount);
+        this.connections = new Connection[shardCount];
+        for (int shard = 0; shard < shardCount; shard++) {
+            statements.add(new HashMap<>());
+        }
+        readState();
+    }
+
+    /**
+     * Reads the stream position stored in the files. Every shard must have taken the same
+     * snapshot; the standby resumes from the shard that is furthest behind.
+     */
+    private void readState() {
+        String stateEpoch = null;
+        long statePosition = Long.MAX_VALUE;
+        for (int shard = 0; shard < router.getShardCount(); shard++) {
+            if (!new File(router.getPath(shard)).isFile()) {
+                return; // Never synchronized.
+            }
+            try (Connection connection = router.connect(shard);
+                 Statement statement = connection.createStatement();
+                 ResultSet resultSet = statement.executeQuery("SELECT epoch, position FROM replication_state WHERE id = 0")) {
+                if (!resultSet.next() || (stateEpoch != null && !stateEpoch.equals(resultSet.getString("epoch")))) {
+                    return; // Half installed snapshot.
+                }
+                stateEpoch = resultSet.getString("epoch");
+                statePosition = Math.min(statePosition, resultSet.getLong("position"));
+            } catch (SQLException e) {
+                return; // No replication state, so not a standby yet.
+            }
+        }
+        epoch = stateEpoch;
+        position = statePosition;
+        System.out.println("Standby resumes at position " + position + ".");
+    }
+
+    /**
+     * Starts following a primary in the background, reconnecting when the connection drops.
+     * @param host The primary's host.
+     * @param port The primary's replication port.
+     */
+    public synchronized void connect(String host, int port) {
+        if (follower != null) {
+            throw new IllegalStateException("Already following a primary");
+        }
+        follower = new Thread(() -> {
+            long backoff = MIN_BACKOFF_MILLIS;
+            while (!stopped) {
+                try (Socket connection = new Socket(host, port)) {
+                    socket = connection;
+                    backoff = MIN_BACKOFF_MILLIS;
+                    connection.setSoTimeout(READ_TIMEOUT_MILLIS);
+                    connection.setTcpNoDelay(true);
+                    follow(new DataInputStream(new BufferedInputStream(connection.getInputStream(), 1 << 16)), connection.getOutputStream());
+                } catch (IOException | SQLException e) {
+                    if (!stopped) {
+                        System.err.println("Replication from " + host + ":" + port + " interrupted: " + e + "; retrying in " + backoff + " ms.");
+                    }
+                }
+                socket = null;
+                if (!stopped) {
+                    try {
+                        Thread.sleep(backoff);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                }
+            }
+            closeConnections();
+        }, "standby-follower");
+        follower.setDaemon(true); // Never keeps the application alive.
+        follower.start();
+    }
+
+    /**
+     * Runs one session with the primary: the handshake, a snapshot if needed, then batches of
+     * records until the connection drops or the standby is stopped.
+     * @param in The stream from the primary.
+     * @param rawOut The stream to the primary.
+     * @throws IOException If the connection fails or the stream is malformed.
+     * @throws SQLException If a batch cannot be applied; it is rolled back and received again.
+     */
+    private void follow(DataInputStream in, OutputStream rawOut) throws IOException, SQLException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(rawOut));
+        out.writeUTF(epoch);
+        out.writeLong(position);
+        out.flush();
+        String primaryEpoch = in.readUTF();
+        if (in.readBoolean()) {
+            installSnapshot(in, primaryEpoch, in.readLong());
+        } else if (!primaryEpoch.equals(epoch)) {
+            throw new IOException("Primary continued a different stream: " + primaryEpoch);
+        }
+        openConnections();
+        List<ReplicationRecord> batch = new ArrayList<>();
+        long applyBy = 0; // When the batch being collected is applied at the latest.
+        while (!stopped) {
+            long first = in.readLong();
+            long latest = in.readLong();
+            int count = in.readInt();
+            if (first != position + batch.size()) {
+                throw new IOException("Replication stream skipped from " + (position + batch.size()) + " to " + first);
+            }
+            for (int i = 0; i < count; i++) {
+                batch.add(ReplicationRecord.readFrom(in));
+            }
+            lastContactMillis = System.currentTimeMillis();
+            primaryPosition = latest;
+            if (batch.isEmpty()) {
+                continue; // A heartbeat.
+            }
+            if (applyBy == 0) {
+                applyBy = lastContactMillis + BATCH_LINGER_MILLIS;
+            }
+            if (batch.size() < MAX_BATCH_RECORDS && awaitFrame(in, applyBy)) {
+                continue; // Apply it together with the frame that is arriving.
+            }
+            apply(batch);
+            lagMillis = System.currentTimeMillis() - batch.get(batch.size() - 1).getCommitMillis();
+            batch.clear();
+            applyBy = 0;
+        }
+    }
+
+    /**
+     * Waits for the next frame to start arriving.
+     * @param in The stream from the primary.
+     * @param deadline The time to stop waiting, in epoch milliseconds.
+     * @return true if data is waiting to be read.
+     * @throws IOException If the connection fails.
+     */
+    private static boolean awaitFrame(DataInputStream in, long deadline) throws IOException {
+        while (in.available() == 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Applies a batch, with one transaction per shard the batch touches. Those shards record the
+     * new position; the others catch up on theirs about once a second, so that an idle shard
+     * does not hold a restart back by more than that.
+     * @param batch The records, in stream order.
+     * @throws SQLException If a shard cannot apply its records; that shard is rolled back.
+     */
+    private void apply(List<ReplicationRecord> batch) throws SQLException {
+        long newPosition = position + batch.size();
+        Map<Integer, List<ReplicationRecord>> recordsByShard = new HashMap<>();
+        for (ReplicationRecord record : batch) {
+            if (record.getShard() < 0 || record.getShard() >= connections.length) {
+                throw new SQLException("Replication record for unknown shard " + record.getShard());
+            }
+            recordsByShard.computeIfAbsent(record.getShard(), shard -> new ArrayList<>()).add(record);
+        }
+        long now = System.currentTimeMillis();
+        boolean recordIdleShards = now - positionSavedMillis >= POSITION_SAVE_MILLIS;
+        for (int shard = 0; shard < connections.length; shard++) {
+            List<ReplicationRecord> records = recordsByShard.get(shard);
+            if (records == null && !recordIdleShards) {
+                continue; // Nothing to write here.
+            }
+            Connection connection = connections[shard];
+            Map<String, PreparedStatement> shardStatements = statements.get(shard);
+            try {
+                if (records != null) {
+                    for (ReplicationRecord record : records) {
+                        record.apply(connection, shardStatements);
+                    }
+                }
+                PreparedStatement state = shardStatements.get("position");
+                if (state == null) {
+                    state = connection.prepareStatement("UPDATE replication_state SET position = ? WHERE id = 0");
+                    shardStatements.put("position", state);
+                }
+                state.setLong(1, newPosition);
+                state.executeUpdate();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback(); // Shards already committed replay these records harmlessly.
+                throw e;
+            }
+        }
+        if (recordIdleShards) {
+            positionSavedMillis = now;
+        }
+        position = newPosition;
+        batches++;
+    }
+
+    /**
+     * Replaces the standby files with a snapshot from the primary.
+     * @param in The stream, positioned at the snapshot.
+     * @param primaryEpoch The primary's epoch.
+     * @param snapshotPosition The stream position the snapshot corresponds to.
+     * @throws IOException If the snapshot cannot be received or written.
+     * @throws SQLException If the files cannot be prepared.
+     */
+    private void installSnapshot(DataInputStream in, String primaryEpoch, long snapshotPosition) throws IOException, SQLException {
+        closeConnections();
+        int shards = in.readInt();
+        if (shards != router.getShardCount()) {
+            throw new IOException("Primary has " + shards + " shards, the standby " + router.getShardCount());
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            File file = new File(router.getPath(shard));
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Cannot create " + parent);
+            }
+            Files.deleteIfExists(new File(file.getPath() + "-wal").toPath()); // Stale log pages would be replayed into the new file.
+            Files.deleteIfExists(new File(file.getPath() + "-shm").toPath());
+            receiveFile(in, file);
+            File archive = new File(router.getPath(shard) + "-archive");
+            File[] oldSegments = archive.listFiles((dir, name) -> name.endsWith(".seg"));
+            for (int i = 0; oldSegments != null && i < oldSegments.length; i++) {
+                Files.delete(oldSegments[i].toPath());
+            }
+            if (!archive.isDirectory() && !archive.mkdirs()) {
+                throw new IOException("Cannot create " + archive);
+            }
+            int segments = in.readInt();
+            for (int i = 0; i < segments; i++) {
+                String name = in.readUTF();
+                if (!name.matches("[A-Za-z0-9_.-]+\\.seg")) {
+                    throw new IOException("Invalid archive segment name: " + name);
+                }
+                receiveFile(in, new File(archive, name));
+            }
+        }
+        for (int shard = 0; shard < shards; shard++) {
+            try (Connection connection = router.connect(shard);
+                 Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL");
+                for (String trigger : TRACKING_TRIGGERS) {
+                    statement.executeUpdate("DROP TRIGGER IF EXISTS " + trigger); // Keep the primary's versions.
+                }
+                statement.executeUpdate("CREATE TABLE IF NOT EXISTS replication_state (" +
+                        "id INTEGER PRIMARY KEY CHECK (id = 0), " +
+                        "epoch TEXT NOT NULL, " +
+                        "position INTEGER NOT NULL" +
+                        ")");
+                try (PreparedStatement state = connection.prepareStatement("INSERT OR REPLACE INTO replication_state (id, epoch, position) VALUES (0, ?, ?)")) {
+                    state.setString(1, primaryEpoch);
+                    state.setLong(2, snapshotPosition);
+                    state.executeUpdate();
+                }
+            }
+        }
+        epoch = primaryEpoch;
+        position = snapshotPosition;
+        System.out.println("Standby installed a snapshot at position " + snapshotPosition + ".");
+    }
+
+    private static void receiveFile(DataInputStream in, File file) throws IOException {
+        long remaining = in.readLong();
+        byte[] buffer = new byte[1 << 16];
+        try (OutputStream out = new FileOutputStream(file)) {
+            while (remaining > 0) {
+                int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("Snapshot ended early");
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    private void openConnections() throws SQLException {
+        for (int shard = 0; shard < connections.length; shard++) {
+            if (connections[shard] == null) {
+                connections[shard] = router.connect(shard);
+                try (Statement statement = connections[shard].createStatement()) {
+                    statement.execute("PRAGMA synchronous=NORMAL"); // A batch lost to a crash is received again.
+                }
+                connections[shard].setAutoCommit(false); // Each batch is one transaction per shard.
+            }
+        }
+    }
+
+    private void closeConnections() {
+        for (int shard = 0; shard < connections.length; shard++) {
+            try {
+                for (PreparedStatement statement : statements.get(shard).values()) {
+                    statement.close();
+                }
+                statements.get(shard).clear();
+                if (connections[shard] != null) {
+                    connections[shard].close();
+                }
+            } catch (SQLException e) {
+                System.err.println("Error closing standby shard: " + e.getMessage()); // Print an error message if closing fails.
+            }
+            connections[shard] = null;
+        }
+    }
+
+    /**
+     * Gets the number of records applied.
+     * @return The stream position, -1 before the first snapshot.
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Gets how many records the standby is behind, as of the primary's last frame.
+     * @return The number of published records not yet applied.
+     */
+    public long getLagRecords() {
+        return primaryPosition < 0 ? 0 : Math.max(0, primaryPosition - position);
+    }
+
+    /**
+     * Gets the time between the primary committing the newest applied change and the standby
+     * applying it.
+     * @return The lag in milliseconds.
+     */
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    /**
+     * Gets the time since the last frame, data or heartbeat, from the primary.
+     * @return Milliseconds, or -1 if the primary was never reached.
+     */
+    public long getMillisSinceContact() {
+        return lastContactMillis == 0 ? -1 : System.currentTimeMillis() - lastContactMillis;
+    }
+
+    public long getBatchCount() {
+        return batches;
+    }
+
+    /**
+     * Waits until the standby has applied everything up to a position.
+     * @param target The position.
+     * @param timeoutMillis How long to wait at most.
+     * @return true if the position was reached.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public boolean awaitPosition(long target, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (position < target) {
+            if (System.currentTimeMillis() >= deadline) {
+                return false;
+            }
+            Thread.sleep(5);
+        }
+        return true;
+    }
+
+    /**
+     * Stops following the primary. The files stay a standby and can be followed again.
+     */
+    @Override
+    public void close() {
+        stopped = true;
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close(); // Unblocks the follower's read.
+            } catch (IOException e) {
+                System.err.println("Error closing replication socket: " + e.getMessage()); // Print an error message if closing fails.
+            }
+        }
+        Thread thread;
+        synchronized (this) {
+            thread = follower;
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            closeConnections();
+        }
+    }
+
+    /**
+     * Stops following and turns the standby into a primary: the replication state is removed,
+     * each shard's change counter is raised past every number the primary handed out, and the
+     * files are opened as a Bank, which restores the change tracking triggers.
+     * @return The bank, or null if the standby never installed a snapshot.
+     */
+    public Bank promote() {
+        return promote(true);
+    }
+
+    /**
+     * Promotes the standby, optionally without starting the interest run and the payment
+     * scheduler, for tools that compare the promoted data with the old primary.
+     * @param backgroundJobs Whether the bank starts applying interest and running scheduled payments.
+     * @return The bank, or null if the standby never installed a snapshot.
+     */
+    public Bank promote(boolean backgroundJobs) {
+        close();
+        if (epoch.isEmpty()) {
+            System.err.println("Cannot promote a standby that has no snapshot."); // Print an error message if there is nothing to promote.
+            return null;
+        }
+        for (int shard = 0; shard < router.getShardCount(); shard++) {
+            try (Connection connection = router.connect(shard);
+                 Statement statement = connection.createStatement()) {
+                statement.executeUpdate("UPDATE change_sequence SET seq = MAX(seq, " +
+                        "(SELECT COALESCE(MAX(changeSeq), 0) FROM users), " +
+                        "(SELECT COALESCE(MAX(changeSeq), 0) FROM accounts), " +
+                        "(SELECT COALESCE(MAX(changeSeq), 0) FROM scheduled_payments)) WHERE id = 0");
+                statement.executeUpdate("DROP TABLE IF EXISTS replication_state");
+            } catch (SQLException e) {
+                System.err.println("Error promoting standby shard " + shard + ": " + e.getMessage()); // Print an error message if an SQL exception occurs.
+                return null;
+            }
+        }
+        System.out.println("Standby promoted at position " + position + ".");
+        return new Bank(dbFilePath, router.getShardCount(), backgroundJobs);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("position=%d behind=%d records lag=%d ms batches=%d last contact=%d ms ago", position, getLagRecords(),
+                getLagMillis(), batches, getMillisSinceContact());
+    }
+
+    /**
+     * Runs a standby as its own process. Type "status" for the replication position and lag, or
+     * "promote" to take over as the primary and open the banking window.
+     *
+     * Usage: java -cp target/classes:&lt;dependencies&gt; Standby &lt;database file&gt; &lt;shards&gt; &lt;primary port&gt; [primary host]
+     * @param args The command line arguments.
+     * @throws IOException If the console cannot be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: Standby <database file> <shards> <primary port> [primary host]");
+            return;
+        }
+        Standby standby = new Standby(args[0], Integer.parseInt(args[1]));
+        standby.connect(args.length > 3 ? args[3] : "localhost", Integer.parseInt(args[2]));
+        BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+        String line;
+        while ((line = console.readLine()) != null) {
+            if ("status".equals(line.trim())) {
+                System.out.println(standby);
+            } else if ("promote".equals(line.trim())) {
+                Bank bank = standby.promote();
+                if (bank != null) {
+                    SwingUtilities.invokeLater(() -> new GUI(bank));
+                    return;
+                }
+            } else if (!line.trim().isEmpty()) {
+                System.out.println("Commands: status, promote");
+            }
+        }
+        standby.close();
+    }
+}
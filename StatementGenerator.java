@@ -0,0 +1,288 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Writes a monthly statement file for every account: opening balance, the month's transactions
+ * and closing balance.
+ *
+ * Each shard is read in one ordered pass: accounts and transactions from the start of the month
+ * on are both read in account id order, and the two cursors are merged. There is no query per
+ * account. The closing balance is the current balance minus everything after the month, and the
+ * opening balance is the closing balance minus the month itself. This also holds for balances
+ * that predate the transaction log. Finished statements go to a fixed pool of renderers through
+ * a bounded queue; when the queue is full the reader renders the statement itself, so memory
+ * stays bounded however many accounts there are.
+ *
+ * Usage: java -cp target/classes:&lt;dependencies&gt; StatementGenerator [yyyy-MM] [outputDir] [dbFile] [shards] [threads]
+ */
+public class StatementGenerator {
+    private static final int QUEUE_CAPACITY = 256; // Statements waiting to be rendered.
+    private static final DateTimeFormatter ROW_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    private final Bank bank;
+    private final YearMonth month;
+    private final File outputDirectory;
+    private final int threads;
+    private final LongAdder written = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final Map<String, String> ownerNames = new HashMap<>(); // Bank number to user name.
+
+    /**
+     * Creates a generator.
+     * @param bank The bank to write statements for.
+     * @param month The month covered.
+     * @param outputDirectory The directory the month's folder is created in.
+     * @param threads The number of renderer threads.
+     */
+    public StatementGenerator(Bank bank, YearMonth month, File outputDirectory, int threads) {
+        this.bank = bank;
+        this.month = month;
+        this.outputDirectory = new File(outputDirectory, month.toString());
+        this.threads = threads;
+        for (User user : bank.getUsers()) {
+            ownerNames.put(user.getBankNumber(), user.getUserName());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        YearMonth month = args.length > 0 ? YearMonth.parse(args[0]) : YearMonth.now().minusMonths(1);
+        File outputDirectory = new File(args.length > 1 ? args[1] : "target/statements");
+        String dbFile = args.length > 2 ? args[2] : Bank.DEFAULT_DB_FILE_PATH;
+        int shards = args.length > 3 ? Integer.parseInt(args[3]) : Integer.getInteger("bank.shards", 1);
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        Bank bank = new Bank(dbFile, shards, false); // No interest run or scheduled payments while reading.
+        new StatementGenerator(bank, month, outputDirectory, threads).generate();
+        bank.shutdown();
+    }
+
+    /**
+     * Writes the statements of every shard.
+     * @return The number of statements written.
+     * @throws IOException If the output directory cannot be created.
+     * @throws InterruptedException If interrupted while waiting for the renderers.
+     */
+    public long generate() throws IOException, InterruptedException {
+        Files.createDirectories(outputDirectory.toPath());
+        ThreadPoolExecutor renderers = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY), new ThreadPoolExecutor.CallerRunsPolicy()); // A full queue slows the reader down.
+        ExecutorService readers = Executors.newFixedThreadPool(bank.getShardCount()); // One ordered pass per shard, all at once.
+        ScheduledExecutorService progress = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "statement-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long start = System.nanoTime();
+        progress.scheduleAtFixedRate(() -> printRate("Progress", start), 5, 5, TimeUnit.SECONDS);
+
+        List<Future<?>> passes = new ArrayList<>();
+        for (int shard = 0; shard < bank.getShardCount(); shard++) {
+            final int shardIndex = shard;
+            passes.add(readers.submit(() -> readShard(shardIndex, renderers)));
+        }
+        for (Future<?> pass : passes) {
+            try {
+                pass.get();
+            } catch (ExecutionException e) {
+                System.err.println("Statement pass failed: " + e.getCause());
+            }
+        }
+        readers.shutdown();
+        renderers.shutdown();
+        renderers.awaitTermination(1, TimeUnit.HOURS);
+        progress.shutdownNow();
+        printRate("Finished " + month, start);
+        return written.sum();
+    }
+
+    /**
+     * Prints how many statements have been written and how fast.
+     * @param label The line prefix.
+     * @param start The start time from System.nanoTime.
+     */
+    private void printRate(String label, long start) {
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "%s: %d statements in %.1f s (%.0f statements/s), %d failed",
+                label, written.sum(), seconds, written.sum() / Math.max(seconds, 1e-9), failed.sum()));
+    }
+
+    /**
+     * Reads one shard in a single ordered pass and hands each account's statement to the renderers.
+     * @param shard The shard index.
+     * @param renderers The renderer pool.
+     */
+    private void readShard(int shard, ExecutorService renderers) {
+        LocalDateTime monthStart = month.atDay(1).atStartOfDay();
+        long monthEnd = Transaction.toMillis(month.plusMonths(1).atDay(1).atStartOfDay());
+        String accountsSql = "SELECT accountId, ownerBankNumber, accountType, currency, balance FROM accounts ORDER BY accountId";
+        String transactionsSql = "SELECT accountId, timeMillis, typeCode, amountCents, description FROM transactions " +
+                "INDEXED BY idx_transactions_account_time WHERE accountId IS NOT NULL AND timeMillis >= ? ORDER BY accountId, timeMillis";
+        TransactionArchive archive = bank.getArchive(shard);
+        archive.getLock().readLock().lock(); // Keep archival from moving rows during the pass.
+        try (Connection connection = bank.connectToShard(shard)) { // Create a database connection.
+            connection.setAutoCommit(false); // Both cursors read the same snapshot.
+            try (PreparedStatement accountsStatement = connection.prepareStatement(accountsSql);
+                 PreparedStatement transactionsStatement = connection.prepareStatement(transactionsSql)) {
+                transactionsStatement.setLong(1, Transaction.toMillis(monthStart));
+                accountsStatement.setFetchSize(1000);
+                transactionsStatement.setFetchSize(1000);
+                try (ResultSet accounts = accountsStatement.executeQuery();
+                     ResultSet transactions = transactionsStatement.executeQuery()) {
+                    boolean hasTransaction = transactions.next();
+                    while (accounts.next()) {
+                        String accountId = accounts.getString("accountId");
+                        AccountStatement statement = new AccountStatement(accountId, accounts.getString("ownerBankNumber"),
+                                accounts.getString("accountType"), accounts.getString("currency"), Math.round(accounts.getDouble("balance") * 100));
+                        addArchivedRows(archive, statement, monthStart, monthEnd);
+                        while (hasTransaction && transactions.getString("accountId").compareTo(accountId) < 0) {
+                            hasTransaction = transactions.next(); // History of an account that no longer exists.
+                        }
+                        while (hasTransaction && transactions.getString("accountId").equals(accountId)) {
+                            statement.add(transactions.getLong("timeMillis"), TransactionType.fromCode(transactions.getInt("typeCode")),
+                                    transactions.getLong("amountCents"), transactions.getString("description"), monthEnd);
+                            hasTransaction = transactions.next();
+                        }
+                        renderers.execute(() -> render(statement));
+                    }
+                }
+            } finally {
+                connection.rollback(); // End the read snapshot.
+            }
+        } catch (SQLException e) {
+            System.err.println("Error reading shard " + shard + " for statements: " + e.getMessage());
+        } finally {
+            archive.getLock().readLock().unlock();
+        }
+    }
+
+    /**
+     * Adds an account's archived rows from the start of the month on. Archived rows are older than
+     * every hot row, so they come first.
+     * @param archive The shard's archive.
+     * @param statement The statement being built.
+     * @param monthStart The start of the month.
+     * @param monthEnd The start of the next month, see Transaction.toMillis.
+     */
+    private void addArchivedRows(TransactionArchive archive, AccountStatement statement, LocalDateTime monthStart, long monthEnd) {
+        TransactionFilter filter = new TransactionFilter();
+        filter.setAccountId(statement.accountId);
+        filter.setFrom(monthStart);
+        String owner = statement.ownerBankNumber;
+        if (archive.mayContain(owner, filter)) { // Answered from the archive's in-memory index.
+            archive.scan(owner, filter, false, 0, transaction -> statement.add(transaction.getTimeMillis(), transaction.getTransactionType(),
+                    transaction.getAmountCents(), transaction.getDescription(), monthEnd));
+        }
+    }
+
+    /**
+     * Writes one statement file.
+     * @param statement The statement.
+     */
+    private void render(AccountStatement statement) {
+        File file = new File(outputDirectory, statement.accountId + ".txt");
+        long closing = statement.balanceCents - statement.afterMonthCents;
+        long opening = closing - statement.monthCents;
+        try (Writer writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+            String ownerName = ownerNames.getOrDefault(statement.ownerBankNumber, "");
+            writer.write("Monthly Statement - " + month.getMonth().getDisplayName(TextStyle.FULL, Locale.ENGLISH) + " " + month.getYear() + "\n");
+            writer.write("Account: " + statement.accountId + " (" + statement.accountType + ", " + statement.currency + ")\n");
+            writer.write("Owner:   " + ownerName + " (" + statement.ownerBankNumber + ")\n");
+            writer.write("Period:  " + month.atDay(1) + " to " + month.atEndOfMonth() + "\n\n");
+            writer.write(String.format(Locale.ROOT, "%-42s%12s%n", "Opening balance", JournalEntry.fromCents(opening)));
+            writer.write(String.format(Locale.ROOT, "%-20s %-18s%12s%12s  %s%n", "Date", "Type", "Amount", "Balance", "Description"));
+            long running = opening;
+            for (Row row : statement.rows) {
+                running += row.signedCents;
+                writer.write(String.format(Locale.ROOT, "%-20s %-18s%12s%12s  %s%n", Transaction.toDateTime(row.timeMillis).format(ROW_TIME),
+                        row.type, (row.signedCents >= 0 ? "+" : "") + JournalEntry.fromCents(row.signedCents), JournalEntry.fromCents(running),
+                        row.description == null ? "" : row.description));
+            }
+            writer.write(String.format(Locale.ROOT, "%-42s%12s%n", "Closing balance", JournalEntry.fromCents(closing)));
+            written.increment();
+        } catch (IOException e) {
+            failed.increment();
+            System.err.println("Error writing statement " + file + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * The data of one account's statement while it is being built.
+     */
+    private static class AccountStatement {
+        private final String accountId;
+        private final String ownerBankNumber;
+        private final String accountType;
+        private final String currency;
+        private final long balanceCents; // The balance now.
+        private long monthCents; // Net change during the month.
+        private long afterMonthCents; // Net change since the month ended.
+        private final List<Row> rows = new ArrayList<>(); // The month's rows, oldest first.
+
+        AccountStatement(String accountId, String ownerBankNumber, String accountType, String currency, long balanceCents) {
+            this.accountId = accountId;
+            this.ownerBankNumber = ownerBankNumber;
+            this.accountType = accountType;
+            this.currency = currency;
+            this.balanceCents = balanceCents;
+        }
+
+        /**
+         * Adds a transaction from the start of the month on.
+         * @param timeMillis The time, see Transaction.toMillis.
+         * @param type The transaction type.
+         * @param amountCents The unsigned amount in cents.
+         * @param description The description.
+         * @param monthEnd The start of the next month, see Transaction.toMillis.
+         */
+        void add(long timeMillis, TransactionType type, long amountCents, String description, long monthEnd) {
+            long signedCents = type.getBalanceEffect() * amountCents;
+            if (timeMillis >= monthEnd) {
+                afterMonthCents += signedCents; // Only needed to work back from the current balance.
+                return;
+            }
+            monthCents += signedCents;
+            rows.add(new Row(timeMillis, type, signedCents, description));
+        }
+    }
+
+    /**
+     * One line of a statement.
+     */
+    private static class Row {
+        private final long timeMillis;
+        private final TransactionType type;
+        private final long signedCents;
+        private final String description;
+
+        Row(long timeMillis, TransactionType type, long signedCents, String description) {
+            this.timeMillis = timeMillis;
+            this.type = type;
+            this.signedCents = signedCents;
+            this.description = description;
+        }
+    }
+}
@@ -3,35 +3,116 @@ import java.time.LocalDateTime;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 
+/**
+ * One row of a customer's history, kept compact because histories are loaded in bulk: the time
+ * is a long, the type an enum constant and the amount a count of cents. The timestamp text and
+ * the BigDecimal amount are only built when something displays them.
+ */
 public class Transaction {
     private static final DateTimeFormatter formatter = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
-    public String timestamp;
-    private String type;
-    private BigDecimal amount;
-    private String bankNumber;
-    private String description;
-
-    public Transaction(LocalDateTime timestamp, String type, BigDecimal amount, String bankNumber, String description) {
-        this.timestamp = timestamp.format(formatter);
+    private static final String INSERT_SQL = "INSERT INTO transactions (timeMillis, typeCode, amountCents, bankNumber, description, idempotencyKey, accountId) VALUES (?, ?, ?, ?, ?, ?, ?)";
+    private final long timeMillis; // Epoch milliseconds; shown as local time through the system zone, see toDateTime.
+    private final TransactionType type;
+    private final long amountCents;
+    private final String bankNumber;
+    private final String description;
+    private String accountId; // Account whose balance changed, null for events such as logins.
+    private String idempotencyKey; // Client supplied key for retry-safe operations, may be null.
+    private long id = -1; // Row id in the shard, known once the row is saved.
+
+    public Transaction(LocalDateTime timestamp, TransactionType type, BigDecimal amount, String bankNumber, String description) {
+        this(toMillis(timestamp), type, JournalEntry.toCents(amount), bankNumber, description);
+    }
+
+    /**
+     * Creates a transaction from its stored form, as read back from the database or the archive.
+     * @param timeMillis The time, see toMillis.
+     * @param type The transaction type.
+     * @param amountCents The unsigned amount in cents.
+     * @param bankNumber The customer's bank number.
+     * @param description The description.
+     */
+    public Transaction(long timeMillis, TransactionType type, long amountCents, String bankNumber, String description) {
+        this.timeMillis = timeMillis;
         this.type = type;
-        this.amount = amount;
+        this.amountCents = amountCents;
         this.bankNumber = bankNumber;
         this.description = description;
     }
 
+    /**
+     * Converts a local date and time in the system time zone to the stored form, the same epoch
+     * milliseconds as System.currentTimeMillis, so rows sort correctly across daylight saving
+     * changes and compare with the times of holds and schedules.
+     * @param dateTime The local date and time.
+     * @return Milliseconds since 1970-01-01T00:00Z.
+     */
+    public static long toMillis(LocalDateTime dateTime) {
+        return dateTime.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Converts a stored time back to a local date and time in the system time zone.
+     * @param timeMillis Milliseconds since 1970-01-01T00:00Z.
+     * @return The local date and time.
+     */
+    public static LocalDateTime toDateTime(long timeMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(timeMillis), ZoneId.systemDefault());
+    }
+
+    /**
+     * Converts a time stored by earlier versions, which kept the local wall clock time as if it
+     * were UTC, to the stored form used now.
+     * @param wallClockMillis The local date and time in milliseconds since 1970-01-01T00:00, with no zone applied.
+     * @return Milliseconds since 1970-01-01T00:00Z.
+     */
+    public static long fromWallClockMillis(long wallClockMillis) {
+        return toMillis(LocalDateTime.ofEpochSecond(Math.floorDiv(wallClockMillis, 1000), Math.floorMod(wallClockMillis, 1000) * 1_000_000, ZoneOffset.UTC));
+    }
+
+    /**
+     * Formats the time for display.
+     * @return The ISO local date and time.
+     */
     public String getTimestamp() {
-        return timestamp;
+        return toDateTime(timeMillis).format(formatter);
+    }
+
+    public LocalDateTime getDateTime() {
+        return toDateTime(timeMillis);
     }
 
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    /**
+     * Gets the type label, such as "Deposit".
+     * @return The label.
+     */
     public String getType() {
+        return type.getLabel();
+    }
+
+    public TransactionType getTransactionType() {
         return type;
     }
 
     public BigDecimal getAmount() {
-        return amount;
+        return JournalEntry.fromCents(amountCents);
+    }
+
+    public long getAmountCents() {
+        return amountCents;
     }
 
     public String getBankNumber() {
@@ -42,32 +123,122 @@ public class Transaction {
         return description;
     }
 
-    public void saveToDb() {
-        String sql = "INSERT INTO transactions (timestamp, type, amount, bankNumber, description) VALUES (?, ?, ?, ?, ?)";
-        String dbFilePath = Bank.getDbFilePath(); // Use Bank's method to get the path
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(String accountId) {
+        this.accountId = accountId;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    /**
+     * Inserts this transaction into its customer's database shard.
+     * @param dbFilePath The path of the shard file holding this customer's data.
+     * @return true if the transaction was saved, false otherwise.
+     */
+    public boolean saveToDb(String dbFilePath) {
+        TransactionSaveEvent event = new TransactionSaveEvent(); // Timed only while a flight recording enables it
+        event.start();
+        String outcome = "failed";
         System.out.println("Database file path: " + dbFilePath);
-        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFilePath);
-             PreparedStatement statement = connection.prepareStatement(sql)) {
-            statement.setString(1, timestamp);
-            statement.setString(2, type);
-            statement.setDouble(3, amount.doubleValue());
-            statement.setString(4, bankNumber);
-            statement.setString(5, description);
-            statement.executeUpdate();
+        event.logTime += event.lap();
+        try (Connection connection = DriverManager.getConnection("jdbc:sqlite:" + dbFilePath)) {
+            event.connectTime = event.lap();
+            saveToDb(connection);
+            event.insertTime = event.lap();
             System.out.println("Transaction saved to database: " + this.toString());
+            event.logTime += event.lap();
+            outcome = "saved";
+            return true;
         } catch (SQLException e) {
             System.err.println("Error saving transaction to database: " + e.getMessage());
             e.printStackTrace(); // Print the stack trace to see the full error
+            return false;
+        } finally {
+            event.finish(type.getLabel(), bankNumber, outcome);
+        }
+    }
+
+    /**
+     * Inserts this transaction using the caller's connection, so it can share a database
+     * transaction with the balance update it records.
+     * @param connection An open connection to the bank database.
+     * @throws SQLException If the insert fails, including when the idempotency key was already used.
+     */
+    public void saveToDb(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            bind(statement);
+            statement.executeUpdate();
         }
+        id = lastInsertId(connection);
+    }
+
+    /**
+     * Inserts many transactions using the caller's connection, with one prepared statement for all.
+     * The caller must hold a database transaction, so that the rows get consecutive ids.
+     * @param connection An open connection to the bank database, with auto-commit off.
+     * @param transactions The transactions to insert.
+     * @throws SQLException If an insert fails, including when an idempotency key was already used.
+     */
+    public static void saveAllToDb(Connection connection, List<Transaction> transactions) throws SQLException {
+        if (transactions.isEmpty()) {
+            return;
+        }
+        try (PreparedStatement statement = connection.prepareStatement(INSERT_SQL)) {
+            for (Transaction transaction : transactions) {
+                transaction.bind(statement);
+                statement.executeUpdate();
+            }
+        }
+        long id = lastInsertId(connection) - transactions.size(); // Nobody else can insert until the caller commits.
+        for (Transaction transaction : transactions) {
+            transaction.id = ++id;
+        }
+    }
+
+    /**
+     * Reads the row id of the last row the connection inserted.
+     * @param connection The connection.
+     * @return The row id.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    private static long lastInsertId(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT last_insert_rowid()")) {
+            return resultSet.getLong(1);
+        }
+    }
+
+    private void bind(PreparedStatement statement) throws SQLException {
+        statement.setLong(1, timeMillis);
+        statement.setInt(2, type.getCode());
+        statement.setLong(3, amountCents);
+        statement.setString(4, bankNumber);
+        statement.setString(5, description);
+        statement.setString(6, idempotencyKey);
+        statement.setString(7, accountId);
     }
 
     @Override
     public String toString() {
         return "Transaction{" +
-                "timestamp=" + timestamp +
+                "timestamp=" + getTimestamp() +
                 ", type='" + type + '\'' +
-                ", amount=" + amount +
+                ", amount=" + getAmount() +
                 ", bankNumber='" + bankNumber + '\'' +
+                ", accountId='" + accountId + '\'' +
                 ", description='" + description + '\'' +
                 '}';
     }
@@ -0,0 +1,576 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Cold storage for old transactions of one shard. Transactions older than a cutoff are moved out
+ * of the hot transactions table into immutable segment files. Inside a segment, rows are grouped
+ * by customer into blocks; each block stores its columns one after the other (times delta-encoded,
+ * amounts and type codes as variable-length integers, text columns dictionary-encoded) and is
+ * compressed on its own. A footer lists
+ * every block with its customer and time range. The footers of all segments are held in memory
+ * as a sparse per-customer index, so reading a customer's archived history only inflates that
+ * customer's blocks.
+ *
+ * Idempotency keys are not archived, so the archive age must be longer than any client retry window.
+ */
+public class TransactionArchive {
+    private static final int MAGIC = 0x424b4152; // "BKAR"
+    private static final int VERSION = 3; // Version 1 stored text timestamps and double amounts, version 2 wall clock milliseconds; both still readable.
+    private static final int MAX_ROWS_PER_BLOCK = 4096;
+    private static final DateTimeFormatter FORMATTER = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+
+    private final File directory;
+    private final Map<String, List<BlockRef>> index = new ConcurrentHashMap<>(); // Sparse index: customer to archived blocks, oldest first.
+    private final List<SegmentInfo> segments = new CopyOnWriteArrayList<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock(); // Readers see either the rows in the table or in the archive, never both.
+    private long nextSegmentNumber = 1;
+
+    /**
+     * Opens the archive stored in a directory, reading the footer of every segment.
+     * @param directory The directory holding the segment files; created if missing.
+     */
+    public TransactionArchive(File directory) {
+        this.directory = directory;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Could not create archive directory: " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".seg"));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files); // Segment numbers are zero padded, so name order is age order.
+        for (File file : files) {
+            try {
+                SegmentInfo segment = readFooter(file);
+                publish(segment);
+                nextSegmentNumber = Math.max(nextSegmentNumber, segment.number + 1);
+            } catch (IOException e) {
+                System.err.println("Skipping unreadable archive segment " + file + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Removes rows from the hot table that an earlier run already archived but did not get to delete,
+     * for example because the process stopped between writing a segment and deleting its rows.
+     * @param connection A connection to this archive's shard.
+     * @throws SQLException If an SQL exception occurs.
+     */
+    public void recover(Connection connection) throws SQLException {
+        for (SegmentInfo segment : segments) {
+            int removed = deleteArchivedRows(connection, segment);
+            if (removed > 0) {
+                System.out.println("Removed " + removed + " already archived transactions from the hot table.");
+            }
+        }
+    }
+
+    /**
+     * Moves every transaction older than the cutoff from the hot table into a new segment.
+     * @param connection A connection to this archive's shard.
+     * @param cutoff Transactions with an earlier timestamp are archived.
+     * @return The number of transactions archived.
+     * @throws SQLException If reading or deleting the rows fails.
+     * @throws IOException If the segment cannot be written.
+     */
+    public int archiveOlderThan(Connection connection, LocalDateTime cutoff) throws SQLException, IOException {
+        long cutoffMillis = Transaction.toMillis(cutoff);
+        String sql = "SELECT id, timeMillis, typeCode, amountCents, bankNumber, accountId, description FROM transactions " +
+                "WHERE timeMillis < ? ORDER BY bankNumber, timeMillis, id";
+        long number;
+        synchronized (this) {
+            number = nextSegmentNumber++;
+        }
+        File target = new File(directory, String.format("segment-%012d.seg", number));
+        File temp = new File(directory, target.getName() + ".tmp");
+
+        SegmentInfo segment = new SegmentInfo(target, number, VERSION, cutoffMillis);
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, cutoffMillis);
+            statement.setFetchSize(1000);
+            try (ResultSet resultSet = statement.executeQuery();
+                 FileOutputStream fileOut = new FileOutputStream(temp);
+                 CountingOutputStream counting = new CountingOutputStream(new BufferedOutputStream(fileOut));
+                 DataOutputStream out = new DataOutputStream(counting)) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                List<Transaction> block = new ArrayList<>(); // Rows of the current customer, bounded by MAX_ROWS_PER_BLOCK.
+                String blockCustomer = null;
+                while (resultSet.next()) {
+                    String bankNumber = resultSet.getString("bankNumber");
+                    if (blockCustomer != null && (!blockCustomer.equals(bankNumber) || block.size() == MAX_ROWS_PER_BLOCK)) {
+                        segment.blocks.add(writeBlock(out, counting, segment, blockCustomer, block));
+                        block.clear();
+                    }
+                    blockCustomer = bankNumber;
+                    Transaction transaction = new Transaction(resultSet.getLong("timeMillis"), TransactionType.fromCode(resultSet.getInt("typeCode")),
+                            resultSet.getLong("amountCents"), bankNumber, resultSet.getString("description"));
+                    transaction.setAccountId(resultSet.getString("accountId"));
+                    block.add(transaction);
+                    segment.maxId = Math.max(segment.maxId, resultSet.getLong("id"));
+                    segment.rowCount++;
+                }
+                if (!block.isEmpty()) {
+                    segment.blocks.add(writeBlock(out, counting, segment, blockCustomer, block));
+                }
+                long footerOffset = counting.count;
+                writeFooter(out, segment);
+                out.writeLong(footerOffset); // The last eight bytes point at the footer.
+                out.flush();
+                fileOut.getFD().sync(); // The segment must be durable before its rows are deleted.
+            }
+        }
+
+        if (segment.rowCount == 0) {
+            temp.delete(); // Nothing was old enough.
+            return 0;
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not publish archive segment " + target);
+        }
+
+        lock.writeLock().lock(); // Swap the rows from the table to the archive atomically for readers.
+        try {
+            deleteArchivedRows(connection, segment);
+            publish(segment);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return segment.rowCount;
+    }
+
+    /**
+     * Checks whether the archive may hold rows of a customer that match a filter, using only the index.
+     * @param bankNumber The customer's bank number.
+     * @param filter The search criteria.
+     * @return false if the customer certainly has no matching archived rows.
+     */
+    public boolean mayContain(String bankNumber, TransactionFilter filter) {
+        List<BlockRef> blocks = index.get(bankNumber);
+        if (blocks == null) {
+            return false;
+        }
+        for (BlockRef block : blocks) {
+            if (block.overlaps(filter)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Streams a customer's archived transactions that match a filter.
+     * @param bankNumber The customer's bank number.
+     * @param filter The search criteria; its limit is ignored in favour of the limit argument.
+     * @param newestFirst Whether to return the newest transactions first.
+     * @param limit The maximum number of transactions to return, 0 for no limit.
+     * @param consumer Receives each matching transaction.
+     * @return The number of transactions passed to the consumer.
+     */
+    public int scan(String bankNumber, TransactionFilter filter, boolean newestFirst, int limit, Consumer<Transaction> consumer) {
+        List<BlockRef> blocks = index.get(bankNumber);
+        if (blocks == null) {
+            return 0;
+        }
+        List<BlockRef> ordered = new ArrayList<>(blocks);
+        if (newestFirst) {
+            Collections.reverse(ordered);
+        }
+        int count = 0;
+        for (BlockRef block : ordered) {
+            if (!block.overlaps(filter)) {
+                continue; // The block's time range rules it out without inflating it.
+            }
+            List<Transaction> rows;
+            try {
+                rows = readBlock(block);
+            } catch (IOException e) {
+                System.err.println("Error reading archive block from " + block.segment.file + ": " + e.getMessage());
+                continue;
+            }
+            if (newestFirst) {
+                Collections.reverse(rows);
+            }
+            for (Transaction transaction : rows) {
+                if (filter.matches(transaction)) {
+                    consumer.accept(transaction);
+                    count++;
+                    if (limit > 0 && count >= limit) {
+                        return count;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of archived transactions.
+     * @return The row count over all segments.
+     */
+    public long getArchivedRowCount() {
+        long total = 0;
+        for (SegmentInfo segment : segments) {
+            total += segment.rowCount;
+        }
+        return total;
+    }
+
+    private int deleteArchivedRows(Connection connection, SegmentInfo segment) throws SQLException {
+        String sql = "DELETE FROM transactions WHERE timeMillis < ? AND id <= ?";
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            statement.setLong(1, segment.cutoffMillis);
+            statement.setLong(2, segment.maxId);
+            return statement.executeUpdate();
+        }
+    }
+
+    private void publish(SegmentInfo segment) {
+        segments.add(segment);
+        for (BlockRef block : segment.blocks) {
+            index.computeIfAbsent(block.bankNumber, key -> new CopyOnWriteArrayList<>()).add(block);
+        }
+    }
+
+    private BlockRef writeBlock(DataOutputStream out, CountingOutputStream counting, SegmentInfo segment,
+                                String bankNumber, List<Transaction> rows) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (DataOutputStream column = new DataOutputStream(new DeflaterOutputStream(buffer))) {
+            writeVarLong(column, rows.size());
+            long previousMillis = 0;
+            for (Transaction row : rows) { // Times as deltas.
+                writeVarLong(column, zigZag(row.getTimeMillis() - previousMillis));
+                previousMillis = row.getTimeMillis();
+            }
+            for (Transaction row : rows) { // Amounts in cents.
+                writeVarLong(column, zigZag(row.getAmountCents()));
+            }
+            for (Transaction row : rows) { // Type codes.
+                writeVarLong(column, row.getTransactionType().getCode());
+            }
+            List<String> accountIds = new ArrayList<>();
+            List<String> descriptions = new ArrayList<>();
+            for (Transaction row : rows) {
+                accountIds.add(row.getAccountId());
+                descriptions.add(row.getDescription());
+            }
+            writeDictionaryColumn(column, accountIds);
+            writeDictionaryColumn(column, descriptions);
+        }
+        byte[] compressed = buffer.toByteArray();
+        long offset = counting.count;
+        out.write(compressed);
+        return new BlockRef(segment, bankNumber, offset, compressed.length, rows.size(),
+                rows.get(0).getTimeMillis(), rows.get(rows.size() - 1).getTimeMillis());
+    }
+
+    private List<Transaction> readBlock(BlockRef block) throws IOException {
+        byte[] compressed = new byte[block.length];
+        try (RandomAccessFile file = new RandomAccessFile(block.segment.file, "r")) {
+            file.seek(block.offset);
+            file.readFully(compressed);
+        }
+        try (DataInputStream column = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(compressed)))) {
+            int count = (int) readVarLong(column);
+            long[] times = new long[count];
+            long[] amounts = new long[count];
+            TransactionType[] types = new TransactionType[count];
+            if (block.segment.version == 1) {
+                readVersion1Columns(column, times, amounts, types);
+            } else if (block.segment.version == 2) {
+                long millis = 0;
+                for (int i = 0; i < count; i++) {
+                    millis += unZigZag(readVarLong(column));
+                    times[i] = Transaction.fromWallClockMillis(millis);
+                }
+                readAmountAndTypeColumns(column, amounts, types);
+            } else {
+                long millis = 0;
+                for (int i = 0; i < count; i++) {
+                    millis += unZigZag(readVarLong(column));
+                    times[i] = millis;
+                }
+                readAmountAndTypeColumns(column, amounts, types);
+            }
+            String[] accountIds = readDictionaryColumn(column, count);
+            String[] descriptions = readDictionaryColumn(column, count);
+            List<Transaction> rows = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                Transaction transaction = new Transaction(times[i], types[i], amounts[i], block.bankNumber, descriptions[i]);
+                transaction.setAccountId(accountIds[i]);
+                rows.add(transaction);
+            }
+            return rows;
+        }
+    }
+
+    private static void readAmountAndTypeColumns(DataInputStream column, long[] amounts, TransactionType[] types) throws IOException {
+        for (int i = 0; i < amounts.length; i++) {
+            amounts[i] = unZigZag(readVarLong(column));
+        }
+        for (int i = 0; i < types.length; i++) {
+            types[i] = TransactionType.fromCode((int) readVarLong(column));
+        }
+    }
+
+    /**
+     * Reads the time, amount and type columns of a version 1 block, which stored seconds and
+     * nanoseconds, double amounts and dictionary-encoded type labels.
+     * @param column The block's column stream, positioned after the row count.
+     * @param times Receives the times in milliseconds.
+     * @param amounts Receives the amounts in cents.
+     * @param types Receives the types.
+     * @throws IOException If the block cannot be read.
+     */
+    private static void readVersion1Columns(DataInputStream column, long[] times, long[] amounts, TransactionType[] types) throws IOException {
+        int count = times.length;
+        long second = 0;
+        for (int i = 0; i < count; i++) {
+            second += unZigZag(readVarLong(column));
+            int nano = (int) readVarLong(column);
+            times[i] = Transaction.fromWallClockMillis(second * 1000 + nano / 1_000_000); // Seconds of the wall clock time.
+        }
+        for (int i = 0; i < count; i++) {
+            amounts[i] = Math.round(column.readDouble() * 100);
+        }
+        String[] labels = readDictionaryColumn(column, count);
+        for (int i = 0; i < count; i++) {
+            TransactionType type = TransactionType.fromLabel(labels[i]);
+            types[i] = type == null ? TransactionType.OTHER : type;
+        }
+    }
+
+    private void writeFooter(DataOutputStream out, SegmentInfo segment) throws IOException {
+        out.writeLong(segment.cutoffMillis);
+        out.writeLong(segment.maxId);
+        out.writeInt(segment.rowCount);
+        out.writeInt(segment.blocks.size());
+        for (BlockRef block : segment.blocks) {
+            out.writeUTF(block.bankNumber);
+            out.writeLong(block.offset);
+            out.writeInt(block.length);
+            out.writeInt(block.rowCount);
+            out.writeLong(block.minMillis);
+            out.writeLong(block.maxMillis);
+        }
+    }
+
+    private SegmentInfo readFooter(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC) {
+                throw new IOException("Not an archive segment");
+            }
+            int version = raf.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported archive segment version " + version);
+            }
+            raf.seek(raf.length() - 8);
+            raf.seek(raf.readLong());
+            String name = file.getName();
+            long number = Long.parseLong(name.substring("segment-".length(), name.length() - ".seg".length()));
+            SegmentInfo segment = new SegmentInfo(file, number, version, readFooterTime(raf, version));
+            segment.maxId = raf.readLong();
+            segment.rowCount = raf.readInt();
+            int blockCount = raf.readInt();
+            for (int i = 0; i < blockCount; i++) {
+                segment.blocks.add(new BlockRef(segment, raf.readUTF(), raf.readLong(), raf.readInt(), raf.readInt(),
+                        readFooterTime(raf, version), readFooterTime(raf, version)));
+            }
+            return segment;
+        }
+    }
+
+    /**
+     * Reads a time from a footer: ISO text in version 1, wall clock milliseconds in version 2,
+     * epoch milliseconds since.
+     * @param raf The segment file, positioned at the time.
+     * @param version The segment version.
+     * @return The time in milliseconds, see Transaction.toMillis.
+     * @throws IOException If the footer cannot be read.
+     */
+    private static long readFooterTime(RandomAccessFile raf, int version) throws IOException {
+        if (version == 1) {
+            return Transaction.toMillis(LocalDateTime.parse(raf.readUTF(), FORMATTER));
+        }
+        long millis = raf.readLong();
+        return version == 2 ? Transaction.fromWallClockMillis(millis) : millis;
+    }
+
+    private static void writeDictionaryColumn(DataOutputStream out, List<String> values) throws IOException {
+        Map<String, Integer> codes = new HashMap<>();
+        List<String> dictionary = new ArrayList<>();
+        int[] encoded = new int[values.size()];
+        for (int i = 0; i < values.size(); i++) {
+            String value = values.get(i);
+            if (value == null) {
+                encoded[i] = 0; // Code 0 is reserved for null.
+                continue;
+            }
+            Integer code = codes.get(value);
+            if (code == null) {
+                dictionary.add(value);
+                code = dictionary.size();
+                codes.put(value, code);
+            }
+            encoded[i] = code;
+        }
+        writeVarLong(out, dictionary.size());
+        for (String value : dictionary) {
+            out.writeUTF(value);
+        }
+        for (int code : encoded) {
+            writeVarLong(out, code);
+        }
+    }
+
+    private static String[] readDictionaryColumn(DataInputStream in, int count) throws IOException {
+        int size = (int) readVarLong(in);
+        String[] dictionary = new String[size + 1]; // Slot 0 stays null.
+        for (int i = 1; i <= size; i++) {
+            dictionary[i] = in.readUTF();
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = dictionary[(int) readVarLong(in)];
+        }
+        return values;
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Footer information of one segment file.
+     */
+    private static class SegmentInfo {
+        final File file;
+        final long number;
+        final int version; // Format of the blocks.
+        final long cutoffMillis; // Rows older than this were archived.
+        long maxId; // Highest transaction id archived.
+        int rowCount;
+        final List<BlockRef> blocks = new ArrayList<>();
+
+        SegmentInfo(File file, long number, int version, long cutoffMillis) {
+            this.file = file;
+            this.number = number;
+            this.version = version;
+            this.cutoffMillis = cutoffMillis;
+        }
+    }
+
+    /**
+     * Location and time range of one customer's block inside a segment.
+     */
+    private static class BlockRef {
+        final SegmentInfo segment;
+        final String bankNumber;
+        final long offset;
+        final int length;
+        final int rowCount;
+        final long minMillis;
+        final long maxMillis;
+
+        BlockRef(SegmentInfo segment, String bankNumber, long offset, int length, int rowCount, long minMillis, long maxMillis) {
+            this.segment = segment;
+            this.bankNumber = bankNumber;
+            this.offset = offset;
+            this.length = length;
+            this.rowCount = rowCount;
+            this.minMillis = minMillis;
+            this.maxMillis = maxMillis;
+        }
+
+        boolean overlaps(TransactionFilter filter) {
+            if (filter.getFrom() != null && maxMillis < Transaction.toMillis(filter.getFrom())) {
+                return false;
+            }
+            return filter.getTo() == null || minMillis < Transaction.toMillis(filter.getTo());
+        }
+    }
+
+    /**
+     * Tracks how many bytes have been written, so block offsets are known while streaming.
+     */
+    private static class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
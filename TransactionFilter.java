@@ -0,0 +1,124 @@
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Describes which rows of the transactions table a search should return.
+ * Every criterion is optional; an empty filter matches the whole history of an account.
+ */
+public class TransactionFilter {
+    private String accountId; // Restricts the search to one of the customer's accounts.
+    private LocalDateTime from; // Inclusive lower bound on the timestamp.
+    private LocalDateTime to; // Exclusive upper bound on the timestamp.
+    private Set<String> types = new LinkedHashSet<>(); // Allowed transaction types, empty means any.
+    private BigDecimal minAmount;
+    private BigDecimal maxAmount;
+    private String descriptionContains;
+    private boolean newestFirst;
+    private int limit; // Maximum number of rows, 0 means unlimited.
+
+    public String getAccountId() {
+        return accountId;
+    }
+
+    public void setAccountId(String accountId) {
+        this.accountId = accountId;
+    }
+
+    public LocalDateTime getFrom() {
+        return from;
+    }
+
+    public void setFrom(LocalDateTime from) {
+        this.from = from;
+    }
+
+    public LocalDateTime getTo() {
+        return to;
+    }
+
+    public void setTo(LocalDateTime to) {
+        this.to = to;
+    }
+
+    public Set<String> getTypes() {
+        return types;
+    }
+
+    public void addType(String type) {
+        this.types.add(type);
+    }
+
+    public BigDecimal getMinAmount() {
+        return minAmount;
+    }
+
+    public void setMinAmount(BigDecimal minAmount) {
+        this.minAmount = minAmount;
+    }
+
+    public BigDecimal getMaxAmount() {
+        return maxAmount;
+    }
+
+    public void setMaxAmount(BigDecimal maxAmount) {
+        this.maxAmount = maxAmount;
+    }
+
+    public String getDescriptionContains() {
+        return descriptionContains;
+    }
+
+    public void setDescriptionContains(String descriptionContains) {
+        this.descriptionContains = descriptionContains;
+    }
+
+    public boolean isNewestFirst() {
+        return newestFirst;
+    }
+
+    public void setNewestFirst(boolean newestFirst) {
+        this.newestFirst = newestFirst;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Checks a transaction against the filter in memory, for rows that do not come from SQL.
+     * Description matching ignores case, like SQLite's LIKE.
+     * @param transaction The transaction to test.
+     * @return true if the transaction matches every criterion.
+     */
+    public boolean matches(Transaction transaction) {
+        if (accountId != null && !accountId.equals(transaction.getAccountId())) {
+            return false;
+        }
+        if (from != null && transaction.getTimeMillis() < Transaction.toMillis(from)) {
+            return false;
+        }
+        if (to != null && transaction.getTimeMillis() >= Transaction.toMillis(to)) {
+            return false;
+        }
+        if (!types.isEmpty() && !types.contains(transaction.getType())) {
+            return false;
+        }
+        if (minAmount != null && BigDecimal.valueOf(transaction.getAmountCents(), 2).compareTo(minAmount) < 0) {
+            return false;
+        }
+        if (maxAmount != null && BigDecimal.valueOf(transaction.getAmountCents(), 2).compareTo(maxAmount) > 0) {
+            return false;
+        }
+        if (descriptionContains != null && !descriptionContains.isEmpty()) {
+            String description = transaction.getDescription();
+            return description != null && description.toLowerCase().contains(descriptionContains.toLowerCase());
+        }
+        return true;
+    }
+}
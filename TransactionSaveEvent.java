@@ -0,0 +1,81 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight recorder event for a transaction row saved on its own connection, such as a login or an
+ * account change, with the time spent in each phase.
+ */
+@Name("bank.TransactionSave")
+@Label("Transaction Save")
+@Category("Bank")
+@Description("A transaction row saved outside a balance change")
+@StackTrace(false)
+public class TransactionSaveEvent extends Event {
+    @Label("Type")
+    String type;
+
+    @Label("Bank Number")
+    String bankNumber;
+
+    @Label("Outcome")
+    String outcome;
+
+    @Label("Connect Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long connectTime;
+
+    @Label("Insert Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long insertTime;
+
+    @Label("Log Time")
+    @Description("Writing the progress lines to standard output")
+    @Timespan(Timespan.NANOSECONDS)
+    long logTime;
+
+    transient long phaseStart; // Start of the current phase, 0 while the event is disabled.
+
+    /**
+     * Starts the event and its first phase. Reads the clock only if a recording enables the event.
+     */
+    void start() {
+        begin();
+        if (isEnabled()) {
+            phaseStart = System.nanoTime();
+        }
+    }
+
+    /**
+     * Ends the current phase and starts the next.
+     * @return The length of the phase that ended, in nanoseconds, or 0 while the event is disabled.
+     */
+    long lap() {
+        if (phaseStart == 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long elapsed = now - phaseStart;
+        phaseStart = now;
+        return elapsed;
+    }
+
+    /**
+     * Commits the event if a recording wants it.
+     * @param type The transaction type.
+     * @param bankNumber The customer's bank number.
+     * @param outcome How the save ended.
+     */
+    void finish(String type, String bankNumber, String outcome) {
+        if (shouldCommit()) {
+            this.type = type;
+            this.bankNumber = bankNumber;
+            this.outcome = outcome;
+            commit();
+        }
+    }
+}
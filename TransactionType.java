@@ -0,0 +1,80 @@
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The kinds of transaction rows. Each kind is stored as its small numeric code; the label is what
+ * the history and statements show. Codes are persisted, so existing ones must never change.
+ */
+public enum TransactionType {
+    OTHER(0, "Other", 0), // Rows migrated from an unknown free-form type.
+    DEPOSIT(1, "Deposit", 1),
+    WITHDRAW(2, "Withdraw", -1),
+    INTEREST(3, "Interest", 1),
+    TRANSFER_OUT(4, "Transfer Out", -1),
+    TRANSFER_IN(5, "Transfer In", 1),
+    TRANSFER_REVERSAL(6, "Transfer Reversal", 1),
+    LOGIN(7, "Login", 0),
+    OPEN_ACCOUNT(8, "Open Account", 0),
+    CHANGE_ACCOUNT_TYPE(9, "Change Account Type", 0),
+    GRANT_ADMIN(10, "Grant Admin", 0),
+    REVOKE_ADMIN(11, "Revoke Admin", 0);
+
+    private static final TransactionType[] BY_CODE = new TransactionType[12];
+    private static final Map<String, TransactionType> BY_LABEL = new HashMap<>();
+
+    static {
+        for (TransactionType type : values()) {
+            BY_CODE[type.code] = type;
+            BY_LABEL.put(type.label, type);
+        }
+    }
+
+    private final int code;
+    private final String label;
+    private final int balanceEffect;
+
+    TransactionType(int code, String label, int balanceEffect) {
+        this.code = code;
+        this.label = label;
+        this.balanceEffect = balanceEffect;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * Gets the effect this kind of row has on the balance of its account.
+     * @return 1 if the amount is credited, -1 if it is debited, 0 if the balance is unchanged.
+     */
+    public int getBalanceEffect() {
+        return balanceEffect;
+    }
+
+    /**
+     * Finds a type by its stored code.
+     * @param code The code.
+     * @return The type, or OTHER for an unknown code.
+     */
+    public static TransactionType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length && BY_CODE[code] != null ? BY_CODE[code] : OTHER;
+    }
+
+    /**
+     * Finds a type by its label.
+     * @param label The label, such as "Deposit".
+     * @return The type, or null if no type has that label.
+     */
+    public static TransactionType fromLabel(String label) {
+        return BY_LABEL.get(label);
+    }
+
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -1,23 +1,22 @@
 import java.math.BigDecimal;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class User {
     private String userName;
     private String bankNumber;
     private String pinNumber;
-    private String accountType;
-    private BigDecimal balance;
     private boolean isAdmin;
-    private List<Transaction> transactionHistory = new ArrayList<>();
+    private BankMetrics metrics; // Told about admin changes once the bank has indexed the user, null before.
+    // The first account is the primary one; its id is the bank number.
+    private List<Account> accounts = new CopyOnWriteArrayList<>();
 
     public User(String userName, String bankNumber, String pinNumber, String accountType, double balance, boolean isAdmin) {
         this.userName = userName;
         this.bankNumber = bankNumber;
         this.pinNumber = pinNumber;
-        this.accountType = accountType;
         // Use valueOf for better precision handling compared to new BigDecimal(double)
-        this.balance = BigDecimal.valueOf(balance);
+        this.accounts.add(new Account(bankNumber, bankNumber, accountType, BigDecimal.valueOf(balance)));
         this.isAdmin = isAdmin;
     }
 
@@ -46,44 +45,50 @@ public class User {
     }
 
     public String getAccountType() {
-        return accountType;
+        return getPrimaryAccount().getAccountType();
     }
 
     public void setAccountType(String accountType) {
-        this.accountType = accountType;
+        getPrimaryAccount().setAccountType(accountType);
     }
 
     public BigDecimal getBalance() {
-        return balance;
+        return getPrimaryAccount().getBalance();
     }
 
     public void setBalance(BigDecimal balance) {
-        this.balance = balance;
+        getPrimaryAccount().setBalance(balance);
     }
 
-    public boolean isAdmin() {
-        return isAdmin;
+    public Account getPrimaryAccount() {
+        return accounts.get(0);
     }
 
-    private boolean loggedIn;
-
-    public boolean isLoggedIn() {
-        return loggedIn;
+    public List<Account> getAccounts() {
+        return accounts;
     }
 
-    public void setLoggedIn(boolean loggedIn) {
-        this.loggedIn = loggedIn;
+    public void addAccount(Account account) {
+        this.accounts.add(account);
     }
 
-    public void setAdmin(boolean admin) {
-        isAdmin = admin;
+    public synchronized boolean isAdmin() {
+        return isAdmin;
     }
 
-    public List<Transaction> getTransactionHistory() {
-        return transactionHistory;
+    public synchronized void setAdmin(boolean admin) {
+        if (metrics != null && admin != isAdmin) {
+            metrics.adminChanged(admin);
+        }
+        isAdmin = admin;
     }
 
-    public void addTransaction(Transaction transaction) {
-        this.transactionHistory.add(transaction);
+    /**
+     * Starts telling bank-wide metrics about admin changes, counting the user.
+     * @param metrics The metrics.
+     */
+    public synchronized void setMetrics(BankMetrics metrics) {
+        this.metrics = metrics;
+        metrics.userAdded(isAdmin);
     }
 }
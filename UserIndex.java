@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted in-memory index of users for prefix search by name and by bank number. Both keys live in
+ * concurrent skip lists, so a search seeks to the first match in O(log n) and walks only the
+ * entries it returns, whatever the number of users.
+ */
+public class UserIndex {
+    private static final char KEY_SEPARATOR = '\u0000'; // Sorts before any name character, keeping "ann" ahead of "anna".
+
+    private final ConcurrentSkipListMap<String, User> byName = new ConcurrentSkipListMap<>(); // "name\0bankNumber", so equal names stay distinct.
+    private final ConcurrentSkipListMap<String, User> byBankNumber = new ConcurrentSkipListMap<>();
+
+    /**
+     * Adds a user, or re-indexes them under their current name.
+     * @param user The user.
+     */
+    public void add(User user) {
+        User previous = byBankNumber.put(user.getBankNumber(), user);
+        if (previous != null) {
+            byName.remove(nameKey(previous.getUserName(), previous.getBankNumber())); // Drop a key left by an earlier name.
+        }
+        byName.put(nameKey(user.getUserName(), user.getBankNumber()), user);
+    }
+
+    /**
+     * Finds users whose name or bank number starts with a prefix. Name matches come first, in name
+     * order, then bank number matches in number order. An empty prefix lists users by name.
+     * @param prefix The prefix, case insensitive for names.
+     * @param limit The maximum number of users returned.
+     * @return The matching users.
+     */
+    public List<User> search(String prefix, int limit) {
+        String query = prefix == null ? "" : prefix.trim().toLowerCase(Locale.ROOT);
+        Map<String, User> matches = new LinkedHashMap<>(); // By bank number, so a user matching both ways is listed once.
+        collect(byName, query, limit, matches);
+        if (!query.isEmpty() && Character.isDigit(query.charAt(0))) {
+            collect(byBankNumber, query, limit, matches); // Bank numbers are digits only.
+        }
+        return new ArrayList<>(matches.values());
+    }
+
+    public int size() {
+        return byBankNumber.size();
+    }
+
+    /**
+     * Adds the users under a prefix until the limit is reached.
+     * @param index The index to walk.
+     * @param prefix The key prefix.
+     * @param limit The maximum number of users collected in total.
+     * @param matches The users collected so far.
+     */
+    private static void collect(ConcurrentSkipListMap<String, User> index, String prefix, int limit, Map<String, User> matches) {
+        NavigableMap<String, User> range = prefix.isEmpty() ? index : index.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        for (User user : range.values()) {
+            if (matches.size() >= limit) {
+                return;
+            }
+            matches.putIfAbsent(user.getBankNumber(), user);
+        }
+    }
+
+    private static String nameKey(String userName, String bankNumber) {
+        return (userName == null ? "" : userName.toLowerCase(Locale.ROOT)) + KEY_SEPARATOR + bankNumber;
+    }
+}
@@ -0,0 +1,4 @@
+@echo off
+rem Launch using the AppCDS archive built by "mvn -Pappcds package"
+java -XX:SharedArchiveFile="%~dp0target/app-cds.jsa" -Xshare:auto -Djava.library.path="%~dp0target" -jar "%~dp0target/banking-system-1.0-SNAPSHOT-jar-with-dependencies.jar"
+pause